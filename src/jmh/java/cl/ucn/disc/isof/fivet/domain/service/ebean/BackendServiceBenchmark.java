@@ -0,0 +1,284 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.ControlSummary;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.PacienteSummary;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.model.PersonaSummary;
+import cl.ucn.disc.isof.fivet.domain.model.SignosVitales;
+import cl.ucn.disc.isof.fivet.domain.service.BackendService;
+import cl.ucn.disc.isof.fivet.domain.service.FetchPlan;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Benchmark de cada operacion del {@link BackendService} con distintas bases de datos y cantidades de pacientes.
+ * <p>
+ * gradle jmh genera build/reports/jmh/results.json (throughput, tiempo promedio y, con -prof gc, la tasa
+ * de asignacion de memoria).
+ * </p>
+ * hsql no se mide: no soporta ENCRYPT, por lo que el setup con {@link Persona} fallaria en esa base de datos.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class BackendServiceBenchmark {
+
+    /**
+     * Veterinarios del set de datos
+     */
+    private static final int VETERINARIOS = 10;
+
+    /**
+     * Un control por cada CONTROLES pacientes
+     */
+    private static final int CONTROLES = 10;
+
+    /**
+     * Pacientes por pagina / por lote
+     */
+    private static final int LOTE = 100;
+
+    /**
+     * Base de datos de ebean.properties (sin hsql, ver la documentacion de la clase)
+     */
+    @Param({"h2", "sqlite"})
+    public String database;
+
+    /**
+     * Cantidad de pacientes
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int pacientes;
+
+    /**
+     * Columnas de la agenda de un veterinario
+     */
+    private static final FetchPlan AGENDA = FetchPlan.select("fecha,diagnostico").fetch("veterinario", "nombre");
+
+    private EbeanBackendService backendService;
+
+    private List<Persona> veterinarios;
+
+    /**
+     * Numeros de ficha para los pacientes insertados durante el benchmark
+     */
+    private AtomicInteger siguienteNumero;
+
+    @Setup(Level.Trial)
+    public void setup() {
+
+        this.backendService = new EbeanBackendService(this.database);
+
+        this.veterinarios = IntStream.range(0, VETERINARIOS)
+                .mapToObj(i -> Persona.builder()
+                        .rut("vet-" + i)
+                        .mail("vet" + i + "@fivet.cl")
+                        .nombre("Veterinario " + i)
+                        .direccion("Angamos 0610")
+                        .login("vet" + i)
+                        .password("vet" + i)
+                        .tipo(Persona.Tipo.VETERINARIO)
+                        .build())
+                .collect(Collectors.toList());
+        this.backendService.insertar(this.veterinarios);
+
+        this.backendService.insertar(IntStream.rangeClosed(1, this.pacientes)
+                .mapToObj(i -> Paciente.builder()
+                        .numero(i)
+                        .nombre(nombre(i))
+                        .especie(i % 2 == 0 ? "perro" : "gato")
+                        .sexo(i % 2 == 0 ? Paciente.Sexo.MACHO : Paciente.Sexo.HEMBRA)
+                        .fechaNacimiento(new Date())
+                        .build()));
+
+        // Controles en lotes, repartidos entre los veterinarios
+        for (int desde = 1; desde <= this.pacientes; desde += LOTE * CONTROLES) {
+            final Map<Integer, List<Control>> controles = new HashMap<>();
+            for (int numero = desde; numero < desde + LOTE * CONTROLES && numero <= this.pacientes; numero += CONTROLES) {
+                final List<Control> lista = new ArrayList<>(1);
+                lista.add(this.control(numero));
+                controles.put(numero, lista);
+            }
+            this.backendService.agregarControles(controles);
+        }
+
+        this.siguienteNumero = new AtomicInteger(this.pacientes);
+
+        // Carga el indice de nombres
+        this.backendService.initialize();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.backendService.shutdown();
+    }
+
+    private static String nombre(final int i) {
+        return "paciente" + Integer.toString(i, 36);
+    }
+
+    private Control control(final int i) {
+        return Control.builder()
+                .codigo(i)
+                .fecha(new Date())
+                .proximoControl(new Date())
+                .peso(10 + i % 30)
+                .temperatura(38.5)
+                .altura(0.5)
+                .diagnostico("sano")
+                .veterinario(this.veterinarios.get(i % VETERINARIOS))
+                .build();
+    }
+
+    private int numeroAlAzar() {
+        return ThreadLocalRandom.current().nextInt(1, this.pacientes + 1);
+    }
+
+    private String rutAlAzar() {
+        return "vet-" + ThreadLocalRandom.current().nextInt(VETERINARIOS);
+    }
+
+    @Benchmark
+    public Persona getPersonaPorRut() {
+        return this.backendService.getPersona(this.rutAlAzar());
+    }
+
+    @Benchmark
+    public Persona getPersonaPorMail() {
+        return this.backendService.getPersona("vet" + ThreadLocalRandom.current().nextInt(VETERINARIOS) + "@fivet.cl");
+    }
+
+    @Benchmark
+    public PersonaSummary authenticate() {
+        final int vet = ThreadLocalRandom.current().nextInt(VETERINARIOS);
+        return this.backendService.authenticate("vet" + vet, "vet" + vet);
+    }
+
+    @Benchmark
+    public List<Paciente> getPacientes() {
+        return this.backendService.getPacientes();
+    }
+
+    @Benchmark
+    public List<Paciente> getPacientesPagina() {
+        return this.backendService.getPacientes(this.numeroAlAzar(), LOTE);
+    }
+
+    @Benchmark
+    public List<PacienteSummary> getPacientesResumen() {
+        return this.backendService.getPacientesResumen(this.numeroAlAzar(), LOTE);
+    }
+
+    @Benchmark
+    public int countPacientes() {
+        return this.backendService.countPacientes();
+    }
+
+    @Benchmark
+    public boolean existsPaciente() {
+        return this.backendService.existsPaciente(this.numeroAlAzar());
+    }
+
+    @Benchmark
+    public void recorrerPacientes(final Blackhole blackhole) {
+        this.backendService.recorrerPacientes(blackhole::consume);
+    }
+
+    @Benchmark
+    public Paciente getPaciente() {
+        return this.backendService.getPaciente(this.numeroAlAzar());
+    }
+
+    @Benchmark
+    public List<Control> getControlesVeterinario() {
+        return this.backendService.getControlesVeterinario(this.rutAlAzar());
+    }
+
+    @Benchmark
+    public List<Control> getControlesVeterinarioAgenda() {
+        final List<Control> controles = this.backendService.getControlesVeterinario(this.rutAlAzar(), AGENDA);
+        for (Control control : controles) {
+            control.getVeterinario().getNombre();
+        }
+        return controles;
+    }
+
+    @Benchmark
+    public List<Control> getControlesVeterinarioPagina() {
+        return this.backendService.getControlesVeterinario(this.rutAlAzar(), null, null, null, LOTE);
+    }
+
+    @Benchmark
+    public List<ControlSummary> getControlesVeterinarioResumen() {
+        return this.backendService.getControlesVeterinarioResumen(this.rutAlAzar());
+    }
+
+    @Benchmark
+    public Map<Integer, SignosVitales> getSignosVitalesPorPaciente() {
+        return this.backendService.getSignosVitalesPorPaciente();
+    }
+
+    @Benchmark
+    public Map<String, SignosVitales> getSignosVitalesPorVeterinario() {
+        return this.backendService.getSignosVitalesPorVeterinario();
+    }
+
+    @Benchmark
+    public Map<YearMonth, SignosVitales> getSignosVitalesPorMes() {
+        return this.backendService.getSignosVitalesPorMes(null);
+    }
+
+    @Benchmark
+    public List<Paciente> getPacientesPorNombre() {
+        return this.backendService.getPacientesPorNombre(nombre(this.numeroAlAzar()));
+    }
+
+    @Benchmark
+    public List<Paciente> getPacientesPorNombreLimite() {
+        return this.backendService.getPacientesPorNombre("paciente" + Integer.toString(this.numeroAlAzar(), 36).charAt(0), 10);
+    }
+
+    @Benchmark
+    public void agregarControl() {
+        final int numero = this.numeroAlAzar();
+        this.backendService.agregarControl(this.control(numero), numero);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOTE)
+    public void agregarControles() {
+        final Map<Integer, List<Control>> controles = new HashMap<>();
+        for (int i = 0; i < LOTE; i++) {
+            final int numero = this.numeroAlAzar();
+            controles.computeIfAbsent(numero, n -> new ArrayList<>()).add(this.control(numero));
+        }
+        this.backendService.agregarControles(controles);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOTE)
+    public List<Long> insertar() {
+        final int desde = this.siguienteNumero.getAndAdd(LOTE);
+        return this.backendService.insertar(IntStream.range(desde + 1, desde + 1 + LOTE)
+                .mapToObj(i -> Paciente.builder().numero(i).nombre(nombre(i)).especie("perro").build())
+                .collect(Collectors.toList()));
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.durrutia.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Comparacion de {@link BaseModel#toString()} (accessors cacheados de {@link ModelToString}) con la serializacion
+ * original por reflection. Con -prof gc muestra ademas los bytes asignados por llamada.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModelToStringBenchmark {
+
+    /**
+     * Como {@link BaseModel}, para acceder a toStringReflection()
+     */
+    private BaseModel persona;
+
+    private BaseModel paciente;
+
+    private BaseModel control;
+
+    @Setup
+    public void setup() {
+
+        final Persona veterinario = Persona.builder()
+                .rut("1-1")
+                .nombre("veterinario")
+                .direccion("Angamos 0610")
+                .mail("vet@gmail.com")
+                .login("vet")
+                .password("vet")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .build();
+        this.persona = veterinario;
+
+        this.paciente = Paciente.builder()
+                .numero(1)
+                .nombre("firulais")
+                .especie("perro")
+                .raza("quiltro")
+                .sexo(Paciente.Sexo.MACHO)
+                .fechaNacimiento(new Date())
+                .build();
+
+        this.control = Control.builder()
+                .codigo(1)
+                .fecha(new Date())
+                .temperatura(38.5)
+                .peso(10)
+                .altura(0.5)
+                .diagnostico("sano")
+                .veterinario(veterinario)
+                .build();
+    }
+
+    @Benchmark
+    public String personaAccessors() {
+        return this.persona.toString();
+    }
+
+    @Benchmark
+    public String personaReflection() {
+        return this.persona.toStringReflection();
+    }
+
+    @Benchmark
+    public String pacienteAccessors() {
+        return this.paciente.toString();
+    }
+
+    @Benchmark
+    public String pacienteReflection() {
+        return this.paciente.toStringReflection();
+    }
+
+    @Benchmark
+    public String controlAccessors() {
+        return this.control.toString();
+    }
+
+    @Benchmark
+    public String controlReflection() {
+        return this.control.toStringReflection();
+    }
+
+}
@@ -0,0 +1,44 @@
+package cl.ucn.disc.isof.fivet.domain.model;
+
+import lombok.Value;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Una version del historial (@History) de un modelo y lo que cambio respecto de la version anterior.
+ */
+@Value
+public class Cambio {
+
+    /**
+     * Id del modelo
+     */
+    Long id;
+
+    /**
+     * Version (@Version) del modelo en este periodo
+     */
+    Long version;
+
+    /**
+     * Desde cuando es valida la version
+     */
+    Instant desde;
+
+    /**
+     * Hasta cuando fue valida la version, null si es la vigente
+     */
+    Instant hasta;
+
+    /**
+     * Propiedad -> valor antes del cambio, vacio en la version mas antigua consultada
+     */
+    Map<String, Object> anteriores;
+
+    /**
+     * Propiedad -> valor despues del cambio, vacio en la version mas antigua consultada
+     */
+    Map<String, Object> nuevos;
+
+}
@@ -1,5 +1,6 @@
 package cl.ucn.disc.isof.fivet.domain.model;
 
+import com.avaje.ebean.annotation.Index;
 import com.durrutia.ebean.BaseModel;
 import lombok.*;
 import org.hibernate.validator.constraints.NotEmpty;
@@ -17,6 +18,7 @@ import java.util.Date;
 @Builder
 @Entity
 @Table
+@Index(columnNames = {"veterinario_id", "fecha", "id"})
 public class Control extends BaseModel {
 
     /**
@@ -41,6 +43,7 @@ public class Control extends BaseModel {
     @Getter
     @NotEmpty
     @Column
+    @Index
     private Date proximoControl;
 
     /**
@@ -87,6 +90,7 @@ public class Control extends BaseModel {
      * Veterinario
      */
     @Getter
+    @Setter
     @NotEmpty
     @Column
     @ManyToOne
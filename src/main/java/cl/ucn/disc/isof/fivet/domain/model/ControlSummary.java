@@ -0,0 +1,44 @@
+package cl.ucn.disc.isof.fivet.domain.model;
+
+import lombok.Value;
+
+import java.time.Instant;
+
+/**
+ * Resumen inmutable de un {@link Control} para la agenda de un veterinario, leido directamente del resultado SQL
+ * (sin bean de Ebean ni persistence context). Incluye el paciente, que el {@link Control} no referencia.
+ */
+@Value
+public class ControlSummary {
+
+    /**
+     * Codigo
+     */
+    Integer codigo;
+
+    /**
+     * Fecha
+     */
+    Instant fecha;
+
+    /**
+     * Fecha del próximo control
+     */
+    Instant proximoControl;
+
+    /**
+     * Diagnostico
+     */
+    String diagnostico;
+
+    /**
+     * Nombre del veterinario
+     */
+    String nombreVeterinario;
+
+    /**
+     * Numero de ficha del paciente, null si el control no esta asociado a un paciente
+     */
+    Integer numeroPaciente;
+
+}
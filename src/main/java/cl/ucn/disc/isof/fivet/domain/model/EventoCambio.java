@@ -0,0 +1,52 @@
+package cl.ucn.disc.isof.fivet.domain.model;
+
+import com.durrutia.ebean.BaseModel;
+import lombok.Value;
+
+import java.util.Set;
+
+/**
+ * Cambio confirmado (commit) de una {@link Persona}, un {@link Paciente} o un {@link Control}, publicado a los
+ * suscriptores del bus de cambios.
+ */
+@Value
+public class EventoCambio {
+
+    /**
+     * Clase del modelo que cambio
+     */
+    Class<? extends BaseModel> entidad;
+
+    /**
+     * Tipo de cambio
+     */
+    Tipo tipo;
+
+    /**
+     * Id del modelo
+     */
+    Long id;
+
+    /**
+     * Version (@Version) del modelo despues del cambio, null si no se conoce
+     */
+    Long version;
+
+    /**
+     * Propiedades cargadas (insert) o modificadas (update, delete)
+     */
+    Set<String> propiedades;
+
+    /**
+     * Tipo de cambio
+     */
+    public enum Tipo {
+        INSERT,
+        UPDATE,
+        /**
+         * Eliminacion, incluido el soft delete
+         */
+        DELETE
+    }
+
+}
@@ -1,6 +1,10 @@
 package cl.ucn.disc.isof.fivet.domain.model;
 
+import com.avaje.ebean.annotation.Cache;
+import com.avaje.ebean.annotation.CacheBeanTuning;
 import com.avaje.ebean.annotation.EnumValue;
+import com.avaje.ebean.annotation.History;
+import com.avaje.ebean.annotation.Index;
 import com.durrutia.ebean.BaseModel;
 import lombok.*;
 
@@ -18,6 +22,9 @@ import java.util.List;
 @NoArgsConstructor
 @AllArgsConstructor
 @Builder
+@Cache
+@CacheBeanTuning(maxSize = 500)
+@History
 @Entity
 @Table
 public class Paciente extends BaseModel {
@@ -26,6 +33,7 @@ public class Paciente extends BaseModel {
      * Numero de la ficha
      */
     @Getter
+    @Index(unique = true)
     @Column
     private Integer numero;
 
@@ -0,0 +1,37 @@
+package cl.ucn.disc.isof.fivet.domain.model;
+
+import lombok.Value;
+
+/**
+ * Resumen inmutable de un {@link Paciente} para los listados: solo las columnas que se muestran,
+ * leidas directamente del resultado SQL (sin bean de Ebean ni persistence context).
+ */
+@Value
+public class PacienteSummary {
+
+    /**
+     * Numero de la ficha
+     */
+    Integer numero;
+
+    /**
+     * Nombre del paciente
+     */
+    String nombre;
+
+    /**
+     * Especie
+     */
+    String especie;
+
+    /**
+     * Raza
+     */
+    String raza;
+
+    /**
+     * Sexo
+     */
+    Paciente.Sexo sexo;
+
+}
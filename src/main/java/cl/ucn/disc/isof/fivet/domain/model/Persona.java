@@ -1,7 +1,11 @@
 package cl.ucn.disc.isof.fivet.domain.model;
 
+import com.avaje.ebean.annotation.Cache;
+import com.avaje.ebean.annotation.CacheBeanTuning;
 import com.avaje.ebean.annotation.Encrypted;
 import com.avaje.ebean.annotation.EnumValue;
+import com.avaje.ebean.annotation.History;
+import com.avaje.ebean.annotation.Index;
 import com.durrutia.ebean.BaseModel;
 import lombok.*;
 import org.hibernate.validator.constraints.NotEmpty;
@@ -19,6 +23,9 @@ import java.util.List;
 @NoArgsConstructor
 @AllArgsConstructor
 @Builder
+@Cache
+@CacheBeanTuning(maxSize = 500)
+@History
 @Entity
 @Table
 public class Persona extends BaseModel {
@@ -28,6 +35,7 @@ public class Persona extends BaseModel {
      */
     @Getter
     @NotEmpty
+    @Index(unique = true)
     @Column(nullable = false)
     private String rut;
 
@@ -69,6 +77,7 @@ public class Persona extends BaseModel {
      */
     @Getter
     @Setter
+    @Index
     @Column(nullable = true)
     private String mail;
 
@@ -77,15 +86,17 @@ public class Persona extends BaseModel {
      */
     @Getter
     @Setter
+    @Index
     @Column(nullable = false)
     private String login;
 
     /**
-     * Password
+     * Password. Fuera del fetch por defecto: solo se desencripta al leerla (lazy load).
      */
     @NotEmpty
     @Getter
     @Encrypted
+    @Basic(fetch = FetchType.LAZY)
     @Column(nullable = false)
     private String password;
 
@@ -0,0 +1,27 @@
+package cl.ucn.disc.isof.fivet.domain.model;
+
+import lombok.Value;
+
+/**
+ * Resumen inmutable de una {@link Persona} autenticada: sin la password ni las relaciones,
+ * leido directamente del resultado SQL (sin bean de Ebean ni persistence context).
+ */
+@Value
+public class PersonaSummary {
+
+    /**
+     * RUT
+     */
+    String rut;
+
+    /**
+     * Nombre
+     */
+    String nombre;
+
+    /**
+     * Tipo de la persona
+     */
+    Persona.Tipo tipo;
+
+}
@@ -0,0 +1,33 @@
+package cl.ucn.disc.isof.fivet.domain.model;
+
+import lombok.Value;
+
+import java.time.Instant;
+
+/**
+ * Recordatorio inmutable del proximo control de un {@link Paciente}, a partir de {@link Control#getProximoControl()}.
+ */
+@Value
+public class Recordatorio {
+
+    /**
+     * Id del control que fijo la fecha del proximo control
+     */
+    Long idControl;
+
+    /**
+     * Codigo del control
+     */
+    Integer codigo;
+
+    /**
+     * Fecha del próximo control
+     */
+    Instant proximoControl;
+
+    /**
+     * Numero de ficha del paciente
+     */
+    Integer numeroPaciente;
+
+}
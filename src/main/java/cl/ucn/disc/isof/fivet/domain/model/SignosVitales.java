@@ -0,0 +1,38 @@
+package cl.ucn.disc.isof.fivet.domain.model;
+
+import lombok.Value;
+
+/**
+ * Minimo, promedio y maximo del peso, la temperatura y la altura de un grupo de {@link Control}, calculados por la
+ * base de datos (GROUP BY) sin crear beans.
+ */
+@Value
+public class SignosVitales {
+
+    /**
+     * Cantidad de controles del grupo
+     */
+    long controles;
+
+    /**
+     * Peso
+     */
+    double pesoMinimo;
+    double pesoPromedio;
+    double pesoMaximo;
+
+    /**
+     * Temperatura
+     */
+    double temperaturaMinima;
+    double temperaturaPromedio;
+    double temperaturaMaxima;
+
+    /**
+     * Altura
+     */
+    double alturaMinima;
+    double alturaPromedio;
+    double alturaMaxima;
+
+}
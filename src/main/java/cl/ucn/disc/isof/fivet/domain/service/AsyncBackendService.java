@@ -0,0 +1,389 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import cl.ucn.disc.isof.fivet.domain.model.Cambio;
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.ControlSummary;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.PacienteSummary;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.model.PersonaSummary;
+import cl.ucn.disc.isof.fivet.domain.model.SignosVitales;
+import com.durrutia.ebean.BaseModel;
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Version asincrona de un {@link BackendService}: cada operacion se ejecuta en otro hilo y retorna un
+ * {@link CompletableFuture}, para que las consultas de una misma pantalla se ejecuten en paralelo.
+ * <p>
+ * Usa virtual threads cuando la JVM los soporta (Java 21+) y un pool de hilos de plataforma en otro caso.
+ * La cantidad de operaciones simultaneas se limita al tamaño del pool de conexiones, para no dejar hilos
+ * esperando una conexion.
+ * </p>
+ * <p>
+ * Con replicas de lectura, la lectura de lo propio (read-your-writes) del backend es por hilo: cada operacion se
+ * ejecuta en un hilo distinto al que la pide, por lo que una lectura asincrona puede ir a una replica que aun no
+ * tiene lo que se acaba de escribir, aun despues de esperar la escritura.
+ * </p>
+ */
+@Slf4j
+public final class AsyncBackendService {
+
+    /**
+     * Backend sincrono
+     */
+    private final BackendService backendService;
+
+    /**
+     * Donde se ejecutan las operaciones
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Operaciones simultaneas permitidas
+     */
+    private final Semaphore permisos;
+
+    /**
+     * Operaciones simultaneas permitidas
+     */
+    @Getter
+    private final int maxConcurrencia;
+
+    /**
+     * Si el executor usa virtual threads
+     */
+    @Getter
+    private final boolean virtualThreads;
+
+    /**
+     * @param backendService  a envolver.
+     * @param maxConcurrencia operaciones simultaneas, normalmente el maximo de conexiones del datasource.
+     */
+    public AsyncBackendService(final BackendService backendService, final int maxConcurrencia) {
+
+        Preconditions.checkArgument(maxConcurrencia > 0, "maxConcurrencia debe ser positivo");
+
+        this.backendService = Preconditions.checkNotNull(backendService);
+        this.maxConcurrencia = maxConcurrencia;
+        this.permisos = new Semaphore(maxConcurrencia);
+
+        final ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = this.virtualThreads ? virtual : newPlatformThreadExecutor(maxConcurrencia);
+
+        log.debug("AsyncBackendService with {} threads and {} permits.",
+                this.virtualThreads ? "virtual" : "platform", maxConcurrencia);
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor() si existe en esta JVM, null en otro caso.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return pool fijo de hilos daemon de plataforma.
+     */
+    private static ExecutorService newPlatformThreadExecutor(final int hilos) {
+
+        final AtomicInteger contador = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable -> {
+            final Thread thread = new Thread(runnable, "backend-async-" + contador.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(hilos, threadFactory);
+    }
+
+    /**
+     * @see BackendService#getPersona(String)
+     */
+    public CompletableFuture<Persona> getPersona(final String rutEmail) {
+        return this.submit(() -> this.backendService.getPersona(rutEmail));
+    }
+
+    /**
+     * @see BackendService#authenticate(String, String)
+     */
+    public CompletableFuture<PersonaSummary> authenticate(final String login, final String password) {
+        return this.submit(() -> this.backendService.authenticate(login, password));
+    }
+
+    /**
+     * @see BackendService#getPersonaAsOf(String, Instant)
+     */
+    public CompletableFuture<Persona> getPersonaAsOf(final String rut, final Instant instante) {
+        return this.submit(() -> this.backendService.getPersonaAsOf(rut, instante));
+    }
+
+    /**
+     * @see BackendService#getCambiosPersona(String, Instant, Instant)
+     */
+    public CompletableFuture<List<Cambio>> getCambiosPersona(final String rut, final Instant desde,
+                                                              final Instant hasta) {
+        return this.submit(() -> this.backendService.getCambiosPersona(rut, desde, hasta));
+    }
+
+    /**
+     * @see BackendService#getPacientes()
+     */
+    public CompletableFuture<List<Paciente>> getPacientes() {
+        return this.submit(this.backendService::getPacientes);
+    }
+
+    /**
+     * @see BackendService#getPacientes(Integer, int)
+     */
+    public CompletableFuture<List<Paciente>> getPacientes(final Integer ultimoNumero, final int limite) {
+        return this.submit(() -> this.backendService.getPacientes(ultimoNumero, limite));
+    }
+
+    /**
+     * @see BackendService#getPacientes(FetchPlan)
+     */
+    public CompletableFuture<List<Paciente>> getPacientes(final FetchPlan fetchPlan) {
+        return this.submit(() -> this.backendService.getPacientes(fetchPlan));
+    }
+
+    /**
+     * @see BackendService#getPacientes(Integer, int, FetchPlan)
+     */
+    public CompletableFuture<List<Paciente>> getPacientes(final Integer ultimoNumero, final int limite,
+                                                        final FetchPlan fetchPlan) {
+        return this.submit(() -> this.backendService.getPacientes(ultimoNumero, limite, fetchPlan));
+    }
+
+    /**
+     * @see BackendService#getPacientesResumen(Integer, int)
+     */
+    public CompletableFuture<List<PacienteSummary>> getPacientesResumen(final Integer ultimoNumero, final int limite) {
+        return this.submit(() -> this.backendService.getPacientesResumen(ultimoNumero, limite));
+    }
+
+    /**
+     * @see BackendService#countPacientes()
+     */
+    public CompletableFuture<Integer> countPacientes() {
+        return this.submit(this.backendService::countPacientes);
+    }
+
+    /**
+     * @see BackendService#existsPaciente(Integer)
+     */
+    public CompletableFuture<Boolean> existsPaciente(final Integer numeroPaciente) {
+        return this.submit(() -> this.backendService.existsPaciente(numeroPaciente));
+    }
+
+    /**
+     * @see BackendService#recorrerPacientes(Consumer)
+     */
+    public CompletableFuture<Void> recorrerPacientes(final Consumer<Paciente> consumer) {
+        return this.submit(() -> {
+            this.backendService.recorrerPacientes(consumer);
+            return null;
+        });
+    }
+
+    /**
+     * @see BackendService#getPaciente(Integer)
+     */
+    public CompletableFuture<Paciente> getPaciente(final Integer numeroPaciente) {
+        return this.submit(() -> this.backendService.getPaciente(numeroPaciente));
+    }
+
+    /**
+     * @see BackendService#getPacienteAsOf(Integer, Instant)
+     */
+    public CompletableFuture<Paciente> getPacienteAsOf(final Integer numeroPaciente, final Instant instante) {
+        return this.submit(() -> this.backendService.getPacienteAsOf(numeroPaciente, instante));
+    }
+
+    /**
+     * @see BackendService#getCambiosPaciente(Integer, Instant, Instant)
+     */
+    public CompletableFuture<List<Cambio>> getCambiosPaciente(final Integer numeroPaciente, final Instant desde,
+                                                               final Instant hasta) {
+        return this.submit(() -> this.backendService.getCambiosPaciente(numeroPaciente, desde, hasta));
+    }
+
+    /**
+     * @see BackendService#getControlesVeterinario(String)
+     */
+    public CompletableFuture<List<Control>> getControlesVeterinario(final String rutVeterinario) {
+        return this.submit(() -> this.backendService.getControlesVeterinario(rutVeterinario));
+    }
+
+    /**
+     * @see BackendService#getControlesVeterinario(String, FetchPlan)
+     */
+    public CompletableFuture<List<Control>> getControlesVeterinario(final String rutVeterinario, final FetchPlan fetchPlan) {
+        return this.submit(() -> this.backendService.getControlesVeterinario(rutVeterinario, fetchPlan));
+    }
+
+    /**
+     * @see BackendService#getControlesVeterinario(String, Date, Date, Control, int)
+     */
+    public CompletableFuture<List<Control>> getControlesVeterinario(final String rutVeterinario, final Date desde,
+                                                                    final Date hasta, final Control ultimo,
+                                                                    final int limite) {
+        return this.submit(() -> this.backendService.getControlesVeterinario(rutVeterinario, desde, hasta, ultimo,
+                limite));
+    }
+
+    /**
+     * @see BackendService#getControlesVeterinarioResumen(String)
+     */
+    public CompletableFuture<List<ControlSummary>> getControlesVeterinarioResumen(final String rutVeterinario) {
+        return this.submit(() -> this.backendService.getControlesVeterinarioResumen(rutVeterinario));
+    }
+
+    /**
+     * @see BackendService#getSignosVitalesPorPaciente()
+     */
+    public CompletableFuture<Map<Integer, SignosVitales>> getSignosVitalesPorPaciente() {
+        return this.submit(this.backendService::getSignosVitalesPorPaciente);
+    }
+
+    /**
+     * @see BackendService#getSignosVitalesPorVeterinario()
+     */
+    public CompletableFuture<Map<String, SignosVitales>> getSignosVitalesPorVeterinario() {
+        return this.submit(this.backendService::getSignosVitalesPorVeterinario);
+    }
+
+    /**
+     * @see BackendService#getSignosVitalesPorMes(Integer)
+     */
+    public CompletableFuture<Map<YearMonth, SignosVitales>> getSignosVitalesPorMes(final Integer numeroPaciente) {
+        return this.submit(() -> this.backendService.getSignosVitalesPorMes(numeroPaciente));
+    }
+
+    /**
+     * @see BackendService#getPacientesPorNombre(String)
+     */
+    public CompletableFuture<List<Paciente>> getPacientesPorNombre(final String nombre) {
+        return this.submit(() -> this.backendService.getPacientesPorNombre(nombre));
+    }
+
+    /**
+     * @see BackendService#getPacientesPorNombre(String, int)
+     */
+    public CompletableFuture<List<Paciente>> getPacientesPorNombre(final String nombre, final int limite) {
+        return this.submit(() -> this.backendService.getPacientesPorNombre(nombre, limite));
+    }
+
+    /**
+     * @see BackendService#getPacientesPorNombre(String, int, FetchPlan)
+     */
+    public CompletableFuture<List<Paciente>> getPacientesPorNombre(final String nombre, final int limite,
+                                                                 final FetchPlan fetchPlan) {
+        return this.submit(() -> this.backendService.getPacientesPorNombre(nombre, limite, fetchPlan));
+    }
+
+    /**
+     * @see BackendService#agregarControl(Control, Integer)
+     */
+    public CompletableFuture<Void> agregarControl(final Control control, final Integer numeroPaciente) {
+        return this.submit(() -> {
+            this.backendService.agregarControl(control, numeroPaciente);
+            return null;
+        });
+    }
+
+    /**
+     * @see BackendService#agregarControles(Map)
+     */
+    public CompletableFuture<Void> agregarControles(final Map<Integer, List<Control>> controlesPorPaciente) {
+        return this.submit(() -> {
+            this.backendService.agregarControles(controlesPorPaciente);
+            return null;
+        });
+    }
+
+    /**
+     * @see BackendService#insertar(Collection)
+     */
+    public CompletableFuture<List<Long>> insertar(final Collection<? extends BaseModel> modelos) {
+        return this.submit(() -> this.backendService.insertar(modelos));
+    }
+
+    /**
+     * El stream se consume en el hilo de la operacion.
+     *
+     * @see BackendService#insertar(Stream)
+     */
+    public CompletableFuture<List<Long>> insertar(final Stream<? extends BaseModel> modelos) {
+        return this.submit(() -> this.backendService.insertar(modelos));
+    }
+
+    /**
+     * @see BackendService#exportarPacientes(Path, boolean)
+     */
+    public CompletableFuture<Exportacion> exportarPacientes(final Path destino, final boolean gzip) {
+        return this.submit(() -> this.backendService.exportarPacientes(destino, gzip));
+    }
+
+    /**
+     * Detiene el executor, esperando las operaciones en curso. No cierra el backend envuelto.
+     */
+    public void shutdown() {
+
+        log.debug("Shutting down AsyncBackendService ..");
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ejecuta la operacion en el executor, respetando el limite de concurrencia.
+     */
+    private <T> CompletableFuture<T> submit(final Supplier<T> operacion) {
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                this.permisos.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                return operacion.get();
+            } finally {
+                this.permisos.release();
+            }
+        }, this.executor);
+    }
+
+}
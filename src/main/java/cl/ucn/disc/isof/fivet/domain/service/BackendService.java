@@ -1,10 +1,24 @@
 package cl.ucn.disc.isof.fivet.domain.service;
 
+import cl.ucn.disc.isof.fivet.domain.model.Cambio;
 import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.ControlSummary;
 import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.PacienteSummary;
 import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.model.PersonaSummary;
+import cl.ucn.disc.isof.fivet.domain.model.SignosVitales;
+import com.durrutia.ebean.BaseModel;
 
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Interface que representa las operaciones de acceso al backend.
@@ -19,6 +33,35 @@ public interface BackendService {
      */
     Persona getPersona(final String rutEmail);
 
+    /**
+     * Autentica a una persona por su login y password, sin cargar la {@link Persona} ni desencriptar passwords.
+     *
+     * @param login    de la persona.
+     * @param password en texto plano.
+     * @return el resumen de la persona, o null si el login o la password no corresponden.
+     */
+    PersonaSummary authenticate(final String login, final String password);
+
+    /**
+     * Obtiene una {@link Persona} tal como estaba en un instante, desde su historial (@History).
+     *
+     * @param rut      de la persona.
+     * @param instante a consultar.
+     * @return the {@link Persona} en ese instante, o null si no existia o estaba eliminada.
+     */
+    Persona getPersonaAsOf(final String rut, final Instant instante);
+
+    /**
+     * Obtiene las versiones de una {@link Persona} creadas en el periodo (sus cambios), de la mas antigua a la
+     * mas reciente, con las propiedades que cambiaron en cada una respecto de la anterior.
+     *
+     * @param rut   de la persona.
+     * @param desde inicio del periodo.
+     * @param hasta fin del periodo.
+     * @return the {@link List} of {@link Cambio}.
+     */
+    List<Cambio> getCambiosPersona(final String rut, final Instant desde, final Instant hasta);
+
     /**
      * Obtiene el listado de los pacientes.
      *
@@ -26,6 +69,64 @@ public interface BackendService {
      */
     List<Paciente> getPacientes();
 
+    /**
+     * Obtiene una pagina de pacientes ordenados por numero de ficha (paginacion por keyset: numero > ultimoNumero).
+     * A diferencia de un OFFSET, el costo de cada pagina no depende de la cantidad de paginas anteriores.
+     *
+     * @param ultimoNumero numero de ficha del ultimo paciente de la pagina anterior, null para la primera pagina.
+     * @param limite       cantidad maxima de pacientes a retornar.
+     * @return the {@link List} of {@link Paciente}, vacia cuando no quedan pacientes.
+     */
+    List<Paciente> getPacientes(final Integer ultimoNumero, final int limite);
+
+    /**
+     * Obtiene el listado de los pacientes cargando solo lo indicado en el plan.
+     *
+     * @param fetchPlan propiedades y relaciones a cargar.
+     * @return the {@link List} of {@link Paciente}
+     */
+    List<Paciente> getPacientes(final FetchPlan fetchPlan);
+
+    /**
+     * Obtiene una pagina de pacientes ordenados por numero de ficha cargando solo lo indicado en el plan.
+     *
+     * @param ultimoNumero numero de ficha del ultimo paciente de la pagina anterior, null para la primera pagina.
+     * @param limite       cantidad maxima de pacientes a retornar.
+     * @param fetchPlan    propiedades y relaciones a cargar.
+     * @return the {@link List} of {@link Paciente}, vacia cuando no quedan pacientes.
+     */
+    List<Paciente> getPacientes(final Integer ultimoNumero, final int limite, final FetchPlan fetchPlan);
+
+    /**
+     * Obtiene una pagina del resumen de los pacientes ordenados por numero de ficha (paginacion por keyset).
+     * No crea beans: cada fila es un {@link PacienteSummary} inmutable.
+     *
+     * @param ultimoNumero numero de ficha del ultimo paciente de la pagina anterior, null para la primera pagina.
+     * @param limite       cantidad maxima de pacientes a retornar.
+     * @return the {@link List} of {@link PacienteSummary}, vacia cuando no quedan pacientes.
+     */
+    List<PacienteSummary> getPacientesResumen(final Integer ultimoNumero, final int limite);
+
+    /**
+     * @return cantidad de pacientes (sin los eliminados), sin cargarlos.
+     */
+    int countPacientes();
+
+    /**
+     * @param numeroPaciente de ficha.
+     * @return true si existe un paciente (no eliminado) con ese numero de ficha, sin cargarlo.
+     */
+    boolean existsPaciente(final Integer numeroPaciente);
+
+    /**
+     * Recorre todos los pacientes ordenados por numero de ficha usando un cursor de la base de datos.
+     * Los pacientes no se acumulan en memoria: el consumer recibe uno a la vez. Omite los pacientes sin numero de
+     * ficha, como {@link #getPacientes(Integer, int)}.
+     *
+     * @param consumer que procesa cada {@link Paciente}.
+     */
+    void recorrerPacientes(final Consumer<Paciente> consumer);
+
     /**
      * Obtiene un {@link Paciente} a partir de su numero de ficha.
      *
@@ -34,6 +135,26 @@ public interface BackendService {
      */
     Paciente getPaciente(final Integer numeroPaciente);
 
+    /**
+     * Obtiene un {@link Paciente} con sus controles tal como estaba en un instante, desde su historial (@History).
+     *
+     * @param numeroPaciente de ficha.
+     * @param instante       a consultar.
+     * @return the {@link Paciente} en ese instante, o null si no existia o estaba eliminado.
+     */
+    Paciente getPacienteAsOf(final Integer numeroPaciente, final Instant instante);
+
+    /**
+     * Obtiene las versiones de un {@link Paciente} creadas en el periodo (sus cambios), de la mas antigua a la
+     * mas reciente, con las propiedades que cambiaron en cada una respecto de la anterior.
+     *
+     * @param numeroPaciente de ficha.
+     * @param desde          inicio del periodo.
+     * @param hasta          fin del periodo.
+     * @return the {@link List} of {@link Cambio}.
+     */
+    List<Cambio> getCambiosPaciente(final Integer numeroPaciente, final Instant desde, final Instant hasta);
+
     /**
      * Obtiene todos los controles realizados por un veterinario ordenado por fecha de control.
      *
@@ -42,6 +163,63 @@ public interface BackendService {
      */
     List<Control> getControlesVeterinario(final String rutVeterinario);
 
+    /**
+     * Obtiene todos los controles realizados por un veterinario ordenado por fecha de control,
+     * cargando solo lo indicado en el plan.
+     *
+     * @param rutVeterinario del que realizo el control.
+     * @param fetchPlan      propiedades y relaciones a cargar, ejemplo: el nombre del veterinario para la agenda.
+     * @return the {@link List} of {@link Control}.
+     */
+    List<Control> getControlesVeterinario(final String rutVeterinario, final FetchPlan fetchPlan);
+
+    /**
+     * Obtiene una pagina de la agenda de un veterinario: sus controles con fecha en [desde, hasta) ordenados por
+     * fecha e id (paginacion por keyset: (fecha, id) > (ultimo.fecha, ultimo.id)). El costo de cada pagina no
+     * depende del historial del veterinario ni de la cantidad de paginas anteriores.
+     *
+     * @param rutVeterinario del que realizo el control.
+     * @param desde          fecha inicial (inclusive), null para no acotar.
+     * @param hasta          fecha final (exclusive), null para no acotar.
+     * @param ultimo         ultimo control de la pagina anterior, null para la primera pagina.
+     * @param limite         cantidad maxima de controles a retornar.
+     * @return the {@link List} of {@link Control}, vacia cuando no quedan controles.
+     */
+    List<Control> getControlesVeterinario(final String rutVeterinario, final Date desde, final Date hasta,
+                                          final Control ultimo, final int limite);
+
+    /**
+     * Obtiene el resumen de todos los controles realizados por un veterinario ordenado por fecha de control,
+     * incluyendo el numero de ficha del paciente. No crea beans: cada fila es un {@link ControlSummary} inmutable.
+     *
+     * @param rutVeterinario del que realizo el control.
+     * @return the {@link List} of {@link ControlSummary}.
+     */
+    List<ControlSummary> getControlesVeterinarioResumen(final String rutVeterinario);
+
+    /**
+     * Obtiene el minimo, promedio y maximo de los signos vitales de los controles de cada paciente.
+     *
+     * @return numero de ficha del paciente -> {@link SignosVitales}, ordenado por numero.
+     */
+    Map<Integer, SignosVitales> getSignosVitalesPorPaciente();
+
+    /**
+     * Obtiene el minimo, promedio y maximo de los signos vitales de los controles realizados por cada veterinario.
+     *
+     * @return rut del veterinario -> {@link SignosVitales}, ordenado por rut.
+     */
+    Map<String, SignosVitales> getSignosVitalesPorVeterinario();
+
+    /**
+     * Obtiene el minimo, promedio y maximo de los signos vitales por mes (segun la fecha del control), para
+     * graficar la tendencia de un paciente o de toda la clinica.
+     *
+     * @param numeroPaciente del paciente, null para todos los controles.
+     * @return mes -> {@link SignosVitales}, ordenado por mes; sin los meses sin controles.
+     */
+    Map<YearMonth, SignosVitales> getSignosVitalesPorMes(final Integer numeroPaciente);
+
     /**
      * Obtiene todos los {@link Paciente} que poseen un match en su nombre.
      *
@@ -50,6 +228,25 @@ public interface BackendService {
      */
     List<Paciente> getPacientesPorNombre(final String nombre);
 
+    /**
+     * Obtiene los {@link Paciente} cuyo nombre comienza con el texto, sin considerar mayusculas ni tildes.
+     *
+     * @param nombre a buscar, ejemplo: "nan" que puede retornar Ñandú, nano, etc..
+     * @param limite cantidad maxima de pacientes a retornar.
+     * @return the {@link List} of {@link Paciente} ordenada por nombre.
+     */
+    List<Paciente> getPacientesPorNombre(final String nombre, final int limite);
+
+    /**
+     * Obtiene los {@link Paciente} cuyo nombre comienza con el texto cargando solo lo indicado en el plan.
+     *
+     * @param nombre    a buscar, ejemplo: "nan" que puede retornar Ñandú, nano, etc..
+     * @param limite    cantidad maxima de pacientes a retornar.
+     * @param fetchPlan propiedades y relaciones a cargar.
+     * @return the {@link List} of {@link Paciente} ordenada por nombre.
+     */
+    List<Paciente> getPacientesPorNombre(final String nombre, final int limite, final FetchPlan fetchPlan);
+
     /**
      * Agrega un {@link Control} a un {@link Paciente} identificado por el numeroPaciente.
      *
@@ -59,6 +256,40 @@ public interface BackendService {
      */
     void agregarControl(final Control control, final Integer numeroPaciente);
 
+    /**
+     * Agrega muchos {@link Control} a sus {@link Paciente} en una sola transaccion.
+     *
+     * @param controlesPorPaciente numero de ficha del paciente -> controles a agregar.
+     * @throws RuntimeException en caso de no encontrar alguno de los pacientes, sin agregar ningun control.
+     */
+    void agregarControles(final Map<Integer, List<Control>> controlesPorPaciente);
+
+    /**
+     * Inserta masivamente {@link Persona}, {@link Paciente} o {@link Control} usando batch JDBC.
+     *
+     * @param modelos a insertar.
+     * @return los ids generados, en el mismo orden de los modelos.
+     */
+    List<Long> insertar(final Collection<? extends BaseModel> modelos);
+
+    /**
+     * Inserta masivamente los modelos a medida que se consume el stream, en transacciones acotadas.
+     *
+     * @param modelos a insertar.
+     * @return los ids generados, en el mismo orden de los modelos.
+     */
+    List<Long> insertar(final Stream<? extends BaseModel> modelos);
+
+    /**
+     * Exporta todos los pacientes con sus controles y propietarios a un archivo JSON, escribiendo a medida que
+     * se leen: la memoria no depende de la cantidad de pacientes.
+     *
+     * @param destino archivo a crear o reemplazar.
+     * @param gzip    si se comprime con gzip.
+     * @return cantidades exportadas, bytes escritos y pacientes por segundo.
+     */
+    Exportacion exportarPacientes(final Path destino, final boolean gzip);
+
     /**
      * Inicializa el backend.
      */
@@ -0,0 +1,20 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import java.util.List;
+
+/**
+ * Metricas del {@link MeteredBackendService} expuestas por JMX.
+ */
+public interface BackendServiceMetricsMXBean {
+
+    /**
+     * @return las metricas de cada metodo del {@link BackendService}.
+     */
+    List<MetricaSnapshot> getMetricas();
+
+    /**
+     * Vuelve a cero todas las metricas.
+     */
+    void reset();
+
+}
@@ -0,0 +1,43 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import lombok.Value;
+
+/**
+ * Resultado de una exportacion de pacientes.
+ */
+@Value
+public class Exportacion {
+
+    /**
+     * Pacientes exportados
+     */
+    long pacientes;
+
+    /**
+     * Controles exportados
+     */
+    long controles;
+
+    /**
+     * Propietarios (personas) exportados, contando cada relacion persona-paciente
+     */
+    long propietarios;
+
+    /**
+     * Bytes escritos en el archivo (comprimidos si se uso gzip)
+     */
+    long bytes;
+
+    /**
+     * Duracion de la exportacion
+     */
+    long nanos;
+
+    /**
+     * @return pacientes exportados por segundo.
+     */
+    public double getPacientesPorSegundo() {
+        return this.nanos == 0 ? 0 : this.pacientes * 1e9 / this.nanos;
+    }
+
+}
@@ -0,0 +1,86 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Que propiedades y relaciones cargar en una consulta del {@link BackendService}.
+ * <p>
+ * Las relaciones incluidas con {@link #fetch(String, String)} se cargan en la misma consulta (join) o,
+ * para las colecciones de una consulta paginada, en una segunda consulta; nunca una por fila (N+1).
+ * Leer una propiedad que no esta en el plan la carga en forma lazy.
+ * </p>
+ * Ejemplo: {@code FetchPlan.select("fecha,diagnostico").fetch("veterinario", "nombre,rut")}.
+ */
+@EqualsAndHashCode
+@ToString
+public final class FetchPlan {
+
+    /**
+     * Todas las propiedades del modelo y ninguna relacion: las relaciones se cargan en forma lazy.
+     */
+    public static final FetchPlan COMPLETO = new FetchPlan(null, Collections.emptyMap());
+
+    /**
+     * Propiedades del modelo separadas por coma, null para todas
+     */
+    @Getter
+    private final String propiedades;
+
+    /**
+     * Ruta de la relacion (ejemplo: controles.veterinario) -> propiedades separadas por coma, null para todas
+     */
+    @Getter
+    private final Map<String, String> joins;
+
+    private FetchPlan(final String propiedades, final Map<String, String> joins) {
+        this.propiedades = propiedades;
+        this.joins = joins;
+    }
+
+    /**
+     * @param propiedades del modelo separadas por coma, ejemplo: "numero,nombre". El id siempre se incluye.
+     * @return un plan que solo carga esas propiedades.
+     */
+    public static FetchPlan select(final String propiedades) {
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(propiedades), "propiedades no puede ser vacio");
+        return new FetchPlan(propiedades, Collections.emptyMap());
+    }
+
+    /**
+     * @param ruta de la relacion a cargar con todas sus propiedades, ejemplo: "veterinario".
+     * @return un nuevo plan que ademas carga la relacion.
+     */
+    public FetchPlan fetch(final String ruta) {
+        return this.fetch(ruta, null);
+    }
+
+    /**
+     * @param ruta        de la relacion a cargar, ejemplo: "controles.veterinario".
+     * @param propiedades de la relacion separadas por coma, null para todas.
+     * @return un nuevo plan que ademas carga la relacion.
+     */
+    public FetchPlan fetch(final String ruta, final String propiedades) {
+
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(ruta), "ruta no puede ser vacia");
+
+        final Map<String, String> joins = new LinkedHashMap<>(this.joins);
+        joins.put(ruta, Strings.emptyToNull(propiedades));
+        return new FetchPlan(this.propiedades, Collections.unmodifiableMap(joins));
+    }
+
+    /**
+     * @return true si es el plan por defecto: todas las propiedades y ninguna relacion.
+     */
+    public boolean isCompleto() {
+        return this.propiedades == null && this.joins.isEmpty();
+    }
+
+}
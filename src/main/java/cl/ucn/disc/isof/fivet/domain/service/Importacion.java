@@ -0,0 +1,55 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import lombok.Value;
+
+/**
+ * Resultado (o avance) de una importacion masiva desde un archivo.
+ */
+@Value
+public class Importacion {
+
+    /**
+     * Registros insertados
+     */
+    long registros;
+
+    /**
+     * Registros que ya existian (mismo rut o numero de ficha), por ejemplo al reanudar desde un checkpoint
+     */
+    long omitidos;
+
+    /**
+     * Registros invalidos o con referencias (rut / numero) que no existen
+     */
+    long rechazados;
+
+    /**
+     * Posicion (bytes) hasta donde se leyo y confirmo el archivo
+     */
+    long posicion;
+
+    /**
+     * Tamanio del archivo en bytes
+     */
+    long tamanio;
+
+    /**
+     * Duracion de la importacion
+     */
+    long nanos;
+
+    /**
+     * @return registros leidos (insertados, omitidos y rechazados) por segundo.
+     */
+    public double getRegistrosPorSegundo() {
+        return this.nanos == 0 ? 0 : (this.registros + this.omitidos + this.rechazados) * 1e9 / this.nanos;
+    }
+
+    /**
+     * @return fraccion del archivo procesada, entre 0 y 1.
+     */
+    public double getAvance() {
+        return this.tamanio == 0 ? 1 : (double) this.posicion / this.tamanio;
+    }
+
+}
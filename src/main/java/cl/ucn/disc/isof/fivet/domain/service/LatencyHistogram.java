@@ -0,0 +1,124 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias en nanosegundos con buckets log-lineales de tamaño fijo: cada potencia de 2 se
+ * divide en 8 buckets, por lo que los percentiles tienen un error relativo menor a 12.5%.
+ * Registrar es un incremento atomico, sin locks ni creacion de objetos.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Bits de sub-bucket por cada potencia de 2
+     */
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Buckets para cubrir hasta Long.MAX_VALUE
+     */
+    private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos latencia a registrar, los valores negativos se registran como 0.
+     */
+    public void registrar(final long nanos) {
+
+        final long valor = Math.max(0, nanos);
+        this.buckets.incrementAndGet(indice(valor));
+
+        long actual = this.max.get();
+        while (valor > actual && !this.max.compareAndSet(actual, valor)) {
+            actual = this.max.get();
+        }
+    }
+
+    /**
+     * @return cantidad de valores registrados.
+     */
+    public long getCantidad() {
+
+        long cantidad = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cantidad += this.buckets.get(i);
+        }
+        return cantidad;
+    }
+
+    /**
+     * @return la mayor latencia registrada.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @param percentil entre 0 y 1, ejemplo: 0.99.
+     * @return cota superior del bucket que contiene el percentil, 0 si no hay valores.
+     */
+    public long percentil(final double percentil) {
+
+        final long[] copia = new long[BUCKETS];
+        long cantidad = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copia[i] = this.buckets.get(i);
+            cantidad += copia[i];
+        }
+        if (cantidad == 0) {
+            return 0;
+        }
+
+        final long posicion = Math.max(1, (long) Math.ceil(percentil * cantidad));
+        long acumulado = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            acumulado += copia[i];
+            if (acumulado >= posicion) {
+                return Math.min(limiteSuperior(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Vacia el histograma.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+        this.max.set(0);
+    }
+
+    /**
+     * @return bucket del valor: los valores menores a 8 tienen bucket propio, el resto 8 por potencia de 2.
+     */
+    static int indice(final long valor) {
+
+        if (valor < SUB_BUCKETS) {
+            return (int) valor;
+        }
+        final int exponente = 63 - Long.numberOfLeadingZeros(valor);
+        return ((exponente - SUB_BITS + 1) << SUB_BITS) + (int) ((valor >>> (exponente - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return mayor valor que cae en el bucket.
+     */
+    static long limiteSuperior(final int indice) {
+
+        if (indice < SUB_BUCKETS) {
+            return indice;
+        }
+        final int desplazamiento = (indice >> SUB_BITS) - 1;
+        final long inferior = (long) (SUB_BUCKETS + (indice & (SUB_BUCKETS - 1))) << desplazamiento;
+        return inferior + (1L << desplazamiento) - 1;
+    }
+
+}
@@ -0,0 +1,716 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import cl.ucn.disc.isof.fivet.domain.model.Cambio;
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.ControlSummary;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.PacienteSummary;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.model.PersonaSummary;
+import cl.ucn.disc.isof.fivet.domain.model.SignosVitales;
+import com.durrutia.ebean.BaseModel;
+import com.google.common.base.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Decorador de un {@link BackendService} que mide, por metodo, la cantidad de llamadas, errores,
+ * sentencias SQL emitidas y un histograma de latencias (p50, p99, p999).
+ * <p>
+ * Las metricas se leen con {@link #getMetricas()} o por JMX luego de {@link #registrarJmx(String)}.
+ * Registrar una llamada solo incrementa contadores atomicos: no crea objetos ni toma locks.
+ * La latencia de {@link #recorrerPacientes(Consumer)} incluye el tiempo del consumer.
+ * </p>
+ * <p>
+ * Las sentencias SQL se cuentan por hilo (el SqlCountingDataSource del backend Ebean usa un ThreadLocal): solo se
+ * cuentan las que el backend medido emite en el hilo que lo llama. Si ese backend ejecuta en otros hilos (ejemplo:
+ * las consultas en paralelo a los shards de un ShardedBackendService) la metrica de sentencias queda en 0; la
+ * latencia y los errores se miden igual.
+ * </p>
+ */
+@Slf4j
+public final class MeteredBackendService implements BackendService, BackendServiceMetricsMXBean {
+
+    /**
+     * Dominio de los ObjectName de JMX
+     */
+    private static final String JMX_DOMAIN = "cl.ucn.disc.isof.fivet";
+
+    /**
+     * Backend medido
+     */
+    private final BackendService backendService;
+
+    /**
+     * Sentencias SQL emitidas por el hilo actual
+     */
+    private final LongSupplier sqlStatements;
+
+    private final Metrica getPersona = new Metrica("getPersona(String)");
+    private final Metrica authenticate = new Metrica("authenticate(String,String)");
+    private final Metrica getPersonaAsOf = new Metrica("getPersonaAsOf(String,Instant)");
+    private final Metrica getCambiosPersona = new Metrica("getCambiosPersona(String,Instant,Instant)");
+    private final Metrica getPacientes = new Metrica("getPacientes()");
+    private final Metrica getPacientesPagina = new Metrica("getPacientes(Integer,int)");
+    private final Metrica getPacientesPlan = new Metrica("getPacientes(FetchPlan)");
+    private final Metrica getPacientesPaginaPlan = new Metrica("getPacientes(Integer,int,FetchPlan)");
+    private final Metrica getPacientesResumen = new Metrica("getPacientesResumen(Integer,int)");
+    private final Metrica countPacientes = new Metrica("countPacientes()");
+    private final Metrica existsPaciente = new Metrica("existsPaciente(Integer)");
+    private final Metrica recorrerPacientes = new Metrica("recorrerPacientes(Consumer)");
+    private final Metrica getPaciente = new Metrica("getPaciente(Integer)");
+    private final Metrica getPacienteAsOf = new Metrica("getPacienteAsOf(Integer,Instant)");
+    private final Metrica getCambiosPaciente = new Metrica("getCambiosPaciente(Integer,Instant,Instant)");
+    private final Metrica getControlesVeterinario = new Metrica("getControlesVeterinario(String)");
+    private final Metrica getControlesVeterinarioPlan = new Metrica("getControlesVeterinario(String,FetchPlan)");
+    private final Metrica getControlesVeterinarioAgenda =
+            new Metrica("getControlesVeterinario(String,Date,Date,Control,int)");
+    private final Metrica getControlesVeterinarioResumen = new Metrica("getControlesVeterinarioResumen(String)");
+    private final Metrica getSignosVitalesPorPaciente = new Metrica("getSignosVitalesPorPaciente()");
+    private final Metrica getSignosVitalesPorVeterinario = new Metrica("getSignosVitalesPorVeterinario()");
+    private final Metrica getSignosVitalesPorMes = new Metrica("getSignosVitalesPorMes(Integer)");
+    private final Metrica getPacientesPorNombre = new Metrica("getPacientesPorNombre(String)");
+    private final Metrica getPacientesPorNombreLimite = new Metrica("getPacientesPorNombre(String,int)");
+    private final Metrica getPacientesPorNombrePlan = new Metrica("getPacientesPorNombre(String,int,FetchPlan)");
+    private final Metrica agregarControl = new Metrica("agregarControl(Control,Integer)");
+    private final Metrica agregarControles = new Metrica("agregarControles(Map)");
+    private final Metrica insertarColeccion = new Metrica("insertar(Collection)");
+    private final Metrica insertarStream = new Metrica("insertar(Stream)");
+    private final Metrica exportarPacientes = new Metrica("exportarPacientes(Path,boolean)");
+
+    /**
+     * Todas las metricas, en el orden de la interface
+     */
+    private final Metrica[] metricas = {
+            this.getPersona, this.authenticate, this.getPersonaAsOf, this.getCambiosPersona, this.getPacientes,
+            this.getPacientesPagina, this.getPacientesPlan, this.getPacientesPaginaPlan, this.getPacientesResumen,
+            this.countPacientes, this.existsPaciente, this.recorrerPacientes, this.getPaciente, this.getPacienteAsOf,
+            this.getCambiosPaciente, this.getControlesVeterinario, this.getControlesVeterinarioPlan,
+            this.getControlesVeterinarioAgenda, this.getControlesVeterinarioResumen, this.getSignosVitalesPorPaciente,
+            this.getSignosVitalesPorVeterinario, this.getSignosVitalesPorMes, this.getPacientesPorNombre,
+            this.getPacientesPorNombreLimite, this.getPacientesPorNombrePlan, this.agregarControl,
+            this.agregarControles, this.insertarColeccion, this.insertarStream, this.exportarPacientes
+    };
+
+    /**
+     * Nombre con que se registro en JMX, null si no esta registrado
+     */
+    private ObjectName objectName;
+
+    /**
+     * @param backendService a medir, sin contar sentencias SQL.
+     */
+    public MeteredBackendService(final BackendService backendService) {
+        this(backendService, () -> 0);
+    }
+
+    /**
+     * @param backendService a medir.
+     * @param sqlStatements  sentencias SQL emitidas por el hilo actual, ejemplo: EbeanBackendService::getSqlStatements.
+     *                       Las emitidas en otros hilos no se cuentan.
+     */
+    public MeteredBackendService(final BackendService backendService, final LongSupplier sqlStatements) {
+        this.backendService = Preconditions.checkNotNull(backendService);
+        this.sqlStatements = Preconditions.checkNotNull(sqlStatements);
+    }
+
+    /**
+     * Registra las metricas en el MBeanServer de la plataforma.
+     *
+     * @param nombre del backend, ejemplo: h2.
+     * @return this.
+     */
+    public MeteredBackendService registrarJmx(final String nombre) {
+
+        try {
+            final ObjectName name = new ObjectName(JMX_DOMAIN + ":type=BackendService,name=" + ObjectName.quote(nombre));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            this.objectName = name;
+            log.debug("BackendService metrics registered in JMX as {}.", name);
+        } catch (JMException e) {
+            throw new IllegalStateException("No se pudo registrar en JMX: " + nombre, e);
+        }
+        return this;
+    }
+
+    /**
+     * @return las metricas de cada metodo del {@link BackendService}.
+     */
+    @Override
+    public List<MetricaSnapshot> getMetricas() {
+
+        final List<MetricaSnapshot> snapshots = new ArrayList<>(this.metricas.length);
+        for (Metrica metrica : this.metricas) {
+            snapshots.add(metrica.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * @param metodo nombre del metodo, ejemplo: "getPaciente(Integer)".
+     * @return las metricas del metodo o null si no existe.
+     */
+    public MetricaSnapshot getMetrica(final String metodo) {
+
+        for (Metrica metrica : this.metricas) {
+            if (metrica.metodo.equals(metodo)) {
+                return metrica.snapshot();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Vuelve a cero todas las metricas.
+     */
+    @Override
+    public void reset() {
+        for (Metrica metrica : this.metricas) {
+            metrica.reset();
+        }
+    }
+
+    @Override
+    public Persona getPersona(final String rutEmail) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPersona(rutEmail);
+        } catch (RuntimeException e) {
+            this.getPersona.errores.increment();
+            throw e;
+        } finally {
+            this.getPersona.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public PersonaSummary authenticate(final String login, final String password) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.authenticate(login, password);
+        } catch (RuntimeException e) {
+            this.authenticate.errores.increment();
+            throw e;
+        } finally {
+            this.authenticate.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public Persona getPersonaAsOf(final String rut, final Instant instante) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPersonaAsOf(rut, instante);
+        } catch (RuntimeException e) {
+            this.getPersonaAsOf.errores.increment();
+            throw e;
+        } finally {
+            this.getPersonaAsOf.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Cambio> getCambiosPersona(final String rut, final Instant desde, final Instant hasta) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getCambiosPersona(rut, desde, hasta);
+        } catch (RuntimeException e) {
+            this.getCambiosPersona.errores.increment();
+            throw e;
+        } finally {
+            this.getCambiosPersona.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Paciente> getPacientes() {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPacientes();
+        } catch (RuntimeException e) {
+            this.getPacientes.errores.increment();
+            throw e;
+        } finally {
+            this.getPacientes.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Paciente> getPacientes(final Integer ultimoNumero, final int limite) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPacientes(ultimoNumero, limite);
+        } catch (RuntimeException e) {
+            this.getPacientesPagina.errores.increment();
+            throw e;
+        } finally {
+            this.getPacientesPagina.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Paciente> getPacientes(final FetchPlan fetchPlan) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPacientes(fetchPlan);
+        } catch (RuntimeException e) {
+            this.getPacientesPlan.errores.increment();
+            throw e;
+        } finally {
+            this.getPacientesPlan.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Paciente> getPacientes(final Integer ultimoNumero, final int limite, final FetchPlan fetchPlan) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPacientes(ultimoNumero, limite, fetchPlan);
+        } catch (RuntimeException e) {
+            this.getPacientesPaginaPlan.errores.increment();
+            throw e;
+        } finally {
+            this.getPacientesPaginaPlan.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<PacienteSummary> getPacientesResumen(final Integer ultimoNumero, final int limite) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPacientesResumen(ultimoNumero, limite);
+        } catch (RuntimeException e) {
+            this.getPacientesResumen.errores.increment();
+            throw e;
+        } finally {
+            this.getPacientesResumen.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public int countPacientes() {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.countPacientes();
+        } catch (RuntimeException e) {
+            this.countPacientes.errores.increment();
+            throw e;
+        } finally {
+            this.countPacientes.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public boolean existsPaciente(final Integer numeroPaciente) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.existsPaciente(numeroPaciente);
+        } catch (RuntimeException e) {
+            this.existsPaciente.errores.increment();
+            throw e;
+        } finally {
+            this.existsPaciente.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public void recorrerPacientes(final Consumer<Paciente> consumer) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            this.backendService.recorrerPacientes(consumer);
+        } catch (RuntimeException e) {
+            this.recorrerPacientes.errores.increment();
+            throw e;
+        } finally {
+            this.recorrerPacientes.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public Paciente getPaciente(final Integer numeroPaciente) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPaciente(numeroPaciente);
+        } catch (RuntimeException e) {
+            this.getPaciente.errores.increment();
+            throw e;
+        } finally {
+            this.getPaciente.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public Paciente getPacienteAsOf(final Integer numeroPaciente, final Instant instante) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPacienteAsOf(numeroPaciente, instante);
+        } catch (RuntimeException e) {
+            this.getPacienteAsOf.errores.increment();
+            throw e;
+        } finally {
+            this.getPacienteAsOf.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Cambio> getCambiosPaciente(final Integer numeroPaciente, final Instant desde,
+                                             final Instant hasta) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getCambiosPaciente(numeroPaciente, desde, hasta);
+        } catch (RuntimeException e) {
+            this.getCambiosPaciente.errores.increment();
+            throw e;
+        } finally {
+            this.getCambiosPaciente.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Control> getControlesVeterinario(final String rutVeterinario) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getControlesVeterinario(rutVeterinario);
+        } catch (RuntimeException e) {
+            this.getControlesVeterinario.errores.increment();
+            throw e;
+        } finally {
+            this.getControlesVeterinario.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Control> getControlesVeterinario(final String rutVeterinario, final FetchPlan fetchPlan) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getControlesVeterinario(rutVeterinario, fetchPlan);
+        } catch (RuntimeException e) {
+            this.getControlesVeterinarioPlan.errores.increment();
+            throw e;
+        } finally {
+            this.getControlesVeterinarioPlan.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Control> getControlesVeterinario(final String rutVeterinario, final Date desde, final Date hasta,
+                                                 final Control ultimo, final int limite) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getControlesVeterinario(rutVeterinario, desde, hasta, ultimo, limite);
+        } catch (RuntimeException e) {
+            this.getControlesVeterinarioAgenda.errores.increment();
+            throw e;
+        } finally {
+            this.getControlesVeterinarioAgenda.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<ControlSummary> getControlesVeterinarioResumen(final String rutVeterinario) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getControlesVeterinarioResumen(rutVeterinario);
+        } catch (RuntimeException e) {
+            this.getControlesVeterinarioResumen.errores.increment();
+            throw e;
+        } finally {
+            this.getControlesVeterinarioResumen.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public Map<Integer, SignosVitales> getSignosVitalesPorPaciente() {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getSignosVitalesPorPaciente();
+        } catch (RuntimeException e) {
+            this.getSignosVitalesPorPaciente.errores.increment();
+            throw e;
+        } finally {
+            this.getSignosVitalesPorPaciente.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public Map<String, SignosVitales> getSignosVitalesPorVeterinario() {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getSignosVitalesPorVeterinario();
+        } catch (RuntimeException e) {
+            this.getSignosVitalesPorVeterinario.errores.increment();
+            throw e;
+        } finally {
+            this.getSignosVitalesPorVeterinario.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public Map<YearMonth, SignosVitales> getSignosVitalesPorMes(final Integer numeroPaciente) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getSignosVitalesPorMes(numeroPaciente);
+        } catch (RuntimeException e) {
+            this.getSignosVitalesPorMes.errores.increment();
+            throw e;
+        } finally {
+            this.getSignosVitalesPorMes.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Paciente> getPacientesPorNombre(final String nombre) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPacientesPorNombre(nombre);
+        } catch (RuntimeException e) {
+            this.getPacientesPorNombre.errores.increment();
+            throw e;
+        } finally {
+            this.getPacientesPorNombre.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Paciente> getPacientesPorNombre(final String nombre, final int limite) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPacientesPorNombre(nombre, limite);
+        } catch (RuntimeException e) {
+            this.getPacientesPorNombreLimite.errores.increment();
+            throw e;
+        } finally {
+            this.getPacientesPorNombreLimite.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Paciente> getPacientesPorNombre(final String nombre, final int limite, final FetchPlan fetchPlan) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.getPacientesPorNombre(nombre, limite, fetchPlan);
+        } catch (RuntimeException e) {
+            this.getPacientesPorNombrePlan.errores.increment();
+            throw e;
+        } finally {
+            this.getPacientesPorNombrePlan.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public void agregarControl(final Control control, final Integer numeroPaciente) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            this.backendService.agregarControl(control, numeroPaciente);
+        } catch (RuntimeException e) {
+            this.agregarControl.errores.increment();
+            throw e;
+        } finally {
+            this.agregarControl.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public void agregarControles(final Map<Integer, List<Control>> controlesPorPaciente) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            this.backendService.agregarControles(controlesPorPaciente);
+        } catch (RuntimeException e) {
+            this.agregarControles.errores.increment();
+            throw e;
+        } finally {
+            this.agregarControles.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Long> insertar(final Collection<? extends BaseModel> modelos) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.insertar(modelos);
+        } catch (RuntimeException e) {
+            this.insertarColeccion.errores.increment();
+            throw e;
+        } finally {
+            this.insertarColeccion.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public List<Long> insertar(final Stream<? extends BaseModel> modelos) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.insertar(modelos);
+        } catch (RuntimeException e) {
+            this.insertarStream.errores.increment();
+            throw e;
+        } finally {
+            this.insertarStream.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public Exportacion exportarPacientes(final Path destino, final boolean gzip) {
+
+        final long sql = this.sqlStatements.getAsLong();
+        final long inicio = System.nanoTime();
+        try {
+            return this.backendService.exportarPacientes(destino, gzip);
+        } catch (RuntimeException e) {
+            this.exportarPacientes.errores.increment();
+            throw e;
+        } finally {
+            this.exportarPacientes.registrar(inicio, sql, this.sqlStatements.getAsLong());
+        }
+    }
+
+    @Override
+    public void initialize() {
+        this.backendService.initialize();
+    }
+
+    /**
+     * Cierra el backend medido y retira las metricas de JMX.
+     */
+    @Override
+    public void shutdown() {
+
+        if (this.objectName != null) {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            try {
+                mBeanServer.unregisterMBean(this.objectName);
+            } catch (JMException e) {
+                log.warn("Can't unregister {} from JMX", this.objectName, e);
+            }
+            this.objectName = null;
+        }
+        this.backendService.shutdown();
+    }
+
+    /**
+     * Contadores de un metodo.
+     */
+    private static final class Metrica {
+
+        private final String metodo;
+
+        private final LongAdder llamadas = new LongAdder();
+
+        private final LongAdder errores = new LongAdder();
+
+        private final LongAdder sentenciasSql = new LongAdder();
+
+        private final LatencyHistogram latencias = new LatencyHistogram();
+
+        Metrica(final String metodo) {
+            this.metodo = metodo;
+        }
+
+        /**
+         * Registra una llamada que comenzo en inicio (System.nanoTime()).
+         */
+        void registrar(final long inicio, final long sqlAntes, final long sqlDespues) {
+            this.latencias.registrar(System.nanoTime() - inicio);
+            this.sentenciasSql.add(sqlDespues - sqlAntes);
+            this.llamadas.increment();
+        }
+
+        MetricaSnapshot snapshot() {
+
+            final long cantidad = this.llamadas.sum();
+            final long sql = this.sentenciasSql.sum();
+            return new MetricaSnapshot(this.metodo, cantidad, this.errores.sum(), sql,
+                    cantidad == 0 ? 0 : (double) sql / cantidad,
+                    micros(this.latencias.percentil(0.50)),
+                    micros(this.latencias.percentil(0.99)),
+                    micros(this.latencias.percentil(0.999)),
+                    micros(this.latencias.getMax()));
+        }
+
+        void reset() {
+            this.llamadas.reset();
+            this.errores.reset();
+            this.sentenciasSql.reset();
+            this.latencias.reset();
+        }
+
+        private static double micros(final long nanos) {
+            return nanos / 1000.0;
+        }
+    }
+
+}
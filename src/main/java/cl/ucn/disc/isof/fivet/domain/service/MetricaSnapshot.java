@@ -0,0 +1,44 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import lombok.Value;
+
+/**
+ * Metricas de un metodo del {@link BackendService} en un instante. Las latencias estan en microsegundos.
+ */
+@Value
+public class MetricaSnapshot {
+
+    /**
+     * Nombre del metodo
+     */
+    String metodo;
+
+    /**
+     * Llamadas terminadas, incluidas las con error
+     */
+    long llamadas;
+
+    /**
+     * Llamadas que lanzaron una excepcion
+     */
+    long errores;
+
+    /**
+     * Sentencias SQL emitidas por todas las llamadas
+     */
+    long sentenciasSql;
+
+    /**
+     * Promedio de sentencias SQL por llamada
+     */
+    double sentenciasSqlPorLlamada;
+
+    double p50;
+
+    double p99;
+
+    double p999;
+
+    double max;
+
+}
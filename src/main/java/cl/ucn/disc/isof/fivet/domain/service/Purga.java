@@ -0,0 +1,55 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * Resultado de una purga de filas eliminadas (soft delete) y del archivo del historial.
+ */
+@Value
+public class Purga {
+
+    /**
+     * Filas eliminadas por tabla, incluidas las tablas de asociacion
+     */
+    Map<String, Long> eliminadas;
+
+    /**
+     * Filas que quedan en cada tabla al terminar
+     */
+    Map<String, Long> restantes;
+
+    /**
+     * Filas del historial movidas a los archivos comprimidos
+     */
+    long archivadas;
+
+    /**
+     * Transacciones (lotes) ejecutadas
+     */
+    int lotes;
+
+    /**
+     * Duracion de la purga
+     */
+    long nanos;
+
+    /**
+     * @return total de filas eliminadas.
+     */
+    public long getTotalEliminadas() {
+        return this.eliminadas.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * @param tabla a revisar.
+     * @return fraccion (0 a 1) de las filas de la tabla que se eliminaron.
+     */
+    public double getReduccion(final String tabla) {
+        final long eliminadas = this.eliminadas.getOrDefault(tabla, 0L);
+        final long antes = eliminadas + this.restantes.getOrDefault(tabla, 0L);
+        return antes == 0 ? 0 : (double) eliminadas / antes;
+    }
+
+}
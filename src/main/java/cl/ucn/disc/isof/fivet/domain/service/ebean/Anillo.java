@@ -0,0 +1,94 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Buffer circular acotado sin locks, de muchos productores y un solo consumidor.
+ * <p>
+ * Cada productor reserva una posicion con un compareAndSet sobre la cabeza y luego escribe su elemento; el
+ * consumidor lee en orden, libera la posicion y avanza la cola. Un elemento reservado pero aun no escrito detiene
+ * al consumidor hasta que el productor lo escribe.
+ * </p>
+ *
+ * @param <T> tipo de los elementos.
+ */
+final class Anillo<T> {
+
+    private final AtomicReferenceArray<T> posiciones;
+
+    private final int mascara;
+
+    /**
+     * Siguiente posicion a reservar por los productores
+     */
+    private final AtomicLong cabeza = new AtomicLong();
+
+    /**
+     * Siguiente posicion a leer, solo la escribe el consumidor
+     */
+    private volatile long cola;
+
+    /**
+     * @param capacidad potencia de 2.
+     */
+    Anillo(final int capacidad) {
+        Preconditions.checkArgument(capacidad > 0 && Integer.bitCount(capacidad) == 1,
+                "capacidad debe ser una potencia de 2");
+        this.posiciones = new AtomicReferenceArray<>(capacidad);
+        this.mascara = capacidad - 1;
+    }
+
+    /**
+     * Agrega el elemento si hay espacio. Seguro desde cualquier hilo.
+     *
+     * @return false si el anillo esta lleno.
+     */
+    boolean ofrecer(final T elemento) {
+
+        Preconditions.checkNotNull(elemento);
+
+        long posicion;
+        do {
+            posicion = this.cabeza.get();
+            if (posicion - this.cola > this.mascara) {
+                return false;
+            }
+        } while (!this.cabeza.compareAndSet(posicion, posicion + 1));
+
+        this.posiciones.lazySet((int) posicion & this.mascara, elemento);
+        return true;
+    }
+
+    /**
+     * Saca el siguiente elemento. Solo desde el hilo consumidor.
+     *
+     * @return el elemento, o null si no hay ninguno escrito.
+     */
+    T sacar() {
+
+        final long posicion = this.cola;
+        final int indice = (int) posicion & this.mascara;
+        final T elemento = this.posiciones.get(indice);
+        if (elemento == null) {
+            return null;
+        }
+        this.posiciones.lazySet(indice, null);
+        this.cola = posicion + 1;
+        return elemento;
+    }
+
+    /**
+     * @return elementos reservados y aun no sacados.
+     */
+    int size() {
+        return (int) (this.cabeza.get() - this.cola);
+    }
+
+    int capacidad() {
+        return this.mascara + 1;
+    }
+
+}
@@ -0,0 +1,296 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.EventoCambio;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.TransactionCallbackAdapter;
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+import com.durrutia.ebean.BaseModel;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bus de cambios en proceso: publica a los suscriptores un {@link EventoCambio} por cada insert, update o delete
+ * confirmado de los modelos, para que reaccionen (indices, caches, colas) sin consultar la base de datos.
+ * <p>
+ * Se registra como {@link BeanPersistAdapter}: los eventos de una transaccion se acumulan y al confirmarla se
+ * copian a un {@link Anillo} sin locks; un hilo despachador (daemon) los entrega en orden a los suscriptores.
+ * En la confirmacion solo se reservan posiciones del anillo, nunca se llama a los suscriptores. Sin suscriptores
+ * no se crea ningun evento. Las escrituras por JDBC (tablas intermedias y versiones del importador, purga) no
+ * publican eventos; los modelos insertados con bulk insert si.
+ * </p>
+ * <p>
+ * Con el anillo lleno se aplica la {@link Contrapresion}: descartar el evento (por defecto) o esperar a que el
+ * despachador libere espacio. El despachador nunca espera: lo que publica un suscriptor (ejemplo: los cambios de
+ * una escritura en la base de datos hecha dentro del suscriptor) con el anillo lleno se descarta, porque solo el
+ * mismo despachador podria liberar espacio. Los suscriptores no deben escribir en la base de datos en el hilo
+ * despachador: deben entregar ese trabajo a otro hilo.
+ * </p>
+ */
+@Slf4j
+public final class BusCambios extends BeanPersistAdapter {
+
+    /**
+     * Que hacer al publicar con el anillo lleno
+     */
+    public enum Contrapresion {
+        /**
+         * Descarta el evento y lo cuenta en {@link #getDescartados()}: la confirmacion nunca espera
+         */
+        DESCARTAR,
+        /**
+         * Espera a que el despachador libere espacio: no se pierden eventos, la confirmacion espera al suscriptor
+         * mas lento. Salvo en el propio despachador, que descarta
+         */
+        ESPERAR
+    }
+
+    /**
+     * Capacidad por defecto del anillo
+     */
+    private static final int CAPACIDAD = 8192;
+
+    /**
+     * Eventos pendientes de la transaccion
+     */
+    private static final String MARCA = BusCambios.class.getName();
+
+    /**
+     * Espera del despachador sin eventos y del productor con el anillo lleno
+     */
+    private static final long ESPERA_DESPACHADOR = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long ESPERA_PRODUCTOR = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private final Anillo<EventoCambio> anillo;
+
+    private final List<Consumer<? super EventoCambio>> suscriptores = new CopyOnWriteArrayList<>();
+
+    private volatile Contrapresion contrapresion = Contrapresion.DESCARTAR;
+
+    private final LongAdder publicados = new LongAdder();
+    private final LongAdder descartados = new LongAdder();
+    private final LongAdder entregados = new LongAdder();
+
+    /**
+     * Hilo que entrega los eventos, null si no se ha suscrito nadie
+     */
+    private volatile Thread despachador;
+
+    /**
+     * El despachador esta por dormir: el productor lo despierta
+     */
+    private volatile boolean durmiendo;
+
+    private volatile boolean detenido;
+
+    public BusCambios() {
+        this(CAPACIDAD);
+    }
+
+    /**
+     * @param capacidad del anillo, potencia de 2.
+     */
+    public BusCambios(final int capacidad) {
+        this.anillo = new Anillo<>(capacidad);
+    }
+
+    /**
+     * @param contrapresion con el anillo lleno.
+     * @return this.
+     */
+    public BusCambios contrapresion(final Contrapresion contrapresion) {
+        this.contrapresion = Preconditions.checkNotNull(contrapresion);
+        return this;
+    }
+
+    /**
+     * Agrega un suscriptor; recibe los eventos confirmados desde ahora, en el hilo despachador.
+     *
+     * @param suscriptor de los eventos, no debe bloquearse por mucho tiempo ni escribir en la base de datos.
+     */
+    public synchronized void suscribir(final Consumer<? super EventoCambio> suscriptor) {
+
+        Preconditions.checkState(!this.detenido, "El bus fue detenido");
+        this.suscriptores.add(Preconditions.checkNotNull(suscriptor));
+
+        if (this.despachador == null) {
+            this.despachador = new Thread(this::despachar, "cambios");
+            this.despachador.setDaemon(true);
+            this.despachador.start();
+        }
+    }
+
+    /**
+     * @param suscriptor a quitar.
+     */
+    public void desuscribir(final Consumer<? super EventoCambio> suscriptor) {
+        this.suscriptores.remove(suscriptor);
+    }
+
+    /**
+     * Entrega los eventos pendientes y detiene el despachador.
+     */
+    public synchronized void detener() {
+
+        this.detenido = true;
+        final Thread thread = this.despachador;
+        if (thread == null) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return eventos copiados al anillo.
+     */
+    public long getPublicados() {
+        return this.publicados.sum();
+    }
+
+    /**
+     * @return eventos descartados con el anillo lleno.
+     */
+    public long getDescartados() {
+        return this.descartados.sum();
+    }
+
+    /**
+     * @return eventos entregados a los suscriptores.
+     */
+    public long getEntregados() {
+        return this.entregados.sum();
+    }
+
+    /**
+     * @return eventos en el anillo, aun no entregados.
+     */
+    public int getPendientes() {
+        return this.anillo.size();
+    }
+
+    @Override
+    public boolean isRegisterFor(final Class<?> cls) {
+        return BaseModel.class.isAssignableFrom(cls);
+    }
+
+    @Override
+    public void postInsert(final BeanPersistRequest<?> request) {
+        this.registrar(request, EventoCambio.Tipo.INSERT, request.getLoadedProperties());
+    }
+
+    @Override
+    public void postUpdate(final BeanPersistRequest<?> request) {
+        // El soft delete es un update de la columna deleted
+        final BaseModel modelo = (BaseModel) request.getBean();
+        this.registrar(request, modelo.isDeleted() ? EventoCambio.Tipo.DELETE : EventoCambio.Tipo.UPDATE,
+                request.getUpdatedProperties());
+    }
+
+    @Override
+    public void postDelete(final BeanPersistRequest<?> request) {
+        this.registrar(request, EventoCambio.Tipo.DELETE, request.getUpdatedProperties());
+    }
+
+    /**
+     * Acumula el evento en la transaccion, para publicarlo al confirmarla.
+     */
+    private void registrar(final BeanPersistRequest<?> request, final EventoCambio.Tipo tipo,
+                           final Set<String> propiedades) {
+
+        if (this.suscriptores.isEmpty()) {
+            return;
+        }
+
+        final BaseModel modelo = (BaseModel) request.getBean();
+        final EventoCambio evento = new EventoCambio(modelo.getClass(), tipo, modelo.getId(), modelo.getVersion(),
+                propiedades == null ? ImmutableSet.of() : ImmutableSet.copyOf(propiedades));
+
+        final Transaction transaction = request.getTransaction();
+        @SuppressWarnings("unchecked")
+        List<EventoCambio> pendientes = (List<EventoCambio>) transaction.getUserObject(MARCA);
+        if (pendientes == null) {
+            final List<EventoCambio> eventos = new ArrayList<>();
+            transaction.putUserObject(MARCA, eventos);
+            transaction.register(new TransactionCallbackAdapter() {
+                @Override
+                public void postCommit() {
+                    eventos.forEach(BusCambios.this::publicar);
+                }
+            });
+            pendientes = eventos;
+        }
+        pendientes.add(evento);
+    }
+
+    /**
+     * Copia el evento al anillo, aplicando la contrapresion si esta lleno. Seguro desde cualquier hilo; en el
+     * despachador (un suscriptor que escribe) nunca espera, o esperaria por si mismo.
+     */
+    void publicar(final EventoCambio evento) {
+
+        if (this.suscriptores.isEmpty()) {
+            return;
+        }
+
+        while (!this.anillo.ofrecer(evento)) {
+            if (this.contrapresion == Contrapresion.DESCARTAR || this.detenido
+                    || Thread.currentThread() == this.despachador) {
+                this.descartados.increment();
+                return;
+            }
+            LockSupport.parkNanos(this, ESPERA_PRODUCTOR);
+        }
+        this.publicados.increment();
+
+        if (this.durmiendo) {
+            LockSupport.unpark(this.despachador);
+        }
+    }
+
+    /**
+     * Entrega los eventos en orden hasta que se detiene el bus y el anillo queda vacio.
+     */
+    private void despachar() {
+
+        while (true) {
+            final EventoCambio evento = this.anillo.sacar();
+            if (evento == null) {
+                if (this.detenido && this.anillo.size() == 0) {
+                    return;
+                }
+                // Duerme hasta que un productor lo despierte (o a lo mas un milisegundo)
+                this.durmiendo = true;
+                if (this.anillo.size() == 0) {
+                    LockSupport.parkNanos(this, ESPERA_DESPACHADOR);
+                }
+                this.durmiendo = false;
+                continue;
+            }
+
+            for (Consumer<? super EventoCambio> suscriptor : this.suscriptores) {
+                try {
+                    suscriptor.accept(evento);
+                } catch (RuntimeException e) {
+                    log.warn("Subscriber failed with {}", evento, e);
+                }
+            }
+            this.entregados.increment();
+        }
+    }
+
+}
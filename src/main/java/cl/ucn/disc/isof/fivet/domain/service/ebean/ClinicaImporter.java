@@ -0,0 +1,986 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.service.Importacion;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.cache.ServerCache;
+import com.durrutia.ebean.BaseModel;
+import com.durrutia.ebean.BulkInsert;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.PersistenceException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Importacion masiva de {@link Persona}, {@link Paciente} y {@link Control} desde archivos CSV o JSON Lines.
+ * <p>
+ * El archivo se lee en bloques mapeados en memoria ({@link FileChannel#map}) que terminan en un salto de linea;
+ * cada bloque se decodifica y convierte en modelos en un pool de hilos, y un solo escritor (el hilo que llama a
+ * {@link #importar(Tipo, Formato, Path)}) los inserta en orden, un bloque por transaccion, con {@link BulkInsert}.
+ * Los rut y numeros de ficha se resuelven con mapas en memoria cargados al comenzar.
+ * </p>
+ * <p>
+ * Junto a cada bloque se confirma, en la misma transaccion, la posicion leida del archivo (tabla
+ * importacion_checkpoint): si la importacion se interrumpe, volver a importar el mismo archivo continua desde
+ * el ultimo bloque confirmado, sin duplicar ni perder registros. Si el archivo cambio (tamanio o fecha de
+ * modificacion) las personas y pacientes se importan desde el comienzo, omitiendo los que ya existen; los controles
+ * no tienen clave natural y se duplicarian, por lo que ese caso falla con {@link IllegalStateException} hasta que
+ * se descarta el checkpoint con {@link #descartarCheckpoint(Path)}.
+ * </p>
+ * <p>
+ * Los modelos se insertan con {@link BulkInsert}, por lo que sus INSERT llegan al {@link BusCambios} y los controles
+ * con proximo control entran a la cola del {@link RecordatorioScheduler}. Las tablas intermedias (persona_paciente,
+ * paciente_control) y la version de los pacientes se escriben por JDBC y se saltan ambos: no se publica el UPDATE
+ * del paciente que publica {@link EbeanBackendService#agregarControles(Map)}, y el scheduler no sabe a que paciente
+ * pertenece cada control importado hasta leerlo. Solo se quitan del cache L2 los pacientes a los que se asociaron
+ * filas.
+ * </p>
+ * <p>
+ * Columnas (encabezado del CSV o claves de cada objeto JSON), con las fechas en ISO-8601 (2016-11-02 o
+ * 2016-11-02T10:15:30Z) y los enum por su nombre:
+ * <ul>
+ * <li>PERSONAS: rut, nombre, direccion, fijo, movil, mail, login, password, tipo.</li>
+ * <li>PACIENTES: numero, nombre, fechaNacimiento, raza, sexo, color, especie, propietario (rut).</li>
+ * <li>CONTROLES: codigo, fecha, proximoControl, temperatura, peso, altura, diagnostico, nota, veterinario (rut),
+ * paciente (numero).</li>
+ * </ul>
+ * Los campos CSV pueden ir entre comillas (con "" para una comilla), pero ningun registro puede ocupar mas
+ * de una linea.
+ * </p>
+ */
+@Slf4j
+public final class ClinicaImporter {
+
+    /**
+     * Que contiene el archivo
+     */
+    public enum Tipo {
+        PERSONAS,
+        PACIENTES,
+        CONTROLES
+    }
+
+    /**
+     * Formato del archivo
+     */
+    public enum Formato {
+        /**
+         * Valores separados por coma, con una primera linea de encabezado
+         */
+        CSV,
+        /**
+         * Un objeto JSON por linea
+         */
+        JSON_LINES
+    }
+
+    private static final String TABLA_CHECKPOINT = "importacion_checkpoint";
+
+    private static final String SQL_CREATE_CHECKPOINT =
+            "create table " + TABLA_CHECKPOINT + " (archivo varchar(1000) not null, tamanio bigint not null,"
+                    + " modificado bigint not null, posicion bigint not null,"
+                    + " constraint pk_importacion_checkpoint primary key (archivo))";
+
+    private static final String SQL_SELECT_CHECKPOINT =
+            "select tamanio, modificado, posicion from " + TABLA_CHECKPOINT + " where archivo = ?";
+
+    private static final String SQL_DELETE_CHECKPOINT = "delete from " + TABLA_CHECKPOINT + " where archivo = ?";
+
+    private static final String SQL_INSERT_CHECKPOINT =
+            "insert into " + TABLA_CHECKPOINT + " (archivo, tamanio, modificado, posicion) values (?, ?, ?, ?)";
+
+    /**
+     * Asocia un propietario a un paciente (tabla intermedia del @ManyToMany Persona.pacientes)
+     */
+    private static final String SQL_INSERT_PERSONA_PACIENTE =
+            "insert into persona_paciente (persona_id, paciente_id) values (?, ?)";
+
+    /**
+     * Asocia un control a un paciente (tabla intermedia del @ManyToMany Paciente.controles)
+     */
+    private static final String SQL_INSERT_PACIENTE_CONTROL =
+            "insert into paciente_control (paciente_id, control_id) values (?, ?)";
+
+    /**
+     * Incrementa la version del paciente al agregarle controles
+     */
+    private static final String SQL_UPDATE_VERSION_PACIENTE =
+            "update paciente set version = version + 1, when_modified = ? where id = ?";
+
+    /**
+     * Maximo de bytes a leer buscando el fin del encabezado
+     */
+    private static final int MAX_ENCABEZADO = 64 * 1024;
+
+    private final EbeanServer ebeanServer;
+
+    /**
+     * Hilos que convierten los bloques en modelos
+     */
+    @Getter
+    private int workers = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Bytes de cada bloque (y por lo tanto de cada transaccion)
+     */
+    @Getter
+    private int tamanioBloque = 4 * 1024 * 1024;
+
+    /**
+     * Sentencias por cada batch JDBC
+     */
+    @Getter
+    private int batchSize = 100;
+
+    /**
+     * Recibe el avance acumulado despues de cada bloque confirmado
+     */
+    private Consumer<Importacion> avance = importacion -> {
+    };
+
+    /**
+     * @param ebeanServer donde importar.
+     */
+    public ClinicaImporter(final EbeanServer ebeanServer) {
+        this.ebeanServer = Preconditions.checkNotNull(ebeanServer);
+    }
+
+    /**
+     * @param workers hilos que convierten los bloques en modelos.
+     * @return this.
+     */
+    public ClinicaImporter workers(final int workers) {
+        Preconditions.checkArgument(workers > 0, "workers debe ser positivo");
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * @param tamanioBloque bytes de cada bloque; un registro mas largo que el bloque agranda ese bloque.
+     * @return this.
+     */
+    public ClinicaImporter tamanioBloque(final int tamanioBloque) {
+        Preconditions.checkArgument(tamanioBloque > 0, "tamanioBloque debe ser positivo");
+        this.tamanioBloque = tamanioBloque;
+        return this;
+    }
+
+    /**
+     * @param batchSize sentencias por cada batch JDBC.
+     * @return this.
+     */
+    public ClinicaImporter batchSize(final int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batchSize debe ser positivo");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param avance recibe el avance acumulado despues de cada bloque confirmado (en el hilo que importa).
+     * @return this.
+     */
+    public ClinicaImporter avance(final Consumer<Importacion> avance) {
+        this.avance = Preconditions.checkNotNull(avance);
+        return this;
+    }
+
+    /**
+     * Importa el archivo, continuando desde el ultimo checkpoint si ya se habia comenzado a importar.
+     * Las personas deben importarse antes que los pacientes, y estos antes que los controles.
+     *
+     * @param tipo    de registros del archivo.
+     * @param formato del archivo.
+     * @param archivo a importar, en UTF-8.
+     * @return registros insertados, omitidos y rechazados, y registros por segundo.
+     */
+    public Importacion importar(final Tipo tipo, final Formato formato, final Path archivo) {
+
+        final long inicio = System.nanoTime();
+        final String clave = archivo.toAbsolutePath().normalize().toString();
+
+        try (FileChannel channel = FileChannel.open(archivo, StandardOpenOption.READ)) {
+
+            final long tamanio = channel.size();
+            final long modificado = Files.getLastModifiedTime(archivo).toMillis();
+
+            // Encabezado (solo CSV): nombre de columna -> indice
+            final Map<String, Integer> columnas = new HashMap<>();
+            final long inicioDatos = formato == Formato.CSV ? leerEncabezado(channel, columnas) : 0;
+
+            final long checkpoint = this.leerCheckpoint(tipo, clave, tamanio, modificado);
+            long posicion = Math.max(inicioDatos, checkpoint);
+            if (checkpoint > 0) {
+                log.info("Resuming import of {} from byte {} of {}.", archivo, checkpoint, tamanio);
+            }
+
+            // Los workers solo leen los mapas de referencias de las tablas que no se estan importando, el
+            // escritor solo modifica el de la tabla que se importa: no se necesita sincronizacion.
+            final Referencias referencias = this.cargarReferencias(tipo);
+
+            final Escritor escritor = new Escritor(tipo, clave, tamanio, modificado, referencias);
+            final ExecutorService executor = newExecutor(this.workers);
+            final Deque<Future<Lote>> pendientes = new ArrayDeque<>();
+
+            long registros = 0;
+            long omitidos = 0;
+            long rechazados = 0;
+
+            try {
+                while (posicion < tamanio || !pendientes.isEmpty()) {
+
+                    // Lectura anticipada acotada: a lo mas dos bloques por worker en memoria
+                    while (posicion < tamanio && pendientes.size() < 2 * this.workers) {
+                        final ByteBuffer bloque = this.mapearBloque(channel, posicion, tamanio);
+                        final long fin = posicion + bloque.remaining();
+                        pendientes.add(executor.submit(() -> parsear(bloque, fin, tipo, formato, columnas,
+                                referencias)));
+                        posicion = fin;
+                    }
+
+                    final Lote lote = esperar(pendientes.poll());
+                    escritor.escribir(lote);
+
+                    registros += lote.insertados;
+                    omitidos += lote.omitidos;
+                    rechazados += lote.rechazados;
+
+                    final Importacion importacion = new Importacion(registros, omitidos, rechazados, lote.fin,
+                            tamanio, System.nanoTime() - inicio);
+                    log.debug("Imported {} {} ({}%) at {} registros/s ..", registros, tipo,
+                            Math.round(importacion.getAvance() * 100), Math.round(importacion.getRegistrosPorSegundo()));
+                    this.avance.accept(importacion);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            final Importacion importacion = new Importacion(registros, omitidos, rechazados, tamanio, tamanio,
+                    System.nanoTime() - inicio);
+            log.info("Imported {} {} from {} ({} omitidos, {} rechazados) at {} registros/s.", registros, tipo,
+                    archivo, omitidos, rechazados, Math.round(importacion.getRegistrosPorSegundo()));
+            return importacion;
+
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error al leer " + archivo, e);
+        }
+    }
+
+    /**
+     * Mapea un bloque desde la posicion hasta el ultimo salto de linea que cabe en {@link #tamanioBloque} bytes
+     * (o hasta el final del archivo).
+     */
+    private ByteBuffer mapearBloque(final FileChannel channel, final long desde, final long tamanio)
+            throws IOException {
+
+        long largo = Math.min(this.tamanioBloque, tamanio - desde);
+        while (true) {
+            final ByteBuffer bloque = channel.map(FileChannel.MapMode.READ_ONLY, desde, largo);
+            if (desde + largo == tamanio) {
+                return bloque;
+            }
+            for (int i = (int) largo - 1; i >= 0; i--) {
+                if (bloque.get(i) == '\n') {
+                    bloque.limit(i + 1);
+                    return bloque;
+                }
+            }
+            // Un registro mas largo que el bloque
+            largo = Math.min(Math.min(2 * largo, Integer.MAX_VALUE), tamanio - desde);
+        }
+    }
+
+    /**
+     * Lee la primera linea del CSV.
+     *
+     * @return la posicion donde comienzan los datos.
+     */
+    private static long leerEncabezado(final FileChannel channel, final Map<String, Integer> columnas)
+            throws IOException {
+
+        final ByteBuffer inicio = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                Math.min(channel.size(), MAX_ENCABEZADO));
+
+        int fin = 0;
+        while (fin < inicio.limit() && inicio.get(fin) != '\n') {
+            fin++;
+        }
+        if (fin == inicio.limit() && fin == MAX_ENCABEZADO) {
+            throw new IllegalArgumentException("Encabezado CSV de mas de " + MAX_ENCABEZADO + " bytes");
+        }
+
+        inicio.limit(fin);
+        String encabezado = StandardCharsets.UTF_8.decode(inicio).toString();
+        if (encabezado.startsWith("\uFEFF")) {
+            encabezado = encabezado.substring(1);
+        }
+
+        final List<String> nombres = camposCsv(encabezado.trim());
+        for (int i = 0; i < nombres.size(); i++) {
+            columnas.put(nombres.get(i).trim(), i);
+        }
+        return Math.min(fin + 1, channel.size());
+    }
+
+    /**
+     * Convierte las lineas del bloque en modelos, en un worker.
+     */
+    private static Lote parsear(final ByteBuffer bloque, final long fin, final Tipo tipo, final Formato formato,
+                                final Map<String, Integer> columnas, final Referencias referencias)
+            throws CharacterCodingException {
+
+        final CharBuffer texto = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(bloque);
+
+        final Lote lote = new Lote(fin);
+        int desde = 0;
+        while (desde < texto.limit()) {
+
+            int hasta = desde;
+            while (hasta < texto.limit() && texto.get(hasta) != '\n') {
+                hasta++;
+            }
+            final String linea = texto.subSequence(desde, hasta).toString().trim();
+            desde = hasta + 1;
+
+            if (linea.isEmpty()) {
+                continue;
+            }
+            try {
+                final Registro registro = formato == Formato.CSV
+                        ? new RegistroCsv(columnas, camposCsv(linea))
+                        : new RegistroJson(camposJson(linea));
+                agregar(lote, tipo, registro, referencias);
+            } catch (RuntimeException | IOException e) {
+                lote.rechazados++;
+                log.debug("Rejected {}: {} ({})", tipo, linea, e.getMessage());
+            }
+        }
+        return lote;
+    }
+
+    /**
+     * Convierte el registro en un modelo y lo agrega al lote.
+     *
+     * @throws IllegalArgumentException si el registro es invalido o referencia un rut / numero que no existe.
+     */
+    private static void agregar(final Lote lote, final Tipo tipo, final Registro registro,
+                                final Referencias referencias) {
+
+        switch (tipo) {
+            case PERSONAS: {
+                final String rut = requerido(registro, "rut");
+                lote.agregar(Persona.builder()
+                        .rut(rut)
+                        .nombre(requerido(registro, "nombre"))
+                        .direccion(requerido(registro, "direccion"))
+                        .fijo(entero(registro.get("fijo"), 0))
+                        .movil(entero(registro.get("movil"), 0))
+                        .mail(registro.get("mail"))
+                        .login(requerido(registro, "login"))
+                        .password(requerido(registro, "password"))
+                        .tipo(constante(Persona.Tipo.class, requerido(registro, "tipo")))
+                        .build(), rut, null);
+                break;
+            }
+            case PACIENTES: {
+                final Integer numero = entero(requerido(registro, "numero"), 0);
+                final String propietario = registro.get("propietario");
+                lote.agregar(Paciente.builder()
+                        .numero(numero)
+                        .nombre(registro.get("nombre"))
+                        .fechaNacimiento(fecha(registro.get("fechaNacimiento")))
+                        .raza(registro.get("raza"))
+                        .sexo(registro.get("sexo") == null
+                                ? null : constante(Paciente.Sexo.class, registro.get("sexo")))
+                        .color(registro.get("color"))
+                        .especie(registro.get("especie"))
+                        .build(), numero, propietario == null ? null : referencia(referencias.personas, propietario));
+                break;
+            }
+            case CONTROLES: {
+                final Long paciente = referencia(referencias.pacientes, entero(requerido(registro, "paciente"), 0));
+                final String veterinario = registro.get("veterinario");
+                lote.agregar(Control.builder()
+                        .codigo(registro.get("codigo") == null ? null : entero(registro.get("codigo"), 0))
+                        .fecha(fecha(registro.get("fecha")))
+                        .proximoControl(fecha(registro.get("proximoControl")))
+                        .temperatura(decimal(registro.get("temperatura")))
+                        .peso(decimal(registro.get("peso")))
+                        .altura(decimal(registro.get("altura")))
+                        .diagnostico(registro.get("diagnostico"))
+                        .nota(registro.get("nota"))
+                        .veterinario(veterinario == null ? null : referencias.veterinario(veterinario))
+                        .build(), null, paciente);
+                break;
+            }
+            default:
+                throw new IllegalStateException("Tipo no soportado: " + tipo);
+        }
+    }
+
+    /**
+     * @return el id referenciado.
+     * @throws IllegalArgumentException si no existe.
+     */
+    private static <K> Long referencia(final Map<K, Long> ids, final K clave) {
+        final Long id = ids.get(clave);
+        if (id == null) {
+            throw new IllegalArgumentException("No existe la referencia: " + clave);
+        }
+        return id;
+    }
+
+    private static String requerido(final Registro registro, final String columna) {
+        final String valor = registro.get(columna);
+        if (valor == null) {
+            throw new IllegalArgumentException("Falta la columna: " + columna);
+        }
+        return valor;
+    }
+
+    private static int entero(final String valor, final int porDefecto) {
+        return valor == null ? porDefecto : Integer.parseInt(valor);
+    }
+
+    private static double decimal(final String valor) {
+        return valor == null ? 0 : Double.parseDouble(valor);
+    }
+
+    /**
+     * @param valor ISO-8601: fecha (en la zona horaria local) o instante.
+     */
+    private static Date fecha(final String valor) {
+        if (valor == null) {
+            return null;
+        }
+        return Date.from(valor.indexOf('T') > 0
+                ? Instant.parse(valor)
+                : LocalDate.parse(valor).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    /**
+     * @param valor nombre de la constante (ejemplo: MACHO) o su @EnumValue (ejemplo: Macho).
+     */
+    private static <E extends Enum<E>> E constante(final Class<E> tipo, final String valor) {
+        for (E constante : tipo.getEnumConstants()) {
+            if (constante.name().equalsIgnoreCase(valor)) {
+                return constante;
+            }
+        }
+        throw new IllegalArgumentException("Valor invalido para " + tipo.getSimpleName() + ": " + valor);
+    }
+
+    /**
+     * Separa una linea CSV, respetando los campos entre comillas.
+     */
+    private static List<String> camposCsv(final String linea) {
+
+        final List<String> campos = new ArrayList<>();
+        final StringBuilder campo = new StringBuilder();
+        boolean comillas = false;
+
+        for (int i = 0; i < linea.length(); i++) {
+            final char c = linea.charAt(i);
+            if (comillas) {
+                if (c != '"') {
+                    campo.append(c);
+                } else if (i + 1 < linea.length() && linea.charAt(i + 1) == '"') {
+                    campo.append('"');
+                    i++;
+                } else {
+                    comillas = false;
+                }
+            } else if (c == '"') {
+                comillas = true;
+            } else if (c == ',') {
+                campos.add(campo.toString());
+                campo.setLength(0);
+            } else {
+                campo.append(c);
+            }
+        }
+        if (comillas) {
+            throw new IllegalArgumentException("Comillas sin cerrar");
+        }
+        campos.add(campo.toString());
+        return campos;
+    }
+
+    /**
+     * Lee un objeto JSON plano: clave -> valor como texto (null para los null).
+     */
+    private static Map<String, String> camposJson(final String linea) throws IOException {
+
+        final Map<String, String> campos = new HashMap<>();
+        try (JsonReader json = new JsonReader(new StringReader(linea))) {
+            json.beginObject();
+            while (json.hasNext()) {
+                final String nombre = json.nextName();
+                final JsonToken token = json.peek();
+                if (token == JsonToken.NULL) {
+                    json.nextNull();
+                    campos.put(nombre, null);
+                } else if (token == JsonToken.BOOLEAN) {
+                    campos.put(nombre, String.valueOf(json.nextBoolean()));
+                } else {
+                    campos.put(nombre, json.nextString());
+                }
+            }
+            json.endObject();
+        }
+        return campos;
+    }
+
+    /**
+     * Olvida la posicion importada del archivo: la proxima importacion comienza desde el principio.
+     *
+     * @param archivo cuyo checkpoint se descarta.
+     */
+    public void descartarCheckpoint(final Path archivo) {
+
+        final String clave = archivo.toAbsolutePath().normalize().toString();
+        final Transaction txn = this.ebeanServer.beginTransaction();
+        try {
+            final Connection connection = txn.getConnection();
+            if (existeTabla(connection, TABLA_CHECKPOINT)) {
+                try (PreparedStatement delete = connection.prepareStatement(SQL_DELETE_CHECKPOINT)) {
+                    delete.setString(1, clave);
+                    delete.executeUpdate();
+                }
+            }
+            txn.commit();
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al descartar el checkpoint de " + clave, e);
+        } finally {
+            txn.end();
+        }
+    }
+
+    /**
+     * @return el checkpoint del archivo, o 0 si no existe o el archivo cambio.
+     * @throws IllegalStateException si un archivo de controles cambio desde su checkpoint.
+     */
+    private long leerCheckpoint(final Tipo tipo, final String archivo, final long tamanio, final long modificado) {
+
+        final Transaction txn = this.ebeanServer.createTransaction();
+        try {
+            final Connection connection = txn.getConnection();
+            if (!existeTabla(connection, TABLA_CHECKPOINT)) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(SQL_CREATE_CHECKPOINT);
+                }
+                txn.commit();
+                return 0;
+            }
+
+            try (PreparedStatement ps = connection.prepareStatement(SQL_SELECT_CHECKPOINT)) {
+                ps.setString(1, archivo);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        return 0;
+                    }
+                    if (rs.getLong(1) == tamanio && rs.getLong(2) == modificado) {
+                        return rs.getLong(3);
+                    }
+                    // Sin clave natural no se pueden omitir los controles ya importados
+                    if (tipo == Tipo.CONTROLES) {
+                        throw new IllegalStateException("El archivo " + archivo + " cambio desde su checkpoint ("
+                                + rs.getLong(3) + " bytes importados): se duplicarian los controles");
+                    }
+                    return 0;
+                }
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al leer el checkpoint de " + archivo, e);
+        } finally {
+            txn.end();
+        }
+    }
+
+    static boolean existeTabla(final Connection connection, final String tabla) throws SQLException {
+
+        final DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet rs = metaData.getTables(null, null, "%", new String[]{"TABLE"})) {
+            while (rs.next()) {
+                if (tabla.equalsIgnoreCase(rs.getString("TABLE_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Carga los rut y numeros de ficha existentes (incluidos los eliminados, que siguen ocupando su clave unica).
+     */
+    private Referencias cargarReferencias(final Tipo tipo) {
+
+        final Referencias referencias = new Referencias(this.ebeanServer);
+        this.ebeanServer.find(Persona.class)
+                .setIncludeSoftDeletes()
+                .select("rut")
+                .findEach(persona -> referencias.personas.put(persona.getRut(), persona.getId()));
+
+        if (tipo != Tipo.PERSONAS) {
+            this.ebeanServer.find(Paciente.class)
+                    .setIncludeSoftDeletes()
+                    .select("numero")
+                    .findEach(paciente -> referencias.pacientes.put(paciente.getNumero(), paciente.getId()));
+        }
+
+        log.debug("Loaded {} rut and {} numeros.", referencias.personas.size(), referencias.pacientes.size());
+        return referencias;
+    }
+
+    private static Lote esperar(final Future<Lote> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Importacion interrumpida", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Error al leer un bloque", e.getCause());
+        }
+    }
+
+    /**
+     * @return pool fijo de hilos daemon.
+     */
+    private static ExecutorService newExecutor(final int hilos) {
+
+        final AtomicInteger contador = new AtomicInteger();
+        return Executors.newFixedThreadPool(hilos, runnable -> {
+            final Thread thread = new Thread(runnable, "importer-" + contador.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Inserta los lotes en orden, un lote por transaccion junto a su checkpoint.
+     */
+    private final class Escritor {
+
+        private final Tipo tipo;
+
+        private final String archivo;
+
+        private final long tamanio;
+
+        private final long modificado;
+
+        private final Referencias referencias;
+
+        private final BulkInsert bulkInsert;
+
+        Escritor(final Tipo tipo, final String archivo, final long tamanio, final long modificado,
+                 final Referencias referencias) {
+            this.tipo = tipo;
+            this.archivo = archivo;
+            this.tamanio = tamanio;
+            this.modificado = modificado;
+            this.referencias = referencias;
+            this.bulkInsert = new BulkInsert(ebeanServer).batchSize(batchSize);
+        }
+
+        void escribir(final Lote lote) {
+
+            // Omite las claves que ya existen o que se repiten en el lote
+            final List<BaseModel> modelos = new ArrayList<>(lote.modelos.size());
+            final List<Long> asociados = new ArrayList<>(lote.modelos.size());
+            final Set<Object> claves = new HashSet<>();
+            for (int i = 0; i < lote.modelos.size(); i++) {
+                final Object clave = lote.claves.get(i);
+                if (clave != null && (this.existe(clave) || !claves.add(clave))) {
+                    lote.omitidos++;
+                    continue;
+                }
+                modelos.add(lote.modelos.get(i));
+                asociados.add(lote.asociados.get(i));
+            }
+
+            // Pacientes con controles nuevos
+            final Set<Long> pacientes = new LinkedHashSet<>();
+            if (this.tipo == Tipo.CONTROLES) {
+                asociados.stream().filter(Objects::nonNull).forEach(pacientes::add);
+            }
+
+            final Transaction txn = ebeanServer.beginTransaction();
+            try {
+                this.bulkInsert.insert(modelos, txn);
+
+                final Connection connection = txn.getConnection();
+                if (this.tipo == Tipo.PACIENTES) {
+                    asociar(connection, SQL_INSERT_PERSONA_PACIENTE, asociados, modelos);
+                    txn.addModification("persona_paciente", true, false, false);
+                } else if (this.tipo == Tipo.CONTROLES) {
+                    asociar(connection, SQL_INSERT_PACIENTE_CONTROL, asociados, modelos);
+                    this.incrementarVersiones(connection, pacientes);
+                    txn.addModification("paciente_control", true, false, false);
+                }
+                this.guardarCheckpoint(connection, lote.fin);
+
+                txn.commit();
+            } catch (SQLException e) {
+                throw new PersistenceException("Error al importar " + this.archivo, e);
+            } finally {
+                txn.end();
+            }
+
+            lote.insertados = modelos.size();
+
+            // Solo estos pacientes dejan el cache L2, sin vaciar el de toda la tabla; la asociacion se inserta por
+            // JDBC, por lo que tambien se quita su coleccion de controles (no depende de la tabla)
+            final ServerCache beanCache = ebeanServer.getServerCacheManager().getBeanCache(Paciente.class);
+            final ServerCache controlesCache = ebeanServer.getServerCacheManager()
+                    .getCollectionIdsCache(Paciente.class, "controles");
+            for (Long idPaciente : pacientes) {
+                beanCache.remove(idPaciente);
+                controlesCache.remove(idPaciente);
+            }
+
+            // Las nuevas claves, una vez confirmadas
+            for (int i = 0; i < modelos.size(); i++) {
+                final BaseModel modelo = modelos.get(i);
+                if (modelo instanceof Persona) {
+                    this.referencias.personas.put(((Persona) modelo).getRut(), modelo.getId());
+                } else if (modelo instanceof Paciente) {
+                    this.referencias.pacientes.put(((Paciente) modelo).getNumero(), modelo.getId());
+                }
+            }
+        }
+
+        private boolean existe(final Object clave) {
+            return this.tipo == Tipo.PERSONAS
+                    ? this.referencias.personas.containsKey(clave)
+                    : this.referencias.pacientes.containsKey(clave);
+        }
+
+        /**
+         * Inserta (id asociado, id del modelo) en la tabla intermedia, omitiendo los modelos sin asociado.
+         */
+        private void asociar(final Connection connection, final String sql, final List<Long> asociados,
+                             final List<BaseModel> modelos) throws SQLException {
+
+            try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                int pendientes = 0;
+                for (int i = 0; i < modelos.size(); i++) {
+                    if (asociados.get(i) == null) {
+                        continue;
+                    }
+                    ps.setLong(1, asociados.get(i));
+                    ps.setLong(2, modelos.get(i).getId());
+                    ps.addBatch();
+
+                    if (++pendientes % batchSize == 0) {
+                        ps.executeBatch();
+                    }
+                }
+                if (pendientes % batchSize != 0) {
+                    ps.executeBatch();
+                }
+            }
+        }
+
+        /**
+         * Una vez por paciente con controles nuevos, igual que {@link EbeanBackendService#agregarControles(Map)}.
+         */
+        private void incrementarVersiones(final Connection connection, final Set<Long> pacientes)
+                throws SQLException {
+
+            try (PreparedStatement ps = connection.prepareStatement(SQL_UPDATE_VERSION_PACIENTE)) {
+                final Timestamp ahora = new Timestamp(System.currentTimeMillis());
+                int pendientes = 0;
+                for (Long idPaciente : pacientes) {
+                    ps.setTimestamp(1, ahora);
+                    ps.setLong(2, idPaciente);
+                    ps.addBatch();
+
+                    if (++pendientes % batchSize == 0) {
+                        ps.executeBatch();
+                    }
+                }
+                if (pendientes % batchSize != 0) {
+                    ps.executeBatch();
+                }
+            }
+        }
+
+        private void guardarCheckpoint(final Connection connection, final long posicion) throws SQLException {
+
+            try (PreparedStatement delete = connection.prepareStatement(SQL_DELETE_CHECKPOINT);
+                 PreparedStatement insert = connection.prepareStatement(SQL_INSERT_CHECKPOINT)) {
+                delete.setString(1, this.archivo);
+                delete.executeUpdate();
+
+                insert.setString(1, this.archivo);
+                insert.setLong(2, this.tamanio);
+                insert.setLong(3, this.modificado);
+                insert.setLong(4, posicion);
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * rut y numeros de ficha existentes.
+     */
+    private static final class Referencias {
+
+        private final EbeanServer ebeanServer;
+
+        /**
+         * rut -> id de la {@link Persona}
+         */
+        private final Map<String, Long> personas = new HashMap<>();
+
+        /**
+         * numero de ficha -> id del {@link Paciente}
+         */
+        private final Map<Integer, Long> pacientes = new HashMap<>();
+
+        Referencias(final EbeanServer ebeanServer) {
+            this.ebeanServer = ebeanServer;
+        }
+
+        /**
+         * @return una referencia (sin consultar la base de datos) a la persona con el rut.
+         */
+        Persona veterinario(final String rut) {
+            return this.ebeanServer.getReference(Persona.class, referencia(this.personas, rut));
+        }
+    }
+
+    /**
+     * Modelos de un bloque, con su clave natural y el id a asociar en la tabla intermedia.
+     */
+    private static final class Lote {
+
+        /**
+         * Posicion del archivo donde termina el bloque
+         */
+        private final long fin;
+
+        private final List<BaseModel> modelos = new ArrayList<>();
+
+        /**
+         * rut o numero de ficha de cada modelo, null si no tiene
+         */
+        private final List<Object> claves = new ArrayList<>();
+
+        /**
+         * id del propietario o del paciente de cada modelo, null si no tiene
+         */
+        private final List<Long> asociados = new ArrayList<>();
+
+        private long insertados;
+
+        private long omitidos;
+
+        private long rechazados;
+
+        Lote(final long fin) {
+            this.fin = fin;
+        }
+
+        void agregar(final BaseModel modelo, final Object clave, final Long asociado) {
+            this.modelos.add(modelo);
+            this.claves.add(clave);
+            this.asociados.add(asociado);
+        }
+    }
+
+    /**
+     * Un registro del archivo: columna -> valor, null si no existe o esta vacio.
+     */
+    private interface Registro {
+
+        String get(String columna);
+    }
+
+    private static final class RegistroCsv implements Registro {
+
+        private final Map<String, Integer> columnas;
+
+        private final List<String> campos;
+
+        RegistroCsv(final Map<String, Integer> columnas, final List<String> campos) {
+            this.columnas = columnas;
+            this.campos = campos;
+        }
+
+        @Override
+        public String get(final String columna) {
+            final Integer indice = this.columnas.get(columna);
+            return indice == null || indice >= this.campos.size()
+                    ? null : Strings.emptyToNull(this.campos.get(indice).trim());
+        }
+    }
+
+    private static final class RegistroJson implements Registro {
+
+        private final Map<String, String> campos;
+
+        RegistroJson(final Map<String, String> campos) {
+            this.campos = campos;
+        }
+
+        @Override
+        public String get(final String columna) {
+            final String valor = this.campos.get(columna);
+            return valor == null ? null : Strings.emptyToNull(valor.trim());
+        }
+    }
+
+}
@@ -0,0 +1,620 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.service.Purga;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.gson.stream.JsonWriter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.PersistenceException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Mantenimiento en segundo plano de las tablas del modelo.
+ * <p>
+ * Purga las filas eliminadas (soft delete) hace mas que la retencion, en lotes chicos: cada lote es una
+ * transaccion corta que borra primero las filas de las tablas de asociacion y luego las filas de la tabla, por lo
+ * que nunca mantiene bloqueos largos. Se purgan en orden control, paciente y persona; una persona eliminada que
+ * aun es veterinario de algun control no se purga. Los controles de un paciente purgado, aun los vigentes, se purgan
+ * con el: sin su asociacion quedarian huerfanos.
+ * </p>
+ * <p>
+ * Las filas de las tablas de historial (tabla_history, columnas sys_period_start y sys_period_end), incluidas las de
+ * las tablas de asociacion, que terminaron hace mas que la retencion se mueven a un archivo JSON Lines comprimido
+ * por tabla: cada lote se agrega como un miembro gzip y se sincroniza en disco antes de borrar sus filas.
+ * </p>
+ * <p>
+ * Las copias que el trigger del historial hace de las filas purgadas se borran en el mismo lote: la fila ya estaba
+ * eliminada (soft delete) desde antes de la retencion, por lo que no agregan nada a las consultas "as of" y
+ * llenarian el historial con lo que se acaba de purgar.
+ * </p>
+ */
+@Slf4j
+public final class ClinicaPurger {
+
+    /**
+     * Tablas a purgar, en orden, con sus tablas de asociacion (tabla, columna)
+     */
+    private static final List<Tabla> TABLAS = Arrays.asList(
+            new Tabla("control", "", "paciente_control", "control_id"),
+            new Tabla("paciente", "", "paciente_control", "paciente_id", "persona_paciente", "paciente_id")
+                    .dependiente("control", "paciente_control", "control_id"),
+            new Tabla("persona", " and not exists (select 1 from control c where c.veterinario_id = persona.id)",
+                    "persona_paciente", "persona_id"));
+
+    /**
+     * Tablas de las que se informan las filas restantes, con las columnas que identifican una fila
+     */
+    private static final Map<String, List<String>> RESTANTES = ImmutableMap.<String, List<String>>builder()
+            .put("control", Collections.singletonList("id"))
+            .put("paciente_control", Arrays.asList("paciente_id", "control_id"))
+            .put("paciente", Collections.singletonList("id"))
+            .put("persona_paciente", Arrays.asList("persona_id", "paciente_id"))
+            .put("persona", Collections.singletonList("id"))
+            .build();
+
+    /**
+     * Sufijo de las tablas de historial
+     */
+    private static final String HISTORY = "_history";
+
+    /**
+     * Marca de tiempo del nombre de los archivos
+     */
+    private static final DateTimeFormatter MARCA = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss")
+            .withZone(ZoneOffset.UTC);
+
+    /**
+     * Buffer de escritura
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final EbeanServer ebeanServer;
+
+    /**
+     * Antiguedad minima de una fila eliminada (o de una version del historial) para purgarla
+     */
+    private Duration retencion = Duration.ofDays(30);
+
+    /**
+     * Filas por transaccion
+     */
+    private int lote = 500;
+
+    /**
+     * Espera entre lotes, para dejar pasar a las demas transacciones
+     */
+    private Duration pausa = Duration.ZERO;
+
+    /**
+     * Donde se escriben los archivos del historial
+     */
+    private Path directorio = Paths.get("archivo");
+
+    /**
+     * Hora actual
+     */
+    private Clock reloj = Clock.systemUTC();
+
+    /**
+     * Purgas periodicas, null si no se inicio
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param ebeanServer donde purgar.
+     */
+    public ClinicaPurger(final EbeanServer ebeanServer) {
+        this.ebeanServer = Preconditions.checkNotNull(ebeanServer);
+    }
+
+    /**
+     * @param retencion antiguedad minima de una fila eliminada para purgarla.
+     * @return this.
+     */
+    public ClinicaPurger retencion(final Duration retencion) {
+        Preconditions.checkArgument(!retencion.isNegative(), "retencion no puede ser negativa");
+        this.retencion = retencion;
+        return this;
+    }
+
+    /**
+     * @param lote filas por transaccion.
+     * @return this.
+     */
+    public ClinicaPurger lote(final int lote) {
+        Preconditions.checkArgument(lote > 0, "lote debe ser positivo");
+        this.lote = lote;
+        return this;
+    }
+
+    /**
+     * @param pausa espera entre lotes.
+     * @return this.
+     */
+    public ClinicaPurger pausa(final Duration pausa) {
+        Preconditions.checkArgument(!pausa.isNegative(), "pausa no puede ser negativa");
+        this.pausa = pausa;
+        return this;
+    }
+
+    /**
+     * @param directorio donde escribir los archivos del historial.
+     * @return this.
+     */
+    public ClinicaPurger directorio(final Path directorio) {
+        this.directorio = Preconditions.checkNotNull(directorio);
+        return this;
+    }
+
+    /**
+     * @param reloj de donde obtener la hora actual.
+     * @return this.
+     */
+    public ClinicaPurger reloj(final Clock reloj) {
+        this.reloj = Preconditions.checkNotNull(reloj);
+        return this;
+    }
+
+    /**
+     * Purga periodicamente en un hilo daemon.
+     *
+     * @param periodo entre purgas.
+     * @param unidad  del periodo.
+     */
+    public synchronized void iniciar(final long periodo, final TimeUnit unidad) {
+
+        Preconditions.checkState(this.executor == null, "El purger ya fue iniciado");
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(() -> {
+            try {
+                this.purgar();
+            } catch (RuntimeException e) {
+                log.warn("Can't purge the deleted rows", e);
+            }
+        }, periodo, periodo, unidad);
+    }
+
+    /**
+     * Detiene las purgas periodicas.
+     */
+    public synchronized void detener() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Purga las filas eliminadas y archiva el historial anteriores a la retencion.
+     *
+     * @return filas eliminadas y restantes por tabla, filas archivadas y lotes.
+     */
+    public Purga purgar() {
+
+        final long inicio = System.nanoTime();
+        final Timestamp limite = Timestamp.from(this.reloj.instant().minus(this.retencion));
+        final Avance avance = new Avance();
+
+        for (Tabla tabla : TABLAS) {
+            this.purgar(tabla, limite, avance);
+        }
+
+        for (Map.Entry<String, List<String>> tabla : RESTANTES.entrySet()) {
+            if (this.existeTabla(tabla.getKey() + HISTORY)) {
+                this.archivar(tabla.getKey() + HISTORY, tabla.getValue(), limite, avance);
+            }
+        }
+
+        final Map<String, Long> restantes = new LinkedHashMap<>();
+        final Transaction txn = this.ebeanServer.createTransaction();
+        try {
+            for (String tabla : RESTANTES.keySet()) {
+                restantes.put(tabla, contar(txn.getConnection(), tabla));
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al contar las filas", e);
+        } finally {
+            txn.end();
+        }
+
+        final Purga purga = new Purga(Collections.unmodifiableMap(avance.eliminadas),
+                Collections.unmodifiableMap(restantes), avance.archivadas, avance.lotes, System.nanoTime() - inicio);
+        log.info("Purged {} rows and archived {} history rows in {} batches: {}.", purga.getTotalEliminadas(),
+                purga.getArchivadas(), purga.getLotes(), purga.getEliminadas());
+        return purga;
+    }
+
+    /**
+     * Purga una tabla lote a lote hasta que no queden filas eliminadas antes del limite.
+     */
+    private void purgar(final Tabla tabla, final Timestamp limite, final Avance avance) {
+
+        final String sqlIds = "select id from " + tabla.nombre
+                + " where deleted = ? and when_modified < ?" + tabla.condicion + " order by id";
+
+        // Historiales de la tabla y de sus asociaciones (tabla_history, columna)
+        final List<String[]> historiales = new ArrayList<>();
+        if (this.existeTabla(tabla.nombre + HISTORY)) {
+            historiales.add(new String[]{tabla.nombre + HISTORY, "id"});
+        }
+        for (int i = 0; i < tabla.asociaciones.length; i += 2) {
+            if (this.existeTabla(tabla.asociaciones[i] + HISTORY)) {
+                historiales.add(new String[]{tabla.asociaciones[i] + HISTORY, tabla.asociaciones[i + 1]});
+            }
+        }
+        final boolean historialDependiente = tabla.dependiente != null
+                && this.existeTabla(tabla.dependiente[0] + HISTORY);
+
+        while (true) {
+            final Transaction txn = this.ebeanServer.createTransaction();
+            final int filas;
+            try {
+                final Connection connection = txn.getConnection();
+
+                final List<Long> ids = new ArrayList<>(this.lote);
+                try (PreparedStatement ps = connection.prepareStatement(sqlIds)) {
+                    ps.setBoolean(1, true);
+                    ps.setTimestamp(2, limite);
+                    ps.setMaxRows(this.lote);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong(1));
+                        }
+                    }
+                }
+                if (ids.isEmpty()) {
+                    return;
+                }
+
+                // El trigger del historial (H2) copia cada fila borrada con sys_period_end = ahora
+                final Timestamp borrado = new Timestamp(System.currentTimeMillis());
+
+                final String in = in(ids.size());
+
+                // Filas dependientes asociadas, a purgar una vez borradas las asociaciones
+                final List<Long> dependientes = new ArrayList<>();
+                if (tabla.dependiente != null) {
+                    try (PreparedStatement ps = connection.prepareStatement("select " + tabla.dependiente[2]
+                            + " from " + tabla.dependiente[1] + " where " + tabla.asociaciones[1] + in)) {
+                        for (int i = 0; i < ids.size(); i++) {
+                            ps.setLong(i + 1, ids.get(i));
+                        }
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                dependientes.add(rs.getLong(1));
+                            }
+                        }
+                    }
+                }
+
+                for (int i = 0; i < tabla.asociaciones.length; i += 2) {
+                    final long borradas = borrar(connection,
+                            "delete from " + tabla.asociaciones[i] + " where " + tabla.asociaciones[i + 1] + in, ids);
+                    avance.eliminadas.merge(tabla.asociaciones[i], borradas, Long::sum);
+                    txn.addModification(tabla.asociaciones[i], false, false, true);
+                }
+                filas = borrar(connection, "delete from " + tabla.nombre + " where id" + in, ids);
+                avance.eliminadas.merge(tabla.nombre, (long) filas, Long::sum);
+                txn.addModification(tabla.nombre, false, false, true);
+
+                // Las dependientes que ya no tienen otra asociacion, con las copias de su historial
+                for (List<Long> lote : Lists.partition(dependientes, this.lote)) {
+                    final String inLote = in(lote.size());
+                    final long borradas = borrar(connection, "delete from " + tabla.dependiente[0]
+                            + " where id" + inLote + " and not exists (select 1 from " + tabla.dependiente[1]
+                            + " a where a." + tabla.dependiente[2] + " = " + tabla.dependiente[0] + ".id)", lote);
+                    avance.eliminadas.merge(tabla.dependiente[0], borradas, Long::sum);
+                    if (historialDependiente) {
+                        borrar(connection, "delete from " + tabla.dependiente[0] + HISTORY + " where id" + inLote
+                                + " and sys_period_end >= ?", lote, borrado);
+                    }
+                }
+                if (!dependientes.isEmpty()) {
+                    txn.addModification(tabla.dependiente[0], false, false, true);
+                }
+
+                // Sin esas copias: las versiones anteriores terminaron antes del limite y se archivan
+                for (String[] historial : historiales) {
+                    borrar(connection, "delete from " + historial[0] + " where " + historial[1] + in
+                            + " and sys_period_end >= ?", ids, borrado);
+                }
+
+                txn.commit();
+            } catch (SQLException e) {
+                throw new PersistenceException("Error al purgar " + tabla.nombre, e);
+            } finally {
+                txn.end();
+            }
+
+            avance.lotes++;
+            if (filas < this.lote) {
+                return;
+            }
+            this.esperar();
+        }
+    }
+
+    /**
+     * Mueve las versiones del historial terminadas antes del limite al archivo de la tabla, lote a lote.
+     */
+    private void archivar(final String historial, final List<String> clave, final Timestamp limite,
+                          final Avance avance) {
+
+        final List<String> columnas = new ArrayList<>(clave);
+        columnas.add("sys_period_start");
+
+        final String sqlVersiones = "select * from " + historial
+                + " where sys_period_end < ? order by " + String.join(", ", columnas);
+        final String sqlBorrar = "delete from " + historial
+                + " where " + String.join(" = ? and ", columnas) + " = ?";
+
+        final Path archivo = this.directorio.resolve(historial + "-" + MARCA.format(this.reloj.instant())
+                + ".jsonl.gz");
+
+        while (true) {
+            final List<Object[]> claves = new ArrayList<>(this.lote);
+            final Transaction txn = this.ebeanServer.createTransaction();
+            try {
+                final Connection connection = txn.getConnection();
+                final StringBuilder lineas = new StringBuilder();
+
+                try (PreparedStatement ps = connection.prepareStatement(sqlVersiones)) {
+                    ps.setTimestamp(1, limite);
+                    ps.setMaxRows(this.lote);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        final ResultSetMetaData metaData = rs.getMetaData();
+                        while (rs.next()) {
+                            final Object[] valores = new Object[columnas.size()];
+                            for (int i = 0; i < valores.length; i++) {
+                                valores[i] = rs.getObject(columnas.get(i));
+                            }
+                            claves.add(valores);
+                            escribir(rs, metaData, lineas);
+                        }
+                    }
+                }
+                if (claves.isEmpty()) {
+                    return;
+                }
+
+                // Primero en disco, luego se borra
+                this.agregar(archivo, lineas);
+
+                try (PreparedStatement ps = connection.prepareStatement(sqlBorrar)) {
+                    for (Object[] valores : claves) {
+                        for (int i = 0; i < valores.length; i++) {
+                            ps.setObject(i + 1, valores[i]);
+                        }
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+                txn.commit();
+            } catch (SQLException e) {
+                throw new PersistenceException("Error al archivar " + historial, e);
+            } finally {
+                txn.end();
+            }
+
+            avance.archivadas += claves.size();
+            avance.lotes++;
+            if (claves.size() < this.lote) {
+                log.debug("Archived {} to {}.", historial, archivo);
+                return;
+            }
+            this.esperar();
+        }
+    }
+
+    private boolean existeTabla(final String tabla) {
+
+        final Transaction txn = this.ebeanServer.createTransaction();
+        try {
+            return ClinicaImporter.existeTabla(txn.getConnection(), tabla);
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al buscar la tabla " + tabla, e);
+        } finally {
+            txn.end();
+        }
+    }
+
+    /**
+     * Agrega las lineas al archivo como un nuevo miembro gzip y lo sincroniza en disco.
+     */
+    private void agregar(final Path archivo, final CharSequence lineas) {
+
+        try {
+            Files.createDirectories(archivo.getParent());
+            try (FileChannel channel = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                final GZIPOutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+                // Cerrar el writer libera el Deflater (memoria nativa) y cierra el canal: se sincroniza antes
+                try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8),
+                        BUFFER_SIZE)) {
+                    writer.append(lineas);
+                    writer.flush();
+                    gzip.finish();
+                    channel.force(true);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error al escribir " + archivo, e);
+        }
+    }
+
+    /**
+     * Escribe la fila como un objeto JSON en una linea: columna -> valor.
+     */
+    private static void escribir(final ResultSet rs, final ResultSetMetaData metaData, final StringBuilder lineas)
+            throws SQLException {
+
+        final StringWriter texto = new StringWriter();
+        try (JsonWriter json = new JsonWriter(texto)) {
+            json.beginObject();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                json.name(metaData.getColumnLabel(i).toLowerCase());
+                final Object valor = rs.getObject(i);
+                if (valor == null) {
+                    json.nullValue();
+                } else if (valor instanceof Number) {
+                    json.value((Number) valor);
+                } else if (valor instanceof Boolean) {
+                    json.value((Boolean) valor);
+                } else if (valor instanceof Date) {
+                    json.value(Instant.ofEpochMilli(((Date) valor).getTime()).toString());
+                } else if (valor instanceof byte[]) {
+                    json.value(Base64.getEncoder().encodeToString((byte[]) valor));
+                } else {
+                    json.value(valor.toString());
+                }
+            }
+            json.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lineas.append(texto).append('\n');
+    }
+
+    /**
+     * @return " in (?, ..)" con un parametro por id.
+     */
+    private static String in(final int ids) {
+        return " in (" + String.join(",", Collections.nCopies(ids, "?")) + ")";
+    }
+
+    private static int borrar(final Connection connection, final String sql, final List<Long> ids)
+            throws SQLException {
+        return borrar(connection, sql, ids, null);
+    }
+
+    /**
+     * @param desde ultimo parametro de la sentencia, despues de los ids; null si no tiene.
+     */
+    private static int borrar(final Connection connection, final String sql, final List<Long> ids,
+                              final Timestamp desde) throws SQLException {
+
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            for (int i = 0; i < ids.size(); i++) {
+                ps.setLong(i + 1, ids.get(i));
+            }
+            if (desde != null) {
+                ps.setTimestamp(ids.size() + 1, desde);
+            }
+            return ps.executeUpdate();
+        }
+    }
+
+    private static long contar(final Connection connection, final String tabla) throws SQLException {
+
+        try (PreparedStatement ps = connection.prepareStatement("select count(*) from " + tabla);
+             ResultSet rs = ps.executeQuery()) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private void esperar() {
+
+        if (this.pausa.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(this.pausa.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Purga interrumpida", e);
+        }
+    }
+
+    /**
+     * Lo hecho en una purga.
+     */
+    private static final class Avance {
+
+        private final Map<String, Long> eliminadas = new LinkedHashMap<>();
+
+        private long archivadas;
+
+        private int lotes;
+    }
+
+    /**
+     * Tabla con soft delete y sus tablas de asociacion.
+     */
+    private static final class Tabla {
+
+        private final String nombre;
+
+        /**
+         * Condicion adicional para purgar una fila
+         */
+        private final String condicion;
+
+        /**
+         * Pares (tabla de asociacion, columna con el id de esta tabla)
+         */
+        private final String[] asociaciones;
+
+        /**
+         * (tabla, tabla de asociacion, columna con su id) de las filas que se purgan con esta, null si no tiene;
+         * la tabla de asociacion es la primera de {@link #asociaciones}
+         */
+        private String[] dependiente;
+
+        Tabla(final String nombre, final String condicion, final String... asociaciones) {
+            this.nombre = nombre;
+            this.condicion = condicion;
+            this.asociaciones = asociaciones;
+        }
+
+        Tabla dependiente(final String tabla, final String asociacion, final String columna) {
+            Preconditions.checkArgument(asociacion.equals(this.asociaciones[0]));
+            this.dependiente = new String[]{tabla, asociacion, columna};
+            return this;
+        }
+    }
+
+}
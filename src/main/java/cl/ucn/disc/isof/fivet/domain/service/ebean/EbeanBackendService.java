@@ -1,20 +1,69 @@
 package cl.ucn.disc.isof.fivet.domain.service.ebean;
 
+import cl.ucn.disc.isof.fivet.domain.model.Cambio;
 import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.ControlSummary;
+import cl.ucn.disc.isof.fivet.domain.model.EventoCambio;
 import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.PacienteSummary;
 import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.model.PersonaSummary;
+import cl.ucn.disc.isof.fivet.domain.model.SignosVitales;
 import cl.ucn.disc.isof.fivet.domain.service.BackendService;
+import cl.ucn.disc.isof.fivet.domain.service.Exportacion;
+import cl.ucn.disc.isof.fivet.domain.service.FetchPlan;
 import com.avaje.ebean.EbeanServer;
 import com.avaje.ebean.EbeanServerFactory;
-import com.avaje.ebean.config.EncryptKey;
-import com.avaje.ebean.config.EncryptKeyManager;
+import com.avaje.ebean.ExpressionFactory;
+import com.avaje.ebean.ExpressionList;
+import com.avaje.ebean.Query;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.ValuePair;
+import com.avaje.ebean.Version;
+import com.avaje.ebean.cache.ServerCache;
 import com.avaje.ebean.config.ServerConfig;
+import com.avaje.ebean.config.dbplatform.DbEncrypt;
 import com.durrutia.ebean.BaseModel;
+import com.durrutia.ebean.BulkInsert;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.avaje.datasource.DataSourceFactory;
+import org.avaje.datasource.PoolStatus;
 
+import javax.persistence.PersistenceException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-//import com.avaje.ebean.Expr;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @Slf4j
 public class EbeanBackendService implements BackendService {
@@ -24,24 +73,343 @@ public class EbeanBackendService implements BackendService {
      */
     private final EbeanServer ebeanServer;
 
+    /**
+     * Maximo de conexiones del pool del datasource
+     */
+    @Getter
+    private final int maxConnections;
+
+    /**
+     * Datasource que cuenta las sentencias SQL de cada hilo
+     */
+    private final SqlCountingDataSource dataSource;
+
+    /**
+     * El primario: escrituras y lecturas cuando no hay replicas
+     */
+    private final Ruta primario;
+
+    /**
+     * Replicas de solo lectura
+     */
+    private final List<Ruta> replicas = new ArrayList<>();
+
+    /**
+     * Siguiente replica (round robin)
+     */
+    private final AtomicInteger siguienteReplica = new AtomicInteger();
+
+    /**
+     * Ultima escritura de cada hilo, null si no hay replicas
+     */
+    private final LecturaPropia lecturaPropia;
+
+    /**
+     * Milisegundos despues de una escritura en que el hilo sigue leyendo del primario
+     */
+    private static final long VENTANA_LECTURA_PROPIA = 1000;
+
+    /**
+     * Una llave por tabla y columna encriptada
+     */
+    private final EncryptKeys encryptKeys = new EncryptKeys();
+
+    /**
+     * Autenticacion: compara la password encriptada con el parametro encriptado (una sola vez), sin desencriptar
+     * ninguna fila. Null si la base de datos no tiene funciones de encriptacion.
+     */
+    private final String sqlAutenticar;
+
+    /**
+     * Si la password se enlaza antes que la llave en la funcion de encriptacion
+     */
+    private final boolean passwordPrimero;
+
+    /**
+     * Filas a traer por cada viaje al servidor al recorrer con cursor
+     */
+    private static final int FETCH_SIZE = 500;
+
+    /**
+     * Ids por cada consulta idIn: SQLite acepta a lo mas 999 parametros por sentencia
+     */
+    private static final int IDS_POR_CONSULTA = 500;
+
+    /**
+     * Asocia un control a un paciente (tabla intermedia del @ManyToMany Paciente.controles)
+     */
+    private static final String SQL_INSERT_PACIENTE_CONTROL =
+            "insert into paciente_control (paciente_id, control_id) values (?, ?)";
+
+    /**
+     * Incrementa la version del paciente al modificar sus controles
+     */
+    private static final String SQL_UPDATE_VERSION_PACIENTE =
+            "update paciente set version = version + 1, when_modified = ? where id = ?";
+
+    /**
+     * Resumen de los pacientes, primera pagina
+     */
+    private static final String SQL_PACIENTES_RESUMEN =
+            "select numero, nombre, especie, raza, sexo from paciente"
+                    + " where deleted = ? and numero is not null order by numero";
+
+    /**
+     * Resumen de los pacientes, paginas siguientes
+     */
+    private static final String SQL_PACIENTES_RESUMEN_DESDE =
+            "select numero, nombre, especie, raza, sexo from paciente"
+                    + " where deleted = ? and numero > ? order by numero";
+
+    /**
+     * Resumen de los controles de un veterinario con el numero de ficha del paciente (via paciente_control): una
+     * fila por control, como getControlesVeterinario. Si el control esta asociado a varios pacientes se toma el
+     * menor numero de ficha, sin los pacientes eliminados.
+     */
+    private static final String SQL_CONTROLES_VETERINARIO_RESUMEN =
+            "select c.codigo, c.fecha, c.proximo_control, c.diagnostico, v.nombre,"
+                    + " (select min(p.numero) from paciente_control pc"
+                    + " join paciente p on p.id = pc.paciente_id and p.deleted = ?"
+                    + " where pc.control_id = c.id)"
+                    + " from control c"
+                    + " join persona v on v.id = c.veterinario_id"
+                    + " where v.rut = ? and c.deleted = ?"
+                    + " order by c.fecha, c.id";
+
+    /**
+     * Agregados de los signos vitales, seguido de los joins, el filtro y el GROUP BY de cada variante
+     */
+    private static final String SQL_SIGNOS_VITALES =
+            ", count(*), min(c.peso), avg(c.peso), max(c.peso)"
+                    + ", min(c.temperatura), avg(c.temperatura), max(c.temperatura)"
+                    + ", min(c.altura), avg(c.altura), max(c.altura)"
+                    + " from control c";
+
+    /**
+     * Excluye los controles de pacientes eliminados, sin excluir los que no tienen paciente
+     */
+    private static final String SQL_SIN_PACIENTE_ELIMINADO =
+            " and not exists (select 1 from paciente_control pe join paciente e on e.id = pe.paciente_id"
+                    + " where pe.control_id = c.id and e.deleted = ?)";
+
+    /**
+     * Signos vitales por paciente (via paciente_control)
+     */
+    private static final String SQL_SIGNOS_VITALES_PACIENTE =
+            "select p.numero" + SQL_SIGNOS_VITALES
+                    + " join paciente_control pc on pc.control_id = c.id"
+                    + " join paciente p on p.id = pc.paciente_id"
+                    + " where c.deleted = ? and p.deleted = ? and p.numero is not null"
+                    + " group by p.numero order by p.numero";
+
+    /**
+     * Signos vitales por veterinario
+     */
+    private static final String SQL_SIGNOS_VITALES_VETERINARIO =
+            "select v.rut" + SQL_SIGNOS_VITALES
+                    + " join persona v on v.id = c.veterinario_id"
+                    + " where c.deleted = ?" + SQL_SIN_PACIENTE_ELIMINADO
+                    + " group by v.rut order by v.rut";
+
+    /**
+     * Persona (no eliminada) por login y password, seguido de la funcion que encripta el parametro
+     */
+    private static final String SQL_AUTENTICAR =
+            "select rut, nombre, tipo from persona where login = ? and deleted = ? and password = ";
+
+    /**
+     * Indices de las tablas de historial: (tabla, columnas). Las consultas "as of" y de versiones filtran por la
+     * clave y el inicio del periodo de validez, sin recorrer todo el historial.
+     */
+    private static final String[][] INDICES_HISTORIAL = {
+            {"paciente_history", "id, sys_period_start"},
+            {"paciente_history", "numero, sys_period_start"},
+            {"persona_history", "id, sys_period_start"},
+            {"persona_history", "rut, sys_period_start"},
+            {"paciente_control_history", "paciente_id, sys_period_start"},
+            {"persona_paciente_history", "persona_id, sys_period_start"},
+    };
+
+    /**
+     * Plan de {@link #getControlesVeterinario(String)}: el veterinario ya esta en el join del filtro
+     */
+    private static final FetchPlan CONTROLES_CON_VETERINARIO = FetchPlan.COMPLETO.fetch("veterinario");
+
+    /**
+     * Cantidad de sentencias por cada batch JDBC
+     */
+    @Setter
+    private int batchSize = 100;
+
+    /**
+     * Cantidad de filas por transaccion en las inserciones masivas
+     */
+    @Setter
+    private int filasPorTransaccion = 10000;
+
+    /**
+     * Indice en memoria de los nombres de los pacientes
+     */
+    private final PacienteNombreIndex pacienteNombreIndex = new PacienteNombreIndex();
+
+    /**
+     * Si es false, las busquedas por nombre van siempre a la base de datos (ilike)
+     */
+    @Setter
+    private boolean usarIndiceNombres = true;
+
+    /**
+     * Recordatorios de los proximos controles
+     */
+    @Getter
+    private final RecordatorioScheduler recordatorios = new RecordatorioScheduler();
+
+    /**
+     * Locks por numero de ficha (striping): los escritores de un mismo paciente se turnan en el proceso
+     */
+    private final Striped<Lock> pacienteLocks = Striped.lock(PACIENTE_LOCKS);
+
+    /**
+     * Reintentos de las escrituras que chocan con otra transaccion
+     */
+    @Getter
+    private final Reintentos reintentos = new Reintentos();
+
+    /**
+     * Eventos de los cambios confirmados, para los suscriptores
+     */
+    @Getter
+    private final BusCambios busCambios = new BusCambios();
+
+    /**
+     * Cantidad de locks entre los que se reparten los pacientes
+     */
+    private static final int PACIENTE_LOCKS = 256;
+
+    /**
+     * Propiedades del {@link Paciente} que cambian al agregar controles
+     */
+    private static final Set<String> PROPIEDADES_CONTROLES = ImmutableSet.of("version", "controles");
+
+    /**
+     * Tablas con id autoincremental
+     */
+    private static final String[] TABLAS_CON_ID = {"persona", "paciente", "control"};
+
+    /**
+     * Claves naturales por cache
+     */
+    private static final int NATURAL_KEY_CACHE_SIZE = 10000;
+
+    /**
+     * rut / mail -> id de la {@link Persona}
+     */
+    @Getter
+    private final NaturalKeyCache<String> personaCache = new NaturalKeyCache<>(NATURAL_KEY_CACHE_SIZE);
+
+    /**
+     * numero de ficha -> id del {@link Paciente}
+     */
+    @Getter
+    private final NaturalKeyCache<Integer> pacienteCache = new NaturalKeyCache<>(NATURAL_KEY_CACHE_SIZE);
+
     /**
      *
      */
     public EbeanBackendService(final String database) {
+        this(database, Collections.emptyList());
+    }
 
-        log.debug("Loading EbeanBackend in database: {}", database);
+    /**
+     * Backend con replicas de solo lectura: las escrituras van a la base de datos primaria y las lecturas se
+     * reparten (round robin) entre las replicas, salvo en el hilo que escribio hace menos de un segundo
+     * (read-your-writes) o dentro de una transaccion, que leen del primario.
+     *
+     * @param database nombre del datasource primario (ebean.properties).
+     * @param replicas nombres de los datasource de las replicas (ebean.properties).
+     */
+    public EbeanBackendService(final String database, final List<String> replicas) {
+        this(database, replicas, true);
+    }
+
+    /**
+     * @param database   nombre del datasource primario (ebean.properties).
+     * @param replicas   nombres de los datasource de las replicas (ebean.properties).
+     * @param porDefecto si el servidor queda como el servidor por defecto de Ebean (el de los Model.insert()); los
+     *                   shards de un {@link ShardedBackendService} no lo son.
+     */
+    EbeanBackendService(final String database, final List<String> replicas, final boolean porDefecto) {
+
+        log.debug("Loading EbeanBackend in database: {}, replicas: {}", database, replicas);
 
         /**
          * Configuration
          */
-        ServerConfig config = new ServerConfig();
-        config.setName(database);
-        config.setDefaultServer(true);
-        config.loadFromProperties();
+        ServerConfig config = configuracion(database, this.encryptKeys);
+        config.setDefaultServer(porDefecto);
 
         // Don't try this at home
         //config.setAutoCommitMode(false);
 
+        // Mantiene el indice de nombres al insertar/actualizar pacientes
+        config.add(this.pacienteNombreIndex);
+
+        // Invalida los caches de claves naturales al actualizar/eliminar
+        config.add(new NaturalKeyInvalidator(this.personaCache, this.pacienteCache));
+
+        // Reprograma los recordatorios al cambiar o eliminar controles
+        config.add(this.recordatorios);
+
+        // Publica los cambios confirmados a los suscriptores
+        config.add(this.busCambios);
+
+        // Recuerda que hilos escribieron, para leer del primario lo que acaban de escribir
+        this.lecturaPropia = replicas.isEmpty() ? null : new LecturaPropia(VENTANA_LECTURA_PROPIA);
+        if (this.lecturaPropia != null) {
+            config.add(this.lecturaPropia);
+        }
+
+        // Pool de conexiones propio, para contar las sentencias SQL
+        this.dataSource = crearPool(database, config);
+        config.setDataSource(this.dataSource);
+
+        this.ebeanServer = EbeanServerFactory.create(config);
+        this.maxConnections = config.getDataSourceConfig().getMaxConnections();
+        this.primario = new Ruta(database, this.ebeanServer, this.dataSource);
+        this.recordatorios.setEbeanServer(this.ebeanServer);
+
+        final DbEncrypt dbEncrypt = this.ebeanServer.getPluginApi().getDatabasePlatform().getDbEncrypt();
+        this.sqlAutenticar = dbEncrypt == null ? null : SQL_AUTENTICAR
+                + dbEncrypt.getDbEncryptFunction(Types.VARCHAR).getEncryptBindSql();
+        this.passwordPrimero = dbEncrypt != null && dbEncrypt.isBindEncryptDataFirst();
+
+        for (String replica : replicas) {
+
+            final ServerConfig replicaConfig = configuracion(replica, this.encryptKeys);
+            replicaConfig.setDefaultServer(false);
+
+            // Las escrituras en el primario no invalidan el cache L2 de la replica
+            replicaConfig.setDisableL2Cache(true);
+
+            final SqlCountingDataSource replicaDataSource = crearPool(replica, replicaConfig);
+            replicaConfig.setDataSource(replicaDataSource);
+
+            this.replicas.add(new Ruta(replica, EbeanServerFactory.create(replicaConfig), replicaDataSource));
+        }
+
+        log.debug("EBeanServer ready to go.");
+
+    }
+
+    /**
+     * Configuracion comun del primario y las replicas: modelos y llaves de encriptacion.
+     */
+    private static ServerConfig configuracion(final String database, final EncryptKeys encryptKeys) {
+
+        ServerConfig config = new ServerConfig();
+        config.setName(database);
+        config.loadFromProperties();
+
         // config.addPackage("package.de.la.clase.a.agregar.en.el.modelo");
         config.addClass(BaseModel.class);
 
@@ -57,27 +425,70 @@ public class EbeanBackendService implements BackendService {
         config.getAutoTuneConfig().setProfiling(false);
         config.getAutoTuneConfig().setQueryTuning(false);
 
-        config.setEncryptKeyManager(new EncryptKeyManager() {
+        config.setEncryptKeyManager(encryptKeys);
 
-            @Override
-            public void initialise() {
-                log.debug("Initializing EncryptKey ..");
-            }
+        return config;
+    }
+
+    /**
+     * @return el pool de conexiones del datasource, contando las sentencias SQL.
+     */
+    private static SqlCountingDataSource crearPool(final String database, final ServerConfig config) {
+        final DataSourceFactory dataSourceFactory = ServiceLoader.load(DataSourceFactory.class).iterator().next();
+        return new SqlCountingDataSource(dataSourceFactory.createPool(database, config.getDataSourceConfig()));
+    }
 
-            @Override
-            public EncryptKey getEncryptKey(final String tableName, final String columnName) {
+    /**
+     * La preferencia es del hilo que escribio (ver {@link LecturaPropia}): no se mantiene a traves de
+     * {@link cl.ucn.disc.isof.fivet.domain.service.AsyncBackendService}.
+     *
+     * @param ventanaMillis milisegundos despues de una escritura en que el hilo sigue leyendo del primario.
+     */
+    public void setVentanaLecturaPropia(final long ventanaMillis) {
+        if (this.lecturaPropia != null) {
+            this.lecturaPropia.setVentanaMillis(ventanaMillis);
+        }
+    }
 
-                log.debug("gettingEncryptKey for {} in {}.", columnName, tableName);
+    /**
+     * @return el servidor donde leer: una replica, o el primario si no hay replicas, si el hilo escribio
+     * recientemente o si hay una transaccion en curso.
+     */
+    EbeanServer lectura() {
 
-                // Return the encrypt key
-                return () -> tableName + columnName;
-            }
-        });
+        final Ruta ruta;
+        if (this.replicas.isEmpty() || this.lecturaPropia.isReciente()
+                || this.ebeanServer.currentTransaction() != null) {
+            ruta = this.primario;
+        } else {
+            ruta = this.replicas.get(Math.floorMod(this.siguienteReplica.getAndIncrement(), this.replicas.size()));
+        }
+        ruta.lecturas.increment();
+        return ruta.ebeanServer;
+    }
 
-        this.ebeanServer = EbeanServerFactory.create(config);
+    /**
+     * @return el estado del pool de conexiones y las lecturas del primario y de cada replica.
+     */
+    public List<EstadoPool> getEstadoPools() {
 
-        log.debug("EBeanServer ready to go.");
+        final List<EstadoPool> estados = new ArrayList<>(1 + this.replicas.size());
+        estados.add(this.primario.estado(true));
+        for (Ruta replica : this.replicas) {
+            estados.add(replica.estado(false));
+        }
+        return estados;
+    }
 
+    /**
+     * @return sentencias SQL creadas por el hilo actual, para medir cuantas emite cada operacion.
+     */
+    public long getSqlStatements() {
+        long sentencias = this.dataSource.getSentencias();
+        for (Ruta replica : this.replicas) {
+            sentencias += replica.dataSource.getSentencias();
+        }
+        return sentencias;
     }
 
     /**
@@ -87,10 +498,108 @@ public class EbeanBackendService implements BackendService {
      * @return the Persona
      */
     public Persona getPersona(final String rutEmail){
-        return this.ebeanServer.find(Persona.class)
+
+        final EbeanServer servidor = this.lectura();
+
+        // Cache de clave natural -> id, luego el bean desde el cache L2 (por id)
+        final Long id = this.personaCache.get(rutEmail);
+        if (id != null) {
+            final Persona persona = servidor.find(Persona.class, id);
+            if (persona != null && !persona.isDeleted()
+                    && (rutEmail.equals(persona.getRut()) || rutEmail.equals(persona.getMail()))) {
+                return persona;
+            }
+            this.personaCache.invalidar(id);
+        }
+
+        // Un correo va al indice de mail, cualquier otra cosa al de rut
+        final Persona persona = servidor.find(Persona.class)
                 .where()
-                .or(com.avaje.ebean.Expr.eq("rut", rutEmail),com.avaje.ebean.Expr.eq("mail", rutEmail))
+                .eq(rutEmail.indexOf('@') >= 0 ? "mail" : "rut", rutEmail)
                 .findUnique();
+
+        if (persona != null) {
+            this.personaCache.put(persona.getRut(), persona.getId());
+            this.personaCache.put(persona.getMail(), persona.getId());
+        }
+        return persona;
+    }
+
+    /**
+     * Autentica a una persona por su login (indexado) y password. La password del parametro se encripta una vez
+     * en la base de datos y se compara con la columna: no se desencripta ninguna password ni se crea la
+     * {@link Persona}.
+     *
+     * @param login    de la persona.
+     * @param password en texto plano.
+     * @return el resumen de la persona, o null si el login o la password no corresponden.
+     */
+    @Override
+    public PersonaSummary authenticate(final String login, final String password) {
+
+        if (login == null || password == null) {
+            return null;
+        }
+
+        if (this.sqlAutenticar == null) {
+            final List<Persona> personas = this.lectura().find(Persona.class)
+                    .select("rut,nombre,tipo")
+                    .setUseCache(false)
+                    .where()
+                    .eq("login", login)
+                    .eq("password", password)
+                    .setMaxRows(1)
+                    .findList();
+            return personas.isEmpty() ? null : new PersonaSummary(personas.get(0).getRut(),
+                    personas.get(0).getNombre(), personas.get(0).getTipo());
+        }
+
+        final String llave = this.encryptKeys.getEncryptKey("persona", "password").getStringValue();
+        final Fila<PersonaSummary> fila = rs -> new PersonaSummary(
+                rs.getString(1), rs.getString(2), constante(Persona.Tipo.class, rs.getString(3)));
+
+        final List<PersonaSummary> personas = this.consultar(this.sqlAutenticar, 1, fila, login, false,
+                this.passwordPrimero ? password : llave, this.passwordPrimero ? llave : password);
+        return personas.isEmpty() ? null : personas.get(0);
+    }
+
+    /**
+     * Obtiene una {@link Persona} tal como estaba en un instante, desde su historial (@History).
+     *
+     * @param rut      de la persona.
+     * @param instante a consultar.
+     * @return the {@link Persona} en ese instante, o null si no existia o estaba eliminada.
+     */
+    @Override
+    public Persona getPersonaAsOf(final String rut, final Instant instante) {
+
+        Preconditions.checkNotNull(rut, "rut");
+        Preconditions.checkNotNull(instante, "instante");
+        this.checkHistorial();
+
+        // Las consultas "as of" incluyen las versiones eliminadas (soft delete)
+        final Persona persona = this.lectura().find(Persona.class)
+                .asOf(Timestamp.from(instante))
+                .where()
+                .eq("rut", rut)
+                .findUnique();
+        return persona == null || persona.isDeleted() ? null : persona;
+    }
+
+    /**
+     * Obtiene las versiones de una {@link Persona} creadas en el periodo (sus cambios), de la mas antigua a la
+     * mas reciente, con las propiedades que cambiaron en cada una respecto de la anterior.
+     *
+     * @param rut   de la persona.
+     * @param desde inicio del periodo.
+     * @param hasta fin del periodo.
+     * @return the {@link List} of {@link Cambio}.
+     */
+    @Override
+    public List<Cambio> getCambiosPersona(final String rut, final Instant desde, final Instant hasta) {
+
+        Preconditions.checkNotNull(rut, "rut");
+        return this.cambios(this.lectura().find(Persona.class).where().eq("rut", rut).query(), desde, hasta);
     }
 
     /**
@@ -100,7 +609,119 @@ public class EbeanBackendService implements BackendService {
      */
     public List<Paciente> getPacientes(){
 
-        return this.ebeanServer.find(Paciente.class).findList();
+        return this.getPacientes(FetchPlan.COMPLETO);
+    }
+
+    /**
+     * Obtiene el listado de los pacientes cargando solo lo indicado en el plan.
+     *
+     * @param fetchPlan propiedades y relaciones a cargar.
+     * @return the {@link List} of {@link Paciente}
+     */
+    @Override
+    public List<Paciente> getPacientes(final FetchPlan fetchPlan) {
+
+        return aplicar(this.lectura().find(Paciente.class), fetchPlan).findList();
+    }
+
+    /**
+     * Obtiene una pagina de pacientes ordenados por numero de ficha (paginacion por keyset: numero > ultimoNumero).
+     *
+     * @param ultimoNumero numero de ficha del ultimo paciente de la pagina anterior, null para la primera pagina.
+     * @param limite       cantidad maxima de pacientes a retornar.
+     * @return the {@link List} of {@link Paciente}, vacia cuando no quedan pacientes.
+     */
+    @Override
+    public List<Paciente> getPacientes(final Integer ultimoNumero, final int limite) {
+
+        return this.getPacientes(ultimoNumero, limite, FetchPlan.COMPLETO);
+    }
+
+    /**
+     * Obtiene una pagina de pacientes ordenados por numero de ficha cargando solo lo indicado en el plan.
+     * Las colecciones del plan se cargan con una segunda consulta, para no multiplicar las filas de la pagina.
+     *
+     * @param ultimoNumero numero de ficha del ultimo paciente de la pagina anterior, null para la primera pagina.
+     * @param limite       cantidad maxima de pacientes a retornar.
+     * @param fetchPlan    propiedades y relaciones a cargar.
+     * @return the {@link List} of {@link Paciente}, vacia cuando no quedan pacientes.
+     */
+    @Override
+    public List<Paciente> getPacientes(final Integer ultimoNumero, final int limite, final FetchPlan fetchPlan) {
+
+        final ExpressionList<Paciente> where = aplicar(this.lectura().find(Paciente.class), fetchPlan)
+                .where()
+                .isNotNull("numero");
+
+        if (ultimoNumero != null) {
+            where.gt("numero", ultimoNumero);
+        }
+
+        return where
+                .orderBy("numero")
+                .setMaxRows(limite)
+                .findList();
+    }
+
+    /**
+     * Obtiene una pagina del resumen de los pacientes ordenados por numero de ficha (paginacion por keyset).
+     * Lee las columnas con JDBC: no crea beans ni pasa por el persistence context.
+     *
+     * @param ultimoNumero numero de ficha del ultimo paciente de la pagina anterior, null para la primera pagina.
+     * @param limite       cantidad maxima de pacientes a retornar.
+     * @return the {@link List} of {@link PacienteSummary}, vacia cuando no quedan pacientes.
+     */
+    @Override
+    public List<PacienteSummary> getPacientesResumen(final Integer ultimoNumero, final int limite) {
+
+        final Fila<PacienteSummary> fila = rs -> new PacienteSummary(
+                rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), constante(Paciente.Sexo.class, rs.getString(5)));
+
+        if (ultimoNumero == null) {
+            return this.consultar(SQL_PACIENTES_RESUMEN, limite, fila, false);
+        }
+        return this.consultar(SQL_PACIENTES_RESUMEN_DESDE, limite, fila, false, ultimoNumero);
+    }
+
+    /**
+     * @return cantidad de pacientes (sin los eliminados), con un select count.
+     */
+    @Override
+    public int countPacientes() {
+        return this.lectura().find(Paciente.class).findCount();
+    }
+
+    /**
+     * @param numeroPaciente de ficha.
+     * @return true si existe un paciente (no eliminado) con ese numero de ficha, sin cargarlo.
+     */
+    @Override
+    public boolean existsPaciente(final Integer numeroPaciente) {
+
+        // numero es unico: el count usa el indice y cuenta a lo mas una fila
+        return this.lectura().find(Paciente.class)
+                .where()
+                .eq("numero", numeroPaciente)
+                .findCount() > 0;
+    }
+
+    /**
+     * Recorre todos los pacientes ordenados por numero de ficha usando un cursor de la base de datos.
+     * Ebean vacia el persistence context en cada iteracion, por lo que la memoria no crece con las filas.
+     * Como las paginas de {@link #getPacientes(Integer, int)}, omite los pacientes sin numero de ficha.
+     *
+     * @param consumer que procesa cada {@link Paciente}.
+     */
+    @Override
+    public void recorrerPacientes(final Consumer<Paciente> consumer) {
+
+        this.lectura().find(Paciente.class)
+                .orderBy("numero")
+                .setUseCache(false)
+                .setBufferFetchSizeHint(FETCH_SIZE)
+                .where()
+                .isNotNull("numero")
+                .findEach(consumer::accept);
     }
 
     /**
@@ -110,10 +731,124 @@ public class EbeanBackendService implements BackendService {
      * @return the {@link Paciente}.
      */
     public Paciente getPaciente(final Integer numeroPaciente){
-        return this.ebeanServer.find(Paciente.class)
+
+        final EbeanServer servidor = this.lectura();
+
+        // Cache de numero -> id, luego el bean desde el cache L2 (por id)
+        final Long id = this.pacienteCache.get(numeroPaciente);
+        if (id != null) {
+            final Paciente paciente = servidor.find(Paciente.class, id);
+            if (paciente != null && !paciente.isDeleted() && numeroPaciente.equals(paciente.getNumero())) {
+                return paciente;
+            }
+            this.pacienteCache.invalidar(id);
+        }
+
+        final Paciente paciente = servidor.find(Paciente.class)
+                .where()
+                .eq("numero", numeroPaciente)
+                .findUnique();
+
+        if (paciente != null) {
+            this.pacienteCache.put(paciente.getNumero(), paciente.getId());
+        }
+        return paciente;
+    }
+
+    /**
+     * Obtiene un {@link Paciente} con sus controles tal como estaba en un instante, desde su historial (@History).
+     * Los controles son los asociados en ese instante (paciente_control tiene historial) pero con sus valores
+     * actuales: {@link Control} no tiene historial.
+     *
+     * @param numeroPaciente de ficha.
+     * @param instante       a consultar.
+     * @return the {@link Paciente} en ese instante, o null si no existia o estaba eliminado.
+     */
+    @Override
+    public Paciente getPacienteAsOf(final Integer numeroPaciente, final Instant instante) {
+
+        Preconditions.checkNotNull(numeroPaciente, "numeroPaciente");
+        Preconditions.checkNotNull(instante, "instante");
+        this.checkHistorial();
+
+        // Las consultas "as of" incluyen las versiones eliminadas (soft delete)
+        final Paciente paciente = this.lectura().find(Paciente.class)
+                .asOf(Timestamp.from(instante))
+                .fetch("controles")
                 .where()
                 .eq("numero", numeroPaciente)
                 .findUnique();
+        return paciente == null || paciente.isDeleted() ? null : paciente;
+    }
+
+    /**
+     * Obtiene las versiones de un {@link Paciente} creadas en el periodo (sus cambios), de la mas antigua a la
+     * mas reciente, con las propiedades que cambiaron en cada una respecto de la anterior.
+     *
+     * @param numeroPaciente de ficha.
+     * @param desde          inicio del periodo.
+     * @param hasta          fin del periodo.
+     * @return the {@link List} of {@link Cambio}.
+     */
+    @Override
+    public List<Cambio> getCambiosPaciente(final Integer numeroPaciente, final Instant desde,
+                                             final Instant hasta) {
+
+        Preconditions.checkNotNull(numeroPaciente, "numeroPaciente");
+        return this.cambios(this.lectura().find(Paciente.class).where().eq("numero", numeroPaciente).query(),
+                desde, hasta);
+    }
+
+    /**
+     * @return true si la base de datos mantiene el historial (@History): H2, no HSQLDB ni SQLite.
+     */
+    private boolean tieneHistorial() {
+        return this.ebeanServer.getPluginApi().getDatabasePlatform().getHistorySupport() != null;
+    }
+
+    /**
+     * @throws UnsupportedOperationException si la base de datos no tiene historial.
+     */
+    private void checkHistorial() {
+        if (!this.tieneHistorial()) {
+            throw new UnsupportedOperationException("La base de datos no tiene historial");
+        }
+    }
+
+    /**
+     * Versiones (incluida la eliminacion) del modelo de la consulta en el periodo, de la mas antigua a la mas
+     * reciente. Ebean calcula la diferencia de cada version con la anterior, por lo que lee todas las versiones del
+     * periodo de una vez: el periodo acota la memoria.
+     */
+    private <T extends BaseModel> List<Cambio> cambios(final Query<T> query, final Instant desde,
+                                                         final Instant hasta) {
+
+        Preconditions.checkNotNull(desde, "desde");
+        Preconditions.checkNotNull(hasta, "hasta");
+        Preconditions.checkArgument(!hasta.isBefore(desde), "hasta antes de desde");
+        this.checkHistorial();
+
+        final List<Version<T>> versiones = query
+                .setIncludeSoftDeletes()
+                .findVersionsBetween(Timestamp.from(desde), Timestamp.from(hasta));
+
+        // Ebean las entrega de la mas reciente a la mas antigua
+        final List<Cambio> cambios = new ArrayList<>(versiones.size());
+        for (int i = versiones.size() - 1; i >= 0; i--) {
+            final Version<T> version = versiones.get(i);
+            final Map<String, Object> anteriores = new LinkedHashMap<>();
+            final Map<String, Object> nuevos = new LinkedHashMap<>();
+            if (version.getDiff() != null) {
+                for (Map.Entry<String, ValuePair> diferencia : version.getDiff().entrySet()) {
+                    anteriores.put(diferencia.getKey(), diferencia.getValue().getOldValue());
+                    nuevos.put(diferencia.getKey(), diferencia.getValue().getNewValue());
+                }
+            }
+            cambios.add(new Cambio(version.getBean().getId(), version.getBean().getVersion(),
+                    version.getStart().toInstant(), version.getEnd() == null ? null : version.getEnd().toInstant(),
+                    Collections.unmodifiableMap(anteriores), Collections.unmodifiableMap(nuevos)));
+        }
+        return cambios;
     }
 
     /**
@@ -123,13 +858,163 @@ public class EbeanBackendService implements BackendService {
      * @return the {@link List} of {@link Control}.
      */
     public List<Control> getControlesVeterinario(final String rutVeterinario){
-        return this.ebeanServer.find(Control.class)
+        return this.getControlesVeterinario(rutVeterinario, CONTROLES_CON_VETERINARIO);
+    }
+
+    /**
+     * Obtiene todos los controles realizados por un veterinario ordenado por fecha de control,
+     * cargando solo lo indicado en el plan.
+     *
+     * @param rutVeterinario del que realizo el control.
+     * @param fetchPlan      propiedades y relaciones a cargar.
+     * @return the {@link List} of {@link Control}.
+     */
+    @Override
+    public List<Control> getControlesVeterinario(final String rutVeterinario, final FetchPlan fetchPlan) {
+        return aplicar(this.lectura().find(Control.class), fetchPlan)
                 .where()
                 .eq("veterinario.rut",rutVeterinario)
                 .orderBy("fecha")
                 .findList();
     }
 
+    /**
+     * Obtiene una pagina de la agenda de un veterinario ordenada por (fecha, id). La condicion de keyset y el rango
+     * se resuelven con el indice (veterinario_id, fecha, id): cada pagina lee solo sus filas, sin OFFSET.
+     *
+     * @param rutVeterinario del que realizo el control.
+     * @param desde          fecha inicial (inclusive), null para no acotar.
+     * @param hasta          fecha final (exclusive), null para no acotar.
+     * @param ultimo         ultimo control de la pagina anterior, null para la primera pagina.
+     * @param limite         cantidad maxima de controles a retornar.
+     * @return the {@link List} of {@link Control}.
+     */
+    @Override
+    public List<Control> getControlesVeterinario(final String rutVeterinario, final Date desde, final Date hasta,
+                                                 final Control ultimo, final int limite) {
+
+        Preconditions.checkArgument(limite > 0, "limite debe ser positivo");
+        Preconditions.checkArgument(ultimo == null || (ultimo.getFecha() != null && ultimo.getId() != null),
+                "El ultimo control debe tener fecha e id");
+
+        final EbeanServer servidor = this.lectura();
+        final ExpressionList<Control> where = aplicar(servidor.find(Control.class), CONTROLES_CON_VETERINARIO)
+                .where()
+                .eq("veterinario.rut", rutVeterinario)
+                .isNotNull("fecha");
+
+        if (desde != null) {
+            where.ge("fecha", desde);
+        }
+        if (hasta != null) {
+            where.lt("fecha", hasta);
+        }
+        if (ultimo != null) {
+            // (fecha, id) > (ultimo.fecha, ultimo.id); el ge acota el rango del indice
+            final ExpressionFactory expr = servidor.getExpressionFactory();
+            where.ge("fecha", ultimo.getFecha())
+                    .or(expr.gt("fecha", ultimo.getFecha()),
+                            expr.and(expr.eq("fecha", ultimo.getFecha()), expr.gt("id", ultimo.getId())));
+        }
+
+        return where
+                .orderBy("fecha, id")
+                .setMaxRows(limite)
+                .findList();
+    }
+
+    /**
+     * Obtiene el resumen de todos los controles realizados por un veterinario ordenado por fecha de control.
+     * Lee las columnas con JDBC: no crea beans ni pasa por el persistence context.
+     *
+     * @param rutVeterinario del que realizo el control.
+     * @return the {@link List} of {@link ControlSummary}.
+     */
+    @Override
+    public List<ControlSummary> getControlesVeterinarioResumen(final String rutVeterinario) {
+
+        return this.consultar(SQL_CONTROLES_VETERINARIO_RESUMEN, 0, rs -> {
+            final Timestamp fecha = rs.getTimestamp(2);
+            final Timestamp proximoControl = rs.getTimestamp(3);
+            final int numero = rs.getInt(6);
+            final Integer numeroPaciente = rs.wasNull() ? null : numero;
+            return new ControlSummary(rs.getInt(1),
+                    fecha == null ? null : fecha.toInstant(),
+                    proximoControl == null ? null : proximoControl.toInstant(),
+                    rs.getString(4),
+                    rs.getString(5),
+                    numeroPaciente);
+        }, false, rutVeterinario, false);
+    }
+
+    /**
+     * Obtiene el minimo, promedio y maximo de los signos vitales de los controles de cada paciente.
+     * La base de datos agrupa: se lee una fila por paciente.
+     *
+     * @return numero de ficha del paciente -> {@link SignosVitales}, ordenado por numero.
+     */
+    @Override
+    public Map<Integer, SignosVitales> getSignosVitalesPorPaciente() {
+        return this.agrupar(SQL_SIGNOS_VITALES_PACIENTE, rs -> rs.getInt(1), false, false);
+    }
+
+    /**
+     * Obtiene el minimo, promedio y maximo de los signos vitales de los controles realizados por cada veterinario,
+     * sin los de pacientes eliminados. La base de datos agrupa: se lee una fila por veterinario.
+     *
+     * @return rut del veterinario -> {@link SignosVitales}, ordenado por rut.
+     */
+    @Override
+    public Map<String, SignosVitales> getSignosVitalesPorVeterinario() {
+        return this.agrupar(SQL_SIGNOS_VITALES_VETERINARIO, rs -> rs.getString(1), false, true);
+    }
+
+    /**
+     * Obtiene el minimo, promedio y maximo de los signos vitales por mes. El mes (yyyymm) se calcula en la base de
+     * datos: year/month en H2 y HSQLDB, strftime en SQLite (que guarda las fechas en milisegundos).
+     *
+     * @param numeroPaciente del paciente, null para todos los controles (sin los de pacientes eliminados).
+     * @return mes -> {@link SignosVitales}, ordenado por mes; sin los meses sin controles.
+     */
+    @Override
+    public Map<YearMonth, SignosVitales> getSignosVitalesPorMes(final Integer numeroPaciente) {
+
+        final String mes = this.ebeanServer.getPluginApi().getDatabasePlatform().getName().startsWith("sqlite")
+                ? "cast(strftime('%Y%m', c.fecha / 1000, 'unixepoch', 'localtime') as integer)"
+                : "(year(c.fecha) * 100 + month(c.fecha))";
+
+        final Fila<YearMonth> clave = rs -> YearMonth.of(rs.getInt(1) / 100, rs.getInt(1) % 100);
+
+        if (numeroPaciente == null) {
+            return this.agrupar("select " + mes + " as mes" + SQL_SIGNOS_VITALES
+                    + " where c.deleted = ? and c.fecha is not null" + SQL_SIN_PACIENTE_ELIMINADO
+                    + " group by " + mes + " order by 1", clave, false, true);
+        }
+        return this.agrupar("select " + mes + " as mes" + SQL_SIGNOS_VITALES
+                + " join paciente_control pc on pc.control_id = c.id"
+                + " join paciente p on p.id = pc.paciente_id"
+                + " where c.deleted = ? and c.fecha is not null and p.deleted = ? and p.numero = ?"
+                + " group by " + mes + " order by 1", clave, false, false, numeroPaciente);
+    }
+
+    /**
+     * Ejecuta una consulta de {@link #SQL_SIGNOS_VITALES} agrupada: la primera columna es la clave del grupo.
+     */
+    private <K> Map<K, SignosVitales> agrupar(final String sql, final Fila<K> clave, final Object... parametros) {
+
+        final List<Map.Entry<K, SignosVitales>> filas = this.consultar(sql, 0,
+                rs -> new AbstractMap.SimpleImmutableEntry<>(clave.leer(rs), new SignosVitales(rs.getLong(2),
+                        rs.getDouble(3), rs.getDouble(4), rs.getDouble(5),
+                        rs.getDouble(6), rs.getDouble(7), rs.getDouble(8),
+                        rs.getDouble(9), rs.getDouble(10), rs.getDouble(11))), parametros);
+
+        final Map<K, SignosVitales> grupos = new LinkedHashMap<>(filas.size() * 2);
+        for (Map.Entry<K, SignosVitales> fila : filas) {
+            grupos.put(fila.getKey(), fila.getValue());
+        }
+        return grupos;
+    }
+
     /**
      * Obtiene todos los {@link Paciente} que poseen un match en su nombre.
      *
@@ -137,14 +1022,172 @@ public class EbeanBackendService implements BackendService {
      * @return the {@link List} of {@link Paciente}.
      */
     public List<Paciente> getPacientesPorNombre(final String nombre){
-        return this.ebeanServer.find(Paciente.class)
+
+        if (this.isIndiceNombresListo()) {
+            return this.getPacientesPorNombre(nombre, Integer.MAX_VALUE);
+        }
+
+        return this.lectura().find(Paciente.class)
                 .where()
                 .ilike("nombre",nombre+"%")
                 .findList();
     }
 
+    /**
+     * Obtiene los {@link Paciente} cuyo nombre comienza con el texto, sin considerar mayusculas ni tildes.
+     * Usa el {@link PacienteNombreIndex} y solo va a la base de datos a buscar los pacientes por id.
+     *
+     * @param nombre a buscar, ejemplo: "nan" que puede retornar Ñandú, nano, etc..
+     * @param limite cantidad maxima de pacientes a retornar.
+     * @return the {@link List} of {@link Paciente} ordenada por nombre.
+     */
+    @Override
+    public List<Paciente> getPacientesPorNombre(final String nombre, final int limite) {
+
+        return this.getPacientesPorNombre(nombre, limite, FetchPlan.COMPLETO);
+    }
+
+    /**
+     * Obtiene los {@link Paciente} cuyo nombre comienza con el texto cargando solo lo indicado en el plan.
+     *
+     * @param nombre    a buscar, ejemplo: "nan" que puede retornar Ñandú, nano, etc..
+     * @param limite    cantidad maxima de pacientes a retornar.
+     * @param fetchPlan propiedades y relaciones a cargar.
+     * @return the {@link List} of {@link Paciente} ordenada por nombre.
+     */
+    @Override
+    public List<Paciente> getPacientesPorNombre(final String nombre, final int limite, final FetchPlan fetchPlan) {
+
+        if (!this.isIndiceNombresListo()) {
+            return aplicar(this.lectura().find(Paciente.class), fetchPlan)
+                    .where()
+                    .ilike("nombre", nombre + "%")
+                    .orderBy("nombre")
+                    .setMaxRows(limite)
+                    .findList();
+        }
+
+        final List<Long> ids = this.pacienteNombreIndex.buscar(nombre, limite);
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // Se mantiene el orden del indice
+        final Map<Long, Integer> posiciones = new HashMap<>(ids.size() * 2);
+        for (int i = 0; i < ids.size(); i++) {
+            posiciones.put(ids.get(i), i);
+        }
+
+        // Sin limite el indice puede retornar miles de ids: se buscan de a IDS_POR_CONSULTA
+        final List<Paciente> pacientes = new ArrayList<>(ids.size());
+        for (List<Long> lote : Lists.partition(ids, IDS_POR_CONSULTA)) {
+            pacientes.addAll(aplicar(this.lectura().find(Paciente.class), fetchPlan)
+                    .where()
+                    .idIn(lote)
+                    .findList());
+        }
+        pacientes.sort(Comparator.comparing(p -> posiciones.get(p.getId())));
+        return pacientes;
+    }
+
+    /**
+     * Aplica el plan a la consulta: select de las propiedades y fetch (join) de cada relacion.
+     *
+     * @return la misma consulta.
+     */
+    private static <T> Query<T> aplicar(final Query<T> query, final FetchPlan fetchPlan) {
+
+        if (fetchPlan.getPropiedades() != null) {
+            query.select(fetchPlan.getPropiedades());
+        }
+        for (Map.Entry<String, String> join : fetchPlan.getJoins().entrySet()) {
+            if (join.getValue() == null) {
+                query.fetch(join.getKey());
+            } else {
+                query.fetch(join.getKey(), join.getValue());
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Convierte una fila del {@link ResultSet} en un objeto.
+     */
+    @FunctionalInterface
+    private interface Fila<T> {
+        T leer(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Ejecuta una consulta SQL en la transaccion actual (o en una nueva, en el servidor de lectura) y convierte
+     * cada fila.
+     *
+     * @param sql        a ejecutar.
+     * @param maxRows    maximo de filas, 0 para todas.
+     * @param fila       conversion de cada fila.
+     * @param parametros de la consulta, en orden.
+     * @return las filas convertidas.
+     */
+    private <T> List<T> consultar(final String sql, final int maxRows, final Fila<T> fila, final Object... parametros) {
+
+        final Transaction actual = this.ebeanServer.currentTransaction();
+        final Transaction txn = actual != null ? actual : this.lectura().createTransaction();
+        try (PreparedStatement ps = txn.getConnection().prepareStatement(sql)) {
+
+            for (int i = 0; i < parametros.length; i++) {
+                ps.setObject(i + 1, parametros[i]);
+            }
+            ps.setMaxRows(maxRows);
+            ps.setFetchSize(Math.min(maxRows > 0 ? maxRows : FETCH_SIZE, FETCH_SIZE));
+
+            final List<T> resultado = new ArrayList<>(maxRows > 0 ? Math.min(maxRows, FETCH_SIZE) : 16);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    resultado.add(fila.leer(rs));
+                }
+            }
+            return resultado;
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al ejecutar: " + sql, e);
+        } finally {
+            if (actual == null) {
+                txn.end();
+            }
+        }
+    }
+
+    /**
+     * @param tipo  del enum.
+     * @param valor de la columna (el @EnumValue, ejemplo: Macho).
+     * @return la constante o null.
+     */
+    private static <E extends Enum<E>> E constante(final Class<E> tipo, final String valor) {
+
+        if (valor == null) {
+            return null;
+        }
+        for (E constante : tipo.getEnumConstants()) {
+            if (constante.name().equalsIgnoreCase(valor)) {
+                return constante;
+            }
+        }
+        throw new IllegalArgumentException(tipo.getSimpleName() + " desconocido: " + valor);
+    }
+
+    /**
+     * @return true si las busquedas por nombre se pueden responder desde el indice.
+     */
+    private boolean isIndiceNombresListo() {
+        return this.usarIndiceNombres && this.pacienteNombreIndex.isListo();
+    }
+
     /**
      * Agrega un {@link Control} a un {@link Paciente} identificado por el numeroPaciente.
+     * Solo inserta el control (si es nuevo) y su asociacion, e incrementa la version del paciente:
+     * nunca carga la coleccion de controles, por lo que el costo no depende del historial del paciente.
+     * Con historial (H2) el incremento de version copia la fila anterior del paciente a paciente_history: cada
+     * control escribe tambien una version del paciente en el historial.
      *
      * @param control        a agregar al paciente.
      * @param numeroPaciente a asociar.
@@ -152,9 +1195,216 @@ public class EbeanBackendService implements BackendService {
      */
     public void agregarControl(Control control, final Integer numeroPaciente){
 
-        Paciente p = this.getPaciente(numeroPaciente);
-        p.getControles().add(control);
-        p.update();
+        this.agregarControles(Collections.singletonMap(numeroPaciente, Collections.singletonList(control)));
+    }
+
+    /**
+     * Agrega muchos {@link Control} a sus {@link Paciente} en una sola transaccion: los pacientes se resuelven
+     * con una sola consulta IN y los controles, las asociaciones y las versiones se escriben con batch JDBC.
+     * Los escritores concurrentes de un mismo paciente se turnan (locks por numero de ficha); si otra transaccion
+     * (otro proceso) tiene bloqueado alguno de los pacientes, se reintenta segun {@link #getReintentos()}.
+     * Con historial (H2) cada paciente del lote agrega una version a paciente_history.
+     *
+     * @param controlesPorPaciente numero de ficha del paciente -> controles a agregar.
+     * @throws RuntimeException en caso de no encontrar alguno de los pacientes, sin agregar ningun control.
+     */
+    @Override
+    public void agregarControles(final Map<Integer, List<Control>> controlesPorPaciente) {
+
+        if (controlesPorPaciente.isEmpty()) {
+            return;
+        }
+
+        // numero -> id, en una sola consulta
+        final Map<Integer, Long> idPorNumero = new HashMap<>(controlesPorPaciente.size() * 2);
+        this.ebeanServer.find(Paciente.class)
+                .select("numero")
+                .where()
+                .in("numero", controlesPorPaciente.keySet())
+                .findEach(p -> idPorNumero.put(p.getNumero(), p.getId()));
+
+        for (Integer numero : controlesPorPaciente.keySet()) {
+            if (!idPorNumero.containsKey(numero)) {
+                throw new IllegalArgumentException("No existe el paciente numero: " + numero);
+            }
+        }
+
+        // Un escritor por paciente en este proceso: bulkGet entrega los locks en un orden fijo (sin deadlocks)
+        final List<Lock> locks = new ArrayList<>();
+        this.pacienteLocks.bulkGet(controlesPorPaciente.keySet()).forEach(locks::add);
+        locks.forEach(Lock::lock);
+        try {
+            for (int intento = 1; ; intento++) {
+                if (intento > 1) {
+                    this.reintentos.esperar(intento - 1);
+                }
+                if (this.agregarControles(controlesPorPaciente, idPorNumero, intento)) {
+                    break;
+                }
+            }
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+        }
+
+        // Cambio de version de los pacientes y de sus controles: solo estos pacientes dejan el cache L2, sin vaciar
+        // el de toda la tabla. La asociacion se inserta por JDBC sin cargar la coleccion, por lo que el cache L2 de
+        // la coleccion de controles (que no depende de la tabla) tambien se quita, o mostraria la lista anterior
+        final ServerCache beanCache = this.ebeanServer.getServerCacheManager().getBeanCache(Paciente.class);
+        final ServerCache controlesCache = this.ebeanServer.getServerCacheManager()
+                .getCollectionIdsCache(Paciente.class, "controles");
+        for (Long idPaciente : idPorNumero.values()) {
+            this.pacienteCache.invalidar(idPaciente);
+            beanCache.remove(idPaciente);
+            controlesCache.remove(idPaciente);
+            // La asociacion se inserta por JDBC: el listener no la ve
+            this.busCambios.publicar(new EventoCambio(Paciente.class, EventoCambio.Tipo.UPDATE, idPaciente, null,
+                    PROPIEDADES_CONTROLES));
+        }
+
+        // Los proximos controles dentro del horizonte entran a la cola sin volver a consultar
+        this.recordatorios.agregar(controlesPorPaciente);
+    }
+
+    /**
+     * Un intento de {@link #agregarControles(Map)} en una transaccion.
+     *
+     * @return false si los pacientes estaban bloqueados por otra transaccion y se debe reintentar.
+     */
+    private boolean agregarControles(final Map<Integer, List<Control>> controlesPorPaciente,
+                                     final Map<Integer, Long> idPorNumero, final int intento) {
+
+        final Transaction txn = this.ebeanServer.beginTransaction();
+        try {
+            // Primero las filas de los pacientes, en orden de id: si otra transaccion las tiene se reintenta
+            // antes de insertar nada; luego ya no hay esperas por bloqueos de los pacientes
+            try (PreparedStatement version = txn.getConnection().prepareStatement(SQL_UPDATE_VERSION_PACIENTE)) {
+                final Timestamp ahora = new Timestamp(System.currentTimeMillis());
+                for (Long idPaciente : new TreeSet<>(idPorNumero.values())) {
+                    version.setTimestamp(1, ahora);
+                    version.setLong(2, idPaciente);
+                    version.addBatch();
+                }
+                version.executeBatch();
+            } catch (SQLException e) {
+                final PersistenceException conflicto = new PersistenceException(
+                        "Error al actualizar la version de los pacientes", e);
+                if (this.reintentos.reintentar(conflicto, intento)) {
+                    return false;
+                }
+                throw conflicto;
+            }
+
+            // Los ids de los controles se necesitan para asociarlos: en SQLite (sin ids generados por batch)
+            // se insertan fila a fila, en la misma transaccion
+            txn.setBatchMode(BulkInsert.isBatchGeneratedKeys(this.ebeanServer));
+            txn.setBatchSize(this.batchSize);
+            txn.setBatchGetGeneratedKeys(true);
+
+            for (List<Control> controles : controlesPorPaciente.values()) {
+                for (Control control : controles) {
+                    if (control.getId() == null) {
+                        this.ebeanServer.insert(control, txn);
+                    }
+                }
+            }
+
+            // Los controles deben existir (y tener id) antes de asociarlos
+            txn.flushBatch();
+
+            try (PreparedStatement asociar = txn.getConnection().prepareStatement(SQL_INSERT_PACIENTE_CONTROL)) {
+
+                int pendientes = 0;
+
+                for (Map.Entry<Integer, List<Control>> entry : controlesPorPaciente.entrySet()) {
+
+                    final Long idPaciente = idPorNumero.get(entry.getKey());
+
+                    for (Control control : entry.getValue()) {
+                        asociar.setLong(1, idPaciente);
+                        asociar.setLong(2, control.getId());
+                        asociar.addBatch();
+
+                        if (++pendientes % this.batchSize == 0) {
+                            asociar.executeBatch();
+                        }
+                    }
+                }
+
+                asociar.executeBatch();
+
+            } catch (SQLException e) {
+                throw new PersistenceException("Error al asociar los controles a los pacientes", e);
+            }
+
+            // Invalida los caches que dependen de la asociacion; los pacientes se quitan del cache L2 por id
+            txn.addModification("paciente_control", true, false, false);
+
+            txn.commit();
+            return true;
+        } finally {
+            txn.end();
+        }
+    }
+
+    /**
+     * Inserta masivamente {@link Persona}, {@link Paciente} o {@link Control} usando batch JDBC.
+     *
+     * @param modelos a insertar.
+     * @return los ids generados, en el mismo orden de los modelos.
+     */
+    @Override
+    public List<Long> insertar(final Collection<? extends BaseModel> modelos) {
+        return this.bulkInsert().insert(modelos);
+    }
+
+    /**
+     * Inserta masivamente los modelos a medida que se consume el stream, en transacciones acotadas.
+     *
+     * @param modelos a insertar.
+     * @return los ids generados, en el mismo orden de los modelos.
+     */
+    @Override
+    public List<Long> insertar(final Stream<? extends BaseModel> modelos) {
+        return this.bulkInsert().insert(modelos);
+    }
+
+    /**
+     * @return un {@link BulkInsert} sobre este servidor con la configuracion del backend.
+     */
+    public BulkInsert bulkInsert() {
+        return new BulkInsert(this.ebeanServer)
+                .batchSize(this.batchSize)
+                .filasPorTransaccion(this.filasPorTransaccion);
+    }
+
+    /**
+     * @return un {@link ClinicaImporter} sobre este servidor con la configuracion del backend.
+     */
+    public ClinicaImporter importador() {
+        return new ClinicaImporter(this.ebeanServer)
+                .batchSize(this.batchSize);
+    }
+
+    /**
+     * @return un {@link ClinicaPurger} sobre este servidor.
+     */
+    public ClinicaPurger purger() {
+        return new ClinicaPurger(this.ebeanServer);
+    }
+
+    /**
+     * Exporta todos los pacientes con sus controles y propietarios a un archivo JSON.
+     *
+     * @param destino archivo a crear o reemplazar.
+     * @param gzip    si se comprime con gzip.
+     * @return cantidades exportadas, bytes escritos y pacientes por segundo.
+     * @see PacienteExporter
+     */
+    @Override
+    public Exportacion exportarPacientes(final Path destino, final boolean gzip) {
+        return new PacienteExporter(this.lectura()).exportar(destino, gzip);
     }
 
     /**
@@ -163,6 +1413,74 @@ public class EbeanBackendService implements BackendService {
     @Override
     public void initialize() {
         log.info("Initializing Ebean ..");
+
+        if (this.usarIndiceNombres) {
+            this.pacienteNombreIndex.cargar(this.ebeanServer);
+        }
+
+        this.indexarHistorial();
+    }
+
+    /**
+     * Crea los {@link #INDICES_HISTORIAL} que falten, si la base de datos tiene historial. El DDL de Ebean crea
+     * las tablas de historial sin indices.
+     */
+    private void indexarHistorial() {
+
+        if (!this.tieneHistorial()) {
+            return;
+        }
+
+        final Transaction txn = this.ebeanServer.createTransaction();
+        try {
+            final Connection connection = txn.getConnection();
+            try (Statement statement = connection.createStatement()) {
+                for (String[] indice : INDICES_HISTORIAL) {
+                    if (ClinicaImporter.existeTabla(connection, indice[0])) {
+                        statement.execute("create index if not exists ix_" + indice[0] + "_"
+                                + indice[1].replace(", ", "_") + " on " + indice[0] + " (" + indice[1] + ")");
+                    }
+                }
+            }
+            txn.commit();
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al indexar el historial", e);
+        } finally {
+            txn.end();
+        }
+    }
+
+    /**
+     * Hace que los ids generados de {@link Persona}, {@link Paciente} y {@link Control} continuen desde el valor
+     * (o desde el siguiente al maximo, si es mayor): cada shard de un {@link ShardedBackendService} genera los ids
+     * en su propio rango.
+     *
+     * @param desde primer id a generar.
+     * @throws UnsupportedOperationException en SQLite, que no permite reiniciar el autoincremento.
+     */
+    void reservarIds(final long desde) {
+
+        if (this.ebeanServer.getPluginApi().getDatabasePlatform().getName().startsWith("sqlite")) {
+            throw new UnsupportedOperationException("SQLite no permite reiniciar los ids");
+        }
+
+        final Transaction txn = this.ebeanServer.createTransaction();
+        try (Statement statement = txn.getConnection().createStatement()) {
+            for (String tabla : TABLAS_CON_ID) {
+                final long maximo;
+                try (ResultSet rs = statement.executeQuery("select max(id) from " + tabla)) {
+                    rs.next();
+                    maximo = rs.getLong(1);
+                }
+                statement.execute("alter table " + tabla + " alter column id restart with "
+                        + Math.max(desde, maximo + 1));
+            }
+            txn.commit();
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al reservar los ids desde " + desde, e);
+        } finally {
+            txn.end();
+        }
     }
 
     /**
@@ -172,7 +1490,39 @@ public class EbeanBackendService implements BackendService {
     public void shutdown() {
         log.debug("Shutting down Ebean ..");
 
+        this.recordatorios.detener();
+        this.busCambios.detener();
+
         // TODO: Verificar si es necesario des-registrar el driver
         this.ebeanServer.shutdown(true, false);
+        for (Ruta replica : this.replicas) {
+            replica.ebeanServer.shutdown(true, false);
+        }
+    }
+
+    /**
+     * Un servidor (el primario o una replica) con su pool y sus lecturas.
+     */
+    private static final class Ruta {
+
+        private final String nombre;
+
+        private final EbeanServer ebeanServer;
+
+        private final SqlCountingDataSource dataSource;
+
+        private final LongAdder lecturas = new LongAdder();
+
+        Ruta(final String nombre, final EbeanServer ebeanServer, final SqlCountingDataSource dataSource) {
+            this.nombre = nombre;
+            this.ebeanServer = ebeanServer;
+            this.dataSource = dataSource;
+        }
+
+        EstadoPool estado(final boolean primario) {
+            final PoolStatus status = this.dataSource.getStatus(false);
+            return new EstadoPool(this.nombre, primario, this.lecturas.sum(), status.getFree(), status.getBusy(),
+                    status.getWaiting(), status.getHighWaterMark(), status.getMaxSize(), status.getWaitCount());
+        }
     }
 }
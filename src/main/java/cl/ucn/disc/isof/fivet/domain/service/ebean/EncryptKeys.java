@@ -0,0 +1,40 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import com.avaje.ebean.config.EncryptKey;
+import com.avaje.ebean.config.EncryptKeyManager;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link EncryptKeyManager} que crea una sola {@link EncryptKey} por tabla y columna: Ebean la pide en cada
+ * lectura o escritura de una columna encriptada.
+ */
+@Slf4j
+final class EncryptKeys implements EncryptKeyManager {
+
+    /**
+     * tabla.columna -> llave
+     */
+    private final ConcurrentMap<String, EncryptKey> llaves = new ConcurrentHashMap<>();
+
+    @Override
+    public void initialise() {
+        log.debug("Initializing EncryptKey ..");
+    }
+
+    @Override
+    public EncryptKey getEncryptKey(final String tableName, final String columnName) {
+
+        return this.llaves.computeIfAbsent(tableName + "." + columnName, clave -> {
+
+            log.debug("gettingEncryptKey for {} in {}.", columnName, tableName);
+
+            // The encrypt key
+            final String llave = tableName + columnName;
+            return () -> llave;
+        });
+    }
+
+}
@@ -0,0 +1,56 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import lombok.Value;
+
+/**
+ * Estado del pool de conexiones de una ruta (el primario o una replica) del {@link EbeanBackendService}.
+ */
+@Value
+public class EstadoPool {
+
+    /**
+     * Nombre de la base de datos (datasource)
+     */
+    String nombre;
+
+    /**
+     * Si es el servidor primario (escrituras)
+     */
+    boolean primario;
+
+    /**
+     * Lecturas enviadas a esta ruta
+     */
+    long lecturas;
+
+    /**
+     * Conexiones libres
+     */
+    int libres;
+
+    /**
+     * Conexiones en uso
+     */
+    int ocupadas;
+
+    /**
+     * Hilos esperando una conexion
+     */
+    int esperando;
+
+    /**
+     * Maximo de conexiones en uso a la vez
+     */
+    int maximoOcupadas;
+
+    /**
+     * Tamanio maximo del pool
+     */
+    int maximo;
+
+    /**
+     * Veces que un hilo tuvo que esperar una conexion
+     */
+    int esperas;
+
+}
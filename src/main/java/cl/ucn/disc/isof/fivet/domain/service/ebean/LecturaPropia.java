@@ -0,0 +1,89 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.TransactionCallbackAdapter;
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+import com.durrutia.ebean.BaseModel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recuerda, por hilo, la ultima escritura confirmada en el servidor primario, para que las lecturas de ese hilo
+ * vayan al primario mientras las replicas podrian no tenerla (read-your-writes).
+ * Se marca al confirmar la transaccion (una vez por transaccion), incluidas las escrituras hechas directamente
+ * con los modelos (save, insert, delete).
+ * <p>
+ * Solo vale para quien escribe y lee en el mismo hilo (llamadas sincronicas): una escritura hecha por
+ * {@link cl.ucn.disc.isof.fivet.domain.service.AsyncBackendService} marca al hilo del executor que la ejecuto, no al
+ * que la pidio, y las lecturas asincronas se ejecutan en hilos que no escribieron. Quien necesite leer lo recien escrito desde esos hilos debe leer dentro de
+ * una transaccion, que siempre va al primario.
+ * </p>
+ */
+final class LecturaPropia extends BeanPersistAdapter {
+
+    /**
+     * Marca de la transaccion que ya registro su callback
+     */
+    private static final String MARCA = LecturaPropia.class.getName();
+
+    /**
+     * Hasta cuando (System.nanoTime) leer del primario, por hilo. Al comenzar ya vencio.
+     */
+    private final ThreadLocal<long[]> hasta = ThreadLocal.withInitial(() -> new long[]{System.nanoTime()});
+
+    /**
+     * Duracion de la preferencia por el primario despues de escribir
+     */
+    private volatile long ventanaNanos;
+
+    LecturaPropia(final long ventanaMillis) {
+        this.setVentanaMillis(ventanaMillis);
+    }
+
+    void setVentanaMillis(final long ventanaMillis) {
+        this.ventanaNanos = TimeUnit.MILLISECONDS.toNanos(ventanaMillis);
+    }
+
+    /**
+     * @return true si el hilo actual escribio hace menos de la ventana.
+     */
+    boolean isReciente() {
+        return this.hasta.get()[0] - System.nanoTime() > 0;
+    }
+
+    @Override
+    public boolean isRegisterFor(final Class<?> cls) {
+        return BaseModel.class.isAssignableFrom(cls);
+    }
+
+    @Override
+    public void postInsert(final BeanPersistRequest<?> request) {
+        this.registrar(request.getTransaction());
+    }
+
+    @Override
+    public void postUpdate(final BeanPersistRequest<?> request) {
+        this.registrar(request.getTransaction());
+    }
+
+    @Override
+    public void postDelete(final BeanPersistRequest<?> request) {
+        this.registrar(request.getTransaction());
+    }
+
+    private void registrar(final Transaction txn) {
+
+        if (txn.getUserObject(MARCA) != null) {
+            return;
+        }
+        txn.putUserObject(MARCA, Boolean.TRUE);
+        txn.register(new TransactionCallbackAdapter() {
+            @Override
+            public void postCommit() {
+                hasta.get()[0] = System.nanoTime() + ventanaNanos;
+            }
+        });
+    }
+
+}
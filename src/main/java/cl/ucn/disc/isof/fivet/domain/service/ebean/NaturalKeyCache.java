@@ -0,0 +1,316 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import com.google.common.base.Preconditions;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache acotado de clave natural (rut, mail, numero de ficha) -> id del modelo.
+ * <p>
+ * Es un LRU segmentado: las claves nuevas entran a un segmento de prueba y solo pasan al segmento protegido
+ * cuando se vuelven a usar, por lo que un recorrido de claves usadas una sola vez no desplaza a las frecuentes.
+ * Se desaloja primero el menos usado del segmento de prueba.
+ * </p>
+ * <p>
+ * Un hit cambia el orden de acceso, por lo que cada busqueda toma un lock. Para que las lecturas de claves
+ * distintas no se serialicen, las claves se reparten por hash en franjas independientes, cada una con su lock, su
+ * LRU y su parte del tamaño maximo; el orden de acceso (y el desalojo) es por franja. Invalidar un id recorre todas
+ * las franjas: el rut y el mail de una persona pueden quedar en franjas distintas.
+ * </p>
+ *
+ * @param <K> tipo de la clave natural.
+ */
+public final class NaturalKeyCache<K> {
+
+    /**
+     * Fraccion del cache reservada para las claves usadas mas de una vez.
+     */
+    private static final double PROTEGIDO = 0.8;
+
+    /**
+     * Cantidad maxima de franjas (potencia de 2).
+     */
+    private static final int MAX_FRANJAS = 16;
+
+    /**
+     * Cantidad minima de claves por franja: un cache chico queda en una franja, con un LRU exacto.
+     */
+    private static final int MIN_POR_FRANJA = 64;
+
+    /**
+     * Franjas, elegidas por el hash de la clave.
+     */
+    private final Franja<K>[] franjas;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxSize cantidad maxima de claves.
+     */
+    @SuppressWarnings("unchecked")
+    public NaturalKeyCache(final int maxSize) {
+        Preconditions.checkArgument(maxSize > 1, "maxSize debe ser mayor a 1");
+
+        int cantidad = 1;
+        while (cantidad < MAX_FRANJAS && maxSize / (cantidad * 2) >= MIN_POR_FRANJA) {
+            cantidad *= 2;
+        }
+
+        this.franjas = new Franja[cantidad];
+        for (int i = 0; i < cantidad; i++) {
+            this.franjas[i] = new Franja<>(maxSize / cantidad + (i < maxSize % cantidad ? 1 : 0));
+        }
+    }
+
+    /**
+     * @param clave natural.
+     * @return el id asociado o null si no esta en cache.
+     */
+    public Long get(final K clave) {
+
+        final Long id = this.franja(clave).get(clave);
+        if (id == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+        }
+        return id;
+    }
+
+    /**
+     * Asocia una clave natural a un id.
+     *
+     * @param clave natural, se ignora si es null.
+     * @param id    del modelo.
+     */
+    public void put(final K clave, final Long id) {
+
+        if (clave == null || id == null) {
+            return;
+        }
+
+        final int desalojados = this.franja(clave).put(clave, id);
+        if (desalojados > 0) {
+            this.evictions.add(desalojados);
+        }
+    }
+
+    /**
+     * Elimina todas las claves que apuntan al id.
+     *
+     * @param id del modelo modificado o eliminado.
+     */
+    public void invalidar(final Long id) {
+
+        boolean invalidado = false;
+        for (Franja<K> franja : this.franjas) {
+            invalidado |= franja.invalidar(id);
+        }
+        if (invalidado) {
+            this.invalidations.increment();
+        }
+    }
+
+    /**
+     * Vacia el cache.
+     */
+    public void clear() {
+        for (Franja<K> franja : this.franjas) {
+            franja.clear();
+        }
+    }
+
+    /**
+     * @return cantidad de claves en cache.
+     */
+    public int size() {
+        int size = 0;
+        for (Franja<K> franja : this.franjas) {
+            size += franja.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return busquedas que encontraron la clave.
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return busquedas que no encontraron la clave.
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return claves desalojadas por falta de espacio.
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * @return ids invalidados por update, delete o cambio de version.
+     */
+    public long getInvalidations() {
+        return this.invalidations.sum();
+    }
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "NaturalKeyCache{size=" + this.size() + ", franjas=" + this.franjas.length + ", hits=" + this.getHits()
+                + ", misses=" + this.getMisses() + ", evictions=" + this.getEvictions()
+                + ", invalidations=" + this.getInvalidations() + "}";
+    }
+
+    /**
+     * @return la franja (y su lock) de la clave.
+     */
+    Franja<K> franja(final K clave) {
+        final int h = clave == null ? 0 : clave.hashCode();
+        return this.franjas[(h ^ (h >>> 16)) & (this.franjas.length - 1)];
+    }
+
+    /**
+     * LRU segmentado de una franja; sus metodos se sincronizan en la franja.
+     *
+     * @param <K> tipo de la clave natural.
+     */
+    static final class Franja<K> {
+
+        /**
+         * Cantidad maxima de claves.
+         */
+        private final int maxSize;
+
+        /**
+         * Cantidad maxima de claves en el segmento protegido.
+         */
+        private final int maxProtegido;
+
+        /**
+         * Claves usadas una vez, en orden de acceso.
+         */
+        private final LinkedHashMap<K, Long> prueba = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * Claves usadas mas de una vez, en orden de acceso.
+         */
+        private final LinkedHashMap<K, Long> protegido = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * id -> claves que apuntan a ese id, para invalidar por id.
+         */
+        private final Map<Long, Set<K>> clavesPorId = new HashMap<>();
+
+        private Franja(final int maxSize) {
+            this.maxSize = maxSize;
+            this.maxProtegido = (int) (maxSize * PROTEGIDO);
+        }
+
+        private synchronized Long get(final K clave) {
+
+            Long id = this.protegido.get(clave);
+            if (id != null) {
+                return id;
+            }
+
+            id = this.prueba.remove(clave);
+            if (id == null) {
+                return null;
+            }
+
+            // Segundo uso: pasa al segmento protegido
+            this.protegido.put(clave, id);
+            if (this.protegido.size() > this.maxProtegido) {
+                final Iterator<Map.Entry<K, Long>> menosUsado = this.protegido.entrySet().iterator();
+                final Map.Entry<K, Long> degradado = menosUsado.next();
+                menosUsado.remove();
+                this.prueba.put(degradado.getKey(), degradado.getValue());
+            }
+            return id;
+        }
+
+        /**
+         * @return cantidad de claves desalojadas.
+         */
+        private synchronized int put(final K clave, final Long id) {
+
+            final Long anterior = this.protegido.containsKey(clave)
+                    ? this.protegido.put(clave, id)
+                    : this.prueba.put(clave, id);
+            if (anterior != null && !anterior.equals(id)) {
+                this.quitarClaveDeId(anterior, clave);
+            }
+            this.clavesPorId.computeIfAbsent(id, k -> new HashSet<>(4)).add(clave);
+
+            int desalojados = 0;
+            while (this.prueba.size() + this.protegido.size() > this.maxSize) {
+                final LinkedHashMap<K, Long> segmento = this.prueba.isEmpty() ? this.protegido : this.prueba;
+                final Iterator<Map.Entry<K, Long>> menosUsado = segmento.entrySet().iterator();
+                final Map.Entry<K, Long> desalojado = menosUsado.next();
+                menosUsado.remove();
+                this.quitarClaveDeId(desalojado.getValue(), desalojado.getKey());
+                desalojados++;
+            }
+            return desalojados;
+        }
+
+        /**
+         * @return true si alguna clave apuntaba al id.
+         */
+        private synchronized boolean invalidar(final Long id) {
+
+            final Set<K> claves = this.clavesPorId.remove(id);
+            if (claves == null) {
+                return false;
+            }
+            for (K clave : claves) {
+                this.prueba.remove(clave);
+                this.protegido.remove(clave);
+            }
+            return true;
+        }
+
+        private synchronized void clear() {
+            this.prueba.clear();
+            this.protegido.clear();
+            this.clavesPorId.clear();
+        }
+
+        private synchronized int size() {
+            return this.prueba.size() + this.protegido.size();
+        }
+
+        private void quitarClaveDeId(final Long id, final K clave) {
+
+            final Set<K> claves = this.clavesPorId.get(id);
+            if (claves != null) {
+                claves.remove(clave);
+                if (claves.isEmpty()) {
+                    this.clavesPorId.remove(id);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,56 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import com.avaje.ebean.TransactionCallbackAdapter;
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+import com.durrutia.ebean.BaseModel;
+
+/**
+ * Invalida los {@link NaturalKeyCache} de {@link Persona} y {@link Paciente} cuando se actualiza
+ * (incluido el soft delete y cualquier cambio de version) o elimina un modelo.
+ * La invalidacion se hace al confirmar la transaccion, para que un lector concurrente no vuelva a
+ * cachear el estado anterior.
+ */
+final class NaturalKeyInvalidator extends BeanPersistAdapter {
+
+    private final NaturalKeyCache<String> personaCache;
+
+    private final NaturalKeyCache<Integer> pacienteCache;
+
+    NaturalKeyInvalidator(final NaturalKeyCache<String> personaCache, final NaturalKeyCache<Integer> pacienteCache) {
+        this.personaCache = personaCache;
+        this.pacienteCache = pacienteCache;
+    }
+
+    @Override
+    public boolean isRegisterFor(final Class<?> cls) {
+        return Persona.class.equals(cls) || Paciente.class.equals(cls);
+    }
+
+    @Override
+    public void postUpdate(final BeanPersistRequest<?> request) {
+        this.invalidar(request);
+    }
+
+    @Override
+    public void postDelete(final BeanPersistRequest<?> request) {
+        this.invalidar(request);
+    }
+
+    private void invalidar(final BeanPersistRequest<?> request) {
+
+        final BaseModel modelo = (BaseModel) request.getBean();
+        final NaturalKeyCache<?> cache = modelo instanceof Persona ? this.personaCache : this.pacienteCache;
+        final Long id = modelo.getId();
+
+        request.getTransaction().register(new TransactionCallbackAdapter() {
+            @Override
+            public void postCommit() {
+                cache.invalidar(id);
+            }
+        });
+    }
+
+}
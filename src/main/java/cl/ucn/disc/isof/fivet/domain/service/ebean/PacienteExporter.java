@@ -0,0 +1,345 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.service.Exportacion;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.google.gson.stream.JsonWriter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.PersistenceException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exporta todos los {@link Paciente} con sus controles y sus propietarios ({@link Persona}) a un archivo JSON.
+ * <p>
+ * Recorre tres cursores ordenados por id de paciente (pacientes, controles y propietarios) y los combina a medida
+ * que avanza (merge join), escribiendo cada paciente con un {@link JsonWriter} apenas se lee: la memoria no
+ * depende de la cantidad de pacientes y no hay lazy loads. El archivo es un arreglo JSON de pacientes.
+ * No se exportan el login ni la password de las personas.
+ * </p>
+ */
+@Slf4j
+public final class PacienteExporter {
+
+    /**
+     * Pacientes no eliminados
+     */
+    private static final String SQL_PACIENTES =
+            "select id, numero, nombre, fecha_nacimiento, raza, sexo, color, especie, version"
+                    + " from paciente where deleted = ? order by id";
+
+    /**
+     * Controles no eliminados de cada paciente, con el rut del veterinario
+     */
+    private static final String SQL_CONTROLES =
+            "select pc.paciente_id, c.id, c.codigo, c.fecha, c.proximo_control, c.temperatura, c.peso, c.altura,"
+                    + " c.diagnostico, c.nota, v.rut"
+                    + " from paciente_control pc"
+                    + " join control c on c.id = pc.control_id"
+                    + " left join persona v on v.id = c.veterinario_id"
+                    + " where c.deleted = ?"
+                    + " order by pc.paciente_id, c.fecha, c.id";
+
+    /**
+     * Propietarios no eliminados de cada paciente
+     */
+    private static final String SQL_PROPIETARIOS =
+            "select pp.paciente_id, p.id, p.rut, p.nombre, p.direccion, p.fijo, p.movil, p.mail, p.tipo"
+                    + " from persona_paciente pp"
+                    + " join persona p on p.id = pp.persona_id"
+                    + " where p.deleted = ?"
+                    + " order by pp.paciente_id, p.id";
+
+    /**
+     * Filas por cada viaje al servidor
+     */
+    private static final int FETCH_SIZE = 1000;
+
+    /**
+     * Buffer de escritura
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Cada cuantos pacientes informar el avance
+     */
+    private static final int AVANCE = 100000;
+
+    private final List<EbeanServer> servidores;
+
+    /**
+     * @param ebeanServer desde donde exportar.
+     */
+    public PacienteExporter(final EbeanServer ebeanServer) {
+        this(Collections.singletonList(ebeanServer));
+    }
+
+    /**
+     * @param servidores desde donde exportar, uno despues del otro en el mismo arreglo (shards).
+     */
+    public PacienteExporter(final List<EbeanServer> servidores) {
+        this.servidores = servidores;
+    }
+
+    /**
+     * @param destino archivo a crear o reemplazar.
+     * @param gzip    si se comprime con gzip.
+     * @return cantidades exportadas, bytes escritos y duracion.
+     */
+    public Exportacion exportar(final Path destino, final boolean gzip) {
+
+        final long inicio = System.nanoTime();
+        final Avance avance = new Avance();
+
+        try (FileChannel channel = FileChannel.open(destino, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+                     abrir(channel, gzip), StandardCharsets.UTF_8), BUFFER_SIZE))) {
+
+            json.beginArray();
+            for (EbeanServer servidor : this.servidores) {
+                this.exportar(servidor, json, destino, avance);
+            }
+            json.endArray();
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al exportar los pacientes", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error al escribir " + destino, e);
+        }
+
+        final long nanos = System.nanoTime() - inicio;
+        final Exportacion exportacion;
+        try {
+            exportacion = new Exportacion(avance.pacientes, avance.controles, avance.propietarios,
+                    Files.size(destino), nanos);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error al leer " + destino, e);
+        }
+
+        log.info("Exported {} pacientes, {} controles and {} propietarios to {} ({} bytes) at {} pacientes/s.",
+                avance.pacientes, avance.controles, avance.propietarios, destino, exportacion.getBytes(),
+                Math.round(exportacion.getPacientesPorSegundo()));
+        return exportacion;
+    }
+
+    /**
+     * Escribe los pacientes de un servidor en el arreglo, en su propia transaccion.
+     */
+    private void exportar(final EbeanServer servidor, final JsonWriter json, final Path destino,
+                          final Avance avance) throws SQLException, IOException {
+
+        final Transaction txn = servidor.createTransaction();
+        try {
+            final Connection connection = txn.getConnection();
+            try (PreparedStatement psPacientes = prepare(connection, SQL_PACIENTES);
+                 PreparedStatement psControles = prepare(connection, SQL_CONTROLES);
+                 PreparedStatement psPropietarios = prepare(connection, SQL_PROPIETARIOS);
+                 ResultSet rsPacientes = psPacientes.executeQuery();
+                 ResultSet rsControles = psControles.executeQuery();
+                 ResultSet rsPropietarios = psPropietarios.executeQuery()) {
+
+                final Cursor cursorControles = new Cursor(rsControles);
+                final Cursor cursorPropietarios = new Cursor(rsPropietarios);
+
+                while (rsPacientes.next()) {
+
+                    final long id = rsPacientes.getLong(1);
+
+                    json.beginObject();
+                    json.name("id").value(id);
+                    json.name("numero").value(entero(rsPacientes, 2));
+                    json.name("nombre").value(rsPacientes.getString(3));
+                    json.name("fechaNacimiento").value(fecha(rsPacientes.getTimestamp(4)));
+                    json.name("raza").value(rsPacientes.getString(5));
+                    json.name("sexo").value(nombreEnum(Paciente.Sexo.class, rsPacientes.getString(6)));
+                    json.name("color").value(rsPacientes.getString(7));
+                    json.name("especie").value(rsPacientes.getString(8));
+                    json.name("version").value(rsPacientes.getLong(9));
+
+                    json.name("propietarios").beginArray();
+                    for (ResultSet rs = cursorPropietarios.avanzar(id); rs != null;
+                         rs = cursorPropietarios.siguiente(id)) {
+                        json.beginObject();
+                        json.name("id").value(rs.getLong(2));
+                        json.name("rut").value(rs.getString(3));
+                        json.name("nombre").value(rs.getString(4));
+                        json.name("direccion").value(rs.getString(5));
+                        json.name("fijo").value(rs.getInt(6));
+                        json.name("movil").value(rs.getInt(7));
+                        json.name("mail").value(rs.getString(8));
+                        json.name("tipo").value(nombreEnum(Persona.Tipo.class, rs.getString(9)));
+                        json.endObject();
+                        avance.propietarios++;
+                    }
+                    json.endArray();
+
+                    json.name("controles").beginArray();
+                    for (ResultSet rs = cursorControles.avanzar(id); rs != null; rs = cursorControles.siguiente(id)) {
+                        json.beginObject();
+                        json.name("id").value(rs.getLong(2));
+                        json.name("codigo").value(entero(rs, 3));
+                        json.name("fecha").value(fecha(rs.getTimestamp(4)));
+                        json.name("proximoControl").value(fecha(rs.getTimestamp(5)));
+                        json.name("temperatura").value(rs.getDouble(6));
+                        json.name("peso").value(rs.getDouble(7));
+                        json.name("altura").value(rs.getDouble(8));
+                        json.name("diagnostico").value(rs.getString(9));
+                        json.name("nota").value(rs.getString(10));
+                        json.name("veterinario").value(rs.getString(11));
+                        json.endObject();
+                        avance.controles++;
+                    }
+                    json.endArray();
+
+                    json.endObject();
+
+                    if (++avance.pacientes % AVANCE == 0) {
+                        log.debug("Exported {} pacientes to {} ..", avance.pacientes, destino);
+                    }
+                }
+            }
+        } finally {
+            txn.end();
+        }
+    }
+
+    /**
+     * @return el stream de escritura del canal, comprimido si corresponde.
+     */
+    private static OutputStream abrir(final FileChannel channel, final boolean gzip) throws IOException {
+
+        final OutputStream out = Channels.newOutputStream(channel);
+        return gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+    }
+
+    private static PreparedStatement prepare(final Connection connection, final String sql) throws SQLException {
+
+        final PreparedStatement ps = connection.prepareStatement(sql);
+        ps.setBoolean(1, false);
+        ps.setFetchSize(FETCH_SIZE);
+        return ps;
+    }
+
+    private static Integer entero(final ResultSet rs, final int columna) throws SQLException {
+        final int valor = rs.getInt(columna);
+        return rs.wasNull() ? null : valor;
+    }
+
+    private static String fecha(final Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toInstant().toString();
+    }
+
+    /**
+     * @param valor de la columna (el @EnumValue, ejemplo: Macho).
+     * @return el nombre de la constante (ejemplo: MACHO), o el valor si no corresponde a ninguna.
+     */
+    private static <E extends Enum<E>> String nombreEnum(final Class<E> tipo, final String valor) {
+
+        if (valor == null) {
+            return null;
+        }
+        for (E constante : tipo.getEnumConstants()) {
+            if (constante.name().equalsIgnoreCase(valor)) {
+                return constante.name();
+            }
+        }
+        return valor;
+    }
+
+    /**
+     * Cantidades exportadas hasta el momento
+     */
+    private static final class Avance {
+        long pacientes;
+        long controles;
+        long propietarios;
+    }
+
+    /**
+     * Un cursor ordenado por id de paciente (primera columna) que se recorre junto al de pacientes.
+     */
+    private static final class Cursor {
+
+        private final ResultSet rs;
+
+        /**
+         * Si rs esta posicionado en una fila aun no consumida
+         */
+        private boolean pendiente;
+
+        /**
+         * Si ya no quedan filas
+         */
+        private boolean terminado;
+
+        Cursor(final ResultSet rs) {
+            this.rs = rs;
+        }
+
+        /**
+         * Descarta las filas de pacientes anteriores (eliminados) y se posiciona en la primera del paciente.
+         *
+         * @return el ResultSet en la primera fila del paciente, o null si no tiene.
+         */
+        ResultSet avanzar(final long idPaciente) throws SQLException {
+
+            while (this.cargar()) {
+                final long id = this.rs.getLong(1);
+                if (id >= idPaciente) {
+                    return this.consumir(id == idPaciente);
+                }
+                this.pendiente = false;
+            }
+            return null;
+        }
+
+        /**
+         * @return el ResultSet en la siguiente fila del paciente, o null si no tiene mas.
+         */
+        ResultSet siguiente(final long idPaciente) throws SQLException {
+            return this.cargar() ? this.consumir(this.rs.getLong(1) == idPaciente) : null;
+        }
+
+        private ResultSet consumir(final boolean delPaciente) {
+            if (delPaciente) {
+                this.pendiente = false;
+                return this.rs;
+            }
+            return null;
+        }
+
+        /**
+         * @return true si hay una fila pendiente, leyendo la siguiente si hace falta.
+         */
+        private boolean cargar() throws SQLException {
+
+            if (!this.pendiente && !this.terminado) {
+                this.pendiente = this.rs.next();
+                this.terminado = !this.pendiente;
+            }
+            return this.pendiente;
+        }
+    }
+
+}
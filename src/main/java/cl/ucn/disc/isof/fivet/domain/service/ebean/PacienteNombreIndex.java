@@ -0,0 +1,217 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.TransactionCallbackAdapter;
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * Indice en memoria del nombre de los {@link Paciente} para busquedas por prefijo.
+ * Las claves se normalizan sin mayusculas ni tildes (Ñandú -> nandu) y se mantienen ordenadas,
+ * por lo que una busqueda es un recorrido de un sub-rango del mapa.
+ *
+ * El indice se mantiene actualizado registrandose como {@link com.avaje.ebean.event.BeanPersistController}
+ * del {@link EbeanServer}: los cambios se aplican solo despues del commit de la transaccion.
+ */
+@Slf4j
+public final class PacienteNombreIndex extends BeanPersistAdapter {
+
+    /**
+     * Marcas diacriticas que quedan al descomponer (NFD) un texto.
+     */
+    private static final Pattern DIACRITICOS = Pattern.compile("\\p{M}+");
+
+    /**
+     * Separa la clave normalizada del id, para permitir nombres repetidos.
+     */
+    private static final char SEPARADOR = '\u0000';
+
+    /**
+     * Mayor caracter posible, cierra el rango de un prefijo.
+     */
+    private static final char MAXIMO = '\uffff';
+
+    /**
+     * nombre normalizado + separador + id -> id, ordenado por clave.
+     */
+    private final ConcurrentSkipListMap<String, Long> claves = new ConcurrentSkipListMap<>();
+
+    /**
+     * id -> clave actual, para poder reemplazarla cuando cambia el nombre.
+     */
+    private final Map<Long, String> clavePorId = new ConcurrentHashMap<>();
+
+    /**
+     * Si el indice ya fue cargado desde la base de datos.
+     */
+    private volatile boolean listo;
+
+    /**
+     * Normaliza un texto para comparar sin considerar mayusculas ni tildes.
+     *
+     * @param texto a normalizar.
+     * @return el texto en minusculas y sin marcas diacriticas.
+     */
+    static String normalizar(final String texto) {
+        final String descompuesto = Normalizer.normalize(texto, Normalizer.Form.NFD);
+        return DIACRITICOS.matcher(descompuesto).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Carga el indice recorriendo los pacientes con un cursor (solo id y nombre).
+     *
+     * @param ebeanServer desde donde leer.
+     */
+    public void cargar(final EbeanServer ebeanServer) {
+
+        ebeanServer.find(Paciente.class)
+                .select("nombre")
+                .setUseCache(false)
+                .findEach(p -> this.agregar(p.getId(), p.getNombre()));
+
+        this.listo = true;
+        log.debug("PacienteNombreIndex loaded with {} nombres.", this.clavePorId.size());
+    }
+
+    /**
+     * @return true si el indice ya puede responder busquedas.
+     */
+    public boolean isListo() {
+        return this.listo;
+    }
+
+    /**
+     * @return cantidad de pacientes indexados.
+     */
+    public int size() {
+        return this.clavePorId.size();
+    }
+
+    /**
+     * Busca los pacientes cuyo nombre comienza con el prefijo, ordenados por nombre normalizado.
+     *
+     * @param prefijo a buscar, sin considerar mayusculas ni tildes.
+     * @param limite  cantidad maxima de ids a retornar.
+     * @return the {@link List} de ids de {@link Paciente}.
+     */
+    public List<Long> buscar(final String prefijo, final int limite) {
+
+        if (prefijo == null || limite <= 0) {
+            return Collections.emptyList();
+        }
+
+        final String desde = normalizar(prefijo);
+        final List<Long> ids = new ArrayList<>(Math.min(limite, 64));
+
+        for (Long id : this.claves.subMap(desde, true, desde + MAXIMO, true).values()) {
+            ids.add(id);
+            if (ids.size() == limite) {
+                break;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Agrega (o reemplaza) el nombre de un paciente.
+     *
+     * @param id     del paciente.
+     * @param nombre del paciente, null lo elimina del indice.
+     */
+    void agregar(final Long id, final String nombre) {
+
+        if (nombre == null) {
+            this.eliminar(id);
+            return;
+        }
+
+        final String clave = normalizar(nombre) + SEPARADOR + id;
+        final String anterior = this.clavePorId.put(id, clave);
+        if (anterior != null && !anterior.equals(clave)) {
+            this.claves.remove(anterior);
+        }
+        this.claves.put(clave, id);
+    }
+
+    /**
+     * Elimina un paciente del indice.
+     *
+     * @param id del paciente.
+     */
+    void eliminar(final Long id) {
+
+        final String anterior = this.clavePorId.remove(id);
+        if (anterior != null) {
+            this.claves.remove(anterior);
+        }
+    }
+
+    @Override
+    public boolean isRegisterFor(final Class<?> cls) {
+        return Paciente.class.equals(cls);
+    }
+
+    @Override
+    public void postInsert(final BeanPersistRequest<?> request) {
+
+        final Paciente paciente = (Paciente) request.getBean();
+        final Long id = paciente.getId();
+        final String nombre = paciente.getNombre();
+
+        this.alConfirmar(request.getTransaction(), () -> this.agregar(id, nombre));
+    }
+
+    @Override
+    public void postUpdate(final BeanPersistRequest<?> request) {
+
+        final Set<String> modificadas = request.getUpdatedProperties();
+        if (!modificadas.contains("nombre") && !modificadas.contains("deleted")) {
+            return;
+        }
+
+        final Paciente paciente = (Paciente) request.getBean();
+        final Long id = paciente.getId();
+
+        if (paciente.isDeleted()) {
+            this.alConfirmar(request.getTransaction(), () -> this.eliminar(id));
+        } else {
+            final String nombre = paciente.getNombre();
+            this.alConfirmar(request.getTransaction(), () -> this.agregar(id, nombre));
+        }
+    }
+
+    @Override
+    public void postDelete(final BeanPersistRequest<?> request) {
+
+        final Long id = ((Paciente) request.getBean()).getId();
+        this.alConfirmar(request.getTransaction(), () -> this.eliminar(id));
+    }
+
+    /**
+     * Ejecuta el cambio solo si la transaccion hace commit.
+     */
+    private void alConfirmar(final Transaction transaction, final Runnable cambio) {
+
+        transaction.register(new TransactionCallbackAdapter() {
+            @Override
+            public void postCommit() {
+                cambio.run();
+            }
+        });
+    }
+
+}
@@ -0,0 +1,543 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Recordatorio;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.TransactionCallbackAdapter;
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+import com.google.common.base.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.PersistenceException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Programador de recordatorios de los proximos controles ({@link Control#getProximoControl()}) que vencen dentro
+ * de la anticipacion (por defecto 7 dias).
+ *
+ * Mantiene en memoria una cola de prioridad, ordenada por fecha, con los controles cuyo proximo control es anterior
+ * al horizonte ya cargado. Una revision solo saca de la cola los que entraron en la ventana: la base de datos se
+ * consulta (un rango del indice de proximo_control) solo cuando la ventana alcanza el horizonte, y solo por el tramo
+ * nuevo. Los controles agregados con {@link EbeanBackendService#agregarControles(Map)} entran a la cola al confirmar;
+ * los insertados con los modelos (save, cascada), los cambios de fecha y las eliminaciones se registran como
+ * {@link BeanPersistAdapter}, incluidos los controles del importador (que los inserta con bulk insert); solo sus
+ * escrituras por JDBC (la tabla paciente_control) no pasan por aqui.
+ *
+ * La entrega es al menos una vez: al leer un tramo nuevo se guarda (tabla recordatorio_entregado) el limite de la
+ * revision anterior, cuyos recordatorios ya se entregaron. Al reiniciar, la primera revision lee desde ese limite:
+ * entrega los que vencieron mientras el proceso estaba detenido y repite los entregados despues del ultimo limite
+ * guardado. Sin limite guardado (la primera vez) los proximos controles anteriores a la primera revision no generan
+ * recordatorios.
+ */
+@Slf4j
+public final class RecordatorioScheduler extends BeanPersistAdapter {
+
+    /**
+     * Proximos controles (no eliminados, con paciente) en un rango [desde, hasta)
+     */
+    private static final String SQL_PROXIMOS_CONTROLES =
+            "select c.id, c.codigo, c.proximo_control, p.numero"
+                    + " from control c"
+                    + " join paciente_control pc on pc.control_id = c.id"
+                    + " join paciente p on p.id = pc.paciente_id"
+                    + " where c.proximo_control >= ? and c.proximo_control < ? and c.deleted = ?";
+
+    /**
+     * Proximos controles (no eliminados, con paciente) por id, seguido de la lista de ids
+     */
+    private static final String SQL_PROXIMOS_CONTROLES_POR_ID =
+            "select c.id, c.codigo, c.proximo_control, p.numero"
+                    + " from control c"
+                    + " join paciente_control pc on pc.control_id = c.id"
+                    + " join paciente p on p.id = pc.paciente_id"
+                    + " where c.proximo_control is not null and c.deleted = ? and c.id in ";
+
+    /**
+     * Limite de los recordatorios ya entregados, una sola fila
+     */
+    private static final String TABLA_ENTREGADOS = "recordatorio_entregado";
+
+    private static final String SQL_CREATE_ENTREGADOS =
+            "create table " + TABLA_ENTREGADOS + " (hasta timestamp not null)";
+
+    private static final String SQL_SELECT_ENTREGADOS = "select hasta from " + TABLA_ENTREGADOS;
+
+    private static final String SQL_UPDATE_ENTREGADOS = "update " + TABLA_ENTREGADOS + " set hasta = ?";
+
+    private static final String SQL_INSERT_ENTREGADOS = "insert into " + TABLA_ENTREGADOS + " (hasta) values (?)";
+
+    /**
+     * Orden de la cola: fecha del proximo control, luego id del control
+     */
+    private static final Comparator<Recordatorio> POR_FECHA = Comparator
+            .comparing(Recordatorio::getProximoControl)
+            .thenComparing(Recordatorio::getIdControl);
+
+    /**
+     * Recordatorios pendientes, el mas proximo primero. Puede contener entradas obsoletas (reprogramadas o
+     * eliminadas): solo vale la que sigue en {@link #vigentes}.
+     */
+    private final PriorityQueue<Recordatorio> cola = new PriorityQueue<>(POR_FECHA);
+
+    /**
+     * id del control -> recordatorio pendiente
+     */
+    private final Map<Long, Recordatorio> vigentes = new HashMap<>();
+
+    /**
+     * Controles reprogramados dentro del horizonte que no estaban en la cola: se leen en la siguiente revision
+     */
+    private final Set<Long> porCargar = new HashSet<>();
+
+    /**
+     * Fecha (exclusive) hasta donde ya se leyeron los proximos controles, null antes de la primera revision
+     */
+    private Instant horizonte;
+
+    /**
+     * Limite de la revision anterior: sus recordatorios se entregaron antes de pedir la siguiente
+     */
+    private Instant entregados;
+
+    /**
+     * Una revision a la vez
+     */
+    private final ReentrantLock revision = new ReentrantLock();
+
+    /**
+     * Consultas de proximos controles a la base de datos
+     */
+    private final LongAdder consultas = new LongAdder();
+
+    /**
+     * Desde donde leer
+     */
+    private volatile EbeanServer ebeanServer;
+
+    /**
+     * Cuanto antes del proximo control se envia el recordatorio
+     */
+    private volatile Duration anticipacion = Duration.ofDays(7);
+
+    /**
+     * Cuanto se lee mas alla de la ventana en cada consulta
+     */
+    private volatile Duration precarga = Duration.ofDays(1);
+
+    /**
+     * Hora actual
+     */
+    private volatile Clock reloj = Clock.systemUTC();
+
+    /**
+     * Revisiones periodicas, null si no se inicio
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param ebeanServer desde donde leer los proximos controles.
+     */
+    void setEbeanServer(final EbeanServer ebeanServer) {
+        this.ebeanServer = ebeanServer;
+    }
+
+    /**
+     * @param anticipacion cuanto antes del proximo control se envia el recordatorio.
+     * @return this.
+     */
+    public RecordatorioScheduler anticipacion(final Duration anticipacion) {
+        Preconditions.checkArgument(!anticipacion.isNegative(), "anticipacion no puede ser negativa");
+        this.anticipacion = anticipacion;
+        return this;
+    }
+
+    /**
+     * @param precarga cuanto se lee mas alla de la ventana en cada consulta: mas precarga, menos consultas y una
+     *                 cola mas grande.
+     * @return this.
+     */
+    public RecordatorioScheduler precarga(final Duration precarga) {
+        Preconditions.checkArgument(!precarga.isNegative() && !precarga.isZero(), "precarga debe ser positiva");
+        this.precarga = precarga;
+        return this;
+    }
+
+    /**
+     * @param reloj de donde obtener la hora actual.
+     * @return this.
+     */
+    public RecordatorioScheduler reloj(final Clock reloj) {
+        this.reloj = Preconditions.checkNotNull(reloj);
+        return this;
+    }
+
+    /**
+     * Revisa periodicamente los recordatorios en un hilo daemon, entregando cada uno una vez (al menos una vez
+     * entre reinicios).
+     *
+     * @param aviso   que recibe cada recordatorio vencido.
+     * @param periodo entre revisiones.
+     * @param unidad  del periodo.
+     */
+    public synchronized void iniciar(final Consumer<Recordatorio> aviso, final long periodo, final TimeUnit unidad) {
+
+        Preconditions.checkState(this.executor == null, "El scheduler ya fue iniciado");
+        Preconditions.checkNotNull(aviso);
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "recordatorios");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(() -> {
+            try {
+                this.revisar().forEach(aviso);
+            } catch (RuntimeException e) {
+                log.warn("Can't check the reminders", e);
+            }
+        }, 0, periodo, unidad);
+    }
+
+    /**
+     * Detiene las revisiones periodicas.
+     */
+    public synchronized void detener() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Saca de la cola los recordatorios cuyo proximo control vence dentro de la anticipacion (o ya vencio).
+     * Solo consulta la base de datos si la ventana alcanzo el horizonte cargado.
+     *
+     * @return the {@link List} of {@link Recordatorio} vencidos, ordenada por fecha.
+     */
+    public List<Recordatorio> revisar() {
+
+        this.revision.lock();
+        try {
+            final Instant ahora = this.reloj.instant();
+            final Instant limite = ahora.plus(this.anticipacion);
+
+            this.cargar(ahora, limite);
+
+            final List<Recordatorio> vencidos = new ArrayList<>();
+            synchronized (this) {
+                while (!this.cola.isEmpty() && !this.cola.peek().getProximoControl().isAfter(limite)) {
+                    final Recordatorio recordatorio = this.cola.poll();
+                    if (this.vigentes.remove(recordatorio.getIdControl(), recordatorio)) {
+                        vencidos.add(recordatorio);
+                    }
+                }
+            }
+            this.entregados = limite;
+            return vencidos;
+
+        } finally {
+            this.revision.unlock();
+        }
+    }
+
+    /**
+     * @return cantidad de recordatorios pendientes en memoria.
+     */
+    public synchronized int size() {
+        return this.vigentes.size();
+    }
+
+    /**
+     * @return cantidad de consultas de proximos controles hechas a la base de datos.
+     */
+    public long getConsultas() {
+        return this.consultas.sum();
+    }
+
+    /**
+     * Lee el tramo nuevo, [horizonte, limite + precarga), si la ventana lo alcanzo, y los controles reprogramados.
+     * El horizonte avanza antes de leer: lo que se confirme durante la consulta entra a la cola por
+     * {@link #agregar(Map)} y las repeticiones se descartan por id. La primera revision lee desde el limite
+     * guardado de los entregados; las siguientes, al leer un tramo, guardan el de la revision anterior.
+     */
+    private void cargar(final Instant ahora, final Instant limite) {
+
+        final Instant guardado;
+        if (this.horizonte == null) {
+            guardado = this.leerEntregados();
+            if (guardado == null) {
+                // Nada anterior a la primera revision: un reinicio vuelve a leer desde aqui
+                this.guardarEntregados(ahora);
+            }
+        } else {
+            guardado = null;
+            if (!limite.isBefore(this.horizonte) && this.entregados != null) {
+                this.guardarEntregados(this.entregados);
+            }
+        }
+
+        final Instant desde;
+        final Instant hasta;
+        final List<Long> ids;
+        synchronized (this) {
+            if (this.horizonte == null || !limite.isBefore(this.horizonte)) {
+                desde = this.horizonte != null ? this.horizonte : guardado != null ? guardado : ahora;
+                hasta = limite.plus(this.precarga);
+                this.horizonte = hasta;
+            } else {
+                desde = null;
+                hasta = null;
+            }
+            ids = new ArrayList<>(this.porCargar);
+            this.porCargar.clear();
+        }
+
+        if (desde != null) {
+            final List<Recordatorio> tramo = this.consultar(SQL_PROXIMOS_CONTROLES,
+                    Timestamp.from(desde), Timestamp.from(hasta), false);
+            this.encolar(tramo);
+            log.debug("Loaded {} reminders from {} to {}.", tramo.size(), desde, hasta);
+        }
+
+        if (!ids.isEmpty()) {
+            final Object[] parametros = new Object[ids.size() + 1];
+            parametros[0] = false;
+            for (int i = 0; i < ids.size(); i++) {
+                parametros[i + 1] = ids.get(i);
+            }
+            this.encolar(this.consultar(SQL_PROXIMOS_CONTROLES_POR_ID
+                    + "(" + String.join(",", Collections.nCopies(ids.size(), "?")) + ")", parametros));
+        }
+    }
+
+    /**
+     * Agrega a la cola los controles recien asociados a sus pacientes (ya confirmados).
+     *
+     * @param controlesPorPaciente numero de ficha del paciente -> controles agregados.
+     */
+    void agregar(final Map<Integer, List<Control>> controlesPorPaciente) {
+
+        final List<Recordatorio> recordatorios = new ArrayList<>();
+        for (Map.Entry<Integer, List<Control>> entry : controlesPorPaciente.entrySet()) {
+            for (Control control : entry.getValue()) {
+                if (control.getProximoControl() != null && !control.isDeleted()) {
+                    recordatorios.add(new Recordatorio(control.getId(), control.getCodigo(),
+                            control.getProximoControl().toInstant(), entry.getKey()));
+                }
+            }
+        }
+        synchronized (this) {
+            // Ya con su paciente: no hace falta leerlos por id (postInsert)
+            recordatorios.forEach(recordatorio -> this.porCargar.remove(recordatorio.getIdControl()));
+            this.encolar(recordatorios);
+        }
+    }
+
+    /**
+     * Encola los recordatorios anteriores al horizonte; los posteriores los lee la consulta de su tramo.
+     */
+    private synchronized void encolar(final Collection<Recordatorio> recordatorios) {
+
+        if (this.horizonte == null) {
+            return;
+        }
+        for (Recordatorio recordatorio : recordatorios) {
+            if (recordatorio.getProximoControl().isBefore(this.horizonte)
+                    && !recordatorio.equals(this.vigentes.put(recordatorio.getIdControl(), recordatorio))) {
+                this.cola.add(recordatorio);
+            }
+        }
+    }
+
+    /**
+     * Cambio la fecha del proximo control o se elimino el control.
+     *
+     * @param id    del control.
+     * @param fecha nueva fecha del proximo control, null si ya no hay que recordarlo.
+     */
+    private synchronized void reprogramar(final Long id, final Instant fecha) {
+
+        if (this.horizonte == null) {
+            return;
+        }
+
+        final Recordatorio actual = this.vigentes.remove(id);
+        if (fecha == null || !fecha.isBefore(this.horizonte)) {
+            return;
+        }
+
+        if (actual != null) {
+            this.encolar(Collections.singletonList(
+                    new Recordatorio(id, actual.getCodigo(), fecha, actual.getNumeroPaciente())));
+        } else {
+            this.porCargar.add(id);
+        }
+    }
+
+    @Override
+    public boolean isRegisterFor(final Class<?> cls) {
+        return Control.class.equals(cls);
+    }
+
+    @Override
+    public void postInsert(final BeanPersistRequest<?> request) {
+
+        final Control control = (Control) request.getBean();
+        if (control.getProximoControl() == null || control.isDeleted()) {
+            return;
+        }
+
+        // Sin el numero del paciente: dentro del horizonte se lee por id en la siguiente revision
+        final Long id = control.getId();
+        final Instant fecha = control.getProximoControl().toInstant();
+        this.alConfirmar(request.getTransaction(), () -> this.reprogramar(id, fecha));
+    }
+
+    @Override
+    public void postUpdate(final BeanPersistRequest<?> request) {
+
+        final Set<String> modificadas = request.getUpdatedProperties();
+        if (!modificadas.contains("proximoControl") && !modificadas.contains("deleted")) {
+            return;
+        }
+
+        final Control control = (Control) request.getBean();
+        final Long id = control.getId();
+        final Instant fecha = control.isDeleted() || control.getProximoControl() == null
+                ? null : control.getProximoControl().toInstant();
+
+        this.alConfirmar(request.getTransaction(), () -> this.reprogramar(id, fecha));
+    }
+
+    @Override
+    public void postDelete(final BeanPersistRequest<?> request) {
+
+        final Long id = ((Control) request.getBean()).getId();
+        this.alConfirmar(request.getTransaction(), () -> this.reprogramar(id, null));
+    }
+
+    /**
+     * Ejecuta el cambio solo si la transaccion hace commit.
+     */
+    private void alConfirmar(final Transaction transaction, final Runnable cambio) {
+
+        transaction.register(new TransactionCallbackAdapter() {
+            @Override
+            public void postCommit() {
+                cambio.run();
+            }
+        });
+    }
+
+    /**
+     * @return el limite guardado de los recordatorios entregados, null si no hay.
+     */
+    private Instant leerEntregados() {
+
+        final Transaction txn = this.ebeanServer.createTransaction();
+        try {
+            final Connection connection = txn.getConnection();
+            if (!ClinicaImporter.existeTabla(connection, TABLA_ENTREGADOS)) {
+                return null;
+            }
+            try (PreparedStatement ps = connection.prepareStatement(SQL_SELECT_ENTREGADOS);
+                 ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getTimestamp(1).toInstant() : null;
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al leer " + TABLA_ENTREGADOS, e);
+        } finally {
+            txn.end();
+        }
+    }
+
+    /**
+     * @param hasta limite de los recordatorios entregados.
+     */
+    private void guardarEntregados(final Instant hasta) {
+
+        final Transaction txn = this.ebeanServer.createTransaction();
+        try {
+            final Connection connection = txn.getConnection();
+            if (!ClinicaImporter.existeTabla(connection, TABLA_ENTREGADOS)) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(SQL_CREATE_ENTREGADOS);
+                }
+            }
+            try (PreparedStatement update = connection.prepareStatement(SQL_UPDATE_ENTREGADOS)) {
+                update.setTimestamp(1, Timestamp.from(hasta));
+                if (update.executeUpdate() == 0) {
+                    try (PreparedStatement insert = connection.prepareStatement(SQL_INSERT_ENTREGADOS)) {
+                        insert.setTimestamp(1, Timestamp.from(hasta));
+                        insert.executeUpdate();
+                    }
+                }
+            }
+            txn.commit();
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al guardar " + TABLA_ENTREGADOS, e);
+        } finally {
+            txn.end();
+        }
+    }
+
+    /**
+     * @return los recordatorios leidos con JDBC, sin crear beans.
+     */
+    private List<Recordatorio> consultar(final String sql, final Object... parametros) {
+
+        this.consultas.increment();
+
+        final Transaction txn = this.ebeanServer.createTransaction();
+        try (PreparedStatement ps = txn.getConnection().prepareStatement(sql)) {
+
+            for (int i = 0; i < parametros.length; i++) {
+                ps.setObject(i + 1, parametros[i]);
+            }
+
+            final List<Recordatorio> recordatorios = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    final long id = rs.getLong(1);
+                    final int codigo = rs.getInt(2);
+                    final Integer codigoControl = rs.wasNull() ? null : codigo;
+                    recordatorios.add(new Recordatorio(id, codigoControl, rs.getTimestamp(3).toInstant(),
+                            rs.getInt(4)));
+                }
+            }
+            return recordatorios;
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Error al ejecutar: " + sql, e);
+        } finally {
+            txn.end();
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import com.google.common.base.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.OptimisticLockException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Politica de reintentos acotada para las escrituras que chocan con otra transaccion: bloqueo optimista
+ * (@Version), espera de un bloqueo agotada o deadlock. Entre intentos espera un tiempo exponencial con jitter
+ * (entre cero y espera * 2^(intento - 1), sin pasar de la espera maxima), para que los escritores que chocaron no
+ * vuelvan a chocar al mismo tiempo.
+ */
+@Slf4j
+public final class Reintentos {
+
+    /**
+     * Codigos de H2: espera de bloqueo agotada, actualizacion concurrente de la misma fila
+     */
+    private static final int H2_LOCK_TIMEOUT = 50200;
+    private static final int H2_CONCURRENT_UPDATE = 90131;
+
+    /**
+     * Intentos en total, incluido el primero
+     */
+    private volatile int maxIntentos = 5;
+
+    /**
+     * Espera base antes del segundo intento
+     */
+    private volatile long esperaNanos = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * Espera maxima entre dos intentos
+     */
+    private volatile long esperaMaximaNanos = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /**
+     * Conflictos detectados (cada uno provoca un reintento o agota los intentos)
+     */
+    private final LongAdder conflictos = new LongAdder();
+
+    /**
+     * Operaciones que fallaron despues de agotar los intentos
+     */
+    private final LongAdder agotados = new LongAdder();
+
+    /**
+     * @param maxIntentos en total, incluido el primero; 1 para no reintentar.
+     * @return this.
+     */
+    public Reintentos maxIntentos(final int maxIntentos) {
+        Preconditions.checkArgument(maxIntentos > 0, "maxIntentos debe ser positivo");
+        this.maxIntentos = maxIntentos;
+        return this;
+    }
+
+    /**
+     * @param espera        base antes del segundo intento.
+     * @param esperaMaxima entre dos intentos.
+     * @return this.
+     */
+    public Reintentos espera(final Duration espera, final Duration esperaMaxima) {
+        Preconditions.checkArgument(!espera.isNegative(), "espera no puede ser negativa");
+        Preconditions.checkArgument(esperaMaxima.compareTo(espera) >= 0, "esperaMaxima menor que espera");
+        this.esperaNanos = espera.toNanos();
+        this.esperaMaximaNanos = esperaMaxima.toNanos();
+        return this;
+    }
+
+    /**
+     * @return conflictos detectados desde la creacion.
+     */
+    public long getConflictos() {
+        return this.conflictos.sum();
+    }
+
+    /**
+     * @return operaciones que fallaron por agotar los intentos.
+     */
+    public long getAgotados() {
+        return this.agotados.sum();
+    }
+
+    /**
+     * Registra el fallo del intento y decide si reintentar.
+     *
+     * @param e       excepcion del intento.
+     * @param intento numero del intento que fallo, desde 1.
+     * @return true si fue un conflicto y quedan intentos; false si la excepcion se debe propagar.
+     */
+    boolean reintentar(final RuntimeException e, final int intento) {
+
+        if (!esConflicto(e)) {
+            return false;
+        }
+        this.conflictos.increment();
+
+        if (intento >= this.maxIntentos) {
+            this.agotados.increment();
+            log.warn("Conflict not resolved after {} attempts: {}", intento, e.getMessage());
+            return false;
+        }
+        log.debug("Conflict in attempt {}, retrying: {}", intento, e.getMessage());
+        return true;
+    }
+
+    /**
+     * Espera antes del siguiente intento.
+     *
+     * @param intento numero del intento que fallo, desde 1.
+     */
+    void esperar(final int intento) {
+
+        final long tope = Math.min(this.esperaMaximaNanos, this.esperaNanos << Math.min(intento - 1, 30));
+        if (tope <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(tope + 1));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Reintento interrumpido", ie);
+        }
+    }
+
+    /**
+     * @return true si la excepcion (o alguna de sus causas) es un choque con otra transaccion.
+     */
+    static boolean esConflicto(final Throwable e) {
+
+        for (Throwable causa = e; causa != null; causa = causa.getCause()) {
+            if (causa instanceof OptimisticLockException) {
+                return true;
+            }
+            if (causa instanceof SQLException) {
+                final SQLException sql = (SQLException) causa;
+                // 40001: serialization failure, 40P01: deadlock
+                if (sql.getSQLState() != null && sql.getSQLState().startsWith("40")) {
+                    return true;
+                }
+                if (sql.getErrorCode() == H2_LOCK_TIMEOUT || sql.getErrorCode() == H2_CONCURRENT_UPDATE) {
+                    return true;
+                }
+                // SQLite: SQLITE_BUSY
+                if (sql.getMessage() != null && sql.getMessage().contains("SQLITE_BUSY")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
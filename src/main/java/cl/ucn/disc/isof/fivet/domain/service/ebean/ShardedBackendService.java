@@ -0,0 +1,684 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Cambio;
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.ControlSummary;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.PacienteSummary;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.model.PersonaSummary;
+import cl.ucn.disc.isof.fivet.domain.model.SignosVitales;
+import cl.ucn.disc.isof.fivet.domain.service.BackendService;
+import cl.ucn.disc.isof.fivet.domain.service.Exportacion;
+import cl.ucn.disc.isof.fivet.domain.service.FetchPlan;
+import com.durrutia.ebean.BaseModel;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Striped;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * {@link BackendService} repartido en varias bases de datos (shards), cada una con su {@link EbeanBackendService}.
+ * <p>
+ * Cada {@link Paciente} (con sus controles) vive en el shard de su numero de ficha y cada {@link Persona} en el de
+ * su rut: las operaciones de un paciente o de una persona van a un solo shard. Los listados y las busquedas se
+ * ejecutan en todos los shards en paralelo y se mezclan en el orden del {@link EbeanBackendService}.
+ * </p>
+ * <p>
+ * Cada shard genera sus ids en su propio rango ({@link #RANGO_IDS}), por lo que los ids no se repiten entre shards
+ * y la paginacion por (fecha, id) de la agenda sigue siendo exacta. Al agregar un control en el shard de un
+ * paciente, su veterinario se copia a ese shard si vive en otro: la copia es solo una referencia para los joins
+ * (sin mail ni credenciales utilizables) y no se actualiza si cambia el original. Las personas se leen y se
+ * autentican solo en el shard de su rut.
+ * Las escrituras se hacen con {@link #insertar(Collection)} y {@link #agregarControles(Map)}: los shards no son el
+ * servidor por defecto de Ebean, por lo que Model.insert() no sabe a que shard ir. Una operacion que escribe en
+ * varios shards es atomica en cada shard, no entre ellos. Los shards no tienen replicas de lectura: aunque las
+ * operaciones en varios shards se ejecutan en los hilos del executor, lo escrito se lee de inmediato (la lectura de
+ * lo propio de {@link EbeanBackendService} es por hilo y no se mantendria entre ellos).
+ * </p>
+ */
+@Slf4j
+public final class ShardedBackendService implements BackendService {
+
+    /**
+     * Ids por shard: el shard i genera sus ids desde i * RANGO_IDS
+     */
+    static final long RANGO_IDS = 1L << 40;
+
+    /**
+     * Modelos por lote al insertar un stream
+     */
+    private static final int FILAS_POR_LOTE = 10000;
+
+    /**
+     * Orden de los listados de pacientes
+     */
+    private static final Comparator<Paciente> POR_NUMERO =
+            Comparator.comparing(Paciente::getNumero, Comparator.nullsLast(Comparator.naturalOrder()));
+
+    /**
+     * Orden de la agenda de un veterinario (las fechas nulas primero, como en H2)
+     */
+    private static final Comparator<Control> POR_FECHA =
+            Comparator.comparing(Control::getFecha, Comparator.nullsFirst(Comparator.naturalOrder()))
+                    .thenComparing(Control::getId);
+
+    /**
+     * Los shards, en el orden de los datasource
+     */
+    @Getter
+    private final List<EbeanBackendService> shards;
+
+    /**
+     * Donde se ejecutan las consultas de cada shard
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Copias de los veterinarios a otros shards, una a la vez por rut
+     */
+    private final Striped<Lock> copiaLocks = Striped.lock(64);
+
+    /**
+     * @param databases nombres de los datasource de los shards (ebean.properties). El orden define el shard de
+     *                  cada paciente y persona: no se debe cambiar una vez que hay datos.
+     */
+    public ShardedBackendService(final List<String> databases) {
+
+        Preconditions.checkArgument(!databases.isEmpty(), "Se necesita al menos un shard");
+        log.debug("Loading ShardedBackendService in databases: {}", databases);
+
+        final ImmutableList.Builder<EbeanBackendService> builder = ImmutableList.builder();
+        for (String database : databases) {
+            builder.add(new EbeanBackendService(database, Collections.emptyList(), false));
+        }
+        this.shards = builder.build();
+
+        // El shard 0 usa los ids desde 1
+        for (int i = 1; i < this.shards.size(); i++) {
+            this.shards.get(i).reservarIds(i * RANGO_IDS);
+        }
+
+        final AtomicInteger contador = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.shards.size(), runnable -> {
+            final Thread thread = new Thread(runnable, "shard-" + contador.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return maximo de conexiones de todos los shards, la concurrencia del AsyncBackendService.
+     */
+    public int getMaxConnections() {
+        return this.shards.stream().mapToInt(EbeanBackendService::getMaxConnections).sum();
+    }
+
+    /**
+     * @return el shard del paciente.
+     */
+    int shardPaciente(final Integer numeroPaciente) {
+        Preconditions.checkNotNull(numeroPaciente, "numeroPaciente");
+        return Math.floorMod(numeroPaciente, this.shards.size());
+    }
+
+    /**
+     * @return el shard de la persona.
+     */
+    int shardPersona(final String rut) {
+        Preconditions.checkNotNull(rut, "rut");
+        return Math.floorMod(rut.hashCode(), this.shards.size());
+    }
+
+    /**
+     * @return el shard que genero el id.
+     */
+    static int shardId(final long id) {
+        return (int) (id / RANGO_IDS);
+    }
+
+    private EbeanBackendService paciente(final Integer numeroPaciente) {
+        return this.shards.get(this.shardPaciente(numeroPaciente));
+    }
+
+    private EbeanBackendService persona(final String rut) {
+        return this.shards.get(this.shardPersona(rut));
+    }
+
+    /**
+     * Obtiene una persona desde su shard (rut) o, si es un correo, desde todos los shards.
+     *
+     * @param rutEmail
+     * @return the Persona
+     */
+    @Override
+    public Persona getPersona(final String rutEmail) {
+
+        if (rutEmail.indexOf('@') < 0) {
+            return this.persona(rutEmail).getPersona(rutEmail);
+        }
+
+        // Las copias de otros shards no tienen mail, pero solo se confia en el shard de su rut
+        final List<Persona> personas = this.todos(shard -> shard.getPersona(rutEmail));
+        return this.original(personas, Persona::getRut);
+    }
+
+    /**
+     * Autentica en todos los shards en paralelo (el login no define el shard), aceptando solo a la persona del shard
+     * de su rut: las copias de otros shards no tienen credenciales.
+     *
+     * @see EbeanBackendService#authenticate(String, String)
+     */
+    @Override
+    public PersonaSummary authenticate(final String login, final String password) {
+
+        if (login == null || password == null) {
+            return null;
+        }
+        return this.original(this.todos(shard -> shard.authenticate(login, password)), PersonaSummary::getRut);
+    }
+
+    /**
+     * @return el resultado del shard de la persona, o null si solo se encontro en otros shards.
+     */
+    private <T> T original(final List<T> resultados, final Function<T, String> rut) {
+
+        for (int i = 0; i < resultados.size(); i++) {
+            final T resultado = resultados.get(i);
+            if (resultado != null && this.shardPersona(rut.apply(resultado)) == i) {
+                return resultado;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Persona getPersonaAsOf(final String rut, final Instant instante) {
+        return this.persona(rut).getPersonaAsOf(rut, instante);
+    }
+
+    @Override
+    public List<Cambio> getCambiosPersona(final String rut, final Instant desde, final Instant hasta) {
+        return this.persona(rut).getCambiosPersona(rut, desde, hasta);
+    }
+
+    @Override
+    public List<Paciente> getPacientes() {
+        return this.getPacientes(FetchPlan.COMPLETO);
+    }
+
+    /**
+     * @return los pacientes de todos los shards, ordenados por numero de ficha.
+     */
+    @Override
+    public List<Paciente> getPacientes(final FetchPlan fetchPlan) {
+        return mezclar(this.todos(shard -> shard.getPacientes(fetchPlan)), POR_NUMERO, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Paciente> getPacientes(final Integer ultimoNumero, final int limite) {
+        return this.getPacientes(ultimoNumero, limite, FetchPlan.COMPLETO);
+    }
+
+    /**
+     * Cada shard entrega su pagina (a lo mas limite pacientes desde ultimoNumero) y se toman los primeros.
+     *
+     * @see EbeanBackendService#getPacientes(Integer, int, FetchPlan)
+     */
+    @Override
+    public List<Paciente> getPacientes(final Integer ultimoNumero, final int limite, final FetchPlan fetchPlan) {
+        return mezclar(this.todos(shard -> shard.getPacientes(ultimoNumero, limite, fetchPlan)), POR_NUMERO, limite);
+    }
+
+    @Override
+    public List<PacienteSummary> getPacientesResumen(final Integer ultimoNumero, final int limite) {
+        return mezclar(this.todos(shard -> shard.getPacientesResumen(ultimoNumero, limite)),
+                Comparator.comparing(PacienteSummary::getNumero), limite);
+    }
+
+    @Override
+    public int countPacientes() {
+        return this.todos(EbeanBackendService::countPacientes).stream().mapToInt(Integer::intValue).sum();
+    }
+
+    @Override
+    public boolean existsPaciente(final Integer numeroPaciente) {
+        return this.paciente(numeroPaciente).existsPaciente(numeroPaciente);
+    }
+
+    /**
+     * Recorre los pacientes de un shard a la vez, cada shard ordenado por numero de ficha.
+     *
+     * @param consumer que procesa cada {@link Paciente}.
+     */
+    @Override
+    public void recorrerPacientes(final Consumer<Paciente> consumer) {
+        for (EbeanBackendService shard : this.shards) {
+            shard.recorrerPacientes(consumer);
+        }
+    }
+
+    @Override
+    public Paciente getPaciente(final Integer numeroPaciente) {
+        return this.paciente(numeroPaciente).getPaciente(numeroPaciente);
+    }
+
+    @Override
+    public Paciente getPacienteAsOf(final Integer numeroPaciente, final Instant instante) {
+        return this.paciente(numeroPaciente).getPacienteAsOf(numeroPaciente, instante);
+    }
+
+    @Override
+    public List<Cambio> getCambiosPaciente(final Integer numeroPaciente, final Instant desde,
+                                             final Instant hasta) {
+        return this.paciente(numeroPaciente).getCambiosPaciente(numeroPaciente, desde, hasta);
+    }
+
+    /**
+     * @return los controles del veterinario en todos los shards, ordenados por fecha.
+     */
+    @Override
+    public List<Control> getControlesVeterinario(final String rutVeterinario) {
+        return mezclar(this.todos(shard -> shard.getControlesVeterinario(rutVeterinario)), POR_FECHA,
+                Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Control> getControlesVeterinario(final String rutVeterinario, final FetchPlan fetchPlan) {
+        return mezclar(this.todos(shard -> shard.getControlesVeterinario(rutVeterinario, fetchPlan)), POR_FECHA,
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * Cada shard entrega su pagina desde (ultimo.fecha, ultimo.id) y se toman los primeros: como los ids no se
+     * repiten entre shards, la pagina siguiente continua exactamente donde termino esta.
+     *
+     * @see EbeanBackendService#getControlesVeterinario(String, Date, Date, Control, int)
+     */
+    @Override
+    public List<Control> getControlesVeterinario(final String rutVeterinario, final Date desde, final Date hasta,
+                                                 final Control ultimo, final int limite) {
+        return mezclar(this.todos(shard -> shard.getControlesVeterinario(rutVeterinario, desde, hasta, ultimo,
+                limite)), POR_FECHA, limite);
+    }
+
+    @Override
+    public List<ControlSummary> getControlesVeterinarioResumen(final String rutVeterinario) {
+        return mezclar(this.todos(shard -> shard.getControlesVeterinarioResumen(rutVeterinario)),
+                Comparator.comparing(ControlSummary::getFecha, Comparator.nullsFirst(Comparator.naturalOrder())),
+                Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Map<Integer, SignosVitales> getSignosVitalesPorPaciente() {
+        return combinar(this.todos(EbeanBackendService::getSignosVitalesPorPaciente));
+    }
+
+    /**
+     * Un veterinario puede tener controles en varios shards: se combinan sus grupos.
+     */
+    @Override
+    public Map<String, SignosVitales> getSignosVitalesPorVeterinario() {
+        return combinar(this.todos(EbeanBackendService::getSignosVitalesPorVeterinario));
+    }
+
+    @Override
+    public Map<YearMonth, SignosVitales> getSignosVitalesPorMes(final Integer numeroPaciente) {
+
+        if (numeroPaciente != null) {
+            return this.paciente(numeroPaciente).getSignosVitalesPorMes(numeroPaciente);
+        }
+        return combinar(this.todos(shard -> shard.getSignosVitalesPorMes(null)));
+    }
+
+    @Override
+    public List<Paciente> getPacientesPorNombre(final String nombre) {
+        return this.getPacientesPorNombre(nombre, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Paciente> getPacientesPorNombre(final String nombre, final int limite) {
+        return this.getPacientesPorNombre(nombre, limite, FetchPlan.COMPLETO);
+    }
+
+    /**
+     * @return los pacientes de todos los shards ordenados por nombre (sin mayusculas ni tildes).
+     * @see EbeanBackendService#getPacientesPorNombre(String, int, FetchPlan)
+     */
+    @Override
+    public List<Paciente> getPacientesPorNombre(final String nombre, final int limite, final FetchPlan fetchPlan) {
+
+        final List<List<Paciente>> porShard = this.todos(shard -> shard.getPacientesPorNombre(nombre, limite,
+                fetchPlan));
+
+        // Se normaliza cada nombre una vez, no en cada comparacion
+        final Map<Paciente, String> claves = new IdentityHashMap<>();
+        porShard.forEach(pacientes -> pacientes.forEach(p -> claves.put(p,
+                p.getNombre() == null ? "" : PacienteNombreIndex.normalizar(p.getNombre()))));
+        return mezclar(porShard, Comparator.comparing(claves::get), limite);
+    }
+
+    @Override
+    public void agregarControl(final Control control, final Integer numeroPaciente) {
+        this.agregarControles(Collections.singletonMap(numeroPaciente, Collections.singletonList(control)));
+    }
+
+    /**
+     * Agrega los controles en el shard de cada paciente, en paralelo. Los veterinarios que viven en otro shard se
+     * copian antes al shard del paciente y el control queda apuntando a la copia.
+     *
+     * @see EbeanBackendService#agregarControles(Map)
+     */
+    @Override
+    public void agregarControles(final Map<Integer, List<Control>> controlesPorPaciente) {
+
+        if (controlesPorPaciente.isEmpty()) {
+            return;
+        }
+
+        final List<Map<Integer, List<Control>>> porShard = new ArrayList<>(this.shards.size());
+        for (int i = 0; i < this.shards.size(); i++) {
+            porShard.add(new LinkedHashMap<>());
+        }
+        controlesPorPaciente.forEach((numero, controles) ->
+                porShard.get(this.shardPaciente(numero)).put(numero, controles));
+
+        this.enCadaShard(i -> {
+            final Map<Integer, List<Control>> controles = porShard.get(i);
+            if (!controles.isEmpty()) {
+                this.localizarVeterinarios(i, controles);
+                this.shards.get(i).agregarControles(controles);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Apunta cada control al veterinario del shard, copiandolo si aun no esta.
+     */
+    private void localizarVeterinarios(final int shard, final Map<Integer, List<Control>> controlesPorPaciente) {
+
+        final Map<String, Persona> locales = new HashMap<>();
+        for (List<Control> controles : controlesPorPaciente.values()) {
+            for (Control control : controles) {
+                final Persona veterinario = control.getVeterinario();
+                if (veterinario == null || veterinario.getId() == null || shardId(veterinario.getId()) == shard) {
+                    continue;
+                }
+                control.setVeterinario(locales.computeIfAbsent(veterinario.getRut(), rut -> this.copiar(rut, shard)));
+            }
+        }
+    }
+
+    /**
+     * @return la persona en el shard, copiada desde su shard si no estaba. La copia no tiene mail y su login y
+     * password son aleatorios: no permite autenticarse ni buscarla por correo.
+     */
+    private Persona copiar(final String rut, final int shard) {
+
+        final Lock lock = this.copiaLocks.get(rut);
+        lock.lock();
+        try {
+            final Persona local = this.shards.get(shard).getPersona(rut);
+            if (local != null) {
+                return local;
+            }
+
+            final Persona original = this.getPersona(rut);
+            if (original == null) {
+                throw new IllegalArgumentException("No existe la persona rut: " + rut);
+            }
+
+            final Persona copia = Persona.builder()
+                    .rut(original.getRut())
+                    .nombre(original.getNombre())
+                    .direccion(original.getDireccion())
+                    .fijo(original.getFijo())
+                    .movil(original.getMovil())
+                    .login(UUID.randomUUID().toString())
+                    .password(UUID.randomUUID().toString())
+                    .tipo(original.getTipo())
+                    .build();
+            this.shards.get(shard).insertar(Collections.singletonList(copia));
+
+            log.debug("Persona {} copied from shard {} to shard {}.", rut, this.shardPersona(rut), shard);
+            return copia;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserta cada {@link Persona} y {@link Paciente} en su shard, en paralelo. Los {@link Control} se agregan con
+     * {@link #agregarControles(Map)}, que conoce al paciente.
+     *
+     * @param modelos a insertar.
+     * @return los ids generados, en el mismo orden de los modelos.
+     * @throws IllegalArgumentException si hay un modelo que no es persona ni paciente, sin insertar ninguno.
+     */
+    @Override
+    public List<Long> insertar(final Collection<? extends BaseModel> modelos) {
+
+        final List<List<BaseModel>> porShard = new ArrayList<>(this.shards.size());
+        for (int i = 0; i < this.shards.size(); i++) {
+            porShard.add(new ArrayList<>());
+        }
+        final int[] shardDe = new int[modelos.size()];
+        int posicion = 0;
+        for (BaseModel modelo : modelos) {
+            shardDe[posicion] = this.shardModelo(modelo);
+            porShard.get(shardDe[posicion++]).add(modelo);
+        }
+
+        final List<List<Long>> idsPorShard = this.enCadaShard(i -> porShard.get(i).isEmpty()
+                ? Collections.<Long>emptyList() : this.shards.get(i).insertar(porShard.get(i)));
+
+        // De vuelta al orden de los modelos
+        final List<Iterator<Long>> siguientes = idsPorShard.stream().map(List::iterator).collect(Collectors.toList());
+        final List<Long> ids = new ArrayList<>(modelos.size());
+        for (int shard : shardDe) {
+            ids.add(siguientes.get(shard).next());
+        }
+        return ids;
+    }
+
+    /**
+     * Inserta los modelos por lotes a medida que se consume el stream.
+     *
+     * @see #insertar(Collection)
+     */
+    @Override
+    public List<Long> insertar(final Stream<? extends BaseModel> modelos) {
+
+        final List<Long> ids = new ArrayList<>();
+        Iterators.partition(modelos.iterator(), FILAS_POR_LOTE).forEachRemaining(lote -> ids.addAll(this.insertar(lote)));
+        return ids;
+    }
+
+    private int shardModelo(final BaseModel modelo) {
+
+        if (modelo instanceof Paciente) {
+            return this.shardPaciente(((Paciente) modelo).getNumero());
+        }
+        if (modelo instanceof Persona) {
+            return this.shardPersona(((Persona) modelo).getRut());
+        }
+        throw new IllegalArgumentException("Solo se insertan personas y pacientes, los controles con agregarControles: "
+                + modelo.getClass().getSimpleName());
+    }
+
+    /**
+     * Exporta los pacientes de todos los shards, uno despues del otro, al mismo arreglo JSON: como cada shard usa
+     * su rango de ids, el archivo queda ordenado por id.
+     *
+     * @see PacienteExporter
+     */
+    @Override
+    public Exportacion exportarPacientes(final Path destino, final boolean gzip) {
+        return new PacienteExporter(this.shards.stream().map(EbeanBackendService::lectura)
+                .collect(Collectors.toList())).exportar(destino, gzip);
+    }
+
+    /**
+     * Inicializa los shards en paralelo.
+     */
+    @Override
+    public void initialize() {
+        log.info("Initializing {} shards ..", this.shards.size());
+        this.todos(shard -> {
+            shard.initialize();
+            return null;
+        });
+    }
+
+    /**
+     * Cierra los shards.
+     */
+    @Override
+    public void shutdown() {
+        log.debug("Shutting down ShardedBackendService ..");
+
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        for (EbeanBackendService shard : this.shards) {
+            shard.shutdown();
+        }
+    }
+
+    /**
+     * Ejecuta la operacion en todos los shards en paralelo.
+     *
+     * @return el resultado de cada shard, en el orden de los shards.
+     */
+    private <R> List<R> todos(final Function<EbeanBackendService, R> operacion) {
+        return this.enCadaShard(i -> operacion.apply(this.shards.get(i)));
+    }
+
+    /**
+     * Ejecuta la operacion con el indice de cada shard en paralelo, esperando a todos.
+     *
+     * @return el resultado de cada shard, en el orden de los shards.
+     * @throws RuntimeException la excepcion del primer shard que fallo.
+     */
+    private <R> List<R> enCadaShard(final IntFunction<R> operacion) {
+
+        // Un solo shard: sin cambiar de hilo
+        if (this.shards.size() == 1) {
+            return Collections.singletonList(operacion.apply(0));
+        }
+
+        final List<CompletableFuture<R>> futuros = new ArrayList<>(this.shards.size());
+        for (int i = 0; i < this.shards.size(); i++) {
+            final int shard = i;
+            futuros.add(CompletableFuture.supplyAsync(() -> operacion.apply(shard), this.executor));
+        }
+
+        final List<R> resultados = new ArrayList<>(futuros.size());
+        RuntimeException error = null;
+        for (CompletableFuture<R> futuro : futuros) {
+            try {
+                resultados.add(futuro.join());
+            } catch (CompletionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return resultados;
+    }
+
+    /**
+     * Mezcla los resultados ordenados de cada shard.
+     *
+     * @return los primeros limite elementos, en orden.
+     */
+    private static <T> List<T> mezclar(final List<List<T>> porShard, final Comparator<? super T> orden,
+                                       final int limite) {
+
+        final List<T> todos = new ArrayList<>(porShard.stream().mapToInt(List::size).sum());
+        porShard.forEach(todos::addAll);
+
+        // Cada shard ya viene ordenado: el sort (TimSort, estable) solo mezcla las corridas
+        todos.sort(orden);
+        return todos.size() > limite ? new ArrayList<>(todos.subList(0, limite)) : todos;
+    }
+
+    /**
+     * Combina los grupos de los shards (un mismo grupo puede estar en varios), ordenados por clave.
+     */
+    private static <K extends Comparable<K>> Map<K, SignosVitales> combinar(final List<Map<K, SignosVitales>> porShard) {
+
+        final Map<K, SignosVitales> grupos = new TreeMap<>();
+        for (Map<K, SignosVitales> shard : porShard) {
+            shard.forEach((clave, signos) -> grupos.merge(clave, signos, ShardedBackendService::combinar));
+        }
+        return new LinkedHashMap<>(grupos);
+    }
+
+    /**
+     * @return los signos vitales de la union de los dos grupos: promedios ponderados por la cantidad de controles.
+     */
+    static SignosVitales combinar(final SignosVitales a, final SignosVitales b) {
+
+        final long controles = a.getControles() + b.getControles();
+        if (controles == 0) {
+            return a;
+        }
+        final double pa = (double) a.getControles() / controles;
+        final double pb = (double) b.getControles() / controles;
+
+        return new SignosVitales(controles,
+                Math.min(a.getPesoMinimo(), b.getPesoMinimo()),
+                a.getPesoPromedio() * pa + b.getPesoPromedio() * pb,
+                Math.max(a.getPesoMaximo(), b.getPesoMaximo()),
+                Math.min(a.getTemperaturaMinima(), b.getTemperaturaMinima()),
+                a.getTemperaturaPromedio() * pa + b.getTemperaturaPromedio() * pb,
+                Math.max(a.getTemperaturaMaxima(), b.getTemperaturaMaxima()),
+                Math.min(a.getAlturaMinima(), b.getAlturaMinima()),
+                a.getAlturaPromedio() * pa + b.getAlturaPromedio() * pb,
+                Math.max(a.getAlturaMaxima(), b.getAlturaMaxima()));
+    }
+
+}
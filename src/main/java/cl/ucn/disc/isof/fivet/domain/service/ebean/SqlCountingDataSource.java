@@ -0,0 +1,205 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import org.avaje.datasource.DataSourcePool;
+import org.avaje.datasource.PoolStatistics;
+import org.avaje.datasource.PoolStatus;
+import org.avaje.datasource.delegate.ConnectionDelegator;
+
+import java.io.PrintWriter;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+/**
+ * {@link DataSourcePool} que cuenta, por hilo, las sentencias SQL preparadas o creadas en sus conexiones.
+ * El contador de cada hilo es un long[1], por lo que contar no crea objetos.
+ */
+final class SqlCountingDataSource implements DataSourcePool {
+
+    /**
+     * Pool real
+     */
+    private final DataSourcePool pool;
+
+    /**
+     * Sentencias del hilo actual
+     */
+    private final ThreadLocal<long[]> sentencias = ThreadLocal.withInitial(() -> new long[1]);
+
+    SqlCountingDataSource(final DataSourcePool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return sentencias SQL creadas por el hilo actual desde que comenzo.
+     */
+    long getSentencias() {
+        return this.sentencias.get()[0];
+    }
+
+    private void contar() {
+        this.sentencias.get()[0]++;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return new ContadorConnection(this.pool.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        return new ContadorConnection(this.pool.getConnection(username, password));
+    }
+
+    @Override
+    public String getName() {
+        return this.pool.getName();
+    }
+
+    @Override
+    public boolean isAutoCommit() {
+        return this.pool.isAutoCommit();
+    }
+
+    @Override
+    public void shutdown(final boolean deregisterDriver) {
+        this.pool.shutdown(deregisterDriver);
+    }
+
+    @Override
+    public PoolStatus getStatus(final boolean reset) {
+        return this.pool.getStatus(reset);
+    }
+
+    @Override
+    public PoolStatistics getStatistics(final boolean reset) {
+        return this.pool.getStatistics(reset);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return this.pool.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        this.pool.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        this.pool.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return this.pool.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return this.pool.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        return iface.isInstance(this.pool) ? iface.cast(this.pool) : this.pool.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this.pool) || this.pool.isWrapperFor(iface);
+    }
+
+    /**
+     * Conexion que cuenta cada createStatement, prepareStatement y prepareCall.
+     */
+    private final class ContadorConnection extends ConnectionDelegator {
+
+        ContadorConnection(final Connection delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public Statement createStatement() throws SQLException {
+            contar();
+            return super.createStatement();
+        }
+
+        @Override
+        public Statement createStatement(final int resultSetType, final int resultSetConcurrency) throws SQLException {
+            contar();
+            return super.createStatement(resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public Statement createStatement(final int resultSetType, final int resultSetConcurrency,
+                                         final int resultSetHoldability) throws SQLException {
+            contar();
+            return super.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(final String sql) throws SQLException {
+            contar();
+            return super.prepareStatement(sql);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
+            contar();
+            return super.prepareStatement(sql, autoGeneratedKeys);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(final String sql, final int[] columnIndexes) throws SQLException {
+            contar();
+            return super.prepareStatement(sql, columnIndexes);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(final String sql, final String[] columnNames) throws SQLException {
+            contar();
+            return super.prepareStatement(sql, columnNames);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(final String sql, final int resultSetType,
+                                                  final int resultSetConcurrency) throws SQLException {
+            contar();
+            return super.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency,
+                                                  final int resultSetHoldability) throws SQLException {
+            contar();
+            return super.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+
+        @Override
+        public CallableStatement prepareCall(final String sql) throws SQLException {
+            contar();
+            return super.prepareCall(sql);
+        }
+
+        @Override
+        public CallableStatement prepareCall(final String sql, final int resultSetType,
+                                             final int resultSetConcurrency) throws SQLException {
+            contar();
+            return super.prepareCall(sql, resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency,
+                                             final int resultSetHoldability) throws SQLException {
+            contar();
+            return super.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+    }
+
+}
@@ -76,11 +76,23 @@ public abstract class BaseModel extends Model {
     private static final ToStringStyle jsonToStringStyle = new JsonToStringStyle();
 
     /**
+     * Serializa con los accessors cacheados de {@link ModelToString}.
+     *
      * @see Object#toString()
      */
     @Override
     public String toString() {
 
+        final String texto = ModelToString.toString(this);
+        return texto != null ? texto : this.toStringReflection();
+    }
+
+    /**
+     * Serializacion original con {@link ReflectionToStringBuilder}: referencia de {@link ModelToString} y
+     * alternativa para las clases con campos que este no soporta.
+     */
+    String toStringReflection() {
+
         // FIXME: Deep serialization
         // return ModelConverter.toJson(this);
 
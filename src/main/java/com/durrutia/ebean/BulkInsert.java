@@ -0,0 +1,207 @@
+package com.durrutia.ebean;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.plugin.SpiServer;
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Insercion masiva de {@link BaseModel}.
+ * <p>
+ * Los modelos se insertan con batch JDBC en transacciones de a lo mas {@link #getFilasPorTransaccion()} filas,
+ * por lo que nunca se mantiene abierta una transaccion gigante. Los ids generados se obtienen del mismo
+ * batch (getGeneratedKeys), sin volver a consultar la base de datos.
+ * </p>
+ * <p>
+ * Excepcion: el driver de SQLite no retorna los ids generados de un batch (quedarian null), por lo que ahi se
+ * inserta fila a fila dentro de la misma transaccion; ver {@link #isBatchGeneratedKeys(EbeanServer)}.
+ * </p>
+ * <p>
+ * Si falla una transaccion, las anteriores ya quedaron confirmadas.
+ * </p>
+ */
+@Slf4j
+public final class BulkInsert {
+
+    /**
+     * Servidor donde insertar
+     */
+    private final EbeanServer ebeanServer;
+
+    /**
+     * Sentencias por cada batch JDBC
+     */
+    @Getter
+    private int batchSize = 100;
+
+    /**
+     * Filas por transaccion
+     */
+    @Getter
+    private int filasPorTransaccion = 10000;
+
+    /**
+     * Omitir la actualizacion del cache L2 por cada fila
+     */
+    @Getter
+    private boolean omitirCache = true;
+
+    /**
+     * Omitir el persist en cascada de las relaciones
+     */
+    @Getter
+    private boolean omitirCascada = false;
+
+    /**
+     * Si el driver retorna los ids generados de un batch
+     */
+    private final boolean batchGeneratedKeys;
+
+    /**
+     * @param ebeanServer donde insertar.
+     */
+    public BulkInsert(final EbeanServer ebeanServer) {
+        this.ebeanServer = Preconditions.checkNotNull(ebeanServer);
+        this.batchGeneratedKeys = isBatchGeneratedKeys(ebeanServer);
+    }
+
+    /**
+     * El driver de SQLite no retorna los ids generados de un batch: en ese caso se inserta fila a fila,
+     * dentro de la misma transaccion.
+     *
+     * @param ebeanServer a revisar.
+     * @return true si se puede usar batch JDBC y aun asi obtener los ids generados.
+     */
+    public static boolean isBatchGeneratedKeys(final EbeanServer ebeanServer) {
+        final SpiServer spiServer = ebeanServer.getPluginApi();
+        return !spiServer.getDatabasePlatform().getName().startsWith("sqlite");
+    }
+
+    /**
+     * @param batchSize sentencias por cada batch JDBC.
+     * @return this.
+     */
+    public BulkInsert batchSize(final int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batchSize debe ser positivo");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param filasPorTransaccion filas a confirmar en cada transaccion.
+     * @return this.
+     */
+    public BulkInsert filasPorTransaccion(final int filasPorTransaccion) {
+        Preconditions.checkArgument(filasPorTransaccion > 0, "filasPorTransaccion debe ser positivo");
+        this.filasPorTransaccion = filasPorTransaccion;
+        return this;
+    }
+
+    /**
+     * @param omitirCache true para no actualizar el cache L2 por cada fila (solo se invalida por tabla).
+     * @return this.
+     */
+    public BulkInsert omitirCache(final boolean omitirCache) {
+        this.omitirCache = omitirCache;
+        return this;
+    }
+
+    /**
+     * @param omitirCascada true para insertar solo los modelos recibidos y no sus relaciones.
+     * @return this.
+     */
+    public BulkInsert omitirCascada(final boolean omitirCascada) {
+        this.omitirCascada = omitirCascada;
+        return this;
+    }
+
+    /**
+     * Inserta los modelos.
+     *
+     * @param modelos a insertar.
+     * @return los ids generados, en el mismo orden de los modelos.
+     */
+    public List<Long> insert(final Collection<? extends BaseModel> modelos) {
+        return this.insert(modelos.iterator(), modelos.size());
+    }
+
+    /**
+     * Inserta los modelos consumiendo el stream, sin acumular mas de una transaccion en memoria.
+     *
+     * @param modelos a insertar.
+     * @return los ids generados, en el mismo orden de los modelos.
+     */
+    public List<Long> insert(final Stream<? extends BaseModel> modelos) {
+        return this.insert(modelos.iterator(), this.filasPorTransaccion);
+    }
+
+    /**
+     * Inserta los modelos en transacciones de {@link #filasPorTransaccion} filas.
+     */
+    private List<Long> insert(final Iterator<? extends BaseModel> modelos, final int capacidad) {
+
+        final List<Long> ids = new ArrayList<>(capacidad);
+        final List<BaseModel> transaccion = new ArrayList<>(Math.min(capacidad, this.filasPorTransaccion));
+
+        while (modelos.hasNext()) {
+
+            transaccion.add(modelos.next());
+
+            if (transaccion.size() == this.filasPorTransaccion || !modelos.hasNext()) {
+                this.insertTransaccion(transaccion);
+                for (BaseModel modelo : transaccion) {
+                    ids.add(modelo.getId());
+                }
+                transaccion.clear();
+            }
+        }
+
+        log.debug("BulkInsert: {} filas insertadas.", ids.size());
+        return ids;
+    }
+
+    /**
+     * Inserta un grupo de modelos en una transaccion.
+     */
+    private void insertTransaccion(final List<BaseModel> modelos) {
+
+        final Transaction txn = this.ebeanServer.beginTransaction();
+        try {
+            this.insert(modelos, txn);
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+    }
+
+    /**
+     * Inserta los modelos en una transaccion del llamador, sin confirmarla: permite escribir otras filas
+     * (ejemplo: tablas intermedias) en la misma transaccion. Al retornar, los modelos ya tienen su id.
+     *
+     * @param modelos a insertar.
+     * @param txn     transaccion a usar, el llamador la confirma.
+     */
+    public void insert(final List<? extends BaseModel> modelos, final Transaction txn) {
+
+        txn.setBatchMode(this.batchGeneratedKeys);
+        txn.setBatchSize(this.batchSize);
+        txn.setBatchGetGeneratedKeys(true);
+        txn.setSkipCache(this.omitirCache);
+        txn.setPersistCascade(!this.omitirCascada);
+
+        for (BaseModel modelo : modelos) {
+            this.ebeanServer.insert(modelo, txn);
+        }
+
+        txn.flushBatch();
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.durrutia.ebean;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializador de {@link BaseModel#toString()} sin reflection por llamada.
+ * <p>
+ * Los campos de cada clase se resuelven una sola vez (en el mismo orden y con el mismo filtro que el
+ * ReflectionToStringBuilder original: sin static, transient, _*, when* ni log*) y se leen con {@link MethodHandle}s,
+ * sin boxing de los primitivos. La salida se escribe en un {@link StringBuilder} reutilizado por hilo.
+ * Los campos se leen directamente, por lo que nunca provocan un lazy load de Ebean.
+ * </p>
+ */
+final class ModelToString {
+
+    private static final String CONTENT_START = "{" + SystemUtils.LINE_SEPARATOR + "  ";
+
+    private static final String FIELD_SEPARATOR = "," + SystemUtils.LINE_SEPARATOR + "  ";
+
+    private static final String CONTENT_END = SystemUtils.LINE_SEPARATOR + "}";
+
+    /**
+     * Capacidad inicial del buffer de cada hilo
+     */
+    private static final int BUFFER_SIZE = 512;
+
+    /**
+     * Sobre esta capacidad el buffer no se reutiliza, para no retener memoria
+     */
+    private static final int MAX_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Marca de las clases con campos que este serializador no soporta (arreglos)
+     */
+    private static final Campo[] SIN_SOPORTE = new Campo[0];
+
+    /**
+     * Campos a serializar de cada clase, resueltos una vez
+     */
+    private static final ClassValue<Campo[]> CAMPOS = new ClassValue<Campo[]>() {
+        @Override
+        protected Campo[] computeValue(final Class<?> type) {
+            return resolverCampos(type);
+        }
+    };
+
+    /**
+     * Buffer reutilizado por cada hilo
+     */
+    private static final ThreadLocal<Buffer> BUFFER = ThreadLocal.withInitial(Buffer::new);
+
+    private ModelToString() {
+        // Nothing here
+    }
+
+    /**
+     * @param model a serializar.
+     * @return la representacion JSON-ish del modelo, o null si la clase tiene campos no soportados (arreglos).
+     */
+    static String toString(final BaseModel model) {
+
+        final Campo[] campos = CAMPOS.get(model.getClass());
+        if (campos == SIN_SOPORTE) {
+            return null;
+        }
+
+        final Buffer buffer = BUFFER.get();
+
+        // toString anidado (ejemplo: los controles de un paciente): el buffer del hilo esta en uso
+        if (buffer.enUso) {
+            return escribir(new StringBuilder(BUFFER_SIZE), model, campos);
+        }
+
+        buffer.enUso = true;
+        try {
+            buffer.builder.setLength(0);
+            final String texto = escribir(buffer.builder, model, campos);
+            if (buffer.builder.capacity() > MAX_BUFFER_SIZE) {
+                buffer.builder = new StringBuilder(BUFFER_SIZE);
+            }
+            return texto;
+        } finally {
+            buffer.enUso = false;
+        }
+    }
+
+    private static String escribir(final StringBuilder sb, final BaseModel model, final Campo[] campos) {
+
+        sb.append(CONTENT_START);
+        for (int i = 0; i < campos.length; i++) {
+            if (i > 0) {
+                sb.append(FIELD_SEPARATOR);
+            }
+            sb.append(campos[i].prefijo);
+            try {
+                campos[i].escribir(sb, model);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("No se pudo leer el campo " + campos[i].prefijo, e);
+            }
+        }
+        sb.append(CONTENT_END);
+        return sb.toString();
+    }
+
+    /**
+     * @return los campos de la clase y sus superclases, en el orden del ReflectionToStringBuilder.
+     */
+    private static Campo[] resolverCampos(final Class<?> type) {
+
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final List<Campo> campos = new ArrayList<>();
+
+        for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+
+                if (!acepta(field)) {
+                    continue;
+                }
+                if (field.getType().isArray()) {
+                    return SIN_SOPORTE;
+                }
+
+                field.setAccessible(true);
+                try {
+                    campos.add(new Campo(field, lookup.unreflectGetter(field)));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("No se puede leer el campo " + field, e);
+                }
+            }
+        }
+        return campos.toArray(new Campo[campos.size()]);
+    }
+
+    /**
+     * Mismo filtro que el ReflectionToStringBuilder de {@link BaseModel#toString()}.
+     */
+    private static boolean acepta(final Field field) {
+
+        final String name = field.getName();
+        final int modifiers = field.getModifiers();
+
+        return name.indexOf('$') < 0
+                && !Modifier.isTransient(modifiers)
+                && !Modifier.isStatic(modifiers)
+                && !name.startsWith("_")
+                && !name.startsWith("when")
+                && !name.startsWith("log");
+    }
+
+    /**
+     * Un campo y su getter.
+     */
+    private static final class Campo {
+
+        /**
+         * "nombre":
+         */
+        private final String prefijo;
+
+        /**
+         * Tipo del campo: Z, B, S, C, I, J, F, D o L para los objetos
+         */
+        private final char tipo;
+
+        /**
+         * Getter con tipo (Object) -> tipo del campo, o (Object) -> Object para los objetos
+         */
+        private final MethodHandle getter;
+
+        Campo(final Field field, final MethodHandle getter) {
+
+            final Class<?> type = field.getType();
+            this.prefijo = "\"" + field.getName() + "\":";
+            this.tipo = type.isPrimitive() ? MethodType.methodType(type).toMethodDescriptorString().charAt(2) : 'L';
+            this.getter = getter.asType(MethodType.methodType(type.isPrimitive() ? type : Object.class, Object.class));
+        }
+
+        void escribir(final StringBuilder sb, final Object model) throws Throwable {
+
+            switch (this.tipo) {
+                case 'Z':
+                    sb.append((boolean) this.getter.invokeExact(model));
+                    break;
+                case 'B':
+                    sb.append((byte) this.getter.invokeExact(model));
+                    break;
+                case 'S':
+                    sb.append((short) this.getter.invokeExact(model));
+                    break;
+                case 'C':
+                    sb.append((char) this.getter.invokeExact(model));
+                    break;
+                case 'I':
+                    sb.append((int) this.getter.invokeExact(model));
+                    break;
+                case 'J':
+                    sb.append((long) this.getter.invokeExact(model));
+                    break;
+                case 'F':
+                    sb.append((float) this.getter.invokeExact(model));
+                    break;
+                case 'D':
+                    sb.append((double) this.getter.invokeExact(model));
+                    break;
+                default:
+                    final Object value = (Object) this.getter.invokeExact(model);
+                    // Las relaciones se escriben como su id
+                    sb.append(value instanceof BaseModel ? ((BaseModel) value).getId() : value);
+            }
+        }
+    }
+
+    /**
+     * Buffer de un hilo.
+     */
+    private static final class Buffer {
+
+        private StringBuilder builder = new StringBuilder(BUFFER_SIZE);
+
+        private boolean enUso;
+    }
+
+}
@@ -0,0 +1,149 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.service.ebean.EbeanBackendService;
+import com.google.common.base.Stopwatch;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Clase de testing del {@link AsyncBackendService}.
+ */
+@Slf4j
+public class TestAsyncBackendService {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    /**
+     * Configuracion de la base de datos:  h2, hsql, sqlite
+     */
+    private static final String DB = "h2";
+
+    /**
+     * Demora de cada operacion del backend lento
+     */
+    private static final long DEMORA = 200;
+
+    /**
+     * Test contra la base de datos
+     */
+    @Test
+    public void testPantalla() {
+
+        final EbeanBackendService backendService = new EbeanBackendService(DB);
+        backendService.initialize();
+
+        final AsyncBackendService async = new AsyncBackendService(backendService, backendService.getMaxConnections());
+        log.debug("Async backend using virtual threads: {}", async.isVirtualThreads());
+
+        try {
+            final Persona vet = Persona.builder()
+                    .nombre("veterinario")
+                    .rut("2-1")
+                    .mail("vet@gmail.com")
+                    .login("vet")
+                    .password("vet")
+                    .tipo(Persona.Tipo.VETERINARIO)
+                    .direccion("Angamos 0610")
+                    .build();
+            vet.insert();
+
+            Paciente.builder().numero(1).nombre("firulais").especie("perro").build().insert();
+
+            async.agregarControl(Control.builder().codigo(1).fecha(new Date()).veterinario(vet).build(), 1).join();
+
+            // Insercion masiva, de una coleccion y de un stream
+            Assert.assertEquals(2, async.insertar(Arrays.asList(
+                    Paciente.builder().numero(2).nombre("cachupin").especie("perro").build(),
+                    Paciente.builder().numero(3).nombre("bobby").especie("gato").build())).join().size());
+            Assert.assertEquals(5, async.insertar(IntStream.rangeClosed(4, 8)
+                    .mapToObj(i -> Paciente.builder().numero(i).nombre("lote" + i).especie("perro").build()))
+                    .join().size());
+            Assert.assertEquals(Integer.valueOf(8), async.countPacientes().join());
+
+            // Las consultas de una pantalla en paralelo
+            final CompletableFuture<Persona> persona = async.getPersona("2-1");
+            final CompletableFuture<Paciente> paciente = async.getPaciente(1);
+            final CompletableFuture<List<Paciente>> pacientes = async.getPacientesPorNombre("fir");
+            final CompletableFuture<List<Control>> controles = async.getControlesVeterinario("2-1");
+
+            CompletableFuture.allOf(persona, paciente, pacientes, controles).join();
+
+            Assert.assertEquals("veterinario", persona.join().getNombre());
+            Assert.assertEquals("firulais", paciente.join().getNombre());
+            Assert.assertEquals(1, pacientes.join().size());
+            Assert.assertEquals(1, controles.join().size());
+
+        } finally {
+            async.shutdown();
+            backendService.shutdown();
+        }
+    }
+
+    /**
+     * Las operaciones se superponen, pero nunca mas que el limite de concurrencia.
+     */
+    @Test
+    public void testConcurrencia() {
+
+        final AtomicInteger enCurso = new AtomicInteger();
+        final AtomicInteger maximo = new AtomicInteger();
+
+        // Backend que demora DEMORA ms en cada operacion
+        final BackendService lento = (BackendService) Proxy.newProxyInstance(
+                BackendService.class.getClassLoader(),
+                new Class<?>[]{BackendService.class},
+                (proxy, method, args) -> {
+                    maximo.accumulateAndGet(enCurso.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(DEMORA);
+                    } finally {
+                        enCurso.decrementAndGet();
+                    }
+                    return null;
+                });
+
+        // Sin limite efectivo: 4 consultas cuestan lo mismo que una
+        {
+            final AsyncBackendService async = new AsyncBackendService(lento, 4);
+            final Stopwatch stopwatch = Stopwatch.createStarted();
+            CompletableFuture.allOf(async.getPersona("1-1"), async.getPaciente(1),
+                    async.getPacientes(), async.getControlesVeterinario("1-1")).join();
+            log.debug("4 consultas con 4 permisos in {}", stopwatch.toString());
+
+            Assert.assertTrue(stopwatch.elapsed(TimeUnit.MILLISECONDS) < 3 * DEMORA);
+            async.shutdown();
+        }
+
+        // Limite 2: a lo mas dos operaciones simultaneas
+        {
+            maximo.set(0);
+            final AsyncBackendService async = new AsyncBackendService(lento, 2);
+            final Stopwatch stopwatch = Stopwatch.createStarted();
+            CompletableFuture.allOf(async.getPersona("1-1"), async.getPaciente(1),
+                    async.getPacientes(), async.getControlesVeterinario("1-1")).join();
+            log.debug("4 consultas con 2 permisos in {}", stopwatch.toString());
+
+            Assert.assertEquals(2, maximo.get());
+            Assert.assertTrue(stopwatch.elapsed(TimeUnit.MILLISECONDS) >= 2 * DEMORA);
+            async.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package cl.ucn.disc.isof.fivet.domain.service;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.service.ebean.EbeanBackendService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Clase de testing del {@link MeteredBackendService}.
+ */
+@Slf4j
+public class TestMeteredBackendService {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    /**
+     * Configuracion de la base de datos:  h2, hsql, sqlite
+     */
+    private static final String DB = "h2";
+
+    /**
+     * Llamadas, errores y sentencias SQL por metodo, tambien por JMX.
+     */
+    @Test
+    public void testMetricas() throws Exception {
+
+        final EbeanBackendService ebeanBackendService = new EbeanBackendService(DB);
+        final MeteredBackendService backendService =
+                new MeteredBackendService(ebeanBackendService, ebeanBackendService::getSqlStatements);
+        backendService.initialize();
+        backendService.registrarJmx(DB);
+
+        try {
+            // Insert into backend
+            for (int i = 1; i <= 10; i++) {
+                Paciente.builder().numero(i).nombre("paciente" + i).especie("perro").build().insert();
+            }
+
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals("Pacientes", 10, backendService.getPacientes().size());
+            }
+
+            // Paciente que no existe: error
+            try {
+                backendService.agregarControl(Control.builder().codigo(1).fecha(new Date()).build(), 999);
+                Assert.fail("Paciente 999 no existe");
+            } catch (IllegalArgumentException e) {
+                log.debug("Expected error: {}", e.getMessage());
+            }
+
+            final MetricaSnapshot getPacientes = backendService.getMetrica("getPacientes()");
+            log.debug("Metricas: {}", getPacientes);
+            Assert.assertEquals("Llamadas", 5, getPacientes.getLlamadas());
+            Assert.assertEquals("Errores", 0, getPacientes.getErrores());
+            Assert.assertEquals("Una sentencia por findList", 1.0, getPacientes.getSentenciasSqlPorLlamada(), 0.0);
+            Assert.assertTrue("p50 <= p99", getPacientes.getP50() <= getPacientes.getP99());
+            Assert.assertTrue("p99 <= p999", getPacientes.getP99() <= getPacientes.getP999());
+            Assert.assertTrue("p999 <= max", getPacientes.getP999() <= getPacientes.getMax());
+            Assert.assertTrue("max > 0", getPacientes.getMax() > 0);
+
+            final MetricaSnapshot agregarControl = backendService.getMetrica("agregarControl(Control,Integer)");
+            Assert.assertEquals("Llamadas", 1, agregarControl.getLlamadas());
+            Assert.assertEquals("Errores", 1, agregarControl.getErrores());
+
+            // Las mismas metricas por JMX
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName("cl.ucn.disc.isof.fivet:type=BackendService,name=" + ObjectName.quote(DB));
+            final CompositeData[] metricas = (CompositeData[]) mBeanServer.getAttribute(name, "Metricas");
+            Assert.assertEquals("Metodos medidos", backendService.getMetricas().size(), metricas.length);
+            for (CompositeData metrica : metricas) {
+                if ("getPacientes()".equals(metrica.get("metodo"))) {
+                    Assert.assertEquals("Llamadas por JMX", 5L, metrica.get("llamadas"));
+                }
+            }
+
+            backendService.reset();
+            Assert.assertEquals("Reset", 0, backendService.getMetrica("getPacientes()").getLlamadas());
+
+        } finally {
+            backendService.shutdown();
+        }
+
+        Assert.assertTrue("Des-registrado de JMX", ManagementFactory.getPlatformMBeanServer()
+                .queryNames(new ObjectName("cl.ucn.disc.isof.fivet:type=BackendService,*"), null).isEmpty());
+    }
+
+    /**
+     * Los percentiles del histograma tienen un error relativo menor a 12.5%.
+     */
+    @Test
+    public void testLatencyHistogram() {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals("Sin valores", 0, histogram.percentil(0.5));
+
+        // 1..100000 ns en orden aleatorio
+        final int n = 100000;
+        final int[] valores = new int[n];
+        for (int i = 0; i < n; i++) {
+            valores[i] = i + 1;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            final int j = ThreadLocalRandom.current().nextInt(i + 1);
+            final int tmp = valores[i];
+            valores[i] = valores[j];
+            valores[j] = tmp;
+        }
+        for (int valor : valores) {
+            histogram.registrar(valor);
+        }
+
+        Assert.assertEquals("Cantidad", n, histogram.getCantidad());
+        Assert.assertEquals("Max", n, histogram.getMax());
+        for (double percentil : new double[]{0.5, 0.99, 0.999}) {
+            final long esperado = (long) (percentil * n);
+            final long valor = histogram.percentil(percentil);
+            log.debug("p{} = {} (esperado {})", percentil, valor, esperado);
+            Assert.assertTrue("Cota superior", valor >= esperado);
+            Assert.assertTrue("Error relativo", valor <= esperado * 1.125);
+        }
+
+        // Los buckets son contiguos: cada uno empieza donde termina el anterior
+        for (int i = 1; i < 488; i++) {
+            final long inferior = LatencyHistogram.limiteSuperior(i - 1) + 1;
+            Assert.assertEquals("Inicio del bucket " + i, i, LatencyHistogram.indice(inferior));
+            Assert.assertEquals("Fin del bucket " + i, i, LatencyHistogram.indice(LatencyHistogram.limiteSuperior(i)));
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.EventoCambio;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import com.google.common.collect.ImmutableSet;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Clase de testing del {@link BusCambios}.
+ */
+@Slf4j
+public class TestBusCambios {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    /**
+     * Configuracion de la base de datos:  h2, hsql, sqlite
+     */
+    private static final String DB = "h2";
+
+    /**
+     * Backend
+     */
+    private EbeanBackendService backendService;
+
+    @Before
+    public void beforeTest() {
+        backendService = new EbeanBackendService(DB);
+        backendService.initialize();
+    }
+
+    @After
+    public void afterTest() {
+        backendService.shutdown();
+    }
+
+    /**
+     * Los cambios confirmados llegan en orden con su id, version y propiedades; los de una transaccion revertida no.
+     */
+    @Test
+    public void testEventos() throws InterruptedException {
+
+        final BusCambios bus = backendService.getBusCambios();
+        final List<EventoCambio> eventos = new CopyOnWriteArrayList<>();
+        bus.suscribir(eventos::add);
+
+        final Persona vet = Persona.builder()
+                .nombre("veterinario")
+                .rut("1-1")
+                .login("vet")
+                .password("vet")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+        vet.insert();
+
+        final Paciente paciente = Paciente.builder().numero(1).nombre("cachupin").especie("perro").build();
+        paciente.insert();
+
+        paciente.setNombre("cachupin II");
+        paciente.update();
+
+        final Control control = Control.builder()
+                .codigo(1)
+                .fecha(new Date())
+                .diagnostico("sano")
+                .veterinario(vet)
+                .build();
+        backendService.agregarControles(Collections.singletonMap(1, Collections.singletonList(control)));
+
+        // Revertida: sin eventos
+        {
+            final Transaction txn = Ebean.beginTransaction();
+            try {
+                Paciente.builder().numero(2).nombre("fantasma").especie("gato").build().insert();
+            } finally {
+                txn.end();
+            }
+        }
+
+        backendService.getPaciente(1).delete();
+
+        esperar(() -> eventos.size() >= 6);
+        log.debug("Events: {}", eventos);
+        Assert.assertEquals("Eventos", 6, eventos.size());
+
+        assertEvento(eventos.get(0), Persona.class, EventoCambio.Tipo.INSERT, vet.getId());
+        Assert.assertTrue(eventos.get(0).getPropiedades().contains("rut"));
+
+        assertEvento(eventos.get(1), Paciente.class, EventoCambio.Tipo.INSERT, paciente.getId());
+        Assert.assertEquals("Version inicial", Long.valueOf(1), eventos.get(1).getVersion());
+
+        assertEvento(eventos.get(2), Paciente.class, EventoCambio.Tipo.UPDATE, paciente.getId());
+        Assert.assertEquals("Version actualizada", Long.valueOf(2), eventos.get(2).getVersion());
+        Assert.assertTrue("Nombre modificado", eventos.get(2).getPropiedades().contains("nombre"));
+        Assert.assertFalse("Especie sin modificar", eventos.get(2).getPropiedades().contains("especie"));
+
+        assertEvento(eventos.get(3), Control.class, EventoCambio.Tipo.INSERT, control.getId());
+
+        assertEvento(eventos.get(4), Paciente.class, EventoCambio.Tipo.UPDATE, paciente.getId());
+        Assert.assertEquals(ImmutableSet.of("version", "controles"), eventos.get(4).getPropiedades());
+
+        assertEvento(eventos.get(5), Paciente.class, EventoCambio.Tipo.DELETE, paciente.getId());
+
+        Assert.assertEquals("Publicados", 6, bus.getPublicados());
+        Assert.assertEquals("Descartados", 0, bus.getDescartados());
+        esperar(() -> bus.getEntregados() == 6);
+    }
+
+    /**
+     * Con el anillo lleno: DESCARTAR pierde eventos sin esperar, ESPERAR los entrega todos.
+     */
+    @Test
+    public void testContrapresion() throws InterruptedException {
+
+        final int capacidad = 8;
+        final int eventos = 100;
+
+        // Descartar: el suscriptor no avanza, solo caben la capacidad mas el que esta entregando
+        {
+            final BusCambios bus = new BusCambios(capacidad);
+            final CountDownLatch bloqueo = new CountDownLatch(1);
+            bus.suscribir(evento -> espera(bloqueo));
+
+            for (int i = 0; i < eventos; i++) {
+                bus.publicar(evento(i));
+            }
+            Assert.assertTrue("Sin descartes", bus.getDescartados() > 0);
+            Assert.assertEquals(eventos, bus.getPublicados() + bus.getDescartados());
+            Assert.assertTrue("Mas que la capacidad", bus.getPublicados() <= capacidad + 1);
+
+            bloqueo.countDown();
+            bus.detener();
+            Assert.assertEquals("Entregados", bus.getPublicados(), bus.getEntregados());
+        }
+
+        // Esperar: el suscriptor lento frena a los productores, no se pierde ninguno y llegan en orden
+        {
+            final BusCambios bus = new BusCambios(capacidad).contrapresion(BusCambios.Contrapresion.ESPERAR);
+            final List<Long> ids = new CopyOnWriteArrayList<>();
+            bus.suscribir(evento -> {
+                ids.add(evento.getId());
+                try {
+                    TimeUnit.MICROSECONDS.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            for (int i = 0; i < eventos; i++) {
+                bus.publicar(evento(i));
+            }
+            bus.detener();
+
+            Assert.assertEquals("Descartados", 0, bus.getDescartados());
+            Assert.assertEquals("Entregados", eventos, bus.getEntregados());
+            for (int i = 0; i < eventos; i++) {
+                Assert.assertEquals("Desordenados", Long.valueOf(i), ids.get(i));
+            }
+        }
+    }
+
+    /**
+     * Un suscriptor que publica (escribe en la base de datos) con el anillo lleno y ESPERAR no bloquea el despachador:
+     * lo que no cabe se descarta.
+     */
+    @Test
+    public void testPublicarDesdeSuscriptor() throws InterruptedException {
+
+        final int capacidad = 8;
+
+        final BusCambios bus = new BusCambios(capacidad).contrapresion(BusCambios.Contrapresion.ESPERAR);
+        final CountDownLatch publicados = new CountDownLatch(1);
+        bus.suscribir(evento -> {
+            if (evento.getId() == 0) {
+                for (int i = 1; i <= capacidad + 1; i++) {
+                    bus.publicar(evento(i));
+                }
+                publicados.countDown();
+            }
+        });
+
+        bus.publicar(evento(0));
+        Assert.assertTrue("Despachador bloqueado", publicados.await(5, TimeUnit.SECONDS));
+        bus.detener();
+
+        Assert.assertEquals("Descartados", 1, bus.getDescartados());
+        Assert.assertEquals("Entregados", 1 + capacidad, bus.getEntregados());
+    }
+
+    /**
+     * Publicar cuesta microsegundos aun con varios productores.
+     */
+    @Test
+    public void testCostoPublicar() throws InterruptedException {
+
+        final int productores = 4;
+        final int eventos = 200_000;
+
+        final BusCambios bus = new BusCambios(1 << 16);
+        bus.suscribir(evento -> { });
+
+        // Calentamiento
+        for (int i = 0; i < eventos; i++) {
+            bus.publicar(evento(i));
+        }
+
+        final long[] nanos = new long[productores];
+        final Thread[] threads = new Thread[productores];
+        for (int p = 0; p < productores; p++) {
+            final int productor = p;
+            threads[p] = new Thread(() -> {
+                final long inicio = System.nanoTime();
+                for (int i = 0; i < eventos; i++) {
+                    bus.publicar(evento(i));
+                }
+                nanos[productor] = System.nanoTime() - inicio;
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        bus.detener();
+
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        final double porEvento = (double) total / (productores * eventos);
+        log.info("Publish: {} ns per event, {} published, {} dropped", String.format("%.1f", porEvento),
+                bus.getPublicados(), bus.getDescartados());
+
+        Assert.assertEquals("Perdidos", bus.getPublicados(), bus.getEntregados());
+        Assert.assertTrue("Publicar es lento: " + porEvento + " ns", porEvento < TimeUnit.MICROSECONDS.toNanos(10));
+    }
+
+    private static void assertEvento(final EventoCambio evento, final Class<?> entidad, final EventoCambio.Tipo tipo,
+                                     final Long id) {
+        Assert.assertEquals("Entidad de " + evento, entidad, evento.getEntidad());
+        Assert.assertEquals("Tipo de " + evento, tipo, evento.getTipo());
+        Assert.assertEquals("Id de " + evento, id, evento.getId());
+    }
+
+    private static EventoCambio evento(final long id) {
+        return new EventoCambio(Paciente.class, EventoCambio.Tipo.UPDATE, id, null, Collections.emptySet());
+    }
+
+    private static void espera(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Espera (a lo mas 5 segundos) a que el despachador entregue.
+     */
+    private static void esperar(final BooleanSupplier condicion) throws InterruptedException {
+        final long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condicion.getAsBoolean() && System.nanoTime() < limite) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+
+}
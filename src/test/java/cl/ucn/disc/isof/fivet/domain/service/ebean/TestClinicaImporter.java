@@ -0,0 +1,255 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.service.Exportacion;
+import cl.ucn.disc.isof.fivet.domain.service.Importacion;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Clase de testing del {@link ClinicaImporter}.
+ */
+@Slf4j
+public class TestClinicaImporter {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    /**
+     * Configuracion de la base de datos:  h2, hsql, sqlite
+     */
+    private static final String DB = "h2";
+
+    private static final int VETERINARIOS = 10;
+
+    private static final int CLIENTES = 1000;
+
+    private static final int PACIENTES = 5000;
+
+    private static final int CONTROLES = 20000;
+
+    /**
+     * Backend
+     */
+    private EbeanBackendService backendService;
+
+    @Before
+    public void beforeTest() {
+        backendService = new EbeanBackendService(DB);
+        backendService.initialize();
+    }
+
+    @After
+    public void afterTest() {
+        backendService.shutdown();
+    }
+
+    /**
+     * Personas (CSV), pacientes (JSON Lines) y controles (CSV) en bloques chicos, con registros invalidos,
+     * repetidos y con referencias que no existen.
+     */
+    @Test
+    public void testImportar() throws IOException {
+
+        final Path personas = escribirPersonas();
+        final Path pacientes = escribirPacientes();
+        final Path controles = escribirControles();
+
+        final ClinicaImporter importador = backendService.importador()
+                .workers(4)
+                .tamanioBloque(16 * 1024);
+
+        try {
+            final Importacion importacionPersonas = importador.importar(ClinicaImporter.Tipo.PERSONAS,
+                    ClinicaImporter.Formato.CSV, personas);
+            Assert.assertEquals("Personas", VETERINARIOS + CLIENTES, importacionPersonas.getRegistros());
+            Assert.assertEquals("Rut repetido", 1, importacionPersonas.getOmitidos());
+            Assert.assertEquals("Sin login", 1, importacionPersonas.getRechazados());
+            Assert.assertEquals(1.0, importacionPersonas.getAvance(), 0);
+
+            final Importacion importacionPacientes = importador.importar(ClinicaImporter.Tipo.PACIENTES,
+                    ClinicaImporter.Formato.JSON_LINES, pacientes);
+            Assert.assertEquals("Pacientes", PACIENTES, importacionPacientes.getRegistros());
+            Assert.assertEquals("Propietario inexistente", 1, importacionPacientes.getRechazados());
+
+            final Importacion importacionControles = importador.importar(ClinicaImporter.Tipo.CONTROLES,
+                    ClinicaImporter.Formato.CSV, controles);
+            Assert.assertEquals("Controles", CONTROLES, importacionControles.getRegistros());
+            Assert.assertEquals("Paciente inexistente", 1, importacionControles.getRechazados());
+            log.debug("Controles: {} at {} registros/s", importacionControles,
+                    Math.round(importacionControles.getRegistrosPorSegundo()));
+
+            // Campos con comillas y relaciones
+            final Persona cliente = backendService.getPersona("2-1");
+            Assert.assertEquals("Angamos 0610, Antofagasta", cliente.getDireccion());
+            Assert.assertEquals("Cliente \"uno\"", cliente.getNombre());
+
+            final Paciente paciente = backendService.getPaciente(7);
+            Assert.assertEquals(Paciente.Sexo.HEMBRA, paciente.getSexo());
+            Assert.assertEquals("Controles del paciente", CONTROLES / PACIENTES, paciente.getControles().size());
+            Assert.assertEquals("Veterinario", "1-" + (7 % VETERINARIOS + 1),
+                    paciente.getControles().get(0).getVeterinario().getRut());
+
+            Assert.assertEquals(CONTROLES / VETERINARIOS,
+                    backendService.getControlesVeterinarioResumen("1-1").size());
+
+            final Path exportado = Files.createTempFile("pacientes", ".json");
+            try {
+                final Exportacion exportacion = backendService.exportarPacientes(exportado, false);
+                Assert.assertEquals(PACIENTES, exportacion.getPacientes());
+                Assert.assertEquals(CONTROLES, exportacion.getControles());
+                Assert.assertEquals("Un propietario por paciente", PACIENTES, exportacion.getPropietarios());
+            } finally {
+                Files.delete(exportado);
+            }
+
+            // Un archivo ya importado no se vuelve a importar
+            Assert.assertEquals(0, importador.importar(ClinicaImporter.Tipo.CONTROLES,
+                    ClinicaImporter.Formato.CSV, controles).getRegistros());
+
+            // Un archivo de controles modificado no se vuelve a importar desde el comienzo: se duplicarian
+            try (BufferedWriter writer = Files.newBufferedWriter(controles, StandardCharsets.UTF_8,
+                    StandardOpenOption.APPEND)) {
+                writer.write("1,99999,2016-11-02,,38.5,10.2,0.5,sano,,1-1\n");
+            }
+            try {
+                importador.importar(ClinicaImporter.Tipo.CONTROLES, ClinicaImporter.Formato.CSV, controles);
+                Assert.fail("Archivo de controles modificado");
+            } catch (IllegalStateException e) {
+                log.debug("Refused: {}", e.getMessage());
+            }
+            Assert.assertEquals("Controles duplicados", CONTROLES / PACIENTES,
+                    backendService.getPaciente(1).getControles().size());
+
+            // Descartado el checkpoint, se importa completo
+            importador.descartarCheckpoint(controles);
+            Assert.assertEquals(CONTROLES + 1, importador.importar(ClinicaImporter.Tipo.CONTROLES,
+                    ClinicaImporter.Formato.CSV, controles).getRegistros());
+
+        } finally {
+            Files.delete(personas);
+            Files.delete(pacientes);
+            Files.delete(controles);
+        }
+    }
+
+    /**
+     * Una importacion interrumpida continua desde el ultimo bloque confirmado.
+     */
+    @Test
+    public void testCheckpoint() throws IOException {
+
+        final Path personas = escribirPersonas();
+        final Path pacientes = escribirPacientes();
+
+        try {
+            backendService.importador().importar(ClinicaImporter.Tipo.PERSONAS, ClinicaImporter.Formato.CSV,
+                    personas);
+
+            // Falla despues de confirmar el tercer bloque
+            final AtomicInteger bloques = new AtomicInteger();
+            final ClinicaImporter interrumpido = backendService.importador()
+                    .workers(2)
+                    .tamanioBloque(8 * 1024)
+                    .avance(importacion -> {
+                        if (bloques.incrementAndGet() == 3) {
+                            throw new IllegalStateException("Interrumpida");
+                        }
+                    });
+            try {
+                interrumpido.importar(ClinicaImporter.Tipo.PACIENTES, ClinicaImporter.Formato.JSON_LINES, pacientes);
+                Assert.fail("La importacion debio interrumpirse");
+            } catch (IllegalStateException e) {
+                log.debug("Interrupted: {}", e.getMessage());
+            }
+
+            final int parciales = backendService.countPacientes();
+            Assert.assertTrue("Tres bloques confirmados", parciales > 0 && parciales < PACIENTES);
+
+            final Importacion reanudada = backendService.importador()
+                    .tamanioBloque(8 * 1024)
+                    .importar(ClinicaImporter.Tipo.PACIENTES, ClinicaImporter.Formato.JSON_LINES, pacientes);
+
+            Assert.assertEquals("Solo los restantes", PACIENTES - parciales, reanudada.getRegistros());
+            Assert.assertEquals("Nada repetido", 0, reanudada.getOmitidos());
+            Assert.assertEquals(PACIENTES, backendService.countPacientes());
+
+        } finally {
+            Files.delete(personas);
+            Files.delete(pacientes);
+        }
+    }
+
+    /**
+     * Veterinarios 1-1 .. 1-10 y clientes 2-1 .. 2-1000, mas un rut repetido y una persona sin login.
+     */
+    private static Path escribirPersonas() throws IOException {
+
+        final Path archivo = Files.createTempFile("personas", ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(archivo, StandardCharsets.UTF_8)) {
+            writer.write("rut,nombre,direccion,fijo,movil,mail,login,password,tipo\n");
+            for (int i = 1; i <= VETERINARIOS; i++) {
+                writer.write("1-" + i + ",veterinario " + i + ",Angamos 0610,552355000,,vet" + i
+                        + "@ucn.cl,vet" + i + ",vet" + i + ",VETERINARIO\n");
+            }
+            writer.write("2-1,\"Cliente \"\"uno\"\"\",\"Angamos 0610, Antofagasta\",,,,cliente1,cliente1,Cliente\r\n");
+            for (int i = 2; i <= CLIENTES; i++) {
+                writer.write("2-" + i + ",cliente " + i + ",Avenida Brasil " + i + ",,9" + i + ",,cliente" + i
+                        + ",cliente" + i + ",CLIENTE\n");
+            }
+            writer.write("2-2,cliente repetido,Avenida Brasil,,,,repetido,repetido,CLIENTE\n");
+            writer.write("3-1,sin login,Avenida Brasil,,,,,password,CLIENTE\n");
+        }
+        return archivo;
+    }
+
+    /**
+     * Pacientes 1 .. 5000, cada uno con un cliente, mas uno con un propietario que no existe.
+     */
+    private static Path escribirPacientes() throws IOException {
+
+        final Path archivo = Files.createTempFile("pacientes", ".jsonl");
+        try (BufferedWriter writer = Files.newBufferedWriter(archivo, StandardCharsets.UTF_8)) {
+            for (int i = 1; i <= PACIENTES; i++) {
+                writer.write("{\"numero\": " + i + ", \"nombre\": \"paciente " + i + "\", \"fechaNacimiento\": "
+                        + "\"2015-0" + (i % 9 + 1) + "-15\", \"raza\": null, \"sexo\": \""
+                        + (i % 2 == 0 ? "Macho" : "HEMBRA") + "\", \"especie\": \"perro\", \"propietario\": \"2-"
+                        + (i % CLIENTES + 1) + "\"}\n");
+            }
+            writer.write("{\"numero\": 99999, \"nombre\": \"huerfano\", \"propietario\": \"9-9\"}\n");
+        }
+        return archivo;
+    }
+
+    /**
+     * Cuatro controles por paciente, mas uno de un paciente que no existe.
+     */
+    private static Path escribirControles() throws IOException {
+
+        final Path archivo = Files.createTempFile("controles", ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(archivo, StandardCharsets.UTF_8)) {
+            writer.write("paciente,codigo,fecha,proximoControl,temperatura,peso,altura,diagnostico,nota,veterinario\n");
+            for (int i = 0; i < CONTROLES; i++) {
+                final int paciente = i % PACIENTES + 1;
+                writer.write(paciente + "," + i + ",2016-11-02T10:15:30Z,2016-12-02,38.5,10.2,0.5,sano,"
+                        + "\"control, de rutina\",1-" + (paciente % VETERINARIOS + 1) + "\n");
+            }
+            writer.write("99999,1,2016-11-02,,38.5,10.2,0.5,sano,,1-1\n");
+        }
+        return archivo;
+    }
+
+}
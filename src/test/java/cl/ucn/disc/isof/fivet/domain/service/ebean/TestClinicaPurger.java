@@ -0,0 +1,321 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.service.Purga;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Clase de testing del {@link ClinicaPurger}.
+ */
+@Slf4j
+public class TestClinicaPurger {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    /**
+     * Configuracion de la base de datos:  h2, hsql, sqlite
+     */
+    private static final String DB = "h2";
+
+    private static final int PACIENTES = 1000;
+
+    /**
+     * Controles del veterinario eliminado, vigentes
+     */
+    private static final int CONTROLES_ELIMINADO = 10;
+
+    /**
+     * Pacientes eliminados cuyo control impar sigue vigente
+     */
+    private static final int CON_CONTROL_VIGENTE = 10;
+
+    /**
+     * Versiones del historial: terminadas antes y despues de la retencion
+     */
+    private static final int VERSIONES_ANTIGUAS = 200;
+    private static final int VERSIONES_RECIENTES = 50;
+
+    private static final int LOTE = 100;
+
+    /**
+     * Backend
+     */
+    private EbeanBackendService backendService;
+
+    @Before
+    public void beforeTest() {
+        backendService = new EbeanBackendService(DB);
+        backendService.initialize();
+    }
+
+    @After
+    public void afterTest() {
+        backendService.shutdown();
+    }
+
+    /**
+     * Purga en lotes las filas eliminadas antes de la retencion con sus asociaciones, conserva las recientes y las
+     * referenciadas, y archiva el historial antiguo.
+     */
+    @Test
+    public void testPurgar() throws IOException, SQLException {
+
+        final Instant antiguo = Instant.now().minus(Duration.ofDays(60));
+
+        // Insert into backend
+        final Persona vet = persona("1-1", Persona.Tipo.VETERINARIO);
+        final Persona vetEliminado = persona("1-2", Persona.Tipo.VETERINARIO);
+        final Persona cliente = persona("2-1", Persona.Tipo.CLIENTE);
+        final Persona exCliente = persona("2-2", Persona.Tipo.CLIENTE);
+        {
+            final List<Paciente> pacientes = new ArrayList<>();
+            for (int i = 1; i <= PACIENTES; i++) {
+                pacientes.add(Paciente.builder().numero(i).nombre("paciente" + i).especie("perro").build());
+            }
+            backendService.insertar(pacientes);
+
+            final Map<Integer, List<Control>> porPaciente = new HashMap<>();
+            for (int i = 1; i <= PACIENTES; i++) {
+                final List<Control> controles = new ArrayList<>();
+                controles.add(control(2 * i, vet));
+                controles.add(control(2 * i + 1, vet));
+                porPaciente.put(i, controles);
+            }
+            for (int i = 0; i < CONTROLES_ELIMINADO; i++) {
+                porPaciente.get(1).add(control(10000 + i, vetEliminado));
+            }
+            backendService.agregarControles(porPaciente);
+        }
+
+        // Eliminados (soft delete) antiguos y recientes
+        final Transaction txn = Ebean.beginTransaction();
+        try {
+            final Connection connection = txn.getConnection();
+
+            // Propietarios: el cliente de todos, el ex cliente de los primeros 10
+            ejecutar(connection, "insert into persona_paciente (persona_id, paciente_id)"
+                    + " select " + cliente.getId() + ", id from paciente");
+            ejecutar(connection, "insert into persona_paciente (persona_id, paciente_id)"
+                    + " select " + exCliente.getId() + ", id from paciente where numero <= 10");
+
+            // La segunda mitad de los pacientes con sus controles (salvo el impar de los primeros
+            // CON_CONTROL_VIGENTE) y un control de cada paciente de la primera mitad
+            eliminar(connection, "control", "id in (select pc.control_id from paciente_control pc"
+                    + " join paciente p on p.id = pc.paciente_id where p.numero > "
+                    + (PACIENTES / 2 + CON_CONTROL_VIGENTE) + ")", antiguo);
+            eliminar(connection, "control", "mod(codigo, 2) = 0 and codigo < 10000", antiguo);
+            eliminar(connection, "paciente", "numero > " + PACIENTES / 2, antiguo);
+
+            // Veterinario con controles y ex cliente
+            eliminar(connection, "persona", "id in (" + vetEliminado.getId() + ", " + exCliente.getId() + ")",
+                    antiguo);
+
+            // Eliminado hace poco
+            eliminar(connection, "paciente", "numero = 1", Instant.now());
+
+            // Historial
+            ejecutar(connection, "create table control_history (id bigint, codigo integer,"
+                    + " sys_period_start timestamp, sys_period_end timestamp)");
+            try (PreparedStatement ps = connection.prepareStatement("insert into control_history"
+                    + " (id, codigo, sys_period_start, sys_period_end) values (?, ?, ?, ?)")) {
+                for (int i = 0; i < VERSIONES_ANTIGUAS + VERSIONES_RECIENTES; i++) {
+                    final Instant fin = i < VERSIONES_ANTIGUAS ? antiguo : Instant.now();
+                    ps.setLong(1, i / 2 + 1);
+                    ps.setInt(2, i);
+                    ps.setTimestamp(3, Timestamp.from(fin.minus(Duration.ofDays(1 + i % 2))));
+                    ps.setTimestamp(4, Timestamp.from(fin));
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+
+        final long antes = consultar();
+        final long versiones = versiones();
+
+        final Path directorio = Files.createTempDirectory("archivo");
+        try {
+            final Purga purga = backendService.purger()
+                    .retencion(Duration.ofDays(30))
+                    .lote(LOTE)
+                    .directorio(directorio)
+                    .purgar();
+
+            final long despues = consultar();
+            log.debug("Purged {} rows in {} ms, remaining {}; query {} us -> {} us.", purga.getTotalEliminadas(),
+                    purga.getNanos() / 1_000_000, purga.getRestantes(), antes / 1000, despues / 1000);
+            for (String tabla : purga.getRestantes().keySet()) {
+                log.debug("Table {} reduced by {}%.", tabla, Math.round(100 * purga.getReduccion(tabla)));
+            }
+
+            // Filas eliminadas, con los controles vigentes de los pacientes purgados
+            final int controlesEliminados = PACIENTES + PACIENTES / 2;
+            Assert.assertEquals("Controles", controlesEliminados, purga.getEliminadas().get("control").longValue());
+            Assert.assertEquals("Asociaciones de los controles", controlesEliminados,
+                    purga.getEliminadas().get("paciente_control").longValue());
+            Assert.assertEquals("Pacientes", PACIENTES / 2, purga.getEliminadas().get("paciente").longValue());
+            Assert.assertEquals("Propietarios de los pacientes y del ex cliente", PACIENTES / 2 + 10,
+                    purga.getEliminadas().get("persona_paciente").longValue());
+            Assert.assertEquals("Solo el ex cliente", 1, purga.getEliminadas().get("persona").longValue());
+            Assert.assertEquals("Historial", VERSIONES_ANTIGUAS, purga.getArchivadas());
+            Assert.assertEquals("Lotes", 15 + 5 + 1 + 2, purga.getLotes());
+
+            // Filas restantes
+            Assert.assertEquals(PACIENTES / 2 + CONTROLES_ELIMINADO, purga.getRestantes().get("control").longValue());
+            Assert.assertEquals(PACIENTES / 2 + CONTROLES_ELIMINADO,
+                    purga.getRestantes().get("paciente_control").longValue());
+            Assert.assertEquals("Con el eliminado hace poco", PACIENTES / 2,
+                    purga.getRestantes().get("paciente").longValue());
+            Assert.assertEquals("Con el veterinario eliminado", 3, purga.getRestantes().get("persona").longValue());
+            Assert.assertEquals(0.75, purga.getReduccion("control"), 0.01);
+
+            // Los datos vigentes no cambian
+            final Paciente paciente = backendService.getPaciente(2);
+            Assert.assertEquals("Control impar", 1, paciente.getControles().size());
+            Assert.assertEquals(Integer.valueOf(5), paciente.getControles().get(0).getCodigo());
+            Assert.assertNull(backendService.getPaciente(PACIENTES));
+            Assert.assertEquals("Controles del veterinario eliminado", CONTROLES_ELIMINADO,
+                    backendService.getControlesVeterinarioResumen("1-2").size());
+            Assert.assertEquals(PACIENTES / 2 - 1, backendService.getPersona("2-1").getPacientes().size());
+
+            // Ningun control sin paciente
+            Assert.assertEquals("Controles huerfanos", 0, Ebean.createSqlQuery("select count(*) as n from control c"
+                    + " where not exists (select 1 from paciente_control pc where pc.control_id = c.id)")
+                    .findUnique().getLong("n").longValue());
+
+            // Las filas purgadas no quedan en el historial
+            Assert.assertEquals("Copias de las filas purgadas", versiones, versiones());
+
+            // Historial: archivado en un solo archivo y borrado
+            final List<JsonObject> archivadas = new ArrayList<>();
+            try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorio)) {
+                for (Path archivo : archivos) {
+                    Assert.assertTrue(archivo.getFileName().toString().startsWith("control_history-"));
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            new GZIPInputStream(Files.newInputStream(archivo)), StandardCharsets.UTF_8))) {
+                        String linea;
+                        while ((linea = reader.readLine()) != null) {
+                            archivadas.add(new JsonParser().parse(linea).getAsJsonObject());
+                        }
+                    }
+                }
+            }
+            Assert.assertEquals("Lineas de los lotes", VERSIONES_ANTIGUAS, archivadas.size());
+            Assert.assertEquals("Por id y sys_period_start", 1, archivadas.get(0).get("codigo").getAsInt());
+            Assert.assertEquals(1, archivadas.get(0).get("id").getAsLong());
+            Assert.assertTrue(archivadas.get(0).has("sys_period_end"));
+            Assert.assertEquals(VERSIONES_RECIENTES,
+                    Ebean.createSqlQuery("select count(*) as n from control_history").findUnique().getLong("n")
+                            .longValue());
+
+            // Nada mas que purgar
+            Assert.assertEquals(0, backendService.purger().directorio(directorio).purgar().getTotalEliminadas());
+
+        } finally {
+            Ebean.createSqlUpdate("drop table control_history").execute();
+            try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorio)) {
+                for (Path archivo : archivos) {
+                    Files.delete(archivo);
+                }
+            }
+            Files.delete(directorio);
+        }
+    }
+
+    /**
+     * @return nanos de la agenda del veterinario y del listado de pacientes.
+     */
+    private long consultar() {
+        final long inicio = System.nanoTime();
+        backendService.getControlesVeterinarioResumen("1-1");
+        backendService.getPacientes();
+        return System.nanoTime() - inicio;
+    }
+
+    /**
+     * @return versiones en los historiales del modelo (H2).
+     */
+    private static long versiones() {
+        long versiones = 0;
+        for (String tabla : new String[]{"paciente", "paciente_control", "persona", "persona_paciente"}) {
+            versiones += Ebean.createSqlQuery("select count(*) as n from " + tabla + "_history").findUnique()
+                    .getLong("n");
+        }
+        return versiones;
+    }
+
+    private Persona persona(final String rut, final Persona.Tipo tipo) {
+        final Persona persona = Persona.builder()
+                .nombre("persona" + rut)
+                .rut(rut)
+                .login("login" + rut)
+                .password("password")
+                .tipo(tipo)
+                .direccion("Angamos 0610")
+                .build();
+        persona.insert();
+        return persona;
+    }
+
+    private static Control control(final int codigo, final Persona vet) {
+        return Control.builder()
+                .codigo(codigo)
+                .fecha(new Date())
+                .diagnostico("sano")
+                .veterinario(vet)
+                .build();
+    }
+
+    private static void eliminar(final Connection connection, final String tabla, final String condicion,
+                                 final Instant cuando) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("update " + tabla
+                + " set deleted = true, when_modified = ? where " + condicion)) {
+            ps.setTimestamp(1, Timestamp.from(cuando));
+            ps.executeUpdate();
+        }
+    }
+
+    private static void ejecutar(final Connection connection, final String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+}
@@ -1,19 +1,68 @@
 package cl.ucn.disc.isof.fivet.domain.service.ebean;
 
+import cl.ucn.disc.isof.fivet.domain.model.Cambio;
 import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.ControlSummary;
 import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.PacienteSummary;
 import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.model.PersonaSummary;
+import cl.ucn.disc.isof.fivet.domain.model.SignosVitales;
 import cl.ucn.disc.isof.fivet.domain.service.BackendService;
+import cl.ucn.disc.isof.fivet.domain.service.Exportacion;
+import cl.ucn.disc.isof.fivet.domain.service.FetchPlan;
 import com.google.common.base.Stopwatch;
+import com.google.gson.stream.JsonReader;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.*;
 import org.junit.rules.Timeout;
 import org.junit.runners.MethodSorters;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.cache.ServerCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Date;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Clase de testing del {@link BackendService}.
@@ -34,6 +83,11 @@ public class TestEbeanBackendService {
      */
     private static final String DB = "h2";
 
+    /**
+     * Cantidad de pacientes a recorrer en el test de cursor (-Dfivet.test.pacientes=1000000 para la prueba larga).
+     */
+    private static final int PACIENTES = Integer.getInteger("fivet.test.pacientes", 20000);
+
     /**
      * Backend
      */
@@ -131,6 +185,64 @@ public class TestEbeanBackendService {
 
     }
 
+    /**
+     * Test de la autenticacion: sin cargar la persona ni desencriptar la password.
+     */
+    @Test
+    public void testAuthenticate() {
+
+        final EbeanBackendService ebean = (EbeanBackendService) backendService;
+
+        // Insert into backend
+        final Persona vet = Persona.builder()
+                .nombre("veterinario")
+                .rut("1-1")
+                .login("vet")
+                .password("ñandú1234")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+        vet.insert();
+        Persona.builder()
+                .nombre("otro")
+                .rut("1-2")
+                .login("otro")
+                .password("otro")
+                .tipo(Persona.Tipo.CLIENTE)
+                .direccion("Angamos 0611")
+                .build()
+                .insert();
+
+        // Una sola sentencia
+        {
+            final long antes = ebean.getSqlStatements();
+            final PersonaSummary persona = backendService.authenticate("vet", "ñandú1234");
+            Assert.assertEquals("Sentencias de authenticate", 1, ebean.getSqlStatements() - antes);
+
+            Assert.assertNotNull("Credenciales validas", persona);
+            Assert.assertEquals("1-1", persona.getRut());
+            Assert.assertEquals("veterinario", persona.getNombre());
+            Assert.assertEquals(Persona.Tipo.VETERINARIO, persona.getTipo());
+        }
+
+        Assert.assertNull("Password incorrecta", backendService.authenticate("vet", "ñandú123"));
+        Assert.assertNull("Password de otro", backendService.authenticate("vet", "otro"));
+        Assert.assertNull("Login inexistente", backendService.authenticate("nadie", "ñandú1234"));
+        Assert.assertNull(backendService.authenticate("vet", null));
+
+        // La password no se carga con la persona, solo al leerla
+        {
+            final Persona persona = backendService.getPersona("1-1");
+            Assert.assertFalse("Password cargada",
+                    Ebean.getBeanState(persona).getLoadedProps().contains("password"));
+            Assert.assertEquals("ñandú1234", persona.getPassword());
+        }
+
+        // Eliminada
+        vet.delete();
+        Assert.assertNull("Persona eliminada", backendService.authenticate("vet", "ñandú1234"));
+    }
+
     @Test
     public void testGetPacientesAndGetPaciente() throws ParseException {
 
@@ -360,8 +472,1434 @@ public class TestEbeanBackendService {
                     .build();
             paciente.insert();
 
-
             backendService.agregarControl(control,numero);
+
+            // Coleccion de controles en el cache L2: el siguiente se agrega por JDBC, sin pasar por la coleccion
+            Assert.assertEquals(1, backendService.getPaciente(numero).getControles().size());
+            backendService.agregarControl(Control.builder().fecha(fecha).codigo(codigo + 1).veterinario(vet).build(),
+                    numero);
+
+            Assert.assertEquals("Coleccion del cache L2", 2, backendService.getPaciente(numero).getControles().size());
+            Assert.assertEquals(Long.valueOf(3), backendService.getPaciente(numero).getVersion());
+        }
+    }
+
+    @Test
+    public void testGetPacientesKeyset() {
+
+        final int total = 25;
+        final int limite = 10;
+
+        // Insert into backend
+        {
+            for (int i = 1; i <= total; i++) {
+                Paciente.builder()
+                        .numero(100 + i)
+                        .nombre("paciente" + i)
+                        .especie("perro")
+                        .build()
+                        .insert();
+            }
+        }
+
+        // Get from backend, pagina a pagina
+        {
+            Integer ultimoNumero = null;
+            int paginas = 0;
+            int leidos = 0;
+
+            List<Paciente> pagina = backendService.getPacientes(ultimoNumero, limite);
+            while (!pagina.isEmpty()) {
+                Assert.assertTrue("Pagina mas grande que el limite", pagina.size() <= limite);
+                for (Paciente p : pagina) {
+                    if (ultimoNumero != null) {
+                        Assert.assertTrue("Pacientes desordenados", p.getNumero() > ultimoNumero);
+                    }
+                    ultimoNumero = p.getNumero();
+                    leidos++;
+                }
+                paginas++;
+                pagina = backendService.getPacientes(ultimoNumero, limite);
+            }
+
+            log.debug("Leidos {} pacientes en {} paginas", leidos, paginas);
+            Assert.assertEquals(total, leidos);
+            Assert.assertEquals(3, paginas);
+        }
+    }
+
+    @Test
+    public void testGetControlesVeterinarioAgenda() {
+
+        final EbeanBackendService ebean = (EbeanBackendService) backendService;
+        final int dias = 10 * 365;
+        final int pacientes = 10;
+        final long dia = TimeUnit.DAYS.toMillis(1);
+        final long inicio = 1136073600000L; // 2006-01-01
+
+        // Insert into backend: 10 anios de historial, dos controles por dia (misma fecha) y otro veterinario
+        final List<Persona> veterinarios = IntStream.rangeClosed(1, 2)
+                .mapToObj(i -> Persona.builder()
+                        .nombre("veterinario" + i)
+                        .rut("1-" + i)
+                        .login("vet" + i)
+                        .password("vet" + i)
+                        .tipo(Persona.Tipo.VETERINARIO)
+                        .direccion("Angamos 0610")
+                        .build())
+                .collect(Collectors.toList());
+        veterinarios.forEach(Persona::insert);
+        {
+            final Map<Integer, List<Control>> controles = new HashMap<>();
+            for (int i = 1; i <= pacientes; i++) {
+                Paciente.builder().numero(i).nombre("paciente" + i).especie("perro").build().insert();
+                controles.put(i, new ArrayList<>());
+            }
+            for (int d = 0; d < dias; d++) {
+                for (int j = 0; j < 3; j++) {
+                    controles.get((d + j) % pacientes + 1).add(Control.builder()
+                            .codigo(d * 3 + j)
+                            .fecha(new Date(inicio + d * dia))
+                            .diagnostico("agenda")
+                            .veterinario(veterinarios.get(j == 2 ? 1 : 0))
+                            .build());
+                }
+            }
+            backendService.agregarControles(controles);
+        }
+
+        // Un mes del quinto anio, pagina a pagina: completo, ordenado, sin repetidos, una sentencia por pagina
+        {
+            final Date desde = new Date(inicio + 5 * 365 * dia);
+            final Date hasta = new Date(desde.getTime() + 30 * dia);
+            final int limite = 7;
+
+            final List<Control> leidos = new ArrayList<>();
+            Control ultimo = null;
+            List<Control> pagina;
+            do {
+                final long antes = ebean.getSqlStatements();
+                pagina = backendService.getControlesVeterinario("1-1", desde, hasta, ultimo, limite);
+                Assert.assertEquals("Sentencias por pagina", 1, ebean.getSqlStatements() - antes);
+                Assert.assertTrue("Pagina mas grande que el limite", pagina.size() <= limite);
+
+                for (Control control : pagina) {
+                    Assert.assertEquals("1-1", control.getVeterinario().getRut());
+                    Assert.assertFalse("Antes del rango", control.getFecha().before(desde));
+                    Assert.assertTrue("Despues del rango", control.getFecha().before(hasta));
+                    if (ultimo != null) {
+                        final int orden = control.getFecha().compareTo(ultimo.getFecha());
+                        Assert.assertTrue("Controles desordenados",
+                                orden > 0 || (orden == 0 && control.getId() > ultimo.getId()));
+                    }
+                    ultimo = control;
+                }
+                leidos.addAll(pagina);
+            } while (pagina.size() == limite);
+
+            Assert.assertEquals("Dos controles por dia", 60, leidos.size());
+            Assert.assertEquals("Sin repetidos", 60, leidos.stream().map(Control::getId).distinct().count());
+        }
+
+        // Sin rango: la primera y la ultima pagina del historial cuestan lo mismo
+        {
+            final List<Control> primera = backendService.getControlesVeterinario("1-1", null, null, null, 20);
+            Assert.assertEquals(20, primera.size());
+            Assert.assertEquals(inicio, primera.get(0).getFecha().getTime());
+
+            final List<Control> penultima = backendService.getControlesVeterinario("1-1",
+                    new Date(inicio + (dias - 20) * dia), null, null, 20);
+            final Control ultimo = penultima.get(penultima.size() - 1);
+
+            final Stopwatch primeraPagina = Stopwatch.createStarted();
+            for (int i = 0; i < 100; i++) {
+                backendService.getControlesVeterinario("1-1", null, null, null, 20);
+            }
+            primeraPagina.stop();
+            final Stopwatch ultimaPagina = Stopwatch.createStarted();
+            List<Control> ultima = null;
+            for (int i = 0; i < 100; i++) {
+                ultima = backendService.getControlesVeterinario("1-1", null, null, ultimo, 20);
+            }
+            ultimaPagina.stop();
+            log.debug("Agenda: primera pagina in {}, ultima pagina in {} (x100)", primeraPagina, ultimaPagina);
+
+            Assert.assertEquals("Ultimos 10 dias", 20, ultima.size());
+            Assert.assertEquals(inicio + (dias - 1) * dia, ultima.get(19).getFecha().getTime());
+            Assert.assertTrue(backendService.getControlesVeterinario("1-1", null, null, ultima.get(19), 20)
+                    .isEmpty());
+        }
+    }
+
+    @Test
+    public void testRecorrerPacientes() {
+
+        // Insert into backend (en lotes para no medir el insert)
+        {
+            final Transaction txn = Ebean.beginTransaction();
+            try {
+                txn.setBatchSize(1000);
+                for (int i = 1; i <= PACIENTES; i++) {
+                    Paciente.builder()
+                            .numero(i)
+                            .nombre("paciente" + i)
+                            .especie("gato")
+                            .raza("siames")
+                            .sexo(Paciente.Sexo.HEMBRA)
+                            .build()
+                            .insert();
+                }
+                txn.commit();
+            } finally {
+                txn.end();
+            }
+            log.debug("Inserted {} pacientes in {}", PACIENTES, stopWatch.toString());
+        }
+
+        // Sin numero de ficha: ni el cursor ni las paginas lo retornan
+        Paciente.builder().nombre("sin ficha").especie("gato").build().insert();
+
+        // Recorrer con cursor: los pacientes ya visitados deben poder ser recolectados.
+        {
+            final AtomicInteger leidos = new AtomicInteger();
+            final AtomicInteger ultimo = new AtomicInteger();
+            final AtomicReference<WeakReference<Paciente>> primero = new AtomicReference<>();
+            final AtomicReference<Boolean> recolectado = new AtomicReference<>();
+
+            backendService.recorrerPacientes(p -> {
+
+                Assert.assertTrue("Pacientes desordenados", p.getNumero() > ultimo.get());
+                ultimo.set(p.getNumero());
+
+                if (leidos.incrementAndGet() == 1) {
+                    primero.set(new WeakReference<>(p));
+                }
+
+                // Con el cursor aun abierto, el primer paciente no debe seguir referenciado.
+                if (leidos.get() == PACIENTES) {
+                    System.gc();
+                    recolectado.set(primero.get().get() == null);
+                }
+            });
+
+            log.debug("Recorridos {} pacientes in {}", leidos.get(), stopWatch.toString());
+            Assert.assertEquals(PACIENTES, leidos.get());
+            Assert.assertTrue("El cursor retiene los pacientes ya recorridos", recolectado.get());
+
+            int paginados = 0;
+            for (List<Paciente> pagina = backendService.getPacientes(null, 5000);
+                 !pagina.isEmpty();
+                 pagina = backendService.getPacientes(pagina.get(pagina.size() - 1).getNumero(), 5000)) {
+                paginados += pagina.size();
+            }
+            Assert.assertEquals("Cursor y paginas distintos", leidos.get(), paginados);
+        }
+    }
+
+    @Test
+    public void testGetPacientesPorNombreIndice() {
+
+        final Paciente nandu = Paciente.builder().numero(10).nombre("Ñandú").especie("ave").build();
+        final Paciente nano = Paciente.builder().numero(11).nombre("nano").especie("perro").build();
+        final Paciente lucas = Paciente.builder().numero(12).nombre("Lúcas").especie("gato").build();
+
+        // Insert into backend
+        {
+            nandu.insert();
+            nano.insert();
+            lucas.insert();
+        }
+
+        // Sin tildes ni mayusculas, ordenado por nombre
+        {
+            final Stopwatch busqueda = Stopwatch.createStarted();
+            final List<Paciente> pacientes = backendService.getPacientesPorNombre("NAN", 10);
+            log.debug("Pacientes founded in {}: {}", busqueda.toString(), pacientes);
+
+            Assert.assertEquals(2, pacientes.size());
+            Assert.assertEquals("Ñandú", pacientes.get(0).getNombre());
+            Assert.assertEquals("nano", pacientes.get(1).getNombre());
+        }
+
+        // Limite
+        {
+            Assert.assertEquals(1, backendService.getPacientesPorNombre("nan", 1).size());
+            Assert.assertEquals(1, backendService.getPacientesPorNombre("lu").size());
+        }
+
+        // Update y delete mantienen el indice
+        {
+            lucas.setNombre("Bobby");
+            lucas.update();
+            Assert.assertTrue(backendService.getPacientesPorNombre("lu").isEmpty());
+            Assert.assertEquals(1, backendService.getPacientesPorNombre("bob", 10).size());
+
+            nano.delete();
+            Assert.assertEquals(1, backendService.getPacientesPorNombre("nan", 10).size());
+        }
+
+        // Sin limite: mas ids que los parametros de una sentencia en SQLite, en el orden del indice
+        {
+            final int pacientes = 1200;
+            backendService.insertar(IntStream.rangeClosed(1, pacientes)
+                    .mapToObj(i -> Paciente.builder().numero(1000 + i).nombre(String.format("tuco %04d", pacientes - i))
+                            .especie("perro").build())
+                    .collect(Collectors.toList()));
+
+            final List<Paciente> encontrados = backendService.getPacientesPorNombre("tuco");
+            Assert.assertEquals(pacientes, encontrados.size());
+            for (int i = 0; i < pacientes; i++) {
+                Assert.assertEquals(String.format("tuco %04d", i), encontrados.get(i).getNombre());
+            }
+        }
+    }
+
+    @Test
+    public void testAgregarControles() {
+
+        final int pacientes = 20;
+        final int controlesPorPaciente = 50;
+        final int controlesUnoAUno = 100;
+
+        final Persona vet = Persona.builder()
+                .nombre("veterinario2")
+                .rut("1-4")
+                .login("vet2")
+                .password("vet2")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+        vet.insert();
+
+        // Insert into backend
+        {
+            for (int i = 1; i <= pacientes + 1; i++) {
+                Paciente.builder().numero(200 + i).nombre("lote" + i).especie("perro").build().insert();
+            }
+        }
+
+        // En lote
+        {
+            final Map<Integer, List<Control>> controles = new HashMap<>();
+            for (int i = 1; i <= pacientes; i++) {
+                final List<Control> lista = new ArrayList<>();
+                for (int j = 0; j < controlesPorPaciente; j++) {
+                    lista.add(Control.builder().codigo(j).fecha(new Date()).diagnostico("lote").veterinario(vet).build());
+                }
+                controles.put(200 + i, lista);
+            }
+
+            final Stopwatch lote = Stopwatch.createStarted();
+            backendService.agregarControles(controles);
+            final long micros = lote.elapsed(TimeUnit.MICROSECONDS);
+            log.debug("agregarControles: {} controles in {} ({} controles/s)", pacientes * controlesPorPaciente,
+                    lote.toString(), pacientes * controlesPorPaciente * 1_000_000L / Math.max(1, micros));
+
+            for (int i = 1; i <= pacientes; i++) {
+                final Paciente paciente = backendService.getPaciente(200 + i);
+                Assert.assertEquals(controlesPorPaciente, paciente.getControles().size());
+                Assert.assertEquals(Long.valueOf(2), paciente.getVersion());
+            }
+        }
+
+        // Uno a uno, para comparar
+        {
+            final Stopwatch unoAUno = Stopwatch.createStarted();
+            for (int j = 0; j < controlesUnoAUno; j++) {
+                final Control control = Control.builder().codigo(j).fecha(new Date()).diagnostico("uno").veterinario(vet).build();
+                control.insert();
+                backendService.agregarControl(control, 200 + pacientes + 1);
+            }
+            final long micros = unoAUno.elapsed(TimeUnit.MICROSECONDS);
+            log.debug("agregarControl: {} controles in {} ({} controles/s)", controlesUnoAUno,
+                    unoAUno.toString(), controlesUnoAUno * 1_000_000L / Math.max(1, micros));
+
+            Assert.assertEquals(controlesUnoAUno, backendService.getPaciente(200 + pacientes + 1).getControles().size());
+        }
+
+        // Paciente inexistente: no se agrega nada
+        {
+            final Map<Integer, List<Control>> controles = new HashMap<>();
+            final List<Control> lista = new ArrayList<>();
+            lista.add(Control.builder().codigo(1).fecha(new Date()).veterinario(vet).build());
+            controles.put(200 + 1, lista);
+            controles.put(-1, lista);
+
+            try {
+                backendService.agregarControles(controles);
+                Assert.fail("Paciente inexistente");
+            } catch (RuntimeException e) {
+                Assert.assertEquals(controlesPorPaciente, backendService.getPaciente(200 + 1).getControles().size());
+            }
+        }
+    }
+
+    /**
+     * En SQLite los controles se insertan sin batch JDBC (el driver no retorna sus ids), pero se asocian igual.
+     */
+    @Test
+    public void testAgregarControlesSqlite() {
+
+        final int pacientes = 5;
+        final int controlesPorPaciente = 30;
+
+        final EbeanBackendService sqlite = new EbeanBackendService("sqlite");
+        try {
+            sqlite.initialize();
+
+            sqlite.insertar(IntStream.rangeClosed(1, pacientes)
+                    .mapToObj(i -> Paciente.builder().numero(i).nombre("sqlite" + i).especie("gato").build())
+                    .collect(Collectors.toList()));
+
+            final Map<Integer, List<Control>> controles = new HashMap<>();
+            for (int i = 1; i <= pacientes; i++) {
+                final List<Control> lista = new ArrayList<>();
+                for (int j = 0; j < controlesPorPaciente; j++) {
+                    lista.add(Control.builder().codigo(i * 100 + j).fecha(new Date()).diagnostico("sqlite").build());
+                }
+                controles.put(i, lista);
+            }
+            sqlite.agregarControles(controles);
+
+            for (int i = 1; i <= pacientes; i++) {
+                final List<Control> agregados = sqlite.getPaciente(i).getControles();
+                Assert.assertEquals(controlesPorPaciente, agregados.size());
+                Assert.assertEquals("Asociados a otro paciente",
+                        controles.get(i).stream().map(Control::getId).collect(Collectors.toSet()),
+                        agregados.stream().map(Control::getId).collect(Collectors.toSet()));
+            }
+        } finally {
+            sqlite.shutdown();
+        }
+    }
+
+    /**
+     * Varios veterinarios agregan controles a los mismos pacientes al mismo tiempo: ninguno falla y cada paciente
+     * queda con todos sus controles y una version por operacion. Un paciente bloqueado por otra transaccion se
+     * reintenta hasta que se libera.
+     */
+    @Test
+    public void testAgregarControlConcurrente() throws Exception {
+
+        final EbeanBackendService ebean = (EbeanBackendService) backendService;
+        final int pacientes = 4;
+        final int hilos = 8;
+        final int operacionesPorHilo = 100;
+
+        final Persona vet = Persona.builder()
+                .nombre("veterinario8")
+                .rut("1-8")
+                .login("vet8")
+                .password("vet8")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+        vet.insert();
+        backendService.insertar(IntStream.rangeClosed(1, pacientes)
+                .mapToObj(i -> Paciente.builder().numero(i).nombre("paciente" + i).especie("perro").build()));
+
+        ebean.getReintentos().maxIntentos(10).espera(Duration.ofMillis(1), Duration.ofMillis(50));
+
+        // Cada hilo agrega a pacientes al azar; una de cada diez operaciones agrega a dos pacientes a la vez
+        final AtomicInteger[] operaciones = new AtomicInteger[pacientes + 1];
+        final AtomicInteger[] controles = new AtomicInteger[pacientes + 1];
+        for (int i = 1; i <= pacientes; i++) {
+            operaciones[i] = new AtomicInteger();
+            controles[i] = new AtomicInteger();
+        }
+        final CountDownLatch partida = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(hilos);
+        final List<Future<?>> futuros = new ArrayList<>();
+        for (int h = 0; h < hilos; h++) {
+            final int hilo = h;
+            futuros.add(executor.submit(() -> {
+                partida.await();
+                final Random random = new Random(hilo);
+                for (int i = 0; i < operacionesPorHilo; i++) {
+                    final Map<Integer, List<Control>> porPaciente = new HashMap<>();
+                    final int numero = 1 + random.nextInt(pacientes);
+                    porPaciente.put(numero, new ArrayList<>(Collections.singletonList(
+                            Control.builder().codigo(hilo * 1000 + i).fecha(new Date()).veterinario(vet).build())));
+                    if (i % 10 == 0) {
+                        porPaciente.put(numero % pacientes + 1, new ArrayList<>(Collections.singletonList(
+                                Control.builder().codigo(hilo * 1000 + i).fecha(new Date()).veterinario(vet)
+                                        .build())));
+                    }
+                    backendService.agregarControles(porPaciente);
+                    porPaciente.forEach((n, lista) -> {
+                        operaciones[n].incrementAndGet();
+                        controles[n].addAndGet(lista.size());
+                    });
+                }
+                return null;
+            }));
+        }
+        final Stopwatch tiempo = Stopwatch.createStarted();
+        partida.countDown();
+        for (Future<?> futuro : futuros) {
+            futuro.get();
+        }
+        executor.shutdown();
+        final long millis = Math.max(1, tiempo.elapsed(TimeUnit.MILLISECONDS));
+
+        final int total = hilos * operacionesPorHilo;
+        log.debug("Concurrent agregarControles: {} operations by {} threads on {} pacientes in {} ms ({} ops/s),"
+                        + " {} conflicts ({}%).", total, hilos, pacientes, millis, total * 1000L / millis,
+                ebean.getReintentos().getConflictos(), 100.0 * ebean.getReintentos().getConflictos() / total);
+
+        for (int i = 1; i <= pacientes; i++) {
+            final Paciente paciente = backendService.getPaciente(i);
+            Assert.assertEquals("Controles del paciente " + i, controles[i].get(), paciente.getControles().size());
+            Assert.assertEquals("Una version por operacion", Long.valueOf(1 + operaciones[i].get()),
+                    paciente.getVersion());
+        }
+        Assert.assertEquals("Sin conflictos dentro del proceso", 0, ebean.getReintentos().getConflictos());
+
+        // Otra transaccion (otro proceso) bloquea al paciente mas que la espera de bloqueo de H2 (2 segundos)
+        final CountDownLatch bloqueado = new CountDownLatch(1);
+        final Thread bloqueador = new Thread(() -> {
+            final Transaction txn = Ebean.beginTransaction();
+            try {
+                Ebean.createSqlUpdate("update paciente set nombre = 'bloqueado' where numero = 1").execute();
+                bloqueado.countDown();
+                Thread.sleep(3000);
+                txn.commit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                txn.end();
+            }
+        });
+        bloqueador.start();
+        bloqueado.await();
+
+        backendService.agregarControl(Control.builder().codigo(1).fecha(new Date()).veterinario(vet).build(), 1);
+        bloqueador.join();
+
+        log.debug("Locked paciente: {} conflicts, {} exhausted.", ebean.getReintentos().getConflictos(),
+                ebean.getReintentos().getAgotados());
+        Assert.assertTrue("Reintentado", ebean.getReintentos().getConflictos() > 0);
+        Assert.assertEquals(0, ebean.getReintentos().getAgotados());
+        final Paciente paciente = backendService.getPaciente(1);
+        Assert.assertEquals("bloqueado", paciente.getNombre());
+        Assert.assertEquals(controles[1].get() + 1, paciente.getControles().size());
+    }
+
+    @Test
+    public void testAgregarControlHistorial() {
+
+        final int numero = 300;
+        final int tramos = 4;
+        final int controlesPorTramo = 100;
+
+        final Persona vet = Persona.builder()
+                .nombre("veterinario3")
+                .rut("1-5")
+                .login("vet3")
+                .password("vet3")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0611")
+                .build();
+        vet.insert();
+
+        Paciente.builder().numero(numero).nombre("longevo").especie("tortuga").build().insert();
+
+        // El costo de agregar un control no debe crecer con el historial
+        final long[] micros = new long[tramos];
+        for (int t = 0; t < tramos; t++) {
+            final Stopwatch tramo = Stopwatch.createStarted();
+            for (int i = 0; i < controlesPorTramo; i++) {
+                final Control control = Control.builder().codigo(i).fecha(new Date()).veterinario(vet).build();
+                backendService.agregarControl(control, numero);
+            }
+            micros[t] = tramo.elapsed(TimeUnit.MICROSECONDS);
+            log.debug("Historial {} -> {}: {} us por control", t * controlesPorTramo, (t + 1) * controlesPorTramo,
+                    micros[t] / controlesPorTramo);
+        }
+
+        final Paciente paciente = backendService.getPaciente(numero);
+        Assert.assertEquals(tramos * controlesPorTramo, paciente.getControles().size());
+        Assert.assertEquals(Long.valueOf(1 + tramos * controlesPorTramo), paciente.getVersion());
+
+        // El primer tramo incluye el calentamiento, el ultimo no puede ser mucho mas lento que el segundo
+        Assert.assertTrue("Costo creciente con el historial", micros[tramos - 1] < 3 * micros[1] + 50_000);
+    }
+
+    /**
+     * El paciente y la persona tal como estaban en cada instante, y sus versiones con lo que cambio en cada una.
+     */
+    @Test
+    public void testAsOf() throws InterruptedException {
+
+        final int numero = 700;
+        final Instant antes = instante();
+
+        final Persona vet = Persona.builder()
+                .nombre("veterinario9")
+                .rut("1-9")
+                .login("vet9")
+                .password("vet9")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+        vet.insert();
+        final Paciente paciente = Paciente.builder().numero(numero).nombre("cachupin").especie("perro")
+                .raza("quiltro").build();
+        paciente.insert();
+        final Instant creado = instante();
+
+        paciente.setNombre("cachupin II");
+        paciente.setRaza("poodle");
+        paciente.update();
+        final Instant renombrado = instante();
+
+        backendService.agregarControl(Control.builder().codigo(1).fecha(new Date()).veterinario(vet).build(), numero);
+        final Instant controlado = instante();
+
+        vet.setDireccion("Avenida Brasil 1200");
+        vet.update();
+        final Instant mudado = instante();
+
+        backendService.getPaciente(numero).delete();
+        final Instant eliminado = instante();
+
+        // Paciente en cada instante
+        Assert.assertNull("No existia", backendService.getPacienteAsOf(numero, antes));
+        {
+            final Paciente original = backendService.getPacienteAsOf(numero, creado);
+            Assert.assertEquals("cachupin", original.getNombre());
+            Assert.assertEquals("quiltro", original.getRaza());
+            Assert.assertTrue(original.getControles().isEmpty());
+        }
+        {
+            final Paciente renombrada = backendService.getPacienteAsOf(numero, renombrado);
+            Assert.assertEquals("cachupin II", renombrada.getNombre());
+            Assert.assertEquals("poodle", renombrada.getRaza());
+            Assert.assertTrue("Sin controles", renombrada.getControles().isEmpty());
+        }
+        Assert.assertEquals("Con el control", 1, backendService.getPacienteAsOf(numero, controlado)
+                .getControles().size());
+        Assert.assertNull("Eliminado", backendService.getPacienteAsOf(numero, eliminado));
+        Assert.assertNull(backendService.getPaciente(numero));
+
+        // Persona en cada instante
+        Assert.assertNull(backendService.getPersonaAsOf("1-9", antes));
+        Assert.assertEquals("Angamos 0610", backendService.getPersonaAsOf("1-9", controlado).getDireccion());
+        Assert.assertEquals("Avenida Brasil 1200", backendService.getPersonaAsOf("1-9", mudado).getDireccion());
+
+        // Versiones del paciente: insert, update, control (version) y delete
+        {
+            final List<Cambio> cambios = backendService.getCambiosPaciente(numero, antes, eliminado);
+            cambios.forEach(cambio -> log.debug("Cambio: {}", cambio));
+            Assert.assertEquals("Versiones", 4, cambios.size());
+            for (int i = 0; i < cambios.size(); i++) {
+                Assert.assertEquals("De la mas antigua a la mas reciente", Long.valueOf(i + 1),
+                        cambios.get(i).getVersion());
+            }
+            Assert.assertNull("Vigente", cambios.get(3).getHasta());
+            Assert.assertEquals(cambios.get(0).getHasta(), cambios.get(1).getDesde());
+            Assert.assertTrue("La primera sin anterior", cambios.get(0).getNuevos().isEmpty());
+
+            Assert.assertEquals("cachupin", cambios.get(1).getAnteriores().get("nombre"));
+            Assert.assertEquals("cachupin II", cambios.get(1).getNuevos().get("nombre"));
+            Assert.assertEquals("poodle", cambios.get(1).getNuevos().get("raza"));
+            Assert.assertFalse("Sin cambio de especie", cambios.get(1).getNuevos().containsKey("especie"));
+            Assert.assertEquals(Boolean.TRUE, cambios.get(3).getNuevos().get("deleted"));
+        }
+
+        // Solo los cambios del periodo
+        Assert.assertEquals("El control", 1, backendService.getCambiosPaciente(numero, renombrado, controlado)
+                .size());
+        Assert.assertEquals(2, backendService.getCambiosPersona("1-9", antes, mudado).size());
+    }
+
+    /**
+     * @return el instante actual, separado de los cambios anteriores y siguientes.
+     */
+    /**
+     * @return el plan de ejecucion de la consulta en el servidor, todas sus filas en una linea.
+     */
+    private static String plan(final String servidor, final String explain, final String consulta) {
+        final String texto = Ebean.getServer(servidor).createSqlQuery(explain + consulta).findList().stream()
+                .flatMap(fila -> fila.values().stream())
+                .map(String::valueOf)
+                .collect(Collectors.joining(" "))
+                .replaceAll("\\s+", " ");
+        log.debug("Plan {} {}: {}", servidor, consulta, texto);
+        return texto;
+    }
+
+    private static Instant instante() throws InterruptedException {
+        Thread.sleep(20);
+        final Instant instante = Instant.now();
+        Thread.sleep(20);
+        return instante;
+    }
+
+    @Test
+    public void testInsertar() {
+
+        final int total = 5000;
+
+        // Collection
+        {
+            final List<Paciente> pacientes = IntStream.rangeClosed(1, total)
+                    .mapToObj(i -> Paciente.builder().numero(1000 + i).nombre("masivo" + i).especie("gato").build())
+                    .collect(Collectors.toList());
+
+            final Stopwatch masivo = Stopwatch.createStarted();
+            final List<Long> ids = backendService.insertar(pacientes);
+            final long micros = masivo.elapsed(TimeUnit.MICROSECONDS);
+            log.debug("insertar: {} pacientes in {} ({} filas/s)", total, masivo.toString(),
+                    total * 1_000_000L / Math.max(1, micros));
+
+            Assert.assertEquals(total, ids.size());
+            Assert.assertEquals(total, new HashSet<>(ids).size());
+            for (int i = 0; i < total; i++) {
+                Assert.assertEquals(pacientes.get(i).getId(), ids.get(i));
+            }
+            Assert.assertEquals("masivo1", backendService.getPaciente(1001).getNombre());
+        }
+
+        // Stream
+        {
+            final List<Long> ids = backendService.insertar(IntStream.rangeClosed(1, total)
+                    .mapToObj(i -> Persona.builder()
+                            .rut("9-" + i)
+                            .nombre("persona" + i)
+                            .direccion("Angamos " + i)
+                            .login("login" + i)
+                            .password("password" + i)
+                            .tipo(Persona.Tipo.CLIENTE)
+                            .build()));
+
+            Assert.assertEquals(total, ids.size());
+            Assert.assertNotNull(backendService.getPersona("9-" + total));
+        }
+
+        // Uno a uno, para comparar
+        {
+            final int unoAUno = 500;
+            final Stopwatch lento = Stopwatch.createStarted();
+            for (int i = 1; i <= unoAUno; i++) {
+                Paciente.builder().numero(10000 + i).nombre("lento" + i).especie("gato").build().insert();
+            }
+            final long micros = lento.elapsed(TimeUnit.MICROSECONDS);
+            log.debug("insert: {} pacientes in {} ({} filas/s)", unoAUno, lento.toString(),
+                    unoAUno * 1_000_000L / Math.max(1, micros));
+        }
+    }
+
+    @Test
+    public void testNaturalKeyCache() {
+
+        final EbeanBackendService ebean = (EbeanBackendService) backendService;
+        final NaturalKeyCache<String> personaCache = ebean.getPersonaCache();
+        final NaturalKeyCache<Integer> pacienteCache = ebean.getPacienteCache();
+
+        final Persona persona = Persona.builder()
+                .nombre("cacheado")
+                .rut("1-6")
+                .mail("cache@gmail.com")
+                .login("cache")
+                .password("cache")
+                .tipo(Persona.Tipo.CLIENTE)
+                .direccion("Angamos 0612")
+                .build();
+        persona.insert();
+
+        Paciente.builder().numero(400).nombre("cacheado").especie("perro").build().insert();
+
+        // Persona: miss, luego hit por rut y por mail
+        {
+            Assert.assertEquals("cacheado", backendService.getPersona("1-6").getNombre());
+            Assert.assertEquals(1, personaCache.getMisses());
+
+            Assert.assertEquals("cacheado", backendService.getPersona("1-6").getNombre());
+            Assert.assertEquals("1-6", backendService.getPersona("cache@gmail.com").getRut());
+            Assert.assertEquals(2, personaCache.getHits());
+        }
+
+        // Update invalida
+        {
+            final Persona cargada = backendService.getPersona("1-6");
+            cargada.setNombre("actualizado");
+            cargada.update();
+
+            Assert.assertEquals(0, personaCache.size());
+            Assert.assertEquals("actualizado", backendService.getPersona("cache@gmail.com").getNombre());
+            log.debug("Persona cache: {}", personaCache);
+        }
+
+        // Paciente: cambio de version por agregarControl y soft delete invalidan
+        {
+            Assert.assertNotNull(backendService.getPaciente(400));
+            Assert.assertEquals(Long.valueOf(1), backendService.getPaciente(400).getVersion());
+            Assert.assertEquals(1, pacienteCache.getHits());
+
+            // En el cache L2 (por id) junto a otro paciente
+            final Paciente otro = Paciente.builder().numero(401).nombre("vecino").especie("gato").build();
+            otro.insert();
+            final Long id = backendService.getPaciente(400).getId();
+            final ServerCache beanCache = Ebean.getServerCacheManager().getBeanCache(Paciente.class);
+            Ebean.find(Paciente.class, id);
+            Ebean.find(Paciente.class, otro.getId());
+            Assert.assertNotNull(beanCache.get(id));
+
+            backendService.agregarControl(Control.builder().codigo(1).fecha(new Date()).build(), 400);
+            Assert.assertEquals(Long.valueOf(2), backendService.getPaciente(400).getVersion());
+            Assert.assertNull("Paciente modificado en el cache L2", beanCache.get(id));
+            Assert.assertNotNull("Cache L2 vaciado", beanCache.get(otro.getId()));
+            Assert.assertEquals(Long.valueOf(2), Ebean.find(Paciente.class, id).getVersion());
+
+            backendService.getPaciente(400).delete();
+            Assert.assertNull(backendService.getPaciente(400));
+            log.debug("Paciente cache: {}", pacienteCache);
+        }
+
+        // Desalojo: el cache nunca supera su tamaño
+        {
+            final NaturalKeyCache<Integer> chico = new NaturalKeyCache<>(10);
+            for (int i = 0; i < 100; i++) {
+                chico.put(i, (long) i);
+            }
+            Assert.assertEquals(10, chico.size());
+            Assert.assertEquals(90, chico.getEvictions());
+        }
+
+        // Las claves usadas mas de una vez sobreviven a un recorrido de claves nuevas
+        {
+            final NaturalKeyCache<Integer> chico = new NaturalKeyCache<>(10);
+            chico.put(-1, -1L);
+            chico.get(-1);
+            for (int i = 0; i < 100; i++) {
+                chico.put(i, (long) i);
+            }
+            Assert.assertEquals(Long.valueOf(-1), chico.get(-1));
+        }
+    }
+
+    /**
+     * Las lecturas de claves en franjas distintas no esperan el mismo lock, y con varios hilos leyendo y escribiendo
+     * el cache no pierde la relacion clave -> id ni supera su tamaño.
+     */
+    @Test
+    public void testNaturalKeyCacheConcurrente() throws Exception {
+
+        final int claves = 10_000;
+        final NaturalKeyCache<Integer> cache = new NaturalKeyCache<>(claves);
+        for (int i = 0; i < claves; i++) {
+            cache.put(i, (long) i);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Con la franja de la clave 0 bloqueada, las claves de las otras franjas se leen igual
+            {
+                final NaturalKeyCache.Franja<Integer> bloqueada = cache.franja(0);
+                final Future<Integer> leidas;
+                synchronized (bloqueada) {
+                    leidas = executor.submit(() -> (int) IntStream.range(0, claves)
+                            .filter(i -> cache.franja(i) != bloqueada)
+                            .filter(i -> Long.valueOf(i).equals(cache.get(i)))
+                            .count());
+                    Assert.assertTrue("Lecturas serializadas", leidas.get(5, TimeUnit.SECONDS) > claves / 2);
+                }
+            }
+
+            // Lectores y un escritor a la vez
+            {
+                final int lectores = 3;
+                final int lecturas = 200_000;
+                final long busquedasAntes = cache.getHits() + cache.getMisses();
+
+                final List<Future<Integer>> errores = new ArrayList<>();
+                for (int t = 0; t < lectores; t++) {
+                    final int semilla = t;
+                    errores.add(executor.submit(() -> {
+                        final Random random = new Random(semilla);
+                        int distintos = 0;
+                        for (int i = 0; i < lecturas; i++) {
+                            final int clave = random.nextInt(claves * 2);
+                            final Long id = cache.get(clave);
+                            if (id != null && id != clave) {
+                                distintos++;
+                            }
+                        }
+                        return distintos;
+                    }));
+                }
+                final Future<Integer> escritor = executor.submit(() -> {
+                    for (int i = claves; i < claves * 2; i++) {
+                        cache.put(i, (long) i);
+                        cache.invalidar((long) i - claves);
+                    }
+                    return 0;
+                });
+
+                escritor.get();
+                for (Future<Integer> distintos : errores) {
+                    Assert.assertEquals("Id de otra clave", Integer.valueOf(0), distintos.get());
+                }
+                Assert.assertTrue("Mas que el tamaño", cache.size() <= claves);
+                Assert.assertEquals(lectores * lecturas, cache.getHits() + cache.getMisses() - busquedasAntes);
+                log.debug("Concurrent cache: {}", cache);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIndices() throws SQLException {
+
+        // Los planes de ejecucion de las busquedas por clave natural deben usar un indice (H2)
+        final String[] consultas = {
+                "select id from persona where rut = '1-1'",
+                "select id from persona where mail = 'jcc@gmail.com'",
+                "select id from persona where login = 'jquiñones'",
+                "select id from paciente where numero = 1",
+                "select id from control where veterinario_id = 1 order by fecha",
+                "select id from control where veterinario_id = 1 and fecha >= '2016-01-01' and (fecha > "
+                        + "'2016-01-01' or (fecha = '2016-01-01' and id > 1)) order by fecha, id limit 20",
+                "select id from control where proximo_control >= '2017-01-01' and proximo_control < '2017-01-08'",
+                "select id from paciente_history where numero = 1 and sys_period_start <= '2017-01-01'",
+                "select id from paciente_history where id = 1 and sys_period_start <= '2017-01-01'",
+                "select id from persona_history where rut = '1-1' and sys_period_start <= '2017-01-01'",
+                "select control_id from paciente_control_history where paciente_id = 1"
+                        + " and sys_period_start <= '2017-01-01'",
+        };
+
+        for (String consulta : consultas) {
+            final String texto = plan(DB, "explain ", consulta);
+            Assert.assertFalse("Full scan: " + texto, texto.contains("tableScan"));
+        }
+
+        // Las busquedas por rut, mail, numero y veterinario en SQLite y HSQLDB (sin historial): el plan no necesita
+        // filas, solo el esquema. Sin quitarle a H2 el servidor por defecto
+        final String[] naturales = {
+                "select id from persona where rut = '1-1'",
+                "select id from persona where mail = 'jcc@gmail.com'",
+                "select id from paciente where numero = 1",
+                "select id from control where veterinario_id = 1 order by fecha, id",
+        };
+
+        final EbeanBackendService sqlite = new EbeanBackendService("sqlite", Collections.emptyList(), false);
+        try {
+            sqlite.initialize();
+            for (String consulta : naturales) {
+                final String texto = plan("sqlite", "explain query plan ", consulta);
+                Assert.assertTrue("Sin indice: " + texto, texto.contains(" USING "));
+                Assert.assertFalse("Full scan: " + texto, texto.contains("SCAN TABLE"));
+            }
+        } finally {
+            sqlite.shutdown();
+        }
+
+        // El drop-all de Ebean no borra las foreign keys en HSQLDB: se parte con la base de datos (un archivo) vacia
+        try (Connection connection = DriverManager.getConnection("jdbc:hsqldb:file:database.db", "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.execute("drop schema public cascade");
+        }
+        final EbeanBackendService hsql = new EbeanBackendService("hsql", Collections.emptyList(), false);
+        try {
+            hsql.initialize();
+            for (String consulta : naturales) {
+                final String texto = plan("hsql", "explain plan for ", consulta);
+                Assert.assertTrue("Sin indice: " + texto, texto.contains("access=INDEX PRED"));
+                Assert.assertFalse("Full scan: " + texto, texto.contains("FULL SCAN"));
+            }
+        } finally {
+            hsql.shutdown();
+        }
+
+        // Rut unico; el indice de mail (y el de login) no es unico, solo acelera la busqueda
+        {
+            Persona.builder().rut("1-7").nombre("unico").direccion("d").login("u").password("p")
+                    .tipo(Persona.Tipo.CLIENTE).mail("unico@gmail.com").build().insert();
+            try {
+                Persona.builder().rut("1-7").nombre("repetido").direccion("d").login("u").password("p")
+                        .tipo(Persona.Tipo.CLIENTE).build().insert();
+                Assert.fail("Rut repetido");
+            } catch (RuntimeException e) {
+                log.debug("Rut repetido: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testFetchPlan() {
+
+        final EbeanBackendService ebean = (EbeanBackendService) backendService;
+        final int pacientes = 30;
+
+        // Insert into backend
+        final List<Persona> veterinarios = IntStream.range(0, 3)
+                .mapToObj(i -> Persona.builder()
+                        .nombre("veterinario" + i)
+                        .rut("3-" + i)
+                        .login("vet" + i)
+                        .password("vet" + i)
+                        .tipo(Persona.Tipo.VETERINARIO)
+                        .direccion("Angamos 0610")
+                        .build())
+                .collect(Collectors.toList());
+        backendService.insertar(veterinarios);
+
+        backendService.insertar(IntStream.rangeClosed(1, pacientes)
+                .mapToObj(i -> Paciente.builder().numero(i).nombre("paciente" + i).especie("perro").build()));
+
+        final Map<Integer, List<Control>> controles = new HashMap<>();
+        for (int i = 1; i <= pacientes; i++) {
+            final List<Control> lista = new ArrayList<>();
+            for (int j = 0; j < 2; j++) {
+                lista.add(Control.builder()
+                        .codigo(i * 10 + j)
+                        .fecha(new Date())
+                        .diagnostico("sano")
+                        .veterinario(veterinarios.get((i + j) % veterinarios.size()))
+                        .build());
+            }
+            controles.put(i, lista);
+        }
+        backendService.agregarControles(controles);
+
+        // Agenda de un veterinario: controles y veterinario en una sola sentencia
+        {
+            final FetchPlan agenda = FetchPlan.select("fecha,diagnostico").fetch("veterinario", "nombre");
+
+            final long antes = ebean.getSqlStatements();
+            final List<Control> agendaVet = backendService.getControlesVeterinario("3-0", agenda);
+            for (Control control : agendaVet) {
+                Assert.assertNotNull(control.getFecha());
+                Assert.assertEquals("sano", control.getDiagnostico());
+                Assert.assertEquals("veterinario0", control.getVeterinario().getNombre());
+            }
+            final long sentencias = ebean.getSqlStatements() - antes;
+            log.debug("Agenda de {} controles in {} statements", agendaVet.size(), sentencias);
+
+            Assert.assertEquals("Controles del veterinario", 2 * pacientes / veterinarios.size(), agendaVet.size());
+            Assert.assertEquals("Sentencias de la agenda", 1, sentencias);
+        }
+
+        // Pagina de pacientes con sus controles y veterinarios: a lo mas dos sentencias
+        {
+            final FetchPlan plan = FetchPlan.select("numero,nombre")
+                    .fetch("controles", "fecha")
+                    .fetch("controles.veterinario", "nombre");
+
+            final long antes = ebean.getSqlStatements();
+            final List<Paciente> pagina = backendService.getPacientes(null, pacientes, plan);
+            int total = 0;
+            for (Paciente paciente : pagina) {
+                for (Control control : paciente.getControles()) {
+                    Assert.assertNotNull(control.getFecha());
+                    Assert.assertNotNull(control.getVeterinario().getNombre());
+                    total++;
+                }
+            }
+            final long sentencias = ebean.getSqlStatements() - antes;
+            log.debug("Pagina de {} pacientes y {} controles in {} statements", pagina.size(), total, sentencias);
+
+            Assert.assertEquals("Pacientes", pacientes, pagina.size());
+            Assert.assertEquals("Controles", 2 * pacientes, total);
+            Assert.assertTrue("Sentencias de la pagina: " + sentencias, sentencias <= 2);
+        }
+
+        // Sin plan las colecciones se cargan en forma lazy
+        {
+            final long antes = ebean.getSqlStatements();
+            for (Paciente paciente : backendService.getPacientes(null, pacientes)) {
+                for (Control control : paciente.getControles()) {
+                    Assert.assertNotNull(control.getVeterinario().getNombre());
+                }
+            }
+            final long sentencias = ebean.getSqlStatements() - antes;
+            log.debug("Pagina sin plan in {} statements", sentencias);
+            Assert.assertTrue("Sentencias sin plan: " + sentencias, sentencias > 2);
+        }
+    }
+
+    @Test
+    public void testResumen() {
+
+        final int pacientes = 5000;
+
+        // Insert into backend
+        final Persona vet = Persona.builder()
+                .nombre("veterinario")
+                .rut("4-1")
+                .login("vet")
+                .password("vet")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+        vet.insert();
+
+        backendService.insertar(IntStream.rangeClosed(1, pacientes)
+                .mapToObj(i -> Paciente.builder()
+                        .numero(i)
+                        .nombre("paciente" + i)
+                        .especie("perro")
+                        .raza("quiltro")
+                        .sexo(i % 2 == 0 ? Paciente.Sexo.MACHO : Paciente.Sexo.HEMBRA)
+                        .build()));
+
+        backendService.agregarControl(Control.builder().codigo(1).fecha(new Date()).diagnostico("sano")
+                .veterinario(vet).build(), 7);
+        backendService.getPaciente(pacientes).delete();
+
+        // Conteo y existencia
+        {
+            Assert.assertEquals("Sin el eliminado", pacientes - 1, backendService.countPacientes());
+            Assert.assertTrue(backendService.existsPaciente(1));
+            Assert.assertFalse("Eliminado", backendService.existsPaciente(pacientes));
+            Assert.assertFalse(backendService.existsPaciente(pacientes + 1));
+        }
+
+        // Paginas del resumen
+        {
+            final List<PacienteSummary> primera = backendService.getPacientesResumen(null, 10);
+            Assert.assertEquals(10, primera.size());
+            Assert.assertEquals(new PacienteSummary(1, "paciente1", "perro", "quiltro", Paciente.Sexo.HEMBRA),
+                    primera.get(0));
+
+            final List<PacienteSummary> ultima = backendService.getPacientesResumen(pacientes - 3, 10);
+            Assert.assertEquals("Sin el eliminado", 2, ultima.size());
+            Assert.assertEquals(Integer.valueOf(pacientes - 1), ultima.get(1).getNumero());
+            Assert.assertEquals(Paciente.Sexo.MACHO, ultima.get(0).getSexo());
+        }
+
+        // Controles del veterinario con el paciente
+        {
+            final List<ControlSummary> controles = backendService.getControlesVeterinarioResumen("4-1");
+            Assert.assertEquals(1, controles.size());
+            Assert.assertEquals("veterinario", controles.get(0).getNombreVeterinario());
+            Assert.assertEquals(Integer.valueOf(7), controles.get(0).getNumeroPaciente());
+            Assert.assertEquals("sano", controles.get(0).getDiagnostico());
+            Assert.assertNull(controles.get(0).getProximoControl());
+        }
+
+        // Una fila por control, como getControlesVeterinario: con el menor numero de ficha de sus pacientes y sin
+        // los pacientes eliminados
+        {
+            final long ahora = System.currentTimeMillis();
+            final Control compartido = Control.builder().codigo(2).fecha(new Date(ahora + 1000)).diagnostico("dos")
+                    .veterinario(vet).build();
+            backendService.agregarControl(compartido, 8);
+            Ebean.createSqlUpdate("insert into paciente_control (paciente_id, control_id) values (:paciente, :control)")
+                    .setParameter("paciente", backendService.getPaciente(9).getId())
+                    .setParameter("control", compartido.getId())
+                    .execute();
+
+            backendService.agregarControl(Control.builder().codigo(3).fecha(new Date(ahora + 2000)).diagnostico("tres")
+                    .veterinario(vet).build(), 6);
+            backendService.getPaciente(6).delete();
+
+            final List<ControlSummary> controles = backendService.getControlesVeterinarioResumen("4-1");
+            Assert.assertEquals(backendService.getControlesVeterinario("4-1").stream()
+                            .map(Control::getCodigo)
+                            .collect(Collectors.toList()),
+                    controles.stream().map(ControlSummary::getCodigo).collect(Collectors.toList()));
+            Assert.assertEquals("Menor numero", Integer.valueOf(8), controles.get(1).getNumeroPaciente());
+            Assert.assertNull("Paciente eliminado", controles.get(2).getNumeroPaciente());
+
+            backendService.getPaciente(8).delete();
+            Assert.assertEquals("Sin el eliminado", Integer.valueOf(9),
+                    backendService.getControlesVeterinarioResumen("4-1").get(1).getNumeroPaciente());
+        }
+
+        // Memoria y tiempo por fila: beans vs resumen (luego de calentar)
+        {
+            final com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            final long hilo = Thread.currentThread().getId();
+
+            for (int i = 0; i < 3; i++) {
+                backendService.getPacientes(null, pacientes);
+                backendService.getPacientesResumen(null, pacientes);
+            }
+
+            long bytes = threads.getThreadAllocatedBytes(hilo);
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            final List<Paciente> beans = backendService.getPacientes(null, pacientes);
+            final long nanosBeans = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+            final long bytesBeans = threads.getThreadAllocatedBytes(hilo) - bytes;
+
+            bytes = threads.getThreadAllocatedBytes(hilo);
+            stopwatch = Stopwatch.createStarted();
+            final List<PacienteSummary> resumen = backendService.getPacientesResumen(null, pacientes);
+            final long nanosResumen = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+            final long bytesResumen = threads.getThreadAllocatedBytes(hilo) - bytes;
+
+            Assert.assertEquals(beans.size(), resumen.size());
+            log.debug("Paciente: {} bytes/row, {} ns/row. PacienteSummary: {} bytes/row, {} ns/row.",
+                    bytesBeans / beans.size(), nanosBeans / beans.size(),
+                    bytesResumen / resumen.size(), nanosResumen / resumen.size());
+
+            Assert.assertTrue("El resumen debe asignar menos memoria", bytesResumen < bytesBeans);
+        }
+    }
+
+    @Test
+    public void testSignosVitales() {
+
+        final EbeanBackendService ebean = (EbeanBackendService) backendService;
+        final int controles = 90;
+
+        // Insert into backend: 3 pacientes, 2 veterinarios, enero a marzo de 2016
+        final List<Persona> veterinarios = IntStream.rangeClosed(1, 2)
+                .mapToObj(i -> Persona.builder()
+                        .nombre("veterinario" + i)
+                        .rut("1-" + i)
+                        .login("vet" + i)
+                        .password("vet" + i)
+                        .tipo(Persona.Tipo.VETERINARIO)
+                        .direccion("Angamos 0610")
+                        .build())
+                .collect(Collectors.toList());
+        veterinarios.forEach(Persona::insert);
+
+        final Map<Integer, List<Control>> porPaciente = new HashMap<>();
+        for (int i = 1; i <= 3; i++) {
+            Paciente.builder().numero(i).nombre("paciente" + i).especie("perro").build().insert();
+            porPaciente.put(i, new ArrayList<>());
+        }
+        final Map<YearMonth, List<Control>> porMes = new TreeMap<>();
+        final Map<YearMonth, List<Control>> porMesPaciente = new TreeMap<>();
+        for (int i = 0; i < controles; i++) {
+            final LocalDate dia = LocalDate.of(2016, 1, 1).plusDays(i);
+            final Control control = Control.builder()
+                    .codigo(i)
+                    .fecha(Date.from(dia.atTime(10, 30).atZone(ZoneId.systemDefault()).toInstant()))
+                    .peso(10 + i)
+                    .temperatura(38 + (i % 5) * 0.1)
+                    .altura(0.5 + (i % 3) * 0.1)
+                    .diagnostico("sano")
+                    .veterinario(veterinarios.get(i % 2))
+                    .build();
+            porPaciente.get(i % 3 + 1).add(control);
+            porMes.computeIfAbsent(YearMonth.from(dia), mes -> new ArrayList<>()).add(control);
+            if (i % 3 == 0) {
+                porMesPaciente.computeIfAbsent(YearMonth.from(dia), mes -> new ArrayList<>()).add(control);
+            }
+        }
+        final Control eliminado = Control.builder().codigo(-1).fecha(new Date()).peso(1000).temperatura(50)
+                .altura(10).veterinario(veterinarios.get(0)).build();
+        porPaciente.get(1).add(eliminado);
+
+        // Paciente eliminado: sus controles vigentes no cuentan
+        Paciente.builder().numero(4).nombre("paciente4").especie("gato").build().insert();
+        porPaciente.put(4, IntStream.range(0, 5)
+                .mapToObj(i -> Control.builder().codigo(1000 + i)
+                        .fecha(Date.from(LocalDate.of(2016, 1, 15).atTime(10, 30).atZone(ZoneId.systemDefault())
+                                .toInstant()))
+                        .peso(500).temperatura(45).altura(5).veterinario(veterinarios.get(1)).build())
+                .collect(Collectors.toList()));
+
+        backendService.agregarControles(porPaciente);
+        eliminado.delete();
+        porPaciente.get(1).remove(eliminado);
+        backendService.getPaciente(4).delete();
+        porPaciente.remove(4);
+
+        // Por paciente
+        {
+            final long antes = ebean.getSqlStatements();
+            final Map<Integer, SignosVitales> signos = backendService.getSignosVitalesPorPaciente();
+            Assert.assertEquals("Sentencias por paciente", 1, ebean.getSqlStatements() - antes);
+
+            Assert.assertEquals(Arrays.asList(1, 2, 3), new ArrayList<>(signos.keySet()));
+            for (Map.Entry<Integer, SignosVitales> entry : signos.entrySet()) {
+                assertSignosVitales(porPaciente.get(entry.getKey()), entry.getValue());
+            }
+        }
+
+        // Por veterinario
+        {
+            final long antes = ebean.getSqlStatements();
+            final Map<String, SignosVitales> signos = backendService.getSignosVitalesPorVeterinario();
+            Assert.assertEquals("Sentencias por veterinario", 1, ebean.getSqlStatements() - antes);
+
+            Assert.assertEquals(Arrays.asList("1-1", "1-2"), new ArrayList<>(signos.keySet()));
+            assertSignosVitales(porPaciente.values().stream().flatMap(List::stream)
+                    .filter(c -> c.getVeterinario().getRut().equals("1-2"))
+                    .collect(Collectors.toList()), signos.get("1-2"));
+        }
+
+        // Por mes, de la clinica y de un paciente
+        {
+            final long antes = ebean.getSqlStatements();
+            final Map<YearMonth, SignosVitales> signos = backendService.getSignosVitalesPorMes(null);
+            Assert.assertEquals("Sentencias por mes", 1, ebean.getSqlStatements() - antes);
+
+            Assert.assertEquals(new ArrayList<>(porMes.keySet()), new ArrayList<>(signos.keySet()));
+            for (Map.Entry<YearMonth, SignosVitales> entry : signos.entrySet()) {
+                assertSignosVitales(porMes.get(entry.getKey()), entry.getValue());
+            }
+
+            final Map<YearMonth, SignosVitales> paciente = backendService.getSignosVitalesPorMes(1);
+            Assert.assertEquals(new ArrayList<>(porMesPaciente.keySet()), new ArrayList<>(paciente.keySet()));
+            for (Map.Entry<YearMonth, SignosVitales> entry : paciente.entrySet()) {
+                assertSignosVitales(porMesPaciente.get(entry.getKey()), entry.getValue());
+            }
+
+            Assert.assertTrue("Paciente inexistente", backendService.getSignosVitalesPorMes(99).isEmpty());
+            Assert.assertTrue("Paciente eliminado", backendService.getSignosVitalesPorMes(4).isEmpty());
+        }
+    }
+
+    /**
+     * Compara los agregados de la base de datos con los calculados en memoria.
+     */
+    private static void assertSignosVitales(final List<Control> controles, final SignosVitales signos) {
+
+        final DoubleSummaryStatistics peso = controles.stream().mapToDouble(Control::getPeso).summaryStatistics();
+        final DoubleSummaryStatistics temperatura = controles.stream().mapToDouble(Control::getTemperatura)
+                .summaryStatistics();
+        final DoubleSummaryStatistics altura = controles.stream().mapToDouble(Control::getAltura).summaryStatistics();
+
+        Assert.assertEquals("Controles", controles.size(), signos.getControles());
+        Assert.assertEquals(peso.getMin(), signos.getPesoMinimo(), 1e-9);
+        Assert.assertEquals(peso.getAverage(), signos.getPesoPromedio(), 1e-9);
+        Assert.assertEquals(peso.getMax(), signos.getPesoMaximo(), 1e-9);
+        Assert.assertEquals(temperatura.getMin(), signos.getTemperaturaMinima(), 1e-9);
+        Assert.assertEquals(temperatura.getAverage(), signos.getTemperaturaPromedio(), 1e-9);
+        Assert.assertEquals(temperatura.getMax(), signos.getTemperaturaMaxima(), 1e-9);
+        Assert.assertEquals(altura.getMin(), signos.getAlturaMinima(), 1e-9);
+        Assert.assertEquals(altura.getAverage(), signos.getAlturaPromedio(), 1e-9);
+        Assert.assertEquals(altura.getMax(), signos.getAlturaMaxima(), 1e-9);
+    }
+
+    @Test
+    public void testExportarPacientes() throws IOException {
+
+        final int pacientes = 5000;
+
+        // Insert into backend
+        final Persona vet = Persona.builder()
+                .nombre("veterinario")
+                .rut("5-1")
+                .login("vet")
+                .password("vet")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+        vet.insert();
+
+        backendService.insertar(IntStream.rangeClosed(1, pacientes)
+                .mapToObj(i -> Paciente.builder().numero(i).nombre("paciente" + i).especie("perro")
+                        .sexo(Paciente.Sexo.HEMBRA).build()));
+
+        // Un control cada 10 pacientes
+        final Map<Integer, List<Control>> controles = new HashMap<>();
+        for (int i = 10; i <= pacientes; i += 10) {
+            final List<Control> lista = new ArrayList<>();
+            lista.add(Control.builder().codigo(i).fecha(new Date()).diagnostico("sano").veterinario(vet).build());
+            controles.put(i, lista);
+        }
+        backendService.agregarControles(controles);
+
+        // Propietario de los pacientes 1 y 2
+        final List<Paciente> mascotas = new ArrayList<>();
+        mascotas.add(backendService.getPaciente(1));
+        mascotas.add(backendService.getPaciente(2));
+        Persona.builder()
+                .nombre("cliente")
+                .rut("5-2")
+                .login("cliente")
+                .password("cliente")
+                .tipo(Persona.Tipo.CLIENTE)
+                .direccion("Angamos 0611")
+                .pacientes(mascotas)
+                .build()
+                .insert();
+
+        backendService.getPaciente(pacientes).delete();
+
+        for (boolean gzip : new boolean[]{false, true}) {
+
+            final Path archivo = Files.createTempFile("pacientes", gzip ? ".json.gz" : ".json");
+            try {
+                final Exportacion exportacion = backendService.exportarPacientes(archivo, gzip);
+                log.debug("Export (gzip: {}): {} at {} pacientes/s", gzip, exportacion,
+                        Math.round(exportacion.getPacientesPorSegundo()));
+
+                Assert.assertEquals("Sin el eliminado", pacientes - 1, exportacion.getPacientes());
+                Assert.assertEquals("Controles", pacientes / 10 - 1, exportacion.getControles());
+                Assert.assertEquals("Propietarios", 2, exportacion.getPropietarios());
+                Assert.assertEquals(Files.size(archivo), exportacion.getBytes());
+
+                // Lectura del archivo en streaming
+                int leidos = 0;
+                try (InputStream in = gzip ? new GZIPInputStream(Files.newInputStream(archivo))
+                        : Files.newInputStream(archivo);
+                     JsonReader json = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        int numero = 0;
+                        int propietarios = 0;
+                        int controlesPaciente = 0;
+                        json.beginObject();
+                        while (json.hasNext()) {
+                            switch (json.nextName()) {
+                                case "numero":
+                                    numero = json.nextInt();
+                                    break;
+                                case "sexo":
+                                    Assert.assertEquals("HEMBRA", json.nextString());
+                                    break;
+                                case "propietarios":
+                                    json.beginArray();
+                                    while (json.hasNext()) {
+                                        json.beginObject();
+                                        while (json.hasNext()) {
+                                            if ("rut".equals(json.nextName())) {
+                                                Assert.assertEquals("5-2", json.nextString());
+                                            } else {
+                                                json.skipValue();
+                                            }
+                                        }
+                                        json.endObject();
+                                        propietarios++;
+                                    }
+                                    json.endArray();
+                                    break;
+                                case "controles":
+                                    json.beginArray();
+                                    while (json.hasNext()) {
+                                        json.beginObject();
+                                        while (json.hasNext()) {
+                                            if ("veterinario".equals(json.nextName())) {
+                                                Assert.assertEquals("5-1", json.nextString());
+                                            } else {
+                                                json.skipValue();
+                                            }
+                                        }
+                                        json.endObject();
+                                        controlesPaciente++;
+                                    }
+                                    json.endArray();
+                                    break;
+                                default:
+                                    json.skipValue();
+                            }
+                        }
+                        json.endObject();
+
+                        leidos++;
+                        Assert.assertEquals("Orden por id", leidos, numero);
+                        Assert.assertEquals("Propietarios de " + numero, numero <= 2 ? 1 : 0, propietarios);
+                        Assert.assertEquals("Controles de " + numero, numero % 10 == 0 ? 1 : 0, controlesPaciente);
+                    }
+                    json.endArray();
+                }
+                Assert.assertEquals(pacientes - 1, leidos);
+
+            } finally {
+                Files.delete(archivo);
+            }
         }
     }
 
@@ -0,0 +1,178 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.service.AsyncBackendService;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+/**
+ * Clase de testing del {@link EbeanBackendService} con replicas de solo lectura.
+ */
+@Slf4j
+public class TestEbeanReplicas {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    /**
+     * Backend
+     */
+    private EbeanBackendService backendService;
+
+    @After
+    public void afterTest() {
+        if (backendService != null) {
+            backendService.shutdown();
+        }
+    }
+
+    /**
+     * Replicas sincronicas (la misma base de datos): las lecturas se reparten y retornan lo mismo.
+     */
+    @Test
+    public void testRepartirLecturas() throws Exception {
+
+        backendService = new EbeanBackendService("h2", Arrays.asList("h2replica", "h2replica"));
+        backendService.initialize();
+        backendService.setVentanaLecturaPropia(0);
+
+        // Insert into backend
+        backendService.insertar(IntStream.rangeClosed(1, 100)
+                .mapToObj(i -> Paciente.builder().numero(i).nombre("paciente" + i).especie("gato").build()));
+
+        // Desde otro hilo, que no escribio
+        CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(100, backendService.countPacientes());
+                Assert.assertEquals("paciente7", backendService.getPaciente(7).getNombre());
+            }
+        }).get();
+
+        final List<EstadoPool> estados = backendService.getEstadoPools();
+        log.debug("Pools: {}", estados);
+
+        Assert.assertEquals(3, estados.size());
+        Assert.assertTrue(estados.get(0).isPrimario());
+        Assert.assertEquals("Nada leido del primario", 0, estados.get(0).getLecturas());
+        Assert.assertEquals("Round robin", 10, estados.get(1).getLecturas());
+        Assert.assertEquals("Round robin", 10, estados.get(2).getLecturas());
+        for (EstadoPool estado : estados) {
+            Assert.assertEquals("Sin conexiones retenidas: " + estado, 0, estado.getOcupadas());
+            Assert.assertTrue(estado.getMaximo() > 0);
+        }
+    }
+
+    /**
+     * Replica retrasada (otra base de datos, vacia): el hilo que escribio lee del primario durante la ventana,
+     * los demas hilos leen de la replica.
+     */
+    @Test
+    public void testLecturaPropia() throws Exception {
+
+        backendService = new EbeanBackendService("h2", Collections.singletonList("h2retrasada"));
+        backendService.initialize();
+
+        // Insert into backend
+        final Persona vet = Persona.builder()
+                .nombre("veterinario")
+                .rut("1-1")
+                .login("vet")
+                .password("vet")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+        vet.insert();
+        Paciente.builder().numero(1).nombre("firulais").especie("perro").build().insert();
+
+        Assert.assertNotNull("Lee lo que escribio", backendService.getPaciente(1));
+        Assert.assertNull("La replica aun no lo tiene",
+                CompletableFuture.supplyAsync(() -> backendService.getPaciente(1)).get());
+
+        // La ventana vence
+        backendService.setVentanaLecturaPropia(0);
+        Paciente.builder().numero(2).nombre("cachupin").especie("perro").build().insert();
+        Assert.assertNull("Sin ventana lee de la replica", backendService.getPaciente(2));
+        Assert.assertEquals(0, backendService.countPacientes());
+
+        // Dentro de una transaccion siempre lee del primario
+        final Transaction txn = Ebean.beginTransaction();
+        try {
+            Assert.assertEquals(2, backendService.countPacientes());
+        } finally {
+            txn.end();
+        }
+
+        // agregarControl confirma y el mismo hilo lee el control recien agregado
+        backendService.setVentanaLecturaPropia(60000);
+        backendService.agregarControl(Control.builder()
+                .codigo(1)
+                .fecha(new Date())
+                .diagnostico("sano")
+                .veterinario(vet)
+                .build(), 2);
+        Assert.assertEquals(1, backendService.getControlesVeterinario("1-1").size());
+        Assert.assertEquals(1, backendService.getPaciente(2).getControles().size());
+        Assert.assertEquals(0, (int) CompletableFuture.supplyAsync(
+                () -> backendService.getControlesVeterinario("1-1").size()).get());
+
+        log.debug("Pools: {}", backendService.getEstadoPools());
+    }
+
+    /**
+     * La lectura de lo propio es por hilo: no se mantiene a traves de {@link AsyncBackendService}, cuyas
+     * operaciones se ejecutan en hilos que no escribieron.
+     */
+    @Test
+    public void testLecturaPropiaAsync() throws Exception {
+
+        backendService = new EbeanBackendService("h2", Collections.singletonList("h2retrasada"));
+        backendService.initialize();
+        backendService.setVentanaLecturaPropia(60000);
+        final AsyncBackendService async = new AsyncBackendService(backendService, 2);
+        try {
+            this.lecturaPropiaAsync(async);
+        } finally {
+            async.shutdown();
+        }
+    }
+
+    private void lecturaPropiaAsync(final AsyncBackendService async) throws Exception {
+
+        // Escrito en este hilo
+        Paciente.builder().numero(1).nombre("firulais").especie("perro").build().insert();
+        Assert.assertNotNull("Lee lo que escribio", backendService.getPaciente(1));
+
+        // Leido en un hilo del executor: de la replica, aun despues de esperar la escritura
+        Assert.assertNull("Lectura asincrona en la replica", async.getPaciente(1).get());
+        Assert.assertFalse("Lectura asincrona en la replica", async.existsPaciente(1).get());
+
+        // Escrito en un hilo del executor: este hilo no lo ve en la replica salvo dentro de una transaccion
+        final CompletableFuture<Paciente> enOtroHilo = CompletableFuture.supplyAsync(() -> {
+            async.agregarControl(Control.builder().codigo(1).fecha(new Date()).build(), 1).join();
+            return backendService.getPaciente(1);
+        });
+        Assert.assertNull("El hilo que pidio la escritura lee de la replica", enOtroHilo.get());
+        final Transaction txn = Ebean.beginTransaction();
+        try {
+            Assert.assertEquals(1, backendService.getPaciente(1).getControles().size());
+        } finally {
+            txn.end();
+        }
+    }
+
+}
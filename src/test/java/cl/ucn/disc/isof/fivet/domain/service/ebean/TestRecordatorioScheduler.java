@@ -0,0 +1,266 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.model.Recordatorio;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Clase de testing del {@link RecordatorioScheduler}.
+ */
+@Slf4j
+public class TestRecordatorioScheduler {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    /**
+     * Configuracion de la base de datos:  h2, hsql, sqlite
+     */
+    private static final String DB = "h2";
+
+    /**
+     * Fecha de la primera revision
+     */
+    private static final Instant INICIO = Instant.parse("2017-01-01T00:00:00Z");
+
+    private static final int PACIENTES = 20;
+
+    /**
+     * Un proximo control cada 12 horas durante 60 dias
+     */
+    private static final int CONTROLES = 120;
+
+    /**
+     * Backend
+     */
+    private EbeanBackendService backendService;
+
+    @Before
+    public void beforeTest() {
+        backendService = new EbeanBackendService(DB);
+        backendService.initialize();
+    }
+
+    @After
+    public void afterTest() {
+        backendService.shutdown();
+    }
+
+    /**
+     * Las revisiones solo consultan la base de datos al avanzar el horizonte; los controles agregados entran a la
+     * cola sin consultar y los eliminados salen de ella.
+     */
+    @Test
+    public void testRevisar() throws InterruptedException {
+
+        final Persona vet = veterinario();
+
+        // Insert into backend
+        final List<Control> controles = new ArrayList<>();
+        {
+            final Map<Integer, List<Control>> porPaciente = new HashMap<>();
+            for (int i = 1; i <= PACIENTES; i++) {
+                Paciente.builder().numero(i).nombre("paciente" + i).especie("perro").build().insert();
+                porPaciente.put(i, new ArrayList<>());
+            }
+            for (int i = 0; i < CONTROLES; i++) {
+                final Control control = control(i, INICIO.plus(Duration.ofHours(12 * i)), vet);
+                controles.add(control);
+                porPaciente.get(i % PACIENTES + 1).add(control);
+            }
+            // Vencido antes de la primera revision y sin proximo control: sin recordatorio
+            porPaciente.get(1).add(control(1000, INICIO.minus(Duration.ofDays(1)), vet));
+            porPaciente.get(1).add(control(1001, null, vet));
+            backendService.agregarControles(porPaciente);
+        }
+
+        final RecordatorioScheduler scheduler = backendService.getRecordatorios()
+                .anticipacion(Duration.ofDays(7))
+                .precarga(Duration.ofDays(7))
+                .reloj(reloj(0));
+
+        // Primera revision: lee [inicio, inicio + 14 dias) y entrega hasta el dia 7
+        {
+            final List<Recordatorio> vencidos = scheduler.revisar();
+            Assert.assertEquals("Dias 0 a 7", 15, vencidos.size());
+            Assert.assertEquals(controles.get(0).getId(), vencidos.get(0).getIdControl());
+            Assert.assertEquals(INICIO, vencidos.get(0).getProximoControl());
+            Assert.assertEquals(Integer.valueOf(1), vencidos.get(0).getNumeroPaciente());
+            Assert.assertEquals("Un tramo", 1, scheduler.getConsultas());
+            Assert.assertEquals("Dias 7.5 a 13.5 en memoria", 13, scheduler.size());
+        }
+
+        // Revisiones dentro del horizonte: sin sentencias SQL
+        {
+            final long antes = backendService.getSqlStatements();
+            Assert.assertTrue("Ya entregados", scheduler.revisar().isEmpty());
+
+            scheduler.reloj(reloj(3));
+            final List<Recordatorio> vencidos = scheduler.revisar();
+            Assert.assertEquals("Dias 7.5 a 10", 6, vencidos.size());
+            for (int i = 1; i < vencidos.size(); i++) {
+                Assert.assertTrue("Desordenados", vencidos.get(i - 1).getProximoControl()
+                        .isBefore(vencidos.get(i).getProximoControl()));
+            }
+            Assert.assertEquals("Sentencias de las revisiones", 0, backendService.getSqlStatements() - antes);
+        }
+
+        // Agregados dentro del horizonte entran a la cola; fuera del horizonte los lee su tramo
+        final Control agregado = control(2000, INICIO.plus(Duration.ofDays(12)), vet);
+        final Control lejano = control(2001, INICIO.plus(Duration.ofDays(30)), vet);
+        backendService.agregarControles(Collections.singletonMap(3, Arrays.asList(agregado, lejano)));
+        Assert.assertEquals("Solo el del horizonte", 8, scheduler.size());
+
+        // Eliminado: sale de la cola
+        controles.get(22).delete();
+        Assert.assertEquals(7, scheduler.size());
+
+        // La ventana alcanza el horizonte: lee solo el tramo nuevo
+        {
+            scheduler.reloj(reloj(8));
+            final List<Recordatorio> vencidos = scheduler.revisar();
+            final Set<Long> ids = vencidos.stream().map(Recordatorio::getIdControl).collect(Collectors.toSet());
+            Assert.assertEquals("Dias 10.5 a 15, sin el eliminado, con el agregado", 10, vencidos.size());
+            Assert.assertTrue(ids.contains(agregado.getId()));
+            Assert.assertFalse(ids.contains(controles.get(22).getId()));
+            Assert.assertEquals("Dos tramos", 2, scheduler.getConsultas());
+        }
+
+        // Periodicamente: entrega el resto una sola vez
+        final List<Recordatorio> entregados = new CopyOnWriteArrayList<>();
+        scheduler.reloj(reloj(60));
+        scheduler.iniciar(entregados::add, 10, TimeUnit.MILLISECONDS);
+        final int restantes = CONTROLES - 15 - 6 - 9 - 1 + 1;
+        while (entregados.size() < restantes) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        scheduler.detener();
+
+        log.debug("Delivered {} reminders with {} queries.", entregados.size(), scheduler.getConsultas());
+        Assert.assertEquals("Sin repetidos", restantes, entregados.size());
+        Assert.assertEquals(restantes, new HashSet<>(entregados).size());
+        Assert.assertTrue(entregados.stream().anyMatch(r -> r.getIdControl().equals(lejano.getId())));
+        Assert.assertEquals(0, scheduler.size());
+    }
+
+    /**
+     * Al reiniciar se lee desde el limite guardado: se entregan los que vencieron con el proceso detenido y se
+     * repiten los entregados despues de ese limite (al menos una vez).
+     */
+    @Test
+    public void testReiniciar() {
+
+        final Persona vet = veterinario();
+        final List<Control> controles = new ArrayList<>();
+        {
+            final Map<Integer, List<Control>> porPaciente = new HashMap<>();
+            for (int i = 1; i <= PACIENTES; i++) {
+                Paciente.builder().numero(i).nombre("paciente" + i).especie("perro").build().insert();
+                porPaciente.put(i, new ArrayList<>());
+            }
+            for (int i = 0; i < CONTROLES; i++) {
+                final Control control = control(i, INICIO.plus(Duration.ofHours(12 * i)), vet);
+                controles.add(control);
+                porPaciente.get(i % PACIENTES + 1).add(control);
+            }
+            backendService.agregarControles(porPaciente);
+        }
+
+        // Entrega hasta el dia 7, luego hasta el 10; el dia 8 lee el tramo nuevo y guarda el dia 10
+        final RecordatorioScheduler scheduler = backendService.getRecordatorios()
+                .anticipacion(Duration.ofDays(7))
+                .precarga(Duration.ofDays(7))
+                .reloj(reloj(0));
+        Assert.assertEquals("Dias 0 a 7", 15, scheduler.revisar().size());
+        Assert.assertEquals("Dias 7.5 a 10", 6, scheduler.reloj(reloj(3)).revisar().size());
+        Assert.assertEquals("Dias 10.5 a 15", 10, scheduler.reloj(reloj(8)).revisar().size());
+
+        // Controles agregados con los modelos (sin agregarControles) dentro del horizonte: se leen por id
+        {
+            final Control insertado = control(3000, INICIO.plus(Duration.ofDays(16)), vet);
+            final Paciente paciente = backendService.getPaciente(1);
+            final Transaction txn = Ebean.beginTransaction();
+            try {
+                insertado.insert();
+                paciente.getControles().add(insertado);
+                paciente.update();
+                txn.commit();
+            } finally {
+                txn.end();
+            }
+            final List<Recordatorio> vencidos = scheduler.reloj(reloj(9)).revisar();
+            Assert.assertEquals("Dias 15.5 y 16, con el insertado", 3, vencidos.size());
+            Assert.assertTrue(vencidos.stream().anyMatch(r -> r.getIdControl().equals(insertado.getId())));
+            Assert.assertEquals(Integer.valueOf(1), vencidos.stream()
+                    .filter(r -> r.getIdControl().equals(insertado.getId())).findFirst().get().getNumeroPaciente());
+        }
+
+        // Detenido hasta el dia 20: otro scheduler sobre la misma base de datos
+        final RecordatorioScheduler reiniciado = new RecordatorioScheduler()
+                .anticipacion(Duration.ofDays(7))
+                .precarga(Duration.ofDays(7))
+                .reloj(reloj(20));
+        reiniciado.setEbeanServer(Ebean.getDefaultServer());
+        final List<Recordatorio> vencidos = reiniciado.revisar();
+        Assert.assertEquals("Dias 10 a 27, con el insertado", 35 + 1, vencidos.size());
+        Assert.assertEquals("Repetido desde el limite guardado", INICIO.plus(Duration.ofDays(10)),
+                vencidos.get(0).getProximoControl());
+        Assert.assertTrue("Vencido con el proceso detenido", vencidos.stream()
+                .anyMatch(r -> r.getIdControl().equals(controles.get(2 * 18).getId())));
+    }
+
+    private static Persona veterinario() {
+        final Persona vet = Persona.builder()
+                .nombre("veterinario")
+                .rut("1-1")
+                .login("vet")
+                .password("vet")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+        vet.insert();
+        return vet;
+    }
+
+    private static Control control(final int codigo, final Instant proximoControl, final Persona vet) {
+        return Control.builder()
+                .codigo(codigo)
+                .fecha(new Date())
+                .proximoControl(proximoControl == null ? null : Date.from(proximoControl))
+                .diagnostico("sano")
+                .veterinario(vet)
+                .build();
+    }
+
+    private static Clock reloj(final int dias) {
+        return Clock.fixed(INICIO.plus(Duration.ofDays(dias)), ZoneOffset.UTC);
+    }
+
+}
@@ -0,0 +1,228 @@
+package cl.ucn.disc.isof.fivet.domain.service.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.model.SignosVitales;
+import cl.ucn.disc.isof.fivet.domain.service.Exportacion;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Clase de testing del {@link ShardedBackendService} con tres bases de datos h2 en memoria.
+ */
+@Slf4j
+public class TestShardedBackendService {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Shards
+     */
+    private static final List<String> SHARDS = Arrays.asList("h2shard0", "h2shard1", "h2shard2");
+
+    private static final int PACIENTES = 30;
+
+    /**
+     * Controles por paciente
+     */
+    private static final int CONTROLES = 3;
+
+    /**
+     * Backend
+     */
+    private ShardedBackendService backendService;
+
+    @Before
+    public void beforeTest() {
+        backendService = new ShardedBackendService(SHARDS);
+        backendService.initialize();
+    }
+
+    @After
+    public void afterTest() {
+        backendService.shutdown();
+    }
+
+    /**
+     * Cada paciente y persona queda en su shard; los listados de todos los shards llegan mezclados en orden.
+     */
+    @Test
+    public void testRepartir() throws Exception {
+
+        final Persona vet = Persona.builder()
+                .nombre("veterinario")
+                .rut("1-1")
+                .login("vet")
+                .password("vet")
+                .mail("vet@ucn.cl")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .build();
+
+        // Nombres con y sin tildes, desordenados respecto del numero
+        final String[] nombres = {"Ñandú", "nano", "Nala", "nube"};
+        final List<Paciente> pacientes = IntStream.rangeClosed(1, PACIENTES)
+                .mapToObj(i -> Paciente.builder().numero(i).nombre(nombres[i % nombres.length] + i)
+                        .especie("perro").build())
+                .collect(Collectors.toList());
+
+        final List<Long> ids = backendService.insertar(pacientes);
+        backendService.insertar(Arrays.asList(vet));
+        Assert.assertEquals(PACIENTES, ids.size());
+
+        // Cada paciente en su shard, con un id del rango del shard
+        for (int i = 0; i < PACIENTES; i++) {
+            final int shard = backendService.shardPaciente(i + 1);
+            Assert.assertEquals("Ids en orden", pacientes.get(i).getId(), ids.get(i));
+            Assert.assertEquals("Rango de ids", shard, ShardedBackendService.shardId(ids.get(i)));
+        }
+        for (EbeanBackendService shard : backendService.getShards()) {
+            Assert.assertEquals("Repartidos", PACIENTES / SHARDS.size(), shard.countPacientes());
+        }
+        Assert.assertEquals(PACIENTES, backendService.countPacientes());
+
+        // Un paciente: solo su shard
+        {
+            final int numero = 17;
+            final EbeanBackendService otro = backendService.getShards()
+                    .get((backendService.shardPaciente(numero) + 1) % SHARDS.size());
+            final long antes = otro.getSqlStatements();
+            Assert.assertEquals("nano17", backendService.getPaciente(numero).getNombre());
+            Assert.assertTrue(backendService.existsPaciente(numero));
+            Assert.assertEquals("Sentencias en otro shard", 0, otro.getSqlStatements() - antes);
+        }
+
+        // Todos, y por paginas, ordenados por numero
+        {
+            final List<Integer> todos = backendService.getPacientes().stream().map(Paciente::getNumero)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(IntStream.rangeClosed(1, PACIENTES).boxed().collect(Collectors.toList()), todos);
+
+            final List<Integer> paginados = new ArrayList<>();
+            Integer ultimo = null;
+            for (List<Paciente> pagina = backendService.getPacientes(ultimo, 7); !pagina.isEmpty();
+                 pagina = backendService.getPacientes(ultimo, 7)) {
+                Assert.assertTrue("Pagina", pagina.size() <= 7);
+                pagina.forEach(p -> paginados.add(p.getNumero()));
+                ultimo = pagina.get(pagina.size() - 1).getNumero();
+            }
+            Assert.assertEquals(todos, paginados);
+        }
+
+        // Por nombre, sin mayusculas ni tildes, ordenados entre shards
+        {
+            final List<Paciente> encontrados = backendService.getPacientesPorNombre("nan");
+            Assert.assertEquals("Ñandú y nano", PACIENTES / 2, encontrados.size());
+            for (int i = 1; i < encontrados.size(); i++) {
+                Assert.assertTrue("Desordenados", PacienteNombreIndex.normalizar(encontrados.get(i - 1).getNombre())
+                        .compareTo(PacienteNombreIndex.normalizar(encontrados.get(i).getNombre())) <= 0);
+            }
+            Assert.assertEquals(encontrados.subList(0, 4), backendService.getPacientesPorNombre("nan", 4));
+        }
+
+        // Controles de todos los pacientes con el mismo veterinario: se copia a los otros shards
+        final Date inicio = new Date(1483228800000L);
+        final Map<Integer, List<Control>> controles = new HashMap<>();
+        for (int i = 1; i <= PACIENTES; i++) {
+            final List<Control> delPaciente = new ArrayList<>();
+            for (int j = 0; j < CONTROLES; j++) {
+                final int codigo = i * 10 + j;
+                delPaciente.add(Control.builder()
+                        .codigo(codigo)
+                        // Fechas repetidas entre pacientes: la pagina desempata por id
+                        .fecha(new Date(inicio.getTime() + (i % 5) * 60000L + j * 3600000L))
+                        .peso(codigo)
+                        .diagnostico("sano")
+                        .veterinario(vet)
+                        .build());
+            }
+            controles.put(i, delPaciente);
+        }
+        backendService.agregarControles(controles);
+
+        for (int i = 0; i < SHARDS.size(); i++) {
+            final Persona enShard = backendService.getShards().get(i).getPersona(vet.getRut());
+            Assert.assertNotNull("Veterinario en el shard " + i, enShard);
+            Assert.assertEquals(i, ShardedBackendService.shardId(enShard.getId()));
+            if (i != backendService.shardPersona(vet.getRut())) {
+                Assert.assertNull("Copia sin mail", enShard.getMail());
+                Assert.assertNotEquals("Copia sin login", vet.getLogin(), enShard.getLogin());
+                Assert.assertNotEquals("Copia sin password", "vet", enShard.getPassword());
+            }
+        }
+        Assert.assertEquals("Persona desde su shard", vet.getId(), backendService.getPersona(vet.getRut()).getId());
+        Assert.assertEquals("Por correo", vet.getId(), backendService.getPersona(vet.getMail()).getId());
+        Assert.assertEquals(vet.getRut(), backendService.authenticate("vet", "vet").getRut());
+        Assert.assertEquals(3, backendService.getPaciente(1).getControles().size());
+
+        // Agenda del veterinario: todos los shards, por fecha; paginada por (fecha, id) sin saltos ni repetidos
+        {
+            final List<Control> agenda = backendService.getControlesVeterinario(vet.getRut());
+            Assert.assertEquals(PACIENTES * CONTROLES, agenda.size());
+            for (int i = 1; i < agenda.size(); i++) {
+                Assert.assertFalse("Desordenados", agenda.get(i).getFecha().before(agenda.get(i - 1).getFecha()));
+            }
+
+            final List<Long> paginados = new ArrayList<>();
+            Control ultimo = null;
+            for (List<Control> pagina = backendService.getControlesVeterinario(vet.getRut(), null, null, ultimo, 8);
+                 !pagina.isEmpty();
+                 pagina = backendService.getControlesVeterinario(vet.getRut(), null, null, ultimo, 8)) {
+                pagina.forEach(c -> paginados.add(c.getId()));
+                ultimo = pagina.get(pagina.size() - 1);
+            }
+            Assert.assertEquals(agenda.stream().map(Control::getId).collect(Collectors.toList()), paginados);
+
+            Assert.assertEquals(agenda.size(), backendService.getControlesVeterinarioResumen(vet.getRut()).size());
+        }
+
+        // Signos vitales del veterinario combinados entre shards
+        {
+            final SignosVitales signos = backendService.getSignosVitalesPorVeterinario().get(vet.getRut());
+            final double promedio = controles.values().stream().flatMap(List::stream)
+                    .mapToDouble(Control::getPeso).average().getAsDouble();
+            Assert.assertEquals(PACIENTES * CONTROLES, signos.getControles());
+            Assert.assertEquals(10, signos.getPesoMinimo(), 0.001);
+            Assert.assertEquals(PACIENTES * 10 + CONTROLES - 1, signos.getPesoMaximo(), 0.001);
+            Assert.assertEquals(promedio, signos.getPesoPromedio(), 0.001);
+            Assert.assertEquals(PACIENTES, backendService.getSignosVitalesPorPaciente().size());
+        }
+
+        // Exportacion: un solo arreglo con los pacientes de todos los shards
+        {
+            final Path destino = temporaryFolder.newFile("pacientes.json").toPath();
+            final Exportacion exportacion = backendService.exportarPacientes(destino, false);
+            Assert.assertEquals(PACIENTES, exportacion.getPacientes());
+            Assert.assertEquals(PACIENTES * CONTROLES, exportacion.getControles());
+        }
+    }
+
+    /**
+     * Los controles no tienen shard propio: se agregan a su paciente.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInsertarControl() {
+        backendService.insertar(Arrays.asList(Control.builder().codigo(1).fecha(new Date()).build()));
+    }
+
+}
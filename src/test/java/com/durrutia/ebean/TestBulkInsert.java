@@ -0,0 +1,74 @@
+package com.durrutia.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.service.ebean.EbeanBackendService;
+import com.avaje.ebean.Ebean;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Clase de testing del {@link BulkInsert} en SQLite, cuyo driver no retorna los ids generados de un batch.
+ */
+@Slf4j
+public class TestBulkInsert {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    /**
+     * Configuracion de la base de datos:  h2, hsql, sqlite
+     */
+    private static final String DB = "sqlite";
+
+    private static final int PACIENTES = 250;
+
+    /**
+     * Backend
+     */
+    private EbeanBackendService backendService;
+
+    @Before
+    public void beforeTest() {
+        backendService = new EbeanBackendService(DB);
+        backendService.initialize();
+    }
+
+    @After
+    public void afterTest() {
+        backendService.shutdown();
+    }
+
+    /**
+     * Sin batch JDBC, pero con los ids de cada fila, en orden y en varias transacciones.
+     */
+    @Test
+    public void testIdsGenerados() {
+
+        final BulkInsert bulkInsert = backendService.bulkInsert().batchSize(20).filasPorTransaccion(100);
+        Assert.assertFalse("Batch en SQLite", BulkInsert.isBatchGeneratedKeys(Ebean.getServer(DB)));
+
+        final List<Paciente> pacientes = IntStream.rangeClosed(1, PACIENTES)
+                .mapToObj(i -> Paciente.builder().numero(i).nombre("paciente " + i).especie("gato").build())
+                .collect(Collectors.toList());
+        final List<Long> ids = bulkInsert.insert(pacientes);
+
+        Assert.assertEquals(PACIENTES, ids.size());
+        for (int i = 0; i < PACIENTES; i++) {
+            Assert.assertNotNull("Sin id", ids.get(i));
+            Assert.assertEquals("Ids en orden", pacientes.get(i).getId(), ids.get(i));
+            Assert.assertEquals(Integer.valueOf(i + 1),
+                    Ebean.getServer(DB).find(Paciente.class, ids.get(i)).getNumero());
+        }
+        Assert.assertEquals("Ids repetidos", PACIENTES, ids.stream().distinct().count());
+        Assert.assertEquals(PACIENTES, backendService.countPacientes());
+    }
+
+}
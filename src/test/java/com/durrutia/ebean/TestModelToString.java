@@ -0,0 +1,166 @@
+package com.durrutia.ebean;
+
+import cl.ucn.disc.isof.fivet.domain.model.Control;
+import cl.ucn.disc.isof.fivet.domain.model.Paciente;
+import cl.ucn.disc.isof.fivet.domain.model.Persona;
+import cl.ucn.disc.isof.fivet.domain.service.FetchPlan;
+import cl.ucn.disc.isof.fivet.domain.service.ebean.EbeanBackendService;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.*;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Clase de testing del {@link ModelToString}: misma salida que la serializacion por reflection.
+ */
+@Slf4j
+public class TestModelToString {
+
+    /**
+     * Todos los test deben terminar antes de 60 segundos.
+     */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(60);
+
+    /**
+     * Configuracion de la base de datos:  h2, hsql, sqlite
+     */
+    private static final String DB = "h2";
+
+    /**
+     * Backend
+     */
+    private EbeanBackendService backendService;
+
+    @Before
+    public void beforeTest() {
+        backendService = new EbeanBackendService(DB);
+        backendService.initialize();
+    }
+
+    @After
+    public void afterTest() {
+        backendService.shutdown();
+    }
+
+    /**
+     * Modelos nuevos, cargados desde la base de datos, parciales y con colecciones.
+     */
+    @Test
+    public void testMismaSalida() {
+
+        final Persona vet = Persona.builder()
+                .nombre("veterinario")
+                .rut("1-1")
+                .mail("vet@gmail.com")
+                .login("vet")
+                .password("vet")
+                .tipo(Persona.Tipo.VETERINARIO)
+                .direccion("Angamos 0610")
+                .fijo(552355000)
+                .build();
+        assertMismaSalida(vet);
+
+        // Insert into backend
+        vet.insert();
+        assertMismaSalida(vet);
+
+        final Paciente paciente = Paciente.builder()
+                .numero(1)
+                .nombre("firulais")
+                .especie("perro")
+                .fechaNacimiento(new Date())
+                .sexo(Paciente.Sexo.MACHO)
+                .build();
+        assertMismaSalida(paciente);
+        paciente.insert();
+
+        for (int i = 0; i < 3; i++) {
+            backendService.agregarControl(Control.builder()
+                    .codigo(i)
+                    .fecha(new Date())
+                    .temperatura(38.5 + i)
+                    .peso(10)
+                    .diagnostico("sano")
+                    .veterinario(vet)
+                    .build(), 1);
+        }
+
+        // Desde la base de datos, con los controles sin cargar y cargados
+        {
+            final Paciente cargado = backendService.getPaciente(1);
+            assertMismaSalida(cargado);
+
+            Assert.assertEquals(3, cargado.getControles().size());
+            assertMismaSalida(cargado);
+            for (Control control : cargado.getControles()) {
+                assertMismaSalida(control);
+            }
+
+            assertMismaSalida(backendService.getPersona("1-1"));
+        }
+
+        // Parciales
+        {
+            for (Paciente parcial : backendService.getPacientes(FetchPlan.select("nombre"))) {
+                assertMismaSalida(parcial);
+            }
+            for (Control parcial : backendService.getControlesVeterinario("1-1",
+                    FetchPlan.select("fecha").fetch("veterinario", "nombre"))) {
+                assertMismaSalida(parcial);
+                assertMismaSalida(parcial.getVeterinario());
+            }
+        }
+
+        log.debug("Paciente: {}", backendService.getPaciente(1));
+    }
+
+    /**
+     * El buffer es por hilo: varios hilos serializando a la vez obtienen la misma salida.
+     */
+    @Test
+    public void testConcurrente() throws Exception {
+
+        final List<Paciente> pacientes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            pacientes.add(Paciente.builder().numero(i).nombre("paciente" + i).especie("gato").build());
+        }
+        final List<String> esperado = new ArrayList<>();
+        for (Paciente paciente : pacientes) {
+            esperado.add(paciente.toString());
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<List<String>>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    final List<String> textos = new ArrayList<>();
+                    for (int r = 0; r < 100; r++) {
+                        textos.clear();
+                        for (Paciente paciente : pacientes) {
+                            textos.add(paciente.toString());
+                        }
+                    }
+                    return textos;
+                }));
+            }
+            for (Future<List<String>> future : futures) {
+                Assert.assertEquals(esperado, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertMismaSalida(final BaseModel model) {
+        Assert.assertEquals("Salida de " + model.getClass().getSimpleName(), model.toStringReflection(), model.toString());
+    }
+
+}